@@ -9,6 +9,11 @@ import io.netty.handler.codec.http.HttpResponse;
  * </p>
  * 
  * <p>
+ * Trackers that also implement {@link AdvancedActivityTracker} hear about
+ * what the proxy sends back to the client as well.
+ * </p>
+ * 
+ * <p>
  * Sub-classes may wish to extend {@link ActivityTrackerAdapter} for sensible
  * defaults.
  * </p>
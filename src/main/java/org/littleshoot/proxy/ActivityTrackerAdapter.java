@@ -4,10 +4,10 @@ import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponse;
 
 /**
- * Adapter of {@link ActivityTracker} interface that provides default no-op
- * implementations of all methods.
+ * Adapter of {@link AdvancedActivityTracker} interface that provides default
+ * no-op implementations of all methods.
  */
-public class ActivityTrackerAdapter implements ActivityTracker {
+public class ActivityTrackerAdapter implements AdvancedActivityTracker {
 
     @Override
     public void bytesReceivedFromClient(FlowContext flowContext,
@@ -34,4 +34,14 @@ public class ActivityTrackerAdapter implements ActivityTracker {
             HttpResponse httpResponse) {
     }
 
+    @Override
+    public void bytesSentToClient(FlowContext flowContext,
+            int numberOfBytes) {
+    }
+
+    @Override
+    public void responseSentToClient(FlowContext flowContext,
+            HttpResponse httpResponse) {
+    }
+
 }
@@ -0,0 +1,39 @@
+package org.littleshoot.proxy;
+
+import io.netty.handler.codec.http.HttpResponse;
+
+/**
+ * <p>
+ * An {@link ActivityTracker} that also tracks what the proxy sends back to the
+ * client, including responses that it serves from its {@link ResponseCache}
+ * without ever talking to a server. LittleProxy checks whether each of its
+ * {@link ActivityTracker}s implements this interface, and only tells the ones
+ * that do.
+ * </p>
+ * 
+ * <p>
+ * Sub-classes may wish to extend {@link ActivityTrackerAdapter} for sensible
+ * defaults.
+ * </p>
+ */
+public interface AdvancedActivityTracker extends ActivityTracker {
+    /**
+     * Record that the proxy sent bytes to the client.
+     * 
+     * @param flowContext
+     *            provides contextual information about the flow
+     * @param numberOfBytes
+     */
+    void bytesSentToClient(FlowContext flowContext, int numberOfBytes);
+
+    /**
+     * Record that the proxy sent an {@link HttpResponse} to the client, whether
+     * it came from the server or from the proxy's cache.
+     * 
+     * @param flowContext
+     *            provides contextual information about the flow
+     * @param httpResponse
+     */
+    void responseSentToClient(FlowContext flowContext,
+            HttpResponse httpResponse);
+}
@@ -0,0 +1,92 @@
+package org.littleshoot.proxy;
+
+import io.netty.handler.codec.http.HttpRequest;
+
+/**
+ * <p>
+ * A {@link ChainedProxyManager} that also tells LittleProxy how to make the
+ * most of the link to the chained proxy: multiplexing requests over shared
+ * connections, compressing them and racing a direct connection against a slow
+ * chained proxy. LittleProxy checks whether its {@link ChainedProxyManager}
+ * implements this interface, and otherwise does none of these things.
+ * </p>
+ * 
+ * <p>
+ * Sub-classes may wish to extend {@link ChainedProxyManagerAdapter} for
+ * sensible defaults.
+ * </p>
+ */
+public interface AdvancedChainedProxyManager extends ChainedProxyManager {
+
+    /**
+     * <p>
+     * Return the host and port at which the chained proxy accepts SPDY
+     * clients, if it's a LittleProxy with such a listener (see
+     * {@link ClientProtocol#SPDY}). We then send the given request there as a
+     * stream over one of a few long-lived connections that all of our clients
+     * share, with flow control per stream, instead of over a connection of its
+     * own. The connections use the same transport and encryption as any other
+     * connection to the chained proxy.
+     * </p>
+     * 
+     * <p>
+     * Requests that need a connection of their own, such as CONNECTs, still
+     * go to {@link #getHostAndPort(HttpRequest)}. Returning null sends the
+     * request there too.
+     * </p>
+     * 
+     * @param httpRequest
+     *            The HTTP request.
+     * @return The host and port of the chained proxy's SPDY listener, or null.
+     */
+    String getMultiplexedHostAndPort(HttpRequest httpRequest);
+
+    /**
+     * <p>
+     * Tell LittleProxy whether and how to compress the connection to the
+     * chained proxy for the given request, which pays off on metered or slow
+     * links. The chained proxy has to be a LittleProxy that accepts
+     * compressed links (see
+     * {@link org.littleshoot.proxy.impl.DefaultHttpProxyServer.DefaultHttpProxyServerBootstrap#withAcceptCompressedLinks(boolean)}),
+     * which recognizes a compressed connection by its first byte and
+     * compresses what it sends back the same way.
+     * </p>
+     * 
+     * <p>
+     * CONNECTs are never compressed, since what goes through the tunnel is
+     * usually encrypted already. Mind that compressing an encrypted connection
+     * can leak secrets, such as cookies, to anyone who can get their own text
+     * into the same requests and watch the size of what goes over the link.
+     * </p>
+     * 
+     * @param httpRequest
+     *            The HTTP request.
+     * @return how to compress the connection to the chained proxy
+     */
+    LinkCompression getLinkCompression(HttpRequest httpRequest);
+
+    /**
+     * <p>
+     * Tell LittleProxy how long to wait for the connection to the chained
+     * proxy before also trying to connect to the server directly, for a
+     * request that's allowed to fall back to an unchained connection (see
+     * {@link #allowFallbackToUnchainedConnection(HttpRequest)}). Whichever
+     * connection is established first gets the request and the other one is
+     * closed, so a chained proxy that's down or slow to accept costs the
+     * client this delay rather than the whole connect timeout.
+     * </p>
+     * 
+     * <p>
+     * Only requests without a body that need a new connection are hedged.
+     * Returning 0 keeps waiting for the connection to the chained proxy to
+     * fail before connecting directly.
+     * </p>
+     * 
+     * @param httpRequest
+     *            The HTTP request
+     * @return how long to wait before also connecting directly, in
+     *         milliseconds, or 0 not to hedge
+     */
+    long getFallbackHedgeDelayInMillis(HttpRequest httpRequest);
+
+}
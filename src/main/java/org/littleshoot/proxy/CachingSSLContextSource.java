@@ -0,0 +1,83 @@
+package org.littleshoot.proxy;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * <p>
+ * An {@link SSLContextSource} that gets its {@link SSLContext} from another
+ * {@link SSLContextSource} once, and then keeps handing out that same
+ * {@link SSLContext} until it's told to {@link #reload()}.
+ * </p>
+ * 
+ * <p>
+ * Building an {@link SSLContext} usually means loading a key store and
+ * initializing key and trust managers, which is far too slow to do for every
+ * connection. Reusing the same {@link SSLContext} also lets connections share
+ * its SSL session cache.
+ * </p>
+ * 
+ * <p>
+ * When certificates are rotated, call {@link #reload()}. Connections that are
+ * already established carry on with the old {@link SSLContext}, new
+ * connections get the new one.
+ * </p>
+ */
+public class CachingSSLContextSource implements SSLContextSource {
+    private final SSLContextSource source;
+    private volatile SSLContext sslContext;
+
+    /**
+     * Construct a new {@link CachingSSLContextSource}.
+     * 
+     * @param source
+     *            where to get our {@link SSLContext}s from
+     */
+    public CachingSSLContextSource(SSLContextSource source) {
+        this.source = source;
+    }
+
+    /**
+     * Gets the cached {@link SSLContext}, getting it from the underlying
+     * {@link SSLContextSource} the first time that this is called.
+     */
+    @Override
+    public SSLContext getSSLContext() {
+        SSLContext current = sslContext;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            if (sslContext == null) {
+                sslContext = source.getSSLContext();
+            }
+            return sslContext;
+        }
+    }
+
+    /**
+     * Gets a new {@link SSLContext} from the underlying {@link SSLContextSource}
+     * and starts handing that out instead of the old one. If the underlying
+     * source throws, we keep the old one.
+     * 
+     * @return the new {@link SSLContext}
+     */
+    public synchronized SSLContext reload() {
+        SSLContext reloaded = source.getSSLContext();
+        sslContext = reloaded;
+        return reloaded;
+    }
+
+    /**
+     * Wraps the given {@link SSLContextSource} in a
+     * {@link CachingSSLContextSource}, unless it already is one.
+     * 
+     * @param source
+     * @return a {@link CachingSSLContextSource}, or null if source is null
+     */
+    public static CachingSSLContextSource cache(SSLContextSource source) {
+        if (source == null || source instanceof CachingSSLContextSource) {
+            return (CachingSSLContextSource) source;
+        }
+        return new CachingSSLContextSource(source);
+    }
+}
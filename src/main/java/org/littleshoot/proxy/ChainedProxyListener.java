@@ -0,0 +1,75 @@
+package org.littleshoot.proxy;
+
+import io.netty.handler.codec.http.HttpRequest;
+
+/**
+ * <p>
+ * Hears how the chained proxies are doing, so that a
+ * {@link ChainedProxyManager} that can choose between several of them, such
+ * as {@link ChainedProxyPool}, can learn from it. LittleProxy checks whether
+ * its {@link ChainedProxyManager} implements this interface, and only then
+ * reports to it.
+ * </p>
+ * 
+ * <p>
+ * The methods are called on LittleProxy's own threads, so they should return
+ * quickly.
+ * </p>
+ */
+public interface ChainedProxyListener {
+
+    /**
+     * Tells the manager that we've connected to the given chained proxy, and
+     * how long it took to open the connection (before any encryption).
+     * 
+     * @param hostAndPort
+     *            the chained proxy, as returned by
+     *            {@link ChainedProxyManager#getHostAndPort(HttpRequest)}
+     * @param connectTimeInMillis
+     *            how long it took to connect
+     */
+    void connectedToChainedProxy(String hostAndPort, long connectTimeInMillis);
+
+    /**
+     * Tells the manager that we couldn't connect to the given chained proxy.
+     * 
+     * @param hostAndPort
+     *            the chained proxy
+     */
+    void failedToConnectToChainedProxy(String hostAndPort);
+
+    /**
+     * Tells the manager that we've sent a request to the given chained proxy.
+     * Every request is followed by a call to either
+     * {@link #responseReceivedFromChainedProxy(String, long)} or
+     * {@link #requestFailedAtChainedProxy(String)}, so the requests in between
+     * are the ones that are outstanding. CONNECTs aren't reported.
+     * 
+     * @param hostAndPort
+     *            the chained proxy
+     */
+    void requestSentToChainedProxy(String hostAndPort);
+
+    /**
+     * Tells the manager that the given chained proxy has started responding
+     * to a request, and how long it took to do so.
+     * 
+     * @param hostAndPort
+     *            the chained proxy
+     * @param timeToFirstByteInMillis
+     *            how long it took from sending the request until the response
+     *            started to arrive
+     */
+    void responseReceivedFromChainedProxy(String hostAndPort,
+            long timeToFirstByteInMillis);
+
+    /**
+     * Tells the manager that the connection to the given chained proxy closed
+     * before it responded to a request.
+     * 
+     * @param hostAndPort
+     *            the chained proxy
+     */
+    void requestFailedAtChainedProxy(String hostAndPort);
+
+}
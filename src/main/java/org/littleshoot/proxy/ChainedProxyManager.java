@@ -8,6 +8,13 @@ import io.netty.handler.codec.http.HttpRequest;
  * </p>
  * 
  * <p>
+ * Managers that also implement {@link AdvancedChainedProxyManager} can
+ * multiplex, compress and hedge their connections, and managers that also
+ * implement {@link ChainedProxyListener} hear how the chained proxies are
+ * doing.
+ * </p>
+ * 
+ * <p>
  * Sub-classes may wish to extend {@link ChainedProxyManagerAdapter} for
  * sensible defaults.
  * </p>
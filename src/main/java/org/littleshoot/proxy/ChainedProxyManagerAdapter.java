@@ -4,13 +4,24 @@ import io.netty.handler.codec.http.HttpRequest;
 
 import javax.net.ssl.SSLContext;
 
-public class ChainedProxyManagerAdapter implements ChainedProxyManager {
+/**
+ * Adapter of the {@link ChainedProxyManager} interfaces that provides default
+ * implementations of all methods, which don't chain and don't use any of the
+ * options of {@link AdvancedChainedProxyManager}.
+ */
+public class ChainedProxyManagerAdapter implements
+        AdvancedChainedProxyManager, ChainedProxyListener {
 
     @Override
     public String getHostAndPort(HttpRequest httpRequest) {
         return null;
     }
 
+    @Override
+    public String getMultiplexedHostAndPort(HttpRequest httpRequest) {
+        return null;
+    }
+
     @Override
     public boolean requiresEncryption(HttpRequest httpRequest) {
         return false;
@@ -21,6 +32,11 @@ public class ChainedProxyManagerAdapter implements ChainedProxyManager {
         return null;
     }
 
+    @Override
+    public LinkCompression getLinkCompression(HttpRequest httpRequest) {
+        return LinkCompression.NONE;
+    }
+
     @Override
     public TransportProtocol getTransportProtocol() {
         return TransportProtocol.TCP;
@@ -31,4 +47,31 @@ public class ChainedProxyManagerAdapter implements ChainedProxyManager {
         return false;
     }
 
+    @Override
+    public long getFallbackHedgeDelayInMillis(HttpRequest httpRequest) {
+        return 0;
+    }
+
+    @Override
+    public void connectedToChainedProxy(String hostAndPort,
+            long connectTimeInMillis) {
+    }
+
+    @Override
+    public void failedToConnectToChainedProxy(String hostAndPort) {
+    }
+
+    @Override
+    public void requestSentToChainedProxy(String hostAndPort) {
+    }
+
+    @Override
+    public void responseReceivedFromChainedProxy(String hostAndPort,
+            long timeToFirstByteInMillis) {
+    }
+
+    @Override
+    public void requestFailedAtChainedProxy(String hostAndPort) {
+    }
+
 }
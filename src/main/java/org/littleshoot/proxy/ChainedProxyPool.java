@@ -0,0 +1,590 @@
+package org.littleshoot.proxy;
+
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.StringUtils;
+import org.littleshoot.proxy.impl.ProxyUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * A {@link ChainedProxyManager} that spreads requests over several chained
+ * proxies, choosing one for each request with a
+ * {@link LoadBalancingStrategy}. It learns how the chained proxies are doing
+ * from LittleProxy's own measurements: how long connecting to them takes, how
+ * long they take to start responding and how many requests each of them has
+ * outstanding. Chained proxies can be added and removed while the pool is in
+ * use.
+ * </p>
+ * 
+ * <p>
+ * Chained proxies that turn out to be much slower than the others, or that
+ * can't be connected to, are ejected from the pool for a while. A chained
+ * proxy gets a strike for every connect that fails and for every measurement
+ * that's more than {@link #withEjectionThreshold(double)} times the median of
+ * the others' latencies. After three strikes in a row, it's ejected for
+ * {@link #withEjectionTimeInSeconds(int)}, then gets another chance with a
+ * clean slate. We never eject more than half of the
+ * pool.
+ * </p>
+ * 
+ * <p>
+ * Everything else is as in {@link ChainedProxyManagerAdapter}, so sub-classes
+ * may override the other methods to encrypt or compress the connections to the
+ * pool, for example.
+ * </p>
+ */
+public class ChainedProxyPool extends ChainedProxyManagerAdapter {
+    private static final Logger LOG = LoggerFactory
+            .getLogger(ChainedProxyPool.class);
+
+    /**
+     * How many strikes in a row get a chained proxy ejected.
+     */
+    private static final int STRIKES_BEFORE_EJECTION = 3;
+
+    /**
+     * How long it takes for a latency to lose most of its weight in the moving
+     * average, if nothing's heard from the chained proxy in the meantime.
+     */
+    private static final double DECAY_TIME_IN_MILLIS = 10000;
+
+    /**
+     * The cost of a chained proxy that has requests outstanding, but hasn't
+     * had its latency measured yet.
+     */
+    private static final double UNMEASURED_PENALTY = Double.MAX_VALUE / 2;
+
+    /**
+     * Measurements that are less than this much slower than the median don't
+     * count as slow, however much slower they are relatively, so that jitter
+     * on fast networks doesn't get anyone ejected.
+     */
+    private static final long SLOWNESS_TOLERANCE_IN_MILLIS = 100;
+
+    /**
+     * How many points each chained proxy gets on the ring for
+     * {@link LoadBalancingStrategy#CONSISTENT_HASH}. The more points, the
+     * more evenly the requests are spread.
+     */
+    private static final int POINTS_PER_MEMBER = 160;
+
+    /**
+     * With {@link LoadBalancingStrategy#CONSISTENT_HASH}, no chained proxy may
+     * have more than this many times the average number of requests
+     * outstanding (plus the one we're choosing for).
+     */
+    private static final double LOAD_BOUND = 1.25;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final LoadBalancingStrategy strategy;
+    private final List<Member> members = new CopyOnWriteArrayList<Member>();
+    private final Map<String, Member> membersByHostAndPort = new ConcurrentHashMap<String, Member>();
+    private final AtomicInteger nextIndex = new AtomicInteger(0);
+    private final Random random = new Random();
+
+    /**
+     * Where each chained proxy's points are, for
+     * {@link LoadBalancingStrategy#CONSISTENT_HASH}. Rebuilt whenever the pool
+     * changes.
+     */
+    private volatile NavigableMap<Long, Member> ring = new TreeMap<Long, Member>();
+
+    private volatile double ejectionThreshold = 3;
+    private volatile int ejectionTimeInSeconds = 30;
+    private volatile HashKey hashKey = HashKey.HOST;
+
+    /**
+     * Construct a new {@link ChainedProxyPool}.
+     * 
+     * @param strategy
+     *            how to choose a chained proxy for each request
+     * @param hostAndPorts
+     *            the host and port of every chained proxy in the pool
+     */
+    public ChainedProxyPool(LoadBalancingStrategy strategy,
+            String... hostAndPorts) {
+        this(strategy, Arrays.asList(hostAndPorts));
+    }
+
+    /**
+     * Construct a new {@link ChainedProxyPool}.
+     * 
+     * @param strategy
+     *            how to choose a chained proxy for each request
+     * @param hostAndPorts
+     *            the host and port of every chained proxy in the pool
+     */
+    public ChainedProxyPool(LoadBalancingStrategy strategy,
+            List<String> hostAndPorts) {
+        if (hostAndPorts.isEmpty()) {
+            throw new IllegalArgumentException(
+                    "A pool needs at least one chained proxy");
+        }
+        this.strategy = strategy;
+        for (String hostAndPort : hostAndPorts) {
+            addChainedProxy(hostAndPort);
+        }
+    }
+
+    /**
+     * Sets how many times slower than the median of the others a chained
+     * proxy's connect times and times to first byte may be before they count
+     * as strikes. Defaults to 3.
+     * 
+     * @param ejectionThreshold
+     * @return this pool
+     */
+    public ChainedProxyPool withEjectionThreshold(double ejectionThreshold) {
+        this.ejectionThreshold = ejectionThreshold;
+        return this;
+    }
+
+    /**
+     * Sets how long an ejected chained proxy stays out of the pool. Defaults
+     * to 30 seconds.
+     * 
+     * @param ejectionTimeInSeconds
+     * @return this pool
+     */
+    public ChainedProxyPool withEjectionTimeInSeconds(int ejectionTimeInSeconds) {
+        this.ejectionTimeInSeconds = ejectionTimeInSeconds;
+        return this;
+    }
+
+    /**
+     * Sets what to hash requests on, with
+     * {@link LoadBalancingStrategy#CONSISTENT_HASH}. Defaults to
+     * {@link HashKey#HOST}. Sub-classes can hash on anything else by
+     * overriding {@link #getHashKey(HttpRequest)}.
+     * 
+     * @param hashKey
+     * @return this pool
+     */
+    public ChainedProxyPool withHashKey(HashKey hashKey) {
+        this.hashKey = hashKey;
+        return this;
+    }
+
+    /**
+     * Adds a chained proxy to the pool, unless it's in it already.
+     * 
+     * @param hostAndPort
+     */
+    public synchronized void addChainedProxy(String hostAndPort) {
+        if (membersByHostAndPort.containsKey(hostAndPort)) {
+            return;
+        }
+        Member member = new Member(hostAndPort);
+        members.add(member);
+        membersByHostAndPort.put(hostAndPort, member);
+        rebuildRing();
+    }
+
+    /**
+     * Removes a chained proxy from the pool. Requests that it has outstanding
+     * carry on.
+     * 
+     * @param hostAndPort
+     */
+    public synchronized void removeChainedProxy(String hostAndPort) {
+        Member member = membersByHostAndPort.get(hostAndPort);
+        if (member == null) {
+            return;
+        }
+        if (members.size() == 1) {
+            throw new IllegalStateException(
+                    "A pool needs at least one chained proxy");
+        }
+        members.remove(member);
+        membersByHostAndPort.remove(hostAndPort);
+        rebuildRing();
+    }
+
+    @Override
+    public String getHostAndPort(HttpRequest httpRequest) {
+        List<Member> available = availableMembers();
+        switch (strategy) {
+        case ROUND_ROBIN:
+            int index = nextIndex.getAndIncrement() & Integer.MAX_VALUE;
+            return available.get(index % available.size()).hostAndPort;
+        case LEAST_OUTSTANDING:
+        case PEAK_EWMA:
+            return cheaperOfTwo(available).hostAndPort;
+        case CONSISTENT_HASH:
+            return onRing(getHashKey(httpRequest), available).hostAndPort;
+        default:
+            throw new IllegalStateException("Unknown strategy: " + strategy);
+        }
+    }
+
+    /**
+     * Gets what to hash the given request on, with
+     * {@link LoadBalancingStrategy#CONSISTENT_HASH}.
+     * 
+     * @param httpRequest
+     * @return
+     */
+    protected String getHashKey(HttpRequest httpRequest) {
+        String hostAndPort = ProxyUtils.parseHostAndPort(httpRequest);
+        if (StringUtils.isBlank(hostAndPort)) {
+            hostAndPort = HttpHeaders.getHost(httpRequest, "");
+        }
+        switch (hashKey) {
+        case HOST:
+            return hostAndPort;
+        case URI:
+            String uri = httpRequest.getUri();
+            return uri.startsWith("/") ? hostAndPort + uri : uri;
+        default:
+            throw new IllegalStateException("Unknown hash key: " + hashKey);
+        }
+    }
+
+    @Override
+    public void connectedToChainedProxy(String hostAndPort,
+            long connectTimeInMillis) {
+        Member member = membersByHostAndPort.get(hostAndPort);
+        if (member != null) {
+            measured(member, connectTimeInMillis);
+        }
+    }
+
+    @Override
+    public void failedToConnectToChainedProxy(String hostAndPort) {
+        Member member = membersByHostAndPort.get(hostAndPort);
+        if (member != null) {
+            LOG.debug("Failed to connect to {}", hostAndPort);
+            strike(member);
+        }
+    }
+
+    @Override
+    public void requestSentToChainedProxy(String hostAndPort) {
+        Member member = membersByHostAndPort.get(hostAndPort);
+        if (member != null) {
+            member.outstanding.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void responseReceivedFromChainedProxy(String hostAndPort,
+            long timeToFirstByteInMillis) {
+        Member member = membersByHostAndPort.get(hostAndPort);
+        if (member != null) {
+            member.outstanding.decrementAndGet();
+            measured(member, timeToFirstByteInMillis);
+        }
+    }
+
+    @Override
+    public void requestFailedAtChainedProxy(String hostAndPort) {
+        Member member = membersByHostAndPort.get(hostAndPort);
+        if (member != null) {
+            member.outstanding.decrementAndGet();
+        }
+    }
+
+    /**
+     * Whether the given chained proxy is currently ejected from the pool.
+     * 
+     * @param hostAndPort
+     * @return
+     */
+    public boolean isEjected(String hostAndPort) {
+        Member member = membersByHostAndPort.get(hostAndPort);
+        return member != null && isEjected(member, System.currentTimeMillis());
+    }
+
+    /**
+     * How many requests the given chained proxy has outstanding.
+     * 
+     * @param hostAndPort
+     * @return
+     */
+    public int getOutstandingRequests(String hostAndPort) {
+        Member member = membersByHostAndPort.get(hostAndPort);
+        return member != null ? member.outstanding.get() : 0;
+    }
+
+    /**
+     * The members that aren't ejected, readmitting any whose ejection is over.
+     * 
+     * @return
+     */
+    private List<Member> availableMembers() {
+        long now = System.currentTimeMillis();
+        List<Member> available = new ArrayList<Member>(members.size());
+        for (Member member : members) {
+            if (!isEjected(member, now)) {
+                available.add(member);
+            }
+        }
+        return available;
+    }
+
+    private boolean isEjected(Member member, long now) {
+        if (member.ejectedUntil == 0) {
+            return false;
+        }
+        synchronized (this) {
+            if (member.ejectedUntil == 0) {
+                return false;
+            } else if (now < member.ejectedUntil) {
+                return true;
+            }
+            LOG.info("Readmitting {} to the pool", member.hostAndPort);
+            member.ejectedUntil = 0;
+            member.strikes = 0;
+            member.resetLatency();
+            return false;
+        }
+    }
+
+    /**
+     * Picks two different members at random and returns the one that costs
+     * less according to our strategy.
+     * 
+     * @param available
+     * @return
+     */
+    private Member cheaperOfTwo(List<Member> available) {
+        int size = available.size();
+        if (size == 1) {
+            return available.get(0);
+        }
+        int first = random.nextInt(size);
+        int second = random.nextInt(size - 1);
+        if (second >= first) {
+            second += 1;
+        }
+        long now = System.currentTimeMillis();
+        Member a = available.get(first);
+        Member b = available.get(second);
+        return cost(b, now) < cost(a, now) ? b : a;
+    }
+
+    /**
+     * Finds the first available member at or after the given key's point on
+     * the ring that doesn't have too many requests outstanding. There always
+     * is one, since they can't all have more than the average.
+     * 
+     * @param key
+     * @param available
+     * @return
+     */
+    private Member onRing(String key, List<Member> available) {
+        int outstanding = 0;
+        for (Member member : available) {
+            outstanding += Math.max(member.outstanding.get(), 0);
+        }
+        double capacity = Math.ceil(LOAD_BOUND * (outstanding + 1)
+                / available.size());
+        NavigableMap<Long, Member> ring = this.ring;
+        long point = pointsFor(key)[0];
+        // Walk clockwise from the point, wrapping around once
+        for (int pass = 0; pass < 2; pass++) {
+            Map<Long, Member> arc = pass == 0 ? ring.tailMap(point, true)
+                    : ring.headMap(point, false);
+            for (Member member : arc.values()) {
+                if (available.contains(member)
+                        && member.outstanding.get() < capacity) {
+                    return member;
+                }
+            }
+        }
+        return available.get(0);
+    }
+
+    private void rebuildRing() {
+        NavigableMap<Long, Member> ring = new TreeMap<Long, Member>();
+        for (Member member : members) {
+            for (int i = 0; i < POINTS_PER_MEMBER / 4; i++) {
+                for (long point : pointsFor(member.hostAndPort + "-" + i)) {
+                    ring.put(point, member);
+                }
+            }
+        }
+        this.ring = ring;
+    }
+
+    /**
+     * Hashes the given key to four points on the ring, the way ketama does.
+     * 
+     * @param key
+     * @return
+     */
+    private static long[] pointsFor(String key) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("MD5").digest(
+                    key.getBytes(UTF_8));
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException("No MD5", nsae);
+        }
+        long[] points = new long[4];
+        for (int i = 0; i < 4; i++) {
+            points[i] = ((long) (digest[3 + i * 4] & 0xFF) << 24)
+                    | ((long) (digest[2 + i * 4] & 0xFF) << 16)
+                    | ((long) (digest[1 + i * 4] & 0xFF) << 8)
+                    | (digest[i * 4] & 0xFF);
+        }
+        return points;
+    }
+
+    private double cost(Member member, long now) {
+        int outstanding = member.outstanding.get();
+        if (strategy == LoadBalancingStrategy.LEAST_OUTSTANDING) {
+            return outstanding;
+        }
+        double latency = member.decayedLatency(now);
+        if (latency == 0 && outstanding > 0) {
+            return UNMEASURED_PENALTY + outstanding;
+        }
+        return latency * (outstanding + 1);
+    }
+
+    /**
+     * Records a connect time or time to first byte for the given member, and
+     * gives it a strike if that was slow compared to the others.
+     * 
+     * @param member
+     * @param millis
+     */
+    private void measured(Member member, long millis) {
+        member.observe(millis, System.currentTimeMillis());
+        List<Double> latencies = new ArrayList<Double>(members.size());
+        for (Member other : members) {
+            double latency = other.latency();
+            if (other != member && other.ejectedUntil == 0 && latency > 0) {
+                latencies.add(latency);
+            }
+        }
+        if (latencies.isEmpty()) {
+            return;
+        }
+        Collections.sort(latencies);
+        double median = latencies.get(latencies.size() / 2);
+        if (millis > median * ejectionThreshold
+                && millis - median > SLOWNESS_TOLERANCE_IN_MILLIS) {
+            LOG.debug("{} took {}ms, against a median of {}ms",
+                    member.hostAndPort, millis, median);
+            strike(member);
+        } else {
+            synchronized (this) {
+                member.strikes = 0;
+            }
+        }
+    }
+
+    private synchronized void strike(Member member) {
+        member.strikes += 1;
+        if (member.strikes < STRIKES_BEFORE_EJECTION
+                || member.ejectedUntil != 0) {
+            return;
+        }
+        int ejected = 0;
+        for (Member other : members) {
+            if (other.ejectedUntil != 0) {
+                ejected += 1;
+            }
+        }
+        if (ejected + 1 > members.size() / 2) {
+            LOG.debug("Not ejecting {}, too many are ejected already",
+                    member.hostAndPort);
+            return;
+        }
+        LOG.info("Ejecting {} from the pool for {} seconds",
+                member.hostAndPort, ejectionTimeInSeconds);
+        member.ejectedUntil = System.currentTimeMillis()
+                + ejectionTimeInSeconds * 1000L;
+    }
+
+    /**
+     * A chained proxy in the pool, with what we know about how it's doing.
+     */
+    private static class Member {
+        private final String hostAndPort;
+        private final AtomicInteger outstanding = new AtomicInteger(0);
+
+        /**
+         * When the member's ejection ends, or 0 if it's not ejected.
+         */
+        private volatile long ejectedUntil = 0;
+
+        /**
+         * Guarded by the pool.
+         */
+        private int strikes = 0;
+
+        private double latency = 0;
+        private long latencyMeasuredAt = 0;
+
+        private Member(String hostAndPort) {
+            this.hostAndPort = hostAndPort;
+        }
+
+        /**
+         * Adds a measurement to the moving average of the latency. Slower
+         * measurements replace the average altogether, so that we react to a
+         * chained proxy slowing down right away, whereas faster ones only
+         * bring it down gradually.
+         * 
+         * @param millis
+         * @param now
+         */
+        private synchronized void observe(double millis, long now) {
+            if (millis > latency) {
+                latency = millis;
+            } else {
+                double weight = weightOfLatencyAt(now);
+                latency = latency * weight + millis * (1 - weight);
+            }
+            latencyMeasuredAt = now;
+        }
+
+        private synchronized double latency() {
+            return latency;
+        }
+
+        /**
+         * The latency, having decayed as if we'd measured 0 for as long as
+         * we haven't heard from the chained proxy, so that we give chained
+         * proxies that seemed slow another go after a while.
+         * 
+         * @param now
+         * @return
+         */
+        private synchronized double decayedLatency(long now) {
+            return latency * weightOfLatencyAt(now);
+        }
+
+        private synchronized void resetLatency() {
+            latency = 0;
+            latencyMeasuredAt = 0;
+        }
+
+        private double weightOfLatencyAt(long now) {
+            long elapsed = Math.max(now - latencyMeasuredAt, 0);
+            return Math.exp(-elapsed / DECAY_TIME_IN_MILLIS);
+        }
+    }
+}
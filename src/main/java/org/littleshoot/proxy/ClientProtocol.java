@@ -0,0 +1,22 @@
+package org.littleshoot.proxy;
+
+/**
+ * Enumeration of the protocols that clients can talk to a LittleProxy
+ * listener.
+ */
+public enum ClientProtocol {
+    /**
+     * Plain HTTP/1.x proxy requests, including CONNECT.
+     */
+    HTTP,
+
+    /**
+     * SPDY/3, spoken from the start without negotiation.
+     */
+    SPDY,
+
+    /**
+     * SOCKS5, CONNECT only.
+     */
+    SOCKS
+}
@@ -0,0 +1,20 @@
+package org.littleshoot.proxy;
+
+/**
+ * Enumeration of the parts of a request that a {@link ChainedProxyPool} can
+ * hash on to pick its chained proxy, with
+ * {@link LoadBalancingStrategy#CONSISTENT_HASH}.
+ */
+public enum HashKey {
+    /**
+     * The host and port of the server, so that everything from one site goes
+     * through the same chained proxy.
+     */
+    HOST,
+
+    /**
+     * The full URI, which spreads the load more evenly, but still sends every
+     * request for the same resource to the same chained proxy.
+     */
+    URI
+}
@@ -0,0 +1,24 @@
+package org.littleshoot.proxy;
+
+/**
+ * Enumeration of the ways in which LittleProxy can compress the connection to
+ * a chained LittleProxy (see {@link AdvancedChainedProxyManager}). Everything sent
+ * either way is compressed, headers and bodies alike.
+ */
+public enum LinkCompression {
+    /**
+     * Don't compress.
+     */
+    NONE,
+
+    /**
+     * A zlib stream, flushed after every write. Compresses the most, at the
+     * highest cost in CPU.
+     */
+    DEFLATE,
+
+    /**
+     * Framed Snappy. Compresses less than {@link #DEFLATE}, but much faster.
+     */
+    SNAPPY
+}
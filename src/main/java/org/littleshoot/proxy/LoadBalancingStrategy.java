@@ -0,0 +1,37 @@
+package org.littleshoot.proxy;
+
+/**
+ * Enumeration of the ways in which a {@link ChainedProxyPool} can choose the
+ * chained proxy for a request.
+ */
+public enum LoadBalancingStrategy {
+    /**
+     * Take turns, regardless of how the chained proxies are doing.
+     */
+    ROUND_ROBIN,
+
+    /**
+     * Pick two chained proxies at random and take the one with fewer requests
+     * outstanding.
+     */
+    LEAST_OUTSTANDING,
+
+    /**
+     * Pick two chained proxies at random and take the one with the lower
+     * expected latency: a moving average of its connect times and times to
+     * first byte, which jumps up to any slower measurement right away, times
+     * the number of requests outstanding plus one.
+     */
+    PEAK_EWMA,
+
+    /**
+     * Hash the request (see {@link HashKey}) onto a ring of the chained
+     * proxies, so that the same requests keep going to the same chained proxy,
+     * which is what caching chained proxies need to make the most of their
+     * caches. A chained proxy that has a lot more requests outstanding than
+     * the others passes the requests on to the next one on the ring, and
+     * adding or removing a chained proxy only moves the requests that go to
+     * it.
+     */
+    CONSISTENT_HASH
+}
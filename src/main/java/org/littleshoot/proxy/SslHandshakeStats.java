@@ -0,0 +1,112 @@
+package org.littleshoot.proxy;
+
+/**
+ * A snapshot of the statistics that a proxy server keeps about its SSL
+ * handshakes, with clients and servers alike. The delegated tasks are the
+ * expensive parts of each handshake, which run on the server's SSL handshake
+ * threads if it has any.
+ */
+public class SslHandshakeStats {
+    private final long handshakes;
+    private final long failedHandshakes;
+    private final double averageHandshakeMillis;
+    private final double maxHandshakeMillis;
+    private final int queueDepth;
+    private final int tasksInFlight;
+    private final double averageTaskMillis;
+
+    public SslHandshakeStats(
+            long handshakes,
+            long failedHandshakes,
+            double averageHandshakeMillis,
+            double maxHandshakeMillis,
+            int queueDepth,
+            int tasksInFlight,
+            double averageTaskMillis) {
+        super();
+        this.handshakes = handshakes;
+        this.failedHandshakes = failedHandshakes;
+        this.averageHandshakeMillis = averageHandshakeMillis;
+        this.maxHandshakeMillis = maxHandshakeMillis;
+        this.queueDepth = queueDepth;
+        this.tasksInFlight = tasksInFlight;
+        this.averageTaskMillis = averageTaskMillis;
+    }
+
+    /**
+     * The number of handshakes that have succeeded.
+     * 
+     * @return
+     */
+    public long getHandshakes() {
+        return handshakes;
+    }
+
+    /**
+     * The number of handshakes that have failed.
+     * 
+     * @return
+     */
+    public long getFailedHandshakes() {
+        return failedHandshakes;
+    }
+
+    /**
+     * The average time from the start of a handshake to its end, whether it
+     * succeeded or not, in milliseconds.
+     * 
+     * @return
+     */
+    public double getAverageHandshakeMillis() {
+        return averageHandshakeMillis;
+    }
+
+    /**
+     * The longest that any handshake has taken, in milliseconds.
+     * 
+     * @return
+     */
+    public double getMaxHandshakeMillis() {
+        return maxHandshakeMillis;
+    }
+
+    /**
+     * The number of delegated tasks that were waiting for a thread. Always 0
+     * if the tasks run on the event loops.
+     * 
+     * @return
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * The number of delegated tasks that hadn't finished yet, including the
+     * ones that were still queued.
+     * 
+     * @return
+     */
+    public int getTasksInFlight() {
+        return tasksInFlight;
+    }
+
+    /**
+     * The average time that it took to run a delegated task (not counting the
+     * time spent waiting in the queue), in milliseconds.
+     * 
+     * @return
+     */
+    public double getAverageTaskMillis() {
+        return averageTaskMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "%1$s SSL handshakes (%2$s failed), %3$.1fms average, %4$.1fms max; "
+                        + "%5$s delegated tasks in flight (%6$s queued), %7$.1fms average",
+                handshakes, failedHandshakes, averageHandshakeMillis,
+                maxHandshakeMillis, tasksInFlight, queueDepth,
+                averageTaskMillis);
+    }
+}
@@ -0,0 +1,189 @@
+package org.littleshoot.proxy.impl;
+
+/**
+ * <p>
+ * A range of bytes within a response body, as found in Range and Content-Range
+ * headers (RFC 2616 Section 14.35 and 14.16).
+ * </p>
+ * 
+ * <p>
+ * Only single ranges are supported. Requests for multiple ranges are left for
+ * the server to deal with.
+ * </p>
+ */
+class ByteRange {
+    private static final String BYTES_UNIT = "bytes";
+
+    /**
+     * The first byte in the range, or -1 for a suffix range.
+     */
+    private final long start;
+
+    /**
+     * The last byte in the range (inclusive), or -1 for an open-ended range.
+     * For suffix ranges, this is the number of bytes at the end of the body.
+     */
+    private final long end;
+
+    /**
+     * The total length of the body, or -1 if unknown.
+     */
+    private final long totalLength;
+
+    private ByteRange(long start, long end, long totalLength) {
+        this.start = start;
+        this.end = end;
+        this.totalLength = totalLength;
+    }
+
+    /**
+     * Creates a fully specified range.
+     * 
+     * @param start
+     * @param end
+     *            the last byte (inclusive)
+     * @param totalLength
+     * @return
+     */
+    static ByteRange of(long start, long end, long totalLength) {
+        return new ByteRange(start, end, totalLength);
+    }
+
+    /**
+     * Parses the value of a Range header like "bytes=0-499", "bytes=500-" or
+     * "bytes=-500".
+     * 
+     * @param header
+     * @return the range, or null if the header is missing, malformed or asks
+     *         for more than one range
+     */
+    static ByteRange fromRangeHeader(String header) {
+        if (header == null) {
+            return null;
+        }
+        String value = header.trim();
+        if (!value.startsWith(BYTES_UNIT + "=") || value.indexOf(',') >= 0) {
+            return null;
+        }
+        value = value.substring(BYTES_UNIT.length() + 1).trim();
+        int dash = value.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            String first = value.substring(0, dash).trim();
+            String last = value.substring(dash + 1).trim();
+            if (first.length() == 0) {
+                long suffixLength = Long.parseLong(last);
+                return suffixLength > 0 ? new ByteRange(-1, suffixLength, -1)
+                        : null;
+            }
+            long start = Long.parseLong(first);
+            long end = last.length() == 0 ? -1 : Long.parseLong(last);
+            if (start < 0 || (end >= 0 && end < start)) {
+                return null;
+            }
+            return new ByteRange(start, end, -1);
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+    }
+
+    /**
+     * Parses the value of a Content-Range header like "bytes 0-499/1234".
+     * 
+     * @param header
+     * @return the range, or null if the header is missing, malformed or
+     *         doesn't specify the total length
+     */
+    static ByteRange fromContentRangeHeader(String header) {
+        if (header == null) {
+            return null;
+        }
+        String value = header.trim();
+        if (!value.startsWith(BYTES_UNIT + " ")) {
+            return null;
+        }
+        value = value.substring(BYTES_UNIT.length() + 1).trim();
+        int dash = value.indexOf('-');
+        int slash = value.indexOf('/');
+        if (dash < 0 || slash < dash) {
+            return null;
+        }
+        try {
+            long start = Long.parseLong(value.substring(0, dash).trim());
+            long end = Long.parseLong(value.substring(dash + 1, slash).trim());
+            long totalLength = Long.parseLong(value.substring(slash + 1)
+                    .trim());
+            if (start < 0 || end < start || end >= totalLength) {
+                return null;
+            }
+            return new ByteRange(start, end, totalLength);
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+    }
+
+    /**
+     * Works out the actual bytes that this range covers in a body of the given
+     * length.
+     * 
+     * @param totalLength
+     * @return the resolved range, or null if this range isn't satisfiable
+     */
+    ByteRange resolve(long totalLength) {
+        long resolvedStart;
+        long resolvedEnd;
+        if (start < 0) {
+            resolvedStart = Math.max(0, totalLength - end);
+            resolvedEnd = totalLength - 1;
+        } else {
+            resolvedStart = start;
+            resolvedEnd = end < 0 ? totalLength - 1 : Math.min(end,
+                    totalLength - 1);
+        }
+        if (resolvedStart >= totalLength) {
+            return null;
+        }
+        return new ByteRange(resolvedStart, resolvedEnd, totalLength);
+    }
+
+    long getStart() {
+        return start;
+    }
+
+    long getEnd() {
+        return end;
+    }
+
+    long getTotalLength() {
+        return totalLength;
+    }
+
+    long getLength() {
+        return end - start + 1;
+    }
+
+    /**
+     * The value of a Range header requesting this range.
+     * 
+     * @return
+     */
+    String toRangeHeader() {
+        return BYTES_UNIT + "=" + start + "-" + end;
+    }
+
+    /**
+     * The value of a Content-Range header describing this (resolved) range.
+     * 
+     * @return
+     */
+    String toContentRangeHeader() {
+        return BYTES_UNIT + " " + start + "-" + end + "/" + totalLength;
+    }
+
+    @Override
+    public String toString() {
+        return toContentRangeHeader();
+    }
+}
@@ -0,0 +1,61 @@
+package org.littleshoot.proxy.impl;
+
+import java.util.List;
+
+/**
+ * <p>
+ * Decides which responses the {@link ResponseCache} keeps and which ones it
+ * evicts to stay within its size limit.
+ * </p>
+ * 
+ * <p>
+ * Policies only track keys and weights, the cache holds on to the responses
+ * themselves. Policies are not thread-safe, the cache synchronizes access to
+ * them.
+ * </p>
+ */
+interface CacheEvictionPolicy {
+    /**
+     * Records that the entry for the given key was found in the cache.
+     * 
+     * @param key
+     */
+    void recordHit(String key);
+
+    /**
+     * Records that a lookup for the given key didn't find anything in the
+     * cache.
+     * 
+     * @param key
+     */
+    void recordMiss(String key);
+
+    /**
+     * Adds a new entry to the cache, evicting other entries as necessary to
+     * make room.
+     * 
+     * @param key
+     *            the key of the new entry, which must not already be in the
+     *            cache
+     * @param weight
+     *            the size of the new entry
+     * @return the keys of all entries that should be evicted as a result. This
+     *         may include the new entry itself if the policy decided not to
+     *         admit it.
+     */
+    List<String> add(String key, long weight);
+
+    /**
+     * Removes the entry for the given key, if present.
+     * 
+     * @param key
+     */
+    void remove(String key);
+
+    /**
+     * The total weight of all entries currently held.
+     * 
+     * @return
+     */
+    long getWeight();
+}
@@ -0,0 +1,398 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * An on-disk copy of the contents of a {@link ResponseCache}, used to warm up
+ * the cache when the proxy restarts.
+ * </p>
+ * 
+ * <p>
+ * A snapshot consists of two files in the cache directory:
+ * </p>
+ * 
+ * <ul>
+ * <li>{@value #INDEX_FILE_NAME} - the status line, headers and freshness
+ * information for each response, along with the location, length and CRC32 of
+ * its body in the data file</li>
+ * <li>{@value #DATA_FILE_NAME} - the bodies of all responses, back to back</li>
+ * </ul>
+ * 
+ * <p>
+ * Loading a snapshot only reads the index. The data file is memory-mapped the
+ * first time a body is needed, and each body is checked against its CRC32 the
+ * first time it's read, so startup time doesn't depend on how much data is in
+ * the cache.
+ * </p>
+ */
+class CacheSnapshot {
+    private static final Logger LOG = LoggerFactory
+            .getLogger(CacheSnapshot.class);
+
+    static final String INDEX_FILE_NAME = "cache.index";
+    static final String DATA_FILE_NAME = "cache.data";
+
+    /**
+     * "LPC1" - identifies (version 1 of) our index format.
+     */
+    private static final int MAGIC = 0x4C504331;
+
+    private final File dataFile;
+    private volatile RandomAccessFile data;
+    private volatile ByteBuffer mappedData;
+
+    private CacheSnapshot(File dataFile) {
+        this.dataFile = dataFile;
+    }
+
+    /**
+     * Loads the index of the snapshot in the given directory.
+     * 
+     * @param directory
+     * @return the cached responses in the snapshot, minus any that were
+     *         already stale. If there is no snapshot, or the snapshot can't be
+     *         read, this returns an empty list.
+     */
+    static List<CachedResponse> load(File directory) {
+        File indexFile = new File(directory, INDEX_FILE_NAME);
+        File dataFile = new File(directory, DATA_FILE_NAME);
+        List<CachedResponse> responses = new ArrayList<CachedResponse>();
+        if (!indexFile.isFile() || !dataFile.isFile()) {
+            LOG.debug("No cache snapshot found in {}", directory);
+            return responses;
+        }
+
+        CacheSnapshot snapshot = new CacheSnapshot(dataFile);
+        long now = System.currentTimeMillis();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(indexFile)));
+            if (in.readInt() != MAGIC) {
+                LOG.warn("Ignoring cache snapshot with unknown format in {}",
+                        directory);
+                return responses;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                CachedResponse response = readResponse(in, snapshot);
+                if (response.isFresh(now)) {
+                    responses.add(response);
+                }
+            }
+        } catch (IOException ioe) {
+            LOG.warn("Unable to read cache snapshot, starting with a cold cache",
+                    ioe);
+            responses.clear();
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        LOG.info("Loaded {} cached responses from snapshot in {}",
+                responses.size(), directory);
+        return responses;
+    }
+
+    /**
+     * Writes the given responses as a new snapshot in the given directory,
+     * replacing whatever snapshot was there before. The new snapshot is first
+     * written to temporary files that are then renamed into place, so a
+     * failure part way through leaves the old snapshot intact.
+     * 
+     * @param directory
+     * @param responses
+     * @throws IOException
+     */
+    static void write(File directory, Collection<CachedResponse> responses)
+            throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create cache directory "
+                    + directory);
+        }
+        File indexFile = new File(directory, INDEX_FILE_NAME);
+        File dataFile = new File(directory, DATA_FILE_NAME);
+        File tempIndexFile = new File(directory, INDEX_FILE_NAME + ".tmp");
+        File tempDataFile = new File(directory, DATA_FILE_NAME + ".tmp");
+
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        ByteArrayOutputStream entry = new ByteArrayOutputStream();
+        DataOutputStream entryOut = new DataOutputStream(entry);
+        int numberOfEntries = 0;
+        DataOutputStream index = null;
+        FileOutputStream dataOut = null;
+        try {
+            dataOut = new FileOutputStream(tempDataFile);
+            FileChannel data = dataOut.getChannel();
+            for (CachedResponse response : responses) {
+                long offset = data.position();
+                // Each entry goes to the index only once all of it has been
+                // written, so that one we can't write doesn't corrupt it
+                entry.reset();
+                try {
+                    long checksum = writeBody(response, data);
+                    writeResponse(entryOut, response, offset, checksum);
+                    entryOut.flush();
+                    entry.writeTo(entries);
+                    numberOfEntries += 1;
+                } catch (IOException ioe) {
+                    LOG.debug("Leaving {} out of snapshot: {}", response,
+                            ioe.getMessage());
+                    data.position(offset);
+                }
+            }
+            data.truncate(data.position());
+
+            index = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tempIndexFile)));
+            index.writeInt(MAGIC);
+            index.writeInt(numberOfEntries);
+            entries.writeTo(index);
+        } finally {
+            IOUtils.closeQuietly(index);
+            IOUtils.closeQuietly(dataOut);
+        }
+
+        rename(tempDataFile, dataFile);
+        rename(tempIndexFile, indexFile);
+        LOG.info("Wrote {} cached responses to snapshot in {}",
+                numberOfEntries, directory);
+    }
+
+    /**
+     * Reads a body from this snapshot, verifying it against its checksum.
+     * 
+     * @param offset
+     * @param length
+     * @param expectedChecksum
+     * @return the body, or null if the body couldn't be read or is corrupt
+     */
+    ByteBuf read(long offset, int length, long expectedChecksum) {
+        try {
+            ByteBuffer body = slice(offset, length);
+            if (checksum(body.duplicate()) != expectedChecksum) {
+                LOG.warn(
+                        "Discarding corrupt cached body at offset {} in {}",
+                        offset, dataFile);
+                return null;
+            }
+            return Unpooled.wrappedBuffer(body);
+        } catch (IOException ioe) {
+            LOG.warn("Unable to read cached body from " + dataFile, ioe);
+            return null;
+        }
+    }
+
+    /**
+     * Closes the underlying data file. Bodies that were already read remain
+     * usable.
+     */
+    synchronized void close() {
+        IOUtils.closeQuietly(data);
+        data = null;
+    }
+
+    /**
+     * Gets the given region of the data file, mapping the data file into
+     * memory on first use.
+     */
+    private ByteBuffer slice(long offset, int length) throws IOException {
+        if (offset + length > channel().size()) {
+            throw new IOException("Cached body extends past end of file");
+        }
+        ByteBuffer mapped = mapIfNecessary();
+        if (mapped != null) {
+            ByteBuffer slice = mapped.duplicate();
+            slice.position((int) offset);
+            slice.limit((int) offset + length);
+            return slice.slice();
+        }
+        // The data file is too big to map in one piece, map just this body
+        return channel().map(MapMode.READ_ONLY, offset, length);
+    }
+
+    private ByteBuffer mapIfNecessary() throws IOException {
+        ByteBuffer mapped = mappedData;
+        if (mapped == null) {
+            synchronized (this) {
+                mapped = mappedData;
+                if (mapped == null) {
+                    FileChannel channel = channel();
+                    if (channel.size() > Integer.MAX_VALUE) {
+                        return null;
+                    }
+                    LOG.debug("Mapping cache snapshot {}", dataFile);
+                    mapped = channel.map(MapMode.READ_ONLY, 0,
+                            channel.size());
+                    mappedData = mapped;
+                }
+            }
+        }
+        return mapped;
+    }
+
+    /**
+     * Gets the channel for our data file, opening the file if necessary.
+     */
+    synchronized FileChannel channel() throws IOException {
+        if (data == null) {
+            data = new RandomAccessFile(dataFile, "r");
+        }
+        return data.getChannel();
+    }
+
+    /**
+     * Writes the body of the given response to the data file. Bodies that live
+     * in an earlier snapshot are transferred directly between the files
+     * without being verified, since they'll be verified when they're next read.
+     * 
+     * @return the CRC32 of the body
+     */
+    private static long writeBody(CachedResponse response, FileChannel out)
+            throws IOException {
+        if (response.isInSnapshot()) {
+            FileChannel in = response.getSnapshot().channel();
+            long position = response.getSnapshotOffset();
+            long remaining = response.getContentLength();
+            if (position + remaining > in.size()) {
+                throw new IOException("Cached body extends past end of file");
+            }
+            while (remaining > 0) {
+                long transferred = in.transferTo(position, remaining, out);
+                if (transferred <= 0) {
+                    throw new IOException("Unable to copy cached body for "
+                            + response.getKey());
+                }
+                position += transferred;
+                remaining -= transferred;
+            }
+            return response.getSnapshotChecksum();
+        } else {
+            ByteBuffer body = response.content().nioBuffer();
+            long checksum = checksum(body.duplicate());
+            while (body.hasRemaining()) {
+                out.write(body);
+            }
+            return checksum;
+        }
+    }
+
+    private static void writeResponse(DataOutputStream out,
+            CachedResponse response, long offset, long checksum)
+            throws IOException {
+        out.writeUTF(response.getKey());
+        out.writeUTF(response.getProtocolVersion().text());
+        out.writeInt(response.getStatus().code());
+        out.writeUTF(response.getStatus().reasonPhrase());
+
+        List<Map.Entry<String, String>> headers = response.getHeaders()
+                .entries();
+        out.writeInt(headers.size());
+        for (Map.Entry<String, String> header : headers) {
+            out.writeUTF(header.getKey());
+            out.writeUTF(header.getValue());
+        }
+
+        Map<String, String> varying = response.getVaryingRequestHeaders();
+        out.writeInt(varying.size());
+        for (Map.Entry<String, String> header : varying.entrySet()) {
+            out.writeUTF(header.getKey());
+            out.writeBoolean(header.getValue() != null);
+            if (header.getValue() != null) {
+                out.writeUTF(header.getValue());
+            }
+        }
+
+        out.writeLong(response.getStoredAt());
+        out.writeLong(response.getInitialAgeMillis());
+        out.writeLong(response.getFreshUntil());
+        out.writeLong(offset);
+        out.writeInt(response.getContentLength());
+        out.writeLong(checksum);
+    }
+
+    private static CachedResponse readResponse(DataInputStream in,
+            CacheSnapshot snapshot) throws IOException {
+        String key = in.readUTF();
+        HttpVersion protocolVersion = HttpVersion.valueOf(in.readUTF());
+        HttpResponseStatus status = new HttpResponseStatus(in.readInt(),
+                in.readUTF());
+
+        HttpHeaders headers = new DefaultHttpHeaders();
+        int numberOfHeaders = in.readInt();
+        for (int i = 0; i < numberOfHeaders; i++) {
+            headers.add(in.readUTF(), in.readUTF());
+        }
+
+        Map<String, String> varying = new HashMap<String, String>();
+        int numberOfVaryingHeaders = in.readInt();
+        for (int i = 0; i < numberOfVaryingHeaders; i++) {
+            String name = in.readUTF();
+            varying.put(name, in.readBoolean() ? in.readUTF() : null);
+        }
+
+        long storedAt = in.readLong();
+        long initialAgeMillis = in.readLong();
+        long freshUntil = in.readLong();
+        long offset = in.readLong();
+        int length = in.readInt();
+        long checksum = in.readLong();
+        return new CachedResponse(key, protocolVersion, status, headers,
+                varying, storedAt, initialAgeMillis, freshUntil, length,
+                snapshot, offset, checksum);
+    }
+
+    private static long checksum(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        if (buffer.hasArray()) {
+            crc.update(buffer.array(),
+                    buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining());
+        } else {
+            byte[] chunk = new byte[8192];
+            while (buffer.hasRemaining()) {
+                int length = Math.min(chunk.length, buffer.remaining());
+                buffer.get(chunk, 0, length);
+                crc.update(chunk, 0, length);
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static void rename(File from, File to) throws IOException {
+        if (!from.renameTo(to)) {
+            // Some platforms won't rename over an existing file
+            if (!to.delete() || !from.renameTo(to)) {
+                throw new IOException("Unable to move " + from + " to " + to);
+            }
+        }
+    }
+}
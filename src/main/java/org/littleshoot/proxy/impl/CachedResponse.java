@@ -0,0 +1,367 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+
+/**
+ * <p>
+ * A response held by the {@link ResponseCache}.
+ * </p>
+ * 
+ * <p>
+ * The status line and headers are always kept in memory. The body is either
+ * held in memory (for responses we captured while proxying) or lives in a
+ * region of a {@link CacheSnapshot} data file, in which case it is only mapped
+ * and verified the first time somebody asks for it.
+ * </p>
+ */
+class CachedResponse {
+    private final String key;
+    private final HttpVersion protocolVersion;
+    private final HttpResponseStatus status;
+    private final HttpHeaders headers;
+    private final Map<String, String> varyingRequestHeaders;
+    private final long storedAt;
+    private final long initialAgeMillis;
+    private final long freshUntil;
+    private final int contentLength;
+
+    private volatile ByteBuf content;
+    private final CacheSnapshot snapshot;
+    private final long snapshotOffset;
+    private final long snapshotChecksum;
+
+    /**
+     * Construct a new {@link CachedResponse}.
+     * 
+     * @param key
+     *            the key under which this response is cached
+     * @param protocolVersion
+     * @param status
+     * @param headers
+     *            the end-to-end headers of the response
+     * @param varyingRequestHeaders
+     *            the values of any request headers named in the response's
+     *            Vary header at the time that we cached it
+     * @param storedAt
+     *            when we stored the response (millis since epoch)
+     * @param initialAgeMillis
+     *            how old the response already was when we received it
+     * @param freshUntil
+     *            when the response stops being fresh (millis since epoch)
+     * @param content
+     *            the body of the response
+     */
+    CachedResponse(String key,
+            HttpVersion protocolVersion,
+            HttpResponseStatus status,
+            HttpHeaders headers,
+            Map<String, String> varyingRequestHeaders,
+            long storedAt,
+            long initialAgeMillis,
+            long freshUntil,
+            ByteBuf content) {
+        this(key, protocolVersion, status, headers, varyingRequestHeaders,
+                storedAt, initialAgeMillis, freshUntil, content
+                        .readableBytes(), content, null, 0, 0);
+    }
+
+    /**
+     * Construct a new {@link CachedResponse} whose body is stored in a
+     * {@link CacheSnapshot}.
+     * 
+     * @param snapshot
+     *            the snapshot containing our body
+     * @param snapshotOffset
+     *            where our body starts in the snapshot's data file
+     * @param snapshotChecksum
+     *            the CRC32 of our body, used to verify the body on first
+     *            access
+     */
+    CachedResponse(String key,
+            HttpVersion protocolVersion,
+            HttpResponseStatus status,
+            HttpHeaders headers,
+            Map<String, String> varyingRequestHeaders,
+            long storedAt,
+            long initialAgeMillis,
+            long freshUntil,
+            int contentLength,
+            CacheSnapshot snapshot,
+            long snapshotOffset,
+            long snapshotChecksum) {
+        this(key, protocolVersion, status, headers, varyingRequestHeaders,
+                storedAt, initialAgeMillis, freshUntil, contentLength, null,
+                snapshot, snapshotOffset, snapshotChecksum);
+    }
+
+    private CachedResponse(String key,
+            HttpVersion protocolVersion,
+            HttpResponseStatus status,
+            HttpHeaders headers,
+            Map<String, String> varyingRequestHeaders,
+            long storedAt,
+            long initialAgeMillis,
+            long freshUntil,
+            int contentLength,
+            ByteBuf content,
+            CacheSnapshot snapshot,
+            long snapshotOffset,
+            long snapshotChecksum) {
+        this.key = key;
+        this.protocolVersion = protocolVersion;
+        this.status = status;
+        this.headers = headers;
+        this.varyingRequestHeaders = varyingRequestHeaders;
+        this.storedAt = storedAt;
+        this.initialAgeMillis = initialAgeMillis;
+        this.freshUntil = freshUntil;
+        this.contentLength = contentLength;
+        this.content = content;
+        this.snapshot = snapshot;
+        this.snapshotOffset = snapshotOffset;
+        this.snapshotChecksum = snapshotChecksum;
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    HttpVersion getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    HttpResponseStatus getStatus() {
+        return status;
+    }
+
+    HttpHeaders getHeaders() {
+        return headers;
+    }
+
+    Map<String, String> getVaryingRequestHeaders() {
+        return varyingRequestHeaders;
+    }
+
+    long getStoredAt() {
+        return storedAt;
+    }
+
+    long getInitialAgeMillis() {
+        return initialAgeMillis;
+    }
+
+    long getFreshUntil() {
+        return freshUntil;
+    }
+
+    int getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * The number of bytes this response occupies in the cache, used for
+     * enforcing the cache's size limit.
+     * 
+     * @return
+     */
+    int getWeight() {
+        return contentLength;
+    }
+
+    /**
+     * Whether or not this response is still fresh at the given time.
+     * 
+     * @param now
+     * @return
+     */
+    boolean isFresh(long now) {
+        return now < freshUntil;
+    }
+
+    /**
+     * The value of the Age header that we should send along with this
+     * response, per RFC 2616 Section 13.2.3.
+     * 
+     * @param now
+     * @return the age in seconds
+     */
+    long ageInSeconds(long now) {
+        return (initialAgeMillis + Math.max(0, now - storedAt)) / 1000;
+    }
+
+    /**
+     * Checks whether the given request headers match the ones that we saw when
+     * caching this response.
+     * 
+     * @param requestHeaders
+     * @return
+     */
+    boolean matchesVaryingHeaders(HttpHeaders requestHeaders) {
+        for (Map.Entry<String, String> varying : varyingRequestHeaders
+                .entrySet()) {
+            String value = requestHeaders.get(varying.getKey());
+            if (value == null ? varying.getValue() != null : !value
+                    .equals(varying.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether this response's body lives in a {@link CacheSnapshot}.
+     * 
+     * @return
+     */
+    boolean isInSnapshot() {
+        return snapshot != null;
+    }
+
+    CacheSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    long getSnapshotOffset() {
+        return snapshotOffset;
+    }
+
+    long getSnapshotChecksum() {
+        return snapshotChecksum;
+    }
+
+    /**
+     * <p>
+     * Gets the body of this response.
+     * </p>
+     * 
+     * <p>
+     * For bodies stored in a {@link CacheSnapshot}, the first call to this
+     * method maps the body from disk and checks it against the checksum that
+     * we recorded when writing the snapshot. If the body is unreadable or
+     * doesn't match, this returns null and the response should be discarded.
+     * </p>
+     * 
+     * @return the body, or null if it could not be loaded
+     */
+    ByteBuf content() {
+        ByteBuf result = content;
+        if (result == null && snapshot != null) {
+            synchronized (this) {
+                result = content;
+                if (result == null) {
+                    result = snapshot.read(snapshotOffset, contentLength,
+                            snapshotChecksum);
+                    content = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Builds a new {@link FullHttpResponse} from this cached response. The
+     * body of the returned response is a new buffer that shares its content
+     * with the cache, so writing it won't disturb the cached copy.
+     * 
+     * @return the response, or null if the body could not be loaded
+     */
+    FullHttpResponse toHttpResponse() {
+        ByteBuf body = content();
+        if (body == null) {
+            return null;
+        }
+        return toHttpResponse(status, body.nioBuffer(), null);
+    }
+
+    /**
+     * Builds a new 206 {@link FullHttpResponse} containing the given range of
+     * this cached response.
+     * 
+     * @param range
+     *            a resolved range
+     * @return the response, or null if the body could not be loaded
+     */
+    FullHttpResponse toHttpResponse(ByteRange range) {
+        ByteBuf body = content();
+        if (body == null) {
+            return null;
+        }
+        return toHttpResponse(HttpResponseStatus.PARTIAL_CONTENT,
+                body.nioBuffer(body.readerIndex() + (int) range.getStart(),
+                        (int) range.getLength()), range);
+    }
+
+    /**
+     * <p>
+     * Builds a new {@link FileRegionResponse} from this cached response, which
+     * allows the body to be sent to the client straight from the snapshot's
+     * data file.
+     * </p>
+     * 
+     * <p>
+     * Like {@link #content()}, the first call verifies the body against its
+     * checksum.
+     * </p>
+     * 
+     * @param range
+     *            (optional) the resolved range to respond with
+     * @return the response, or null if our body isn't in a snapshot or could
+     *         not be loaded
+     */
+    FileRegionResponse toFileRegionResponse(ByteRange range) {
+        if (snapshot == null || content() == null) {
+            return null;
+        }
+        FileChannel file;
+        try {
+            file = snapshot.channel();
+        } catch (IOException ioe) {
+            return null;
+        }
+        long start = range != null ? range.getStart() : 0;
+        long length = range != null ? range.getLength() : contentLength;
+        FileRegionResponse response = new FileRegionResponse(
+                protocolVersion, range != null ? HttpResponseStatus.PARTIAL_CONTENT
+                        : status, file, snapshotOffset + start, length);
+        copyHeadersTo(response, range, length);
+        return response;
+    }
+
+    private FullHttpResponse toHttpResponse(HttpResponseStatus status,
+            ByteBuffer body, ByteRange range) {
+        FullHttpResponse response = new DefaultFullHttpResponse(
+                protocolVersion, status, Unpooled.wrappedBuffer(body));
+        copyHeadersTo(response, range, body.remaining());
+        return response;
+    }
+
+    private void copyHeadersTo(HttpResponse response, ByteRange range,
+            long contentLength) {
+        for (Map.Entry<String, String> header : headers.entries()) {
+            response.headers().add(header.getKey(), header.getValue());
+        }
+        if (range != null) {
+            response.headers().set(HttpHeaders.Names.CONTENT_RANGE,
+                    range.toContentRangeHeader());
+        }
+        response.headers().set(HttpHeaders.Names.CONTENT_LENGTH,
+                contentLength);
+    }
+
+    @Override
+    public String toString() {
+        return key + " (" + contentLength + " bytes)";
+    }
+}
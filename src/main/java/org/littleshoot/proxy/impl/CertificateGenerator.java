@@ -0,0 +1,217 @@
+package org.littleshoot.proxy.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import javax.naming.ldap.Rdn;
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * <p>
+ * Issues certificates for individual hosts, signed by a certificate authority.
+ * </p>
+ * 
+ * <p>
+ * The JDK can parse certificates but has no public API for creating them, so
+ * this DER encodes the few fields that a server certificate needs by hand: a
+ * subject with the host as its common name, a validity period, the public key
+ * and a subjectAltName extension (which is what clients actually check the
+ * host against).
+ * </p>
+ */
+class CertificateGenerator {
+    private static final long VALIDITY_IN_MILLIS = TimeUnit.DAYS
+            .toMillis(365);
+    private static final long BACKDATE_IN_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private static final Pattern IPV4 = Pattern
+            .compile("\\d{1,3}(\\.\\d{1,3}){3}");
+    private static final Pattern HOST_NAME = Pattern
+            .compile("[A-Za-z0-9*_-]+(\\.[A-Za-z0-9*_-]+)*\\.?");
+
+    private static final String SHA256_WITH_RSA = "1.2.840.113549.1.1.11";
+    private static final String SHA256_WITH_ECDSA = "1.2.840.10045.4.3.2";
+    private static final String SUBJECT_ALT_NAME = "2.5.29.17";
+
+    private static final int INTEGER = 0x02;
+    private static final int BIT_STRING = 0x03;
+    private static final int OCTET_STRING = 0x04;
+    private static final int NULL = 0x05;
+    private static final int OBJECT_IDENTIFIER = 0x06;
+    private static final int UTC_TIME = 0x17;
+    private static final int SEQUENCE = 0x30;
+    private static final int EXPLICIT_0 = 0xa0;
+    private static final int EXPLICIT_3 = 0xa3;
+    private static final int DNS_NAME = 0x82;
+    private static final int IP_ADDRESS = 0x87;
+
+    private final PrivateKey caKey;
+    private final X509Certificate caCertificate;
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * Construct a new {@link CertificateGenerator}.
+     * 
+     * @param caKey
+     *            the certificate authority's private key, RSA or EC
+     * @param caCertificate
+     *            the certificate authority's certificate
+     */
+    CertificateGenerator(PrivateKey caKey, X509Certificate caCertificate) {
+        this.caKey = caKey;
+        this.caCertificate = caCertificate;
+    }
+
+    X509Certificate getCaCertificate() {
+        return caCertificate;
+    }
+
+    /**
+     * Issues a certificate for the given host.
+     * 
+     * @param host
+     *            a host name, an IPv4 address or an IPv6 address (without
+     *            the brackets)
+     * @param publicKey
+     *            the public key to certify
+     * @return the signed certificate
+     * @throws GeneralSecurityException
+     *             if the host isn't a valid host name or address, or the
+     *             certificate couldn't be signed
+     */
+    X509Certificate generate(String host, PublicKey publicKey)
+            throws GeneralSecurityException {
+        try {
+            long now = System.currentTimeMillis();
+            Date notAfter = new Date(Math.min(now + VALIDITY_IN_MILLIS,
+                    caCertificate.getNotAfter().getTime()));
+            byte[] signatureAlgorithm = signatureAlgorithm();
+
+            byte[] tbsCertificate = der(SEQUENCE,
+                    der(EXPLICIT_0, der(INTEGER, new byte[] { 2 })),
+                    der(INTEGER, new BigInteger(63, random).toByteArray()),
+                    signatureAlgorithm,
+                    caCertificate.getSubjectX500Principal().getEncoded(),
+                    der(SEQUENCE,
+                            utcTime(new Date(now - BACKDATE_IN_MILLIS)),
+                            utcTime(notAfter)),
+                    new X500Principal("CN=" + Rdn.escapeValue(host))
+                            .getEncoded(),
+                    publicKey.getEncoded(),
+                    der(EXPLICIT_3, der(SEQUENCE, subjectAltName(host))));
+
+            Signature signature = Signature.getInstance(signatureName());
+            signature.initSign(caKey);
+            signature.update(tbsCertificate);
+            byte[] signed = signature.sign();
+            byte[] bitString = new byte[signed.length + 1];
+            System.arraycopy(signed, 0, bitString, 1, signed.length);
+
+            byte[] certificate = der(SEQUENCE, tbsCertificate,
+                    signatureAlgorithm, der(BIT_STRING, bitString));
+            return (X509Certificate) CertificateFactory.getInstance("X.509")
+                    .generateCertificate(
+                            new ByteArrayInputStream(certificate));
+        } catch (IOException ioe) {
+            throw new GeneralSecurityException(
+                    "Unable to encode certificate for " + host, ioe);
+        } catch (IllegalArgumentException iae) {
+            throw new GeneralSecurityException(
+                    "Unable to encode certificate for " + host, iae);
+        }
+    }
+
+    private boolean isEC() {
+        return "EC".equals(caKey.getAlgorithm());
+    }
+
+    private String signatureName() {
+        return isEC() ? "SHA256withECDSA" : "SHA256withRSA";
+    }
+
+    private byte[] signatureAlgorithm() throws IOException {
+        if (isEC()) {
+            return der(SEQUENCE, oid(SHA256_WITH_ECDSA));
+        }
+        return der(SEQUENCE, oid(SHA256_WITH_RSA), der(NULL, new byte[0]));
+    }
+
+    private static byte[] subjectAltName(String host) throws IOException {
+        byte[] name;
+        if (IPV4.matcher(host).matches() || host.contains(":")) {
+            // Both are literals, so this never goes to DNS
+            name = der(IP_ADDRESS, InetAddress.getByName(host).getAddress());
+        } else if (HOST_NAME.matcher(host).matches()) {
+            name = der(DNS_NAME, host.getBytes("US-ASCII"));
+        } else {
+            throw new IllegalArgumentException("Not a host name: " + host);
+        }
+        return der(SEQUENCE, oid(SUBJECT_ALT_NAME),
+                der(OCTET_STRING, der(SEQUENCE, name)));
+    }
+
+    private static byte[] utcTime(Date date) throws IOException {
+        SimpleDateFormat format = new SimpleDateFormat("yyMMddHHmmss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return der(UTC_TIME, format.format(date).getBytes("US-ASCII"));
+    }
+
+    private static byte[] oid(String dotted) throws IOException {
+        String[] parts = dotted.split("\\.");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(Integer.parseInt(parts[0]) * 40
+                + Integer.parseInt(parts[1]));
+        for (int i = 2; i < parts.length; i++) {
+            long value = Long.parseLong(parts[i]);
+            int shift = 0;
+            while ((value >> (shift + 7)) != 0) {
+                shift += 7;
+            }
+            for (; shift > 0; shift -= 7) {
+                out.write((int) (0x80 | ((value >> shift) & 0x7f)));
+            }
+            out.write((int) (value & 0x7f));
+        }
+        return der(OBJECT_IDENTIFIER, out.toByteArray());
+    }
+
+    /**
+     * Encodes a DER tag-length-value whose value is the concatenation of the
+     * given (already encoded) parts.
+     */
+    private static byte[] der(int tag, byte[]... parts) throws IOException {
+        ByteArrayOutputStream value = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            value.write(part);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(tag);
+        int length = value.size();
+        if (length < 0x80) {
+            out.write(length);
+        } else {
+            int bytes = length > 0xffff ? 3 : (length > 0xff ? 2 : 1);
+            out.write(0x80 | bytes);
+            for (int i = bytes - 1; i >= 0; i--) {
+                out.write(length >> (8 * i));
+            }
+        }
+        value.writeTo(out);
+        return out.toByteArray();
+    }
+}
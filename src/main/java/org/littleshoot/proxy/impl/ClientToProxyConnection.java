@@ -5,10 +5,19 @@ import static org.littleshoot.proxy.impl.ConnectionState.*;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
 import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.FileRegion;
+import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.http.DefaultFullHttpRequest;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpContent;
 import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpObject;
@@ -17,15 +26,25 @@ import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseEncoder;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.socks.SocksAddressType;
+import io.netty.handler.codec.socks.SocksCmdResponse;
+import io.netty.handler.codec.socks.SocksCmdStatus;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedWriteHandler;
 import io.netty.handler.timeout.IdleStateHandler;
 import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
 
 import java.io.UnsupportedEncodingException;
+import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.UnknownHostException;
 import java.nio.channels.ClosedChannelException;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
@@ -35,13 +54,18 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang3.StringUtils;
 import org.littleshoot.dnssec4j.VerifiedAddressFactory;
 import org.littleshoot.proxy.ActivityTracker;
+import org.littleshoot.proxy.AdvancedActivityTracker;
+import org.littleshoot.proxy.AdvancedChainedProxyManager;
+import org.littleshoot.proxy.ChainedProxyManager;
 import org.littleshoot.proxy.FlowContext;
 import org.littleshoot.proxy.HttpFilter;
+import org.littleshoot.proxy.LinkCompression;
 import org.littleshoot.proxy.TransportProtocol;
 
 /**
@@ -87,6 +111,60 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      */
     private volatile ProxyToServerConnection currentServerConnection;
 
+    /**
+     * Describes the flow for the response that we last served from the
+     * {@link ResponseCache}, for recording the bytes that we send while there's
+     * no current server connection.
+     */
+    private volatile FlowContext cacheHitFlowContext;
+
+    /**
+     * If we're intercepting a CONNECT tunnel on this connection, the host and
+     * port that the client asked to connect to. All requests that we read
+     * from the client are then for that server.
+     */
+    private volatile String mitmHostAndPort;
+
+    /**
+     * The {@link SSLContext} for intercepting the CONNECT tunnel that we're
+     * setting up, if any (see {@link #IssueMitmCertificate}).
+     */
+    private volatile SSLContext mitmSslContext;
+
+    /**
+     * The request that we're currently sending over SPDY, if any (see
+     * {@link SpdyUpstreamPool}).
+     */
+    private volatile SpdyExchange currentSpdyExchange;
+
+    /**
+     * If we're racing a direct connection against the connection to the
+     * chained proxy for the request that we're currently reading, the
+     * {@link HedgedConnect} that knows where its chunks go.
+     */
+    private volatile HedgedConnect currentHedge;
+
+    /**
+     * Set while we're waiting to hear whether the server accepts the client's
+     * request to upgrade to another protocol. Until we do, we don't read
+     * anything more from the client, as whatever it sends next may not be
+     * HTTP.
+     */
+    private volatile boolean awaitingUpgrade = false;
+
+    /**
+     * Whether the client talks SOCKS5 to us rather than HTTP (see
+     * {@link SocksHandshake}). If so, its only request is the CONNECT that we
+     * make out of its SOCKS request, and we answer that in SOCKS.
+     */
+    private final boolean socks;
+
+    /**
+     * The SSL sessions of the clients on the port that this one came in on,
+     * for encrypting the connection and for intercepting its tunnels.
+     */
+    private final SslSessionCache inboundSslSessionCache;
+
     /**
      * Keep track of how many servers are currently in the process of
      * connecting.
@@ -112,17 +190,59 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      */
     private final Map<HttpRequest, Boolean> requestsForWhichProxyChainingIsDisabled = new ConcurrentHashMap<HttpRequest, Boolean>();
 
+    /**
+     * Keep track of responses that we're capturing for the
+     * {@link ResponseCache}, by the request to which they respond.
+     */
+    private final Map<HttpRequest, ResponseCache.Capture> cacheCapturesByRequest = new ConcurrentHashMap<HttpRequest, ResponseCache.Capture>();
+
+    /**
+     * Keep track of Range requests for which we only asked the server for the
+     * bytes missing from the {@link ResponseCache}.
+     */
+    private final Map<HttpRequest, RangeSplice> rangeSplicesByRequest = new ConcurrentHashMap<HttpRequest, RangeSplice>();
+
+    /**
+     * Keep track of requests whose responses we're fetching in several
+     * segments at once.
+     */
+    private final Map<HttpRequest, SegmentedFetch> segmentedFetchesByRequest = new ConcurrentHashMap<HttpRequest, SegmentedFetch>();
+
+    /**
+     * Keep track of responses that we're scanning for subresources to
+     * prefetch.
+     */
+    private final Map<HttpRequest, Prefetcher.Scan> prefetchScansByRequest = new ConcurrentHashMap<HttpRequest, Prefetcher.Scan>();
+
+    /**
+     * Keep track of the {@link HedgedConnect}s that connections which are
+     * still connecting take part in.
+     */
+    private final Map<ProxyToServerConnection, HedgedConnect> hedgesByServerConnection = new ConcurrentHashMap<ProxyToServerConnection, HedgedConnect>();
+
     ClientToProxyConnection(
             DefaultHttpProxyServer proxyServer,
             SSLContext sslContext,
+            SslSessionCache inboundSslSessionCache,
             ChannelPipeline pipeline) {
+        this(proxyServer, sslContext, inboundSslSessionCache, pipeline, false);
+    }
+
+    ClientToProxyConnection(
+            DefaultHttpProxyServer proxyServer,
+            SSLContext sslContext,
+            SslSessionCache inboundSslSessionCache,
+            ChannelPipeline pipeline,
+            boolean socks) {
         super(AWAITING_INITIAL, proxyServer, sslContext, false);
+        this.inboundSslSessionCache = inboundSslSessionCache;
+        this.socks = socks;
 
         initChannelPipeline(pipeline);
 
         if (sslContext != null) {
             LOG.debug("Enabling encryption of traffic from client to proxy");
-            encrypt(pipeline);
+            recordResumption(encrypt(pipeline));
         }
 
         LOG.debug("Created ClientToProxyConnection");
@@ -179,12 +299,16 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      * @return
      */
     private ConnectionState doReadHTTPInitial(HttpRequest httpRequest) {
-        String serverHostAndPort = identifyHostAndPort(httpRequest);
+        currentSpdyExchange = null;
+        currentHedge = null;
+        String serverHostAndPort = mitmHostAndPort != null ? mitmHostAndPort
+                : identifyHostAndPort(httpRequest);
         String chainedProxyHostAndPort = getChainedProxyHostAndPort(httpRequest);
 
         // Figure out the connection parameters
         TransportProtocol transportProtocol = TCP;
         SSLContext proxyToServerSSLContext = null;
+        LinkCompression linkCompression = LinkCompression.NONE;
         String hostAndPort = serverHostAndPort;
 
         LOG.debug("Identifying server for: {}", hostAndPort);
@@ -196,8 +320,19 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
             if (proxyServer.getChainProxyManager().requiresEncryption(
                     httpRequest)) {
                 proxyToServerSSLContext = proxyServer
-                        .getChainProxyManager().getSSLContext();
+                        .getChainedProxySSLContext();
             }
+            AdvancedChainedProxyManager advancedChainProxyManager = proxyServer
+                    .getAdvancedChainProxyManager();
+            if (advancedChainProxyManager != null
+                    && !ProxyUtils.isCONNECT(httpRequest)) {
+                linkCompression = advancedChainProxyManager
+                        .getLinkCompression(httpRequest);
+            }
+        } else if (mitmHostAndPort != null
+                || shouldIntercept(httpRequest, chainedProxyHostAndPort)) {
+            proxyToServerSSLContext = proxyServer.getMitmManager()
+                    .getServerSslContext();
         }
 
         // We immediately record that we received this request, even before
@@ -215,16 +350,51 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
             return DISCONNECT_REQUESTED;
         }
 
+        // Filter before looking in the cache, so that the filter sees the
+        // requests that we answer from the cache too
+        filterRequestIfNecessary(httpRequest);
+
+        ResponseCache responseCache = proxyServer.getResponseCache();
+        ResponseCache.Capture cacheCapture = null;
+        RangeSplice rangeSplice = null;
+        if (responseCache != null && ResponseCache.isCacheable(httpRequest)) {
+            String cacheKey = ResponseCache.keyFor(serverHostAndPort,
+                    httpRequest);
+            HttpResponse cachedResponse = responseCache.responseFor(
+                    cacheKey, httpRequest, true);
+            if (cachedResponse != null) {
+                return respondFromCache(httpRequest, serverHostAndPort,
+                        cachedResponse);
+            }
+            cacheCapture = responseCache.newCapture(cacheKey, httpRequest);
+            rangeSplice = responseCache.spliceFor(cacheKey, httpRequest);
+        }
+
+        if (shouldFetchOverSpdy(httpRequest, serverHostAndPort,
+                chainedProxyHostAndPort, rangeSplice)) {
+            return fetchOverSpdy(httpRequest, serverHostAndPort, null,
+                    serverHostAndPort, TCP, null, cacheCapture);
+        }
+        String multiplexedHostAndPort = getMultiplexedHostAndPort(
+                httpRequest, serverHostAndPort, chainedProxyHostAndPort,
+                rangeSplice);
+        if (multiplexedHostAndPort != null) {
+            return fetchOverSpdy(httpRequest, serverHostAndPort,
+                    chainedProxyHostAndPort, multiplexedHostAndPort,
+                    transportProtocol, proxyToServerSSLContext, cacheCapture);
+        }
+
         LOG.debug("Finding ProxyToServerConnection");
         currentServerConnection = this.serverConnectionsByHostAndPort
                 .get(hostAndPort);
         // TODO: get more sophisticated here and build a connection key based on
         // the connection params
         boolean newConnectionRequired = ProxyUtils.isCONNECT(httpRequest)
+                || ProxyUtils.isUpgrade(httpRequest)
                 || currentServerConnection == null;
         if (newConnectionRequired) {
             if (currentServerConnection != null) {
-                LOG.debug("Not reusing existing ProxyToServerConnection because request is a CONNECT");
+                LOG.debug("Not reusing existing ProxyToServerConnection because request is a CONNECT or an upgrade");
             } else {
                 LOG.debug("Didn't find existing ProxyToServerConnection");
             }
@@ -232,6 +402,7 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
                 currentServerConnection = connectToServer(httpRequest,
                         transportProtocol,
                         proxyToServerSSLContext,
+                        linkCompression,
                         hostAndPort,
                         serverHostAndPort,
                         chainedProxyHostAndPort);
@@ -248,11 +419,54 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         }
 
         HttpRequest originalRequest = copy(httpRequest);
-        modifyRequestHeadersToReflectProxying(httpRequest);
-        filterRequestIfNecessary(httpRequest);
+        modifyRequestHeadersToReflectProxying(httpRequest,
+                chainedProxyHostAndPort);
+
+        if (cacheCapture != null) {
+            cacheCapturesByRequest.put(httpRequest, cacheCapture);
+        }
+        if (rangeSplice != null) {
+            rangeSplicesByRequest.put(httpRequest, rangeSplice);
+        }
+        if (shouldFetchInSegments(httpRequest, serverHostAndPort,
+                chainedProxyHostAndPort)) {
+            SegmentedFetch segmentedFetch = new SegmentedFetch(proxyServer,
+                    this, currentServerConnection, httpRequest,
+                    proxyServer.getSegmentedFetchThresholdInBytes(),
+                    proxyServer.getSegmentedFetchParallelism());
+            segmentedFetch.requestLeadingSegment();
+            segmentedFetchesByRequest.put(httpRequest, segmentedFetch);
+        }
+        Prefetcher prefetcher = proxyServer.getPrefetcher();
+        if (prefetcher != null && chainedProxyHostAndPort == null
+                && mitmHostAndPort == null
+                && ResponseCache.isCacheable(httpRequest)) {
+            prefetchScansByRequest.put(httpRequest,
+                    prefetcher.newScan(currentServerConnection, httpRequest));
+        }
+
+        if (ProxyUtils.isUpgrade(httpRequest)) {
+            LOG.debug("Waiting for the server to accept upgrade to {}",
+                    httpRequest.headers().get(HttpHeaders.Names.UPGRADE));
+            awaitingUpgrade = true;
+            stopReading();
+        }
+
+        long hedgeDelay = newConnectionRequired ? getHedgeDelay(httpRequest,
+                chainedProxyHostAndPort) : 0;
+        HedgedConnect hedge = null;
+        if (hedgeDelay > 0) {
+            hedge = new HedgedConnect(proxyServer, this,
+                    currentServerConnection, httpRequest, originalRequest);
+            hedgesByServerConnection.put(currentServerConnection, hedge);
+            currentHedge = hedge;
+        }
 
         LOG.debug("Writing request to ProxyToServerConnection");
         currentServerConnection.write(httpRequest, originalRequest);
+        if (hedge != null) {
+            hedge.start(hedgeDelay);
+        }
 
         // Figure out our next state
         if (ProxyUtils.isCONNECT(httpRequest)) {
@@ -264,9 +478,224 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         }
     }
 
+    /**
+     * Responds to the given request using a response from the
+     * {@link ResponseCache}, without contacting the server.
+     * 
+     * @param httpRequest
+     * @param serverHostAndPort
+     * @param response
+     *            either a {@link FullHttpResponse} or a
+     *            {@link FileRegionResponse}
+     * @return
+     */
+    private ConnectionState respondFromCache(HttpRequest httpRequest,
+            String serverHostAndPort, HttpResponse response) {
+        LOG.debug("Responding to {} from cache", httpRequest.getUri());
+        modifyResponseHeadersToReflectProxying(response);
+
+        // Any remaining chunks of this request are simply dropped
+        currentServerConnection = null;
+        cacheHitFlowContext = new FlowContext(getClientAddress(), TCP,
+                serverHostAndPort, null);
+        recordResponseSentToClient(cacheHitFlowContext, response);
+        if (response instanceof FileRegionResponse) {
+            writeFromFile((FileRegionResponse) response);
+        } else {
+            write(response);
+        }
+
+        if (!HttpHeaders.isKeepAlive(httpRequest)) {
+            LOG.debug("Closing since request is not keep alive");
+            disconnect();
+            return DISCONNECT_REQUESTED;
+        } else if (ProxyUtils.isChunked(httpRequest)) {
+            return AWAITING_CHUNK;
+        } else {
+            return AWAITING_INITIAL;
+        }
+    }
+
+    /**
+     * <p>
+     * Writes a cached response whose body lives on disk.
+     * </p>
+     * 
+     * <p>
+     * On plain, uncompressed TCP connections, the body is sent as a
+     * {@link FileRegion} so
+     * that it goes straight from the file to the socket. Otherwise, the body
+     * is streamed in chunks by a {@link ChunkedWriteHandler}, which is only
+     * added to the pipeline once we need it since it queues every write.
+     * </p>
+     * 
+     * @param response
+     */
+    private void writeFromFile(FileRegionResponse response) {
+        write(response);
+        ChannelPipeline pipeline = channel.pipeline();
+        if (channel instanceof SocketChannel
+                && pipeline.get(SslHandler.class) == null
+                && !CompressedLink.isCompressed(pipeline)) {
+            writeToChannel(response.toFileRegion());
+        } else {
+            if (pipeline.get(ChunkedWriteHandler.class) == null) {
+                pipeline.addAfter("encoder", "chunkedWriter",
+                        new ChunkedWriteHandler());
+            }
+            writeToChannel(response.toChunkedInput());
+        }
+        write(LastHttpContent.EMPTY_LAST_CONTENT);
+    }
+
+    /**
+     * Determines whether to fetch the response to the given request in
+     * parallel segments (see {@link SegmentedFetch}).
+     * 
+     * @param httpRequest
+     * @param serverHostAndPort
+     * @param chainedProxyHostAndPort
+     * @return
+     */
+    private boolean shouldFetchInSegments(HttpRequest httpRequest,
+            String serverHostAndPort, String chainedProxyHostAndPort) {
+        if (proxyServer.getSegmentedFetchThresholdInBytes() <= 0
+                || proxyServer.getSegmentedFetchParallelism() < 2) {
+            return false;
+        }
+        // Segments are fetched directly from the server without TLS, and
+        // only for plain GETs that aren't already asking for a range
+        if (chainedProxyHostAndPort != null || mitmHostAndPort != null
+                || !ResponseCache.isCacheable(httpRequest)
+                || httpRequest.headers().contains(HttpHeaders.Names.RANGE)) {
+            return false;
+        }
+        // Filtered responses are aggregated, so they can't be streamed in
+        // segments
+        return !isFilteringResponsesFrom(serverHostAndPort);
+    }
+
+    /**
+     * Determines whether to send the given request as a stream over one of our
+     * shared SPDY connections (see {@link SpdyUpstreamPool}). Chained,
+     * intercepted, CONNECT and upgrade requests, responses that get filtered and
+     * responses that get spliced into cached content all need a
+     * {@link ProxyToServerConnection} of their own.
+     * 
+     * @param httpRequest
+     * @param serverHostAndPort
+     * @param chainedProxyHostAndPort
+     * @param rangeSplice
+     * @return
+     */
+    private boolean shouldFetchOverSpdy(HttpRequest httpRequest,
+            String serverHostAndPort, String chainedProxyHostAndPort,
+            RangeSplice rangeSplice) {
+        SpdyUpstreamPool spdyUpstreamPool = proxyServer.getSpdyUpstreamPool();
+        return spdyUpstreamPool != null && chainedProxyHostAndPort == null
+                && mitmHostAndPort == null
+                && !ProxyUtils.isCONNECT(httpRequest)
+                && !ProxyUtils.isUpgrade(httpRequest) && rangeSplice == null
+                && spdyUpstreamPool.isSpdyOrigin(serverHostAndPort)
+                && !isFilteringResponsesFrom(serverHostAndPort);
+    }
+
+    /**
+     * Determines whether to send the given request to the chained proxy as a
+     * stream over one of our shared SPDY connections to it, which it's up to
+     * the {@link AdvancedChainedProxyManager} to allow. The same requests as in
+     * {@link #shouldFetchOverSpdy(HttpRequest, String, String, RangeSplice)}
+     * need a connection of their own.
+     * 
+     * @param httpRequest
+     * @param serverHostAndPort
+     * @param chainedProxyHostAndPort
+     * @param rangeSplice
+     * @return the host and port of the chained proxy's SPDY listener, or null
+     *         if the request doesn't go there
+     */
+    private String getMultiplexedHostAndPort(HttpRequest httpRequest,
+            String serverHostAndPort, String chainedProxyHostAndPort,
+            RangeSplice rangeSplice) {
+        AdvancedChainedProxyManager advancedChainProxyManager = proxyServer
+                .getAdvancedChainProxyManager();
+        if (advancedChainProxyManager == null
+                || chainedProxyHostAndPort == null
+                || ProxyUtils.isCONNECT(httpRequest)
+                || ProxyUtils.isUpgrade(httpRequest) || rangeSplice != null
+                || isFilteringResponsesFrom(serverHostAndPort)) {
+            return null;
+        }
+        return advancedChainProxyManager.getMultiplexedHostAndPort(httpRequest);
+    }
+
+    private boolean isFilteringResponsesFrom(String serverHostAndPort) {
+        return proxyServer.getResponseFilters() != null
+                && proxyServer.getResponseFilters()
+                        .getFilter(serverHostAndPort) != null;
+    }
+
+    /**
+     * Sends the given request over SPDY, to the server itself or to a chained
+     * proxy. While the response is outstanding, we stop reading further
+     * requests from the client so that responses go back in the order of the
+     * requests.
+     * 
+     * @param httpRequest
+     * @param serverHostAndPort
+     * @param chainedProxyHostAndPort
+     *            the chained proxy that the request goes through, if any
+     * @param spdyHostAndPort
+     *            where to send the request over SPDY
+     * @param transportProtocol
+     *            the transport to get there with
+     * @param sslContext
+     *            (optional) the context with which to encrypt the connection
+     *            there
+     * @param cacheCapture
+     * @return
+     */
+    private ConnectionState fetchOverSpdy(HttpRequest httpRequest,
+            String serverHostAndPort, String chainedProxyHostAndPort,
+            String spdyHostAndPort, TransportProtocol transportProtocol,
+            SSLContext sslContext, ResponseCache.Capture cacheCapture) {
+        LOG.debug("Sending {} over SPDY", httpRequest.getUri());
+        boolean hasBody = HttpHeaders.getContentLength(httpRequest, 0) > 0
+                || HttpHeaders.isTransferEncodingChunked(httpRequest);
+        HttpRequest originalRequest = copy(httpRequest);
+        originalRequest.headers().set(httpRequest.headers());
+        modifyRequestHeadersToReflectProxying(httpRequest,
+                chainedProxyHostAndPort);
+        if (cacheCapture != null) {
+            cacheCapturesByRequest.put(httpRequest, cacheCapture);
+        }
+
+        // Any chunks of this request now go to the SPDY stream
+        currentServerConnection = null;
+        SpdyExchange exchange = new SpdyExchange(originalRequest, httpRequest,
+                transportProtocol, serverHostAndPort, chainedProxyHostAndPort);
+        currentSpdyExchange = exchange;
+        exchange.stream = proxyServer.getSpdyUpstreamPool().open(
+                spdyHostAndPort, transportProtocol, sslContext, httpRequest,
+                hasBody, exchange);
+        if (httpRequest instanceof LastHttpContent) {
+            exchange.write((LastHttpContent) httpRequest);
+            return AWAITING_INITIAL;
+        }
+        return AWAITING_CHUNK;
+    }
+
     @Override
     protected void readHTTPChunk(HttpContent chunk) {
-        currentServerConnection.write(chunk);
+        SpdyExchange spdyExchange = currentSpdyExchange;
+        HedgedConnect hedge = currentHedge;
+        if (spdyExchange != null) {
+            spdyExchange.write(chunk);
+        } else if (hedge != null) {
+            hedge.write(chunk);
+        } else if (currentServerConnection != null) {
+            currentServerConnection.write(chunk);
+        }
     }
 
     @Override
@@ -274,6 +703,14 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         currentServerConnection.write(buf);
     }
 
+    @Override
+    protected void readComplete() {
+        ProxyToServerConnection serverConnection = currentServerConnection;
+        if (isTunneling() && serverConnection != null) {
+            serverConnection.flush();
+        }
+    }
+
     /***************************************************************************
      * Writing
      **************************************************************************/
@@ -295,22 +732,285 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
     void respond(ProxyToServerConnection serverConnection,
             HttpRequest currentHttpRequest, HttpResponse currentHttpResponse,
             HttpObject httpObject) {
+        SegmentedFetch segmentedFetch = currentHttpRequest != null ? segmentedFetchesByRequest
+                .get(currentHttpRequest) : null;
+        boolean leadingSegmentFinished = false;
+        if (segmentedFetch != null
+                && segmentedFetch.isRemainderRequest(currentHttpRequest)) {
+            // The rest of a body that we're fetching in segments, which the
+            // SegmentedFetch passes on to the client itself
+            if (ProxyUtils.isLastChunk(httpObject)) {
+                segmentedFetchesByRequest.remove(currentHttpRequest);
+            }
+            segmentedFetch.remainderRead(httpObject);
+            return;
+        } else if (segmentedFetch != null) {
+            if (httpObject instanceof HttpResponse
+                    && !segmentedFetch.start((HttpResponse) httpObject)) {
+                LOG.debug("Server didn't return leading segment, passing its response through");
+                segmentedFetchesByRequest.remove(currentHttpRequest);
+            } else if (ProxyUtils.isLastChunk(httpObject)) {
+                if (segmentedFetch.hasMoreSegments()) {
+                    // The rest of the body comes from the other segments
+                    httpObject = new DefaultHttpContent(
+                            ((HttpContent) httpObject).content());
+                    leadingSegmentFinished = true;
+                } else {
+                    segmentedFetchesByRequest.remove(currentHttpRequest);
+                }
+            }
+        }
+
+        captureForCacheIfNecessary(currentHttpRequest, httpObject);
+        scanForPrefetchingIfNecessary(currentHttpRequest, httpObject);
+
         if (httpObject instanceof HttpResponse) {
             HttpResponse httpResponse = (HttpResponse) httpObject;
             fixHttpVersionHeaderIfNecessary(httpResponse);
             modifyResponseHeadersToReflectProxying(httpResponse);
             // Record stats
             recordResponseReceivedFromServer(serverConnection, httpResponse);
+            recordResponseSentToClient(new FlowContext(this,
+                    serverConnection), httpResponse);
         }
 
-        write(httpObject);
+        if (awaitingUpgrade
+                && HttpResponseStatus.SWITCHING_PROTOCOLS
+                        .equals(currentHttpResponse.getStatus())) {
+            // The 101 only goes out to the client once it's all here, along
+            // with our switch to relaying whatever follows it
+            if (ProxyUtils.isLastChunk(httpObject)) {
+                switchProtocols(serverConnection, currentHttpResponse);
+            }
+            return;
+        }
+
+        RangeSplice rangeSplice = currentHttpRequest != null ? rangeSplicesByRequest
+                .get(currentHttpRequest) : null;
+        if (rangeSplice != null) {
+            writeSplicedRange(currentHttpRequest, rangeSplice, httpObject);
+        } else {
+            write(httpObject);
+        }
 
         if (ProxyUtils.isLastChunk(httpObject)) {
             writeEmptyBuffer();
         }
 
+        if (ProxyUtils.isLastChunk(httpObject) && awaitingUpgrade) {
+            LOG.debug("Server declined upgrade with {}",
+                    currentHttpResponse.getStatus());
+            awaitingUpgrade = false;
+            resumeReading();
+        }
+
         closeConnectionsAfterWriteIfNecessary(serverConnection,
                 currentHttpRequest, currentHttpResponse, httpObject);
+
+        if (leadingSegmentFinished) {
+            segmentedFetch.leadingSegmentFinished();
+        }
+    }
+
+    /**
+     * <p>
+     * Called once the server has agreed to the client's request to upgrade to
+     * another protocol. Both connections switch to relaying raw bytes just
+     * like a CONNECT tunnel, with an idle timeout meant for long-lived sockets
+     * such as WebSockets.
+     * </p>
+     * 
+     * <p>
+     * We're on the server connection's event loop, and whatever it read after
+     * the 101 is about to come through as raw bytes, so it switches right
+     * away. The client connection writes the 101 and switches in one go on
+     * its own event loop, so that nothing the client sends in reply can be
+     * read as HTTP.
+     * </p>
+     * 
+     * @param serverConnection
+     * @param httpResponse
+     *            the server's 101 response
+     */
+    private void switchProtocols(ProxyToServerConnection serverConnection,
+            final HttpResponse httpResponse) {
+        LOG.debug("Switching protocols, relaying raw bytes from now on");
+        final int idleTimeout = proxyServer
+                .getUpgradedConnectionIdleTimeout();
+        serverConnection.startTunneling(idleTimeout);
+        ctx.executor().execute(new Runnable() {
+            @Override
+            public void run() {
+                write(httpResponse);
+                write(LastHttpContent.EMPTY_LAST_CONTENT);
+                startTunneling(idleTimeout);
+                awaitingUpgrade = false;
+                resumeReading();
+            }
+        });
+    }
+
+    /**
+     * Sends the client part of a response that's being fetched in segments,
+     * following on from the leading segment that came through
+     * {@link #respond(ProxyToServerConnection, HttpRequest, HttpResponse, HttpObject)}
+     * .
+     * 
+     * @param currentHttpRequest
+     * @param chunk
+     */
+    void respondWithSegment(HttpRequest currentHttpRequest, HttpContent chunk) {
+        captureForCacheIfNecessary(currentHttpRequest, chunk);
+        scanForPrefetchingIfNecessary(currentHttpRequest, chunk);
+        write(chunk);
+        if (ProxyUtils.isLastChunk(chunk)) {
+            segmentedFetchesByRequest.remove(currentHttpRequest);
+            writeEmptyBuffer();
+            if (!HttpHeaders.isKeepAlive(currentHttpRequest)) {
+                LOG.debug("Closing connection to client after segmented response");
+                disconnect();
+            } else {
+                disconnectClientIfNecessary();
+            }
+        }
+    }
+
+    /**
+     * Called when a {@link SegmentedFetch} requests the rest of a body on the
+     * connection that brought the leading segment, so that we hand the
+     * response to it.
+     * 
+     * @param remainderRequest
+     * @param segmentedFetch
+     */
+    void fetchingRemainder(HttpRequest remainderRequest,
+            SegmentedFetch segmentedFetch) {
+        segmentedFetchesByRequest.put(remainderRequest, segmentedFetch);
+    }
+
+    /**
+     * Called when we're unable to fetch all the segments of a response. By
+     * now, the client has already received the start of the response, so we
+     * have no choice but to disconnect it.
+     * 
+     * @param currentHttpRequest
+     */
+    void segmentedFetchFailed(HttpRequest currentHttpRequest) {
+        segmentedFetchesByRequest.remove(currentHttpRequest);
+        cacheCapturesByRequest.remove(currentHttpRequest);
+        prefetchScansByRequest.remove(currentHttpRequest);
+        disconnect();
+    }
+
+    /**
+     * If we're capturing the response to the given request for the
+     * {@link ResponseCache}, add the given {@link HttpObject} to the capture.
+     * This happens before we modify the response for proxying, so that the
+     * cache holds the response as the server sent it.
+     * 
+     * @param currentHttpRequest
+     * @param httpObject
+     */
+    private void captureForCacheIfNecessary(HttpRequest currentHttpRequest,
+            HttpObject httpObject) {
+        if (currentHttpRequest == null) {
+            return;
+        }
+        ResponseCache.Capture capture = cacheCapturesByRequest
+                .get(currentHttpRequest);
+        if (capture == null) {
+            return;
+        }
+        if (httpObject instanceof HttpResponse
+                && !capture.start((HttpResponse) httpObject)) {
+            LOG.debug("Not caching response to {}",
+                    currentHttpRequest.getUri());
+            cacheCapturesByRequest.remove(currentHttpRequest);
+            return;
+        }
+        if (httpObject instanceof HttpContent) {
+            if (!capture.append((HttpContent) httpObject)) {
+                LOG.debug("Response to {} is too large to cache",
+                        currentHttpRequest.getUri());
+                cacheCapturesByRequest.remove(currentHttpRequest);
+            } else if (ProxyUtils.isLastChunk(httpObject)) {
+                capture.finish();
+                cacheCapturesByRequest.remove(currentHttpRequest);
+            }
+        }
+    }
+
+    /**
+     * If we're scanning the response to the given request for subresources to
+     * prefetch, scan the given {@link HttpObject}.
+     * 
+     * @param currentHttpRequest
+     * @param httpObject
+     */
+    private void scanForPrefetchingIfNecessary(HttpRequest currentHttpRequest,
+            HttpObject httpObject) {
+        if (currentHttpRequest == null) {
+            return;
+        }
+        Prefetcher.Scan scan = prefetchScansByRequest.get(currentHttpRequest);
+        if (scan == null) {
+            return;
+        }
+        if (httpObject instanceof HttpResponse
+                && !scan.start((HttpResponse) httpObject)) {
+            prefetchScansByRequest.remove(currentHttpRequest);
+            return;
+        }
+        if (httpObject instanceof HttpContent) {
+            scan.append((HttpContent) httpObject);
+            if (ProxyUtils.isLastChunk(httpObject)) {
+                prefetchScansByRequest.remove(currentHttpRequest);
+            }
+        }
+    }
+
+    /**
+     * Writes part of the server's response to a Range request for which we
+     * only fetched the bytes missing from the cache, adding the cached bytes
+     * before and after the server's content.
+     * 
+     * @param currentHttpRequest
+     * @param rangeSplice
+     * @param httpObject
+     */
+    private void writeSplicedRange(HttpRequest currentHttpRequest,
+            RangeSplice rangeSplice, HttpObject httpObject) {
+        if (httpObject instanceof HttpResponse) {
+            HttpResponse httpResponse = (HttpResponse) httpObject;
+            if (!rangeSplice.applyTo(httpResponse)) {
+                LOG.debug("Server didn't return requested range {}, passing its response through",
+                        rangeSplice.getFetched());
+                rangeSplicesByRequest.remove(currentHttpRequest);
+                write(httpObject);
+                return;
+            }
+            if (httpObject instanceof HttpContent) {
+                // Split up aggregated responses so we can add our content
+                DefaultHttpResponse head = new DefaultHttpResponse(
+                        httpResponse.getProtocolVersion(),
+                        httpResponse.getStatus());
+                head.headers().set(httpResponse.headers());
+                write(head);
+            } else {
+                write(httpResponse);
+            }
+            write(new DefaultHttpContent(rangeSplice.getPrefix()));
+        }
+        if (httpObject instanceof HttpContent) {
+            HttpContent chunk = (HttpContent) httpObject;
+            if (ProxyUtils.isLastChunk(chunk)) {
+                write(new DefaultHttpContent(chunk.content()));
+                write(new DefaultLastHttpContent(rangeSplice.getSuffix()));
+                rangeSplicesByRequest.remove(currentHttpRequest);
+            } else {
+                write(new DefaultHttpContent(chunk.content()));
+            }
+        }
     }
 
     /***************************************************************************
@@ -329,6 +1029,10 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
 
         protected Future<?> execute() {
             LOG.debug("Responding with CONNECT successful");
+            if (socks) {
+                return writeToChannel(new SocksCmdResponse(
+                        SocksCmdStatus.SUCCESS, boundAddressType()));
+            }
             HttpResponse response = responseFor(HttpVersion.HTTP_1_1,
                     CONNECTION_ESTABLISHED);
             response.headers().set("Connection", "Keep-Alive");
@@ -338,6 +1042,112 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         };
     };
 
+    /**
+     * <p>
+     * Intercepts a CONNECT tunnel once the client has been told that it was
+     * successful, by starting TLS with the client using a certificate for the
+     * server that it asked for. From then on, we read HTTP requests from the
+     * client as usual.
+     * </p>
+     * 
+     * <p>
+     * We don't wait for the handshake, since we only read the client's side of
+     * it once the connection flow is done.
+     * </p>
+     */
+    protected ConnectionFlowStep InterceptTunnel = new ConnectionFlowStep(
+            this, NEGOTIATING_CONNECT) {
+        @Override
+        boolean shouldSuppressInitialRequest() {
+            return true;
+        }
+
+        protected Future<?> execute() {
+            String hostAndPort = currentServerConnection
+                    .getServerHostAndPort();
+            LOG.debug("Intercepting tunnel to {}", hostAndPort);
+            recordResumption(proxyServer.getSslHandshakeExecutor().encrypt(
+                    ctx.pipeline(),
+                    inboundSslSessionCache.newServerEngine(mitmSslContext)));
+            mitmHostAndPort = hostAndPort;
+            return channel.newSucceededFuture();
+        }
+    };
+
+    /**
+     * <p>
+     * Gets the {@link SSLContext} with which {@link #InterceptTunnel} will
+     * present the client with a certificate for the server that it asked for,
+     * before we tell the client that its CONNECT was successful.
+     * </p>
+     * 
+     * <p>
+     * Issuing a certificate would hold up every other connection on the event
+     * loop, so the {@link MitmManager} does that on threads of its own.
+     * </p>
+     */
+    protected ConnectionFlowStep IssueMitmCertificate = new ConnectionFlowStep(
+            this, NEGOTIATING_CONNECT) {
+        @Override
+        boolean shouldSuppressInitialRequest() {
+            return true;
+        }
+
+        protected Future<?> execute() {
+            String hostAndPort = currentServerConnection
+                    .getServerHostAndPort();
+            final ChannelPromise issued = channel.newPromise();
+            proxyServer
+                    .getMitmManager()
+                    .sslContextFor(ProxyUtils.parseHost(hostAndPort),
+                            ctx.executor())
+                    .addListener(new GenericFutureListener<Future<SSLContext>>() {
+                        @Override
+                        public void operationComplete(
+                                Future<SSLContext> future) throws Exception {
+                            if (future.isSuccess()) {
+                                mitmSslContext = future.getNow();
+                                issued.setSuccess();
+                            } else {
+                                issued.setFailure(future.cause());
+                            }
+                        }
+                    });
+            return issued;
+        }
+    };
+
+    /**
+     * Creates a server mode {@link SSLEngine} that lets clients resume their
+     * earlier sessions with us (see {@link SslSessionCache}).
+     */
+    @Override
+    protected SSLEngine newSSLEngine() {
+        return inboundSslSessionCache.newServerEngine(sslContext);
+    }
+
+    /**
+     * Once the given handshake has completed, records whether the client
+     * resumed an earlier session.
+     * 
+     * @param handshake
+     */
+    private void recordResumption(Future<Channel> handshake) {
+        final long handshakeStartedAt = System.currentTimeMillis();
+        handshake.addListener(new GenericFutureListener<Future<Channel>>() {
+            @Override
+            public void operationComplete(Future<Channel> future)
+                    throws Exception {
+                if (future.isSuccess()) {
+                    SslHandler handler = future.getNow().pipeline()
+                            .get(SslHandler.class);
+                    inboundSslSessionCache.handshakeCompleted(handler
+                            .engine().getSession(), handshakeStartedAt);
+                }
+            }
+        });
+    }
+
     /**
      * On connect of the client, start waiting for an initial
      * {@link HttpRequest}.
@@ -358,6 +1168,14 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
                 .values()) {
             serverConnection.disconnect();
         }
+        for (SegmentedFetch segmentedFetch : segmentedFetchesByRequest
+                .values()) {
+            segmentedFetch.cancel();
+        }
+        SpdyExchange spdyExchange = currentSpdyExchange;
+        if (spdyExchange != null) {
+            spdyExchange.stream.cancel();
+        }
     }
 
     /**
@@ -377,16 +1195,33 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      * 
      * @param serverConnection
      * @param shouldForwardInitialRequest
+     * @return false if the connection lost a {@link HedgedConnect} race and
+     *         should close without sending anything
      */
-    protected void serverConnectionSucceeded(
+    protected boolean serverConnectionSucceeded(
             ProxyToServerConnection serverConnection,
             boolean shouldForwardInitialRequest) {
         LOG.debug("Connection to server succeeded: {}",
                 serverConnection.getAddress());
         resumeReadingIfNecessary();
+        numberOfCurrentlyConnectedServers.incrementAndGet();
+        HedgedConnect hedge = hedgesByServerConnection
+                .remove(serverConnection);
+        if (hedge != null) {
+            if (!hedge.connected(serverConnection)) {
+                LOG.debug("Other connection got there first, dropping: {}",
+                        serverConnection.getAddress());
+                serverConnectionsByHostAndPort.values()
+                        .remove(serverConnection);
+                return false;
+            }
+            if (currentServerConnection == hedge.getChainedConnection()) {
+                currentServerConnection = serverConnection;
+            }
+        }
         become(shouldForwardInitialRequest ? getCurrentState()
                 : AWAITING_INITIAL);
-        numberOfCurrentlyConnectedServers.incrementAndGet();
+        return true;
     }
 
     /**
@@ -404,6 +1239,11 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      * to the client.</li>
      * </ol>
      * 
+     * <p>
+     * If the connection is racing another one for the request (see
+     * {@link HedgedConnect}), neither happens until both have failed.
+     * </p>
+     * 
      * @param serverConnection
      * @param lastStateBeforeFailure
      * @param what
@@ -418,7 +1258,18 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
             Throwable cause) {
         resumeReadingIfNecessary();
         HttpRequest initialRequest = serverConnection.getInitialRequest();
-        if (shouldChain(initialRequest)
+        HedgedConnect hedge = hedgesByServerConnection
+                .remove(serverConnection);
+        if (hedge != null) {
+            serverConnectionsByHostAndPort.values().remove(serverConnection);
+            if (!hedge.failed(serverConnection)) {
+                LOG.debug(
+                        "Connection to {} failed, but the request can still go another way",
+                        serverConnection.getAddress(), cause);
+                return false;
+            }
+        }
+        if (isChained(serverConnection)
                 && proxyServer.getChainProxyManager()
                         .allowFallbackToUnchainedConnection(initialRequest)) {
             LOG.info(
@@ -443,6 +1294,17 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         }
     }
 
+    /**
+     * While we're waiting for the server to answer a request to upgrade, we
+     * keep not reading from the client (see {@link #awaitingUpgrade}).
+     */
+    @Override
+    protected void resumeReading() {
+        if (!awaitingUpgrade) {
+            super.resumeReading();
+        }
+    }
+
     /***************************************************************************
      * Other Lifecycle
      **************************************************************************/
@@ -455,7 +1317,16 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      */
     protected void serverDisconnected(ProxyToServerConnection serverConnection) {
         numberOfCurrentlyConnectedServers.decrementAndGet();
-        disconnectClientIfNecessary();
+        for (SegmentedFetch segmentedFetch : segmentedFetchesByRequest
+                .values()) {
+            segmentedFetch.serverDisconnected(serverConnection);
+        }
+        if (isTunneling() && serverConnection == currentServerConnection) {
+            // Nothing else will come through this connection
+            disconnect();
+        } else {
+            disconnectClientIfNecessary();
+        }
     }
 
     /**
@@ -543,24 +1414,50 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      **************************************************************************/
 
     /**
-     * Determine whether the given request should be handled by a chained proxy.
+     * Determines whether the given server connection goes through a chained
+     * proxy, and hasn't fallen back to a direct connection since.
      * 
-     * @param httpRequest
+     * @param serverConnection
      * @return
      */
-    protected boolean shouldChain(HttpRequest httpRequest) {
-        return getChainedProxyHostAndPort(httpRequest) != null;
+    private boolean isChained(ProxyToServerConnection serverConnection) {
+        return serverConnection.getChainedProxyHostAndPort() != null
+                && !requestsForWhichProxyChainingIsDisabled
+                        .containsKey(serverConnection.getInitialRequest());
     }
 
     /**
-     * Get the host and port for the chained proxy.
+     * Determines whether the given request is a CONNECT whose tunnel we'll
+     * intercept rather than just relay. We only intercept tunnels that go
+     * straight to the server.
      * 
      * @param httpRequest
+     * @param chainedProxyHostAndPort
+     *            the chained proxy that we chose for the request, if any
      * @return
      */
+    protected boolean shouldIntercept(HttpRequest httpRequest,
+            String chainedProxyHostAndPort) {
+        return proxyServer.getMitmManager() != null
+                && ProxyUtils.isCONNECT(httpRequest)
+                && chainedProxyHostAndPort == null;
+    }
+
+    /**
+     * Chooses the chained proxy for the given request. A
+     * {@link ChainedProxyManager} may choose a different one every time it's
+     * asked, so this is called once per request, and everything after that
+     * goes by the {@link ProxyToServerConnection}'s chained proxy.
+     * 
+     * @param httpRequest
+     * @return the host and port of the chained proxy, or null not to chain
+     */
     protected String getChainedProxyHostAndPort(HttpRequest httpRequest) {
         if (proxyServer.getChainProxyManager() == null) {
             return null;
+        } else if (mitmHostAndPort != null) {
+            // We're already connected to the server in the tunnel
+            return null;
         } else if (this.requestsForWhichProxyChainingIsDisabled
                 .containsKey(httpRequest)) {
             return null;
@@ -594,6 +1491,8 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      * @param sslContext
      *            (optional) {@link SSLContext} to encrypt connection to server
      *            (or chained proxy)
+     * @param linkCompression
+     *            how to compress the connection to the chained proxy, if any
      * @param hostAndPort
      *            the host and port to which to connect (either ultimate
      *            endpoint or another proxy if chaining is enabled)
@@ -608,11 +1507,11 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      */
     private ProxyToServerConnection connectToServer(HttpRequest httpRequest,
             TransportProtocol transportProtocol, SSLContext sslContext,
-            String hostAndPort, String serverHostAndPort,
+            LinkCompression linkCompression, String hostAndPort, String serverHostAndPort,
             String chainedProxyHostAndPort)
             throws UnknownHostException {
         LOG.debug("Establishing new ProxyToServerConnection");
-        InetSocketAddress address = addressFor(hostAndPort);
+        List<InetSocketAddress> addresses = addressesFor(hostAndPort);
 
         // Add response filtering if necessary
         HttpFilter responseFilter = null;
@@ -623,9 +1522,9 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
 
         // Create connection
         ProxyToServerConnection connection = new ProxyToServerConnection(
-                this.proxyServer, this, transportProtocol, sslContext, address,
-                serverHostAndPort, chainedProxyHostAndPort,
-                responseFilter);
+                this.proxyServer, this, transportProtocol, sslContext,
+                linkCompression, addresses, serverHostAndPort,
+                chainedProxyHostAndPort, responseFilter);
 
         // Remember connection for later
         serverConnectionsByHostAndPort.put(hostAndPort, connection);
@@ -633,6 +1532,62 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         return connection;
     }
 
+    /**
+     * Determines how long to wait for a new connection to the chained proxy
+     * before racing a direct connection against it (see
+     * {@link HedgedConnect}). Only requests without a body that are allowed to
+     * fall back to a direct connection are hedged.
+     * 
+     * @param httpRequest
+     * @param chainedProxyHostAndPort
+     * @return the delay in milliseconds, or 0 not to hedge
+     */
+    private long getHedgeDelay(HttpRequest httpRequest,
+            String chainedProxyHostAndPort) {
+        if (chainedProxyHostAndPort == null
+                || ProxyUtils.isCONNECT(httpRequest)
+                || ProxyUtils.isUpgrade(httpRequest)
+                || HttpHeaders.getContentLength(httpRequest, 0) > 0
+                || HttpHeaders.isTransferEncodingChunked(httpRequest)) {
+            return 0;
+        }
+        AdvancedChainedProxyManager chainedProxyManager = proxyServer
+                .getAdvancedChainProxyManager();
+        if (chainedProxyManager == null) {
+            return 0;
+        }
+        long delay = chainedProxyManager
+                .getFallbackHedgeDelayInMillis(httpRequest);
+        if (delay <= 0
+                || !chainedProxyManager
+                        .allowFallbackToUnchainedConnection(httpRequest)) {
+            return 0;
+        }
+        return delay;
+    }
+
+    /**
+     * Creates a direct connection to the server for the given hedged request,
+     * which from now on doesn't count as chained, so that it gets a 502 Bad
+     * Gateway rather than another fallback if both connections fail.
+     * 
+     * @param hedge
+     * @param initialRequest
+     * @return
+     * @throws UnknownHostException
+     *             if the server can't be resolved
+     */
+    ProxyToServerConnection connectDirectlyFor(HedgedConnect hedge,
+            HttpRequest initialRequest) throws UnknownHostException {
+        disableChainingFor(initialRequest);
+        String hostAndPort = identifyHostAndPort(initialRequest);
+        ProxyToServerConnection connection = connectToServer(initialRequest,
+                TCP, directSslContextFor(initialRequest), LinkCompression.NONE,
+                hostAndPort, hostAndPort, null);
+        hedgesByServerConnection.put(connection, hedge);
+        return connection;
+    }
+
     /**
      * Falls back to making a direct connection for the given request, bypassing
      * the chained proxy.
@@ -647,9 +1602,14 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         // chaining for this request and try again
         disableChainingFor(initialRequest);
         String hostAndPort = identifyHostAndPort(initialRequest);
+        // From now on the connection goes to the server, so later requests to
+        // the chained proxy mustn't reuse it
+        serverConnectionsByHostAndPort.values().remove(serverConnection);
+        serverConnectionsByHostAndPort.put(hostAndPort, serverConnection);
         try {
-            serverConnection.retryConnecting(addressFor(hostAndPort), TCP,
-                    null, null, initialRequest);
+            serverConnection.retryConnecting(addressesFor(hostAndPort), TCP,
+                    directSslContextFor(initialRequest), LinkCompression.NONE,
+                    null, initialRequest);
         } catch (UnknownHostException uhe) {
             LOG.info("Bad Host {}", initialRequest.getUri());
             writeBadGateway(initialRequest);
@@ -657,6 +1617,20 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         }
     }
 
+    /**
+     * Gets the {@link SSLContext} for a direct connection to the server for the
+     * given request, once chaining is disabled for it. Now that the request
+     * no longer goes through the chained proxy, a CONNECT may be one whose
+     * tunnel we intercept, in which case we speak TLS with the server.
+     * 
+     * @param initialRequest
+     * @return the {@link SSLContext}, or null not to encrypt the connection
+     */
+    private SSLContext directSslContextFor(HttpRequest initialRequest) {
+        return shouldIntercept(initialRequest, null) ? proxyServer
+                .getMitmManager().getServerSslContext() : null;
+    }
+
     /**
      * Initialize the {@ChannelPipeline} for the client to
      * proxy channel.
@@ -666,11 +1640,24 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
     private void initChannelPipeline(ChannelPipeline pipeline) {
         LOG.debug("Configuring ChannelPipeline");
 
-        // We want to allow longer request lines, headers, and chunks
-        // respectively.
-        pipeline.addLast("decoder", new ProxyHttpRequestDecoder(8192, 8192 * 2,
-                8192 * 2));
-        pipeline.addLast("encoder", new HttpResponseEncoder());
+        if (socks) {
+            SocksHandshake.addTo(pipeline, proxyServer.getProxyAuthenticator());
+        }
+        if (pipeline.channel() instanceof SpdyStreamChannel) {
+            // Requests from SPDY streams arrive already decoded
+            pipeline.addLast("encoder", new SpdyStreamChannel.Encoder());
+        } else {
+            pipeline.addLast("bytesWrittenMonitor", new BytesWrittenMonitor());
+            if (!socks && proxyServer.isAcceptCompressedLinks()) {
+                // Chained LittleProxies might compress the connection
+                CompressedLink.addDetectorTo(pipeline);
+            }
+            // We want to allow longer request lines, headers, and chunks
+            // respectively.
+            pipeline.addLast("decoder", new ProxyHttpRequestDecoder(8192,
+                    8192 * 2, 8192 * 2));
+            pipeline.addLast("encoder", new HttpResponseEncoder());
+        }
         pipeline.addLast(
                 "idle",
                 new IdleStateHandler(0, 0, proxyServer
@@ -682,7 +1669,8 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      * If all server connections have been disconnected, disconnect the client.
      */
     private void disconnectClientIfNecessary() {
-        if (numberOfCurrentlyConnectedServers.get() == 0) {
+        if (numberOfCurrentlyConnectedServers.get() == 0
+                && segmentedFetchesByRequest.isEmpty()) {
             // All servers are disconnected, disconnect from client
             disconnect();
         }
@@ -829,6 +1817,10 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      * @return
      */
     private boolean authenticationRequired(HttpRequest request) {
+        if (socks) {
+            // The client logged in during the SOCKS handshake
+            return false;
+        }
         if (!request.headers().contains(HttpHeaders.Names.PROXY_AUTHORIZATION)) {
             if (proxyServer.getProxyAuthenticator() != null) {
                 writeAuthenticationRequired();
@@ -939,12 +1931,17 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      * request headers to reflect that it was proxied.
      * 
      * @param httpRequest
+     * @param chainedProxyHostAndPort
+     *            the chained proxy that we chose for the request, if any
      */
-    private void modifyRequestHeadersToReflectProxying(HttpRequest httpRequest) {
+    private void modifyRequestHeadersToReflectProxying(HttpRequest httpRequest,
+            String chainedProxyHostAndPort) {
         if (!proxyServer.isTransparent()) {
             LOG.debug("Modifying request headers for proxying");
+            String upgrade = ProxyUtils.isUpgrade(httpRequest) ? httpRequest
+                    .headers().get(HttpHeaders.Names.UPGRADE) : null;
 
-            if (!shouldChain(httpRequest)) {
+            if (chainedProxyHostAndPort == null) {
                 LOG.debug("Modifying request for proxy chaining");
                 // Strip host from uri
                 String uri = httpRequest.getUri();
@@ -960,6 +1957,7 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
             switchProxyConnectionHeader(headers);
             stripConnectionTokens(headers);
             stripHopByHopHeaders(headers);
+            keepUpgrade(headers, upgrade);
             ProxyUtils.addVia(httpRequest);
         }
     }
@@ -975,8 +1973,12 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
             HttpResponse httpResponse) {
         if (!proxyServer.isTransparent()) {
             HttpHeaders headers = httpResponse.headers();
+            String upgrade = HttpResponseStatus.SWITCHING_PROTOCOLS
+                    .equals(httpResponse.getStatus()) ? headers
+                    .get(HttpHeaders.Names.UPGRADE) : null;
             stripConnectionTokens(headers);
             stripHopByHopHeaders(headers);
+            keepUpgrade(headers, upgrade);
             ProxyUtils.addVia(httpResponse);
 
             /*
@@ -1062,16 +2064,58 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         }
     }
 
+    /**
+     * Upgrade and Connection are hop-by-hop headers, but we pass requests to
+     * upgrade (and servers' agreement to them) through as they are, since we
+     * end up relaying the new protocol between the two.
+     * 
+     * @param headers
+     *            The headers to modify
+     * @param upgrade
+     *            The protocol(s) to upgrade to, if any
+     */
+    private void keepUpgrade(HttpHeaders headers, String upgrade) {
+        if (upgrade != null) {
+            headers.set(HttpHeaders.Names.CONNECTION,
+                    HttpHeaders.Values.UPGRADE);
+            headers.set(HttpHeaders.Names.UPGRADE, upgrade);
+        }
+    }
+
     /***************************************************************************
      * Miscellaneous
      **************************************************************************/
 
+    /**
+     * The address family of our end of the connection to the server, for SOCKS
+     * replies. Netty's replies leave the address itself zeroed.
+     * 
+     * @return
+     */
+    private SocksAddressType boundAddressType() {
+        ProxyToServerConnection serverConnection = currentServerConnection;
+        if (serverConnection != null && serverConnection.channel != null) {
+            SocketAddress bound = serverConnection.channel.localAddress();
+            if (bound instanceof InetSocketAddress
+                    && ((InetSocketAddress) bound).getAddress() instanceof Inet6Address) {
+                return SocksAddressType.IPv6;
+            }
+        }
+        return SocksAddressType.IPv4;
+    }
+
     /**
      * Tells the client that something went wrong trying to proxy its request.
      * 
      * @param request
      */
-    private void writeBadGateway(HttpRequest request) {
+    void writeBadGateway(HttpRequest request) {
+        if (socks) {
+            writeToChannel(new SocksCmdResponse(SocksCmdStatus.HOST_UNREACHABLE,
+                    SocksAddressType.IPv4));
+            disconnect();
+            return;
+        }
         String body = "Bad Gateway: " + request.getUri();
         DefaultFullHttpResponse response = responseFor(HttpVersion.HTTP_1_1,
                 HttpResponseStatus.BAD_GATEWAY, body);
@@ -1149,36 +2193,37 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
     }
 
     /**
-     * Build an {@link InetSocketAddress} for the given hostAndPort.
+     * Build {@link InetSocketAddress}es for all of the addresses that the given
+     * hostAndPort resolves to, in the order that the resolver returned them.
      * 
      * @param hostAndPort
      * @return
      * @throws UnknownHostException
      *             if hostAndPort could not be resolved
      */
-    private InetSocketAddress addressFor(String hostAndPort)
+    private List<InetSocketAddress> addressesFor(String hostAndPort)
             throws UnknownHostException {
-        String host;
+        String host = ProxyUtils.parseHost(hostAndPort);
         int port;
-        if (hostAndPort.contains(":")) {
-            host = StringUtils.substringBefore(hostAndPort, ":");
-            String portString = StringUtils.substringAfter(hostAndPort,
-                    ":");
+        int portIndex = hostAndPort.lastIndexOf(':');
+        if (portIndex > hostAndPort.lastIndexOf(']')) {
+            String portString = hostAndPort.substring(portIndex + 1);
             port = Integer.parseInt(portString);
         } else {
-            host = hostAndPort;
             port = 80;
         }
 
+        List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
         if (proxyServer.isUseDnsSec()) {
-            return VerifiedAddressFactory.newInetSocketAddress(host, port,
-                    proxyServer.isUseDnsSec());
+            addresses.add(VerifiedAddressFactory.newInetSocketAddress(host,
+                    port, proxyServer.isUseDnsSec()));
 
         } else {
-            InetAddress ia = InetAddress.getByName(host);
-            String address = ia.getHostAddress();
-            return new InetSocketAddress(address, port);
+            for (InetAddress ia : InetAddress.getAllByName(host)) {
+                addresses.add(new InetSocketAddress(ia, port));
+            }
         }
+        return addresses;
     }
 
     /**
@@ -1200,6 +2245,131 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         write(Unpooled.EMPTY_BUFFER);
     }
 
+    /**
+     * A request sent over SPDY, passing the response back to the client.
+     * Except for {@link #write(HttpContent)}, its methods are called on the
+     * event loop of the SPDY session.
+     */
+    private class SpdyExchange implements SpdyUpstreamSession.Listener {
+        private final HttpRequest originalRequest;
+        private final HttpRequest request;
+        private final FlowContext flowContext;
+        private volatile SpdyUpstreamSession.Stream stream;
+        private boolean requestComplete = false;
+        private boolean responseStarted = false;
+        private boolean responseComplete = false;
+        private boolean closeAfterResponse;
+
+        private SpdyExchange(HttpRequest originalRequest, HttpRequest request,
+                TransportProtocol transportProtocol, String serverHostAndPort,
+                String chainedProxyHostAndPort) {
+            this.originalRequest = originalRequest;
+            this.request = request;
+            this.flowContext = new FlowContext(getClientAddress(),
+                    transportProtocol, serverHostAndPort,
+                    chainedProxyHostAndPort);
+            this.closeAfterResponse = !HttpHeaders.isKeepAlive(originalRequest);
+        }
+
+        /**
+         * Passes on part of the request body. Once we have the whole request,
+         * we stop reading from the client until the response is done.
+         * 
+         * @param chunk
+         */
+        private void write(HttpContent chunk) {
+            stream.write(chunk);
+            if (ProxyUtils.isLastChunk(chunk)) {
+                synchronized (this) {
+                    requestComplete = true;
+                    if (!responseComplete) {
+                        stopReading();
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void responseReceived(HttpResponse response) {
+            synchronized (this) {
+                responseStarted = true;
+            }
+            captureForCacheIfNecessary(request, response);
+            if (HttpVersion.HTTP_1_0.equals(originalRequest
+                    .getProtocolVersion())
+                    && HttpHeaders.isTransferEncodingChunked(response)) {
+                // The client can't take a chunked response, so we end the
+                // response by closing the connection instead
+                HttpHeaders.removeTransferEncodingChunked(response);
+                response.setProtocolVersion(HttpVersion.HTTP_1_0);
+                closeAfterResponse = true;
+            }
+            modifyResponseHeadersToReflectProxying(response);
+            for (ActivityTracker tracker : proxyServer.getActivityTrackers()) {
+                tracker.responseReceived(flowContext, response);
+            }
+            recordResponseSentToClient(flowContext, response);
+            writeToChannel(response);
+        }
+
+        @Override
+        public Future<?> contentReceived(HttpContent chunk) {
+            captureForCacheIfNecessary(request, chunk);
+            Future<?> written = writeToChannel(chunk);
+            if (ProxyUtils.isLastChunk(chunk)) {
+                writeToChannel(Unpooled.EMPTY_BUFFER);
+                responseFinished();
+            }
+            return written;
+        }
+
+        @Override
+        public void failed(Throwable cause) {
+            LOG.debug("Unable to fetch {} over SPDY: {}", request.getUri(),
+                    cause);
+            cacheCapturesByRequest.remove(request);
+            boolean started;
+            synchronized (this) {
+                started = responseStarted;
+                responseComplete = true;
+            }
+            if (!started) {
+                writeBadGateway(originalRequest);
+            } else {
+                // The client already has part of the response
+                disconnect();
+            }
+        }
+
+        @Override
+        public synchronized void sendWindowExhausted() {
+            if (!requestComplete) {
+                stopReading();
+            }
+        }
+
+        @Override
+        public synchronized void sendWindowAvailable() {
+            if (!requestComplete) {
+                resumeReading();
+            }
+        }
+
+        private void responseFinished() {
+            if (closeAfterResponse) {
+                LOG.debug("Closing connection to client after SPDY response");
+                disconnect();
+                return;
+            }
+            synchronized (this) {
+                responseComplete = true;
+                if (requestComplete) {
+                    resumeReading();
+                }
+            }
+        }
+    }
+
     /***************************************************************************
      * Activity Tracking/Statistics
      **************************************************************************/
@@ -1250,6 +2420,65 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         }
     }
 
+    /**
+     * Records the bytes that we send to the client. While there's no current
+     * server connection, they belong to the response that we last served from
+     * the {@link ResponseCache}, if any.
+     * 
+     * @param numberOfBytes
+     */
+    private void recordBytesSentToClient(int numberOfBytes) {
+        ProxyToServerConnection serverConnection = currentServerConnection;
+        FlowContext flowContext;
+        if (serverConnection != null) {
+            flowContext = new FlowContext(this, serverConnection);
+        } else if (cacheHitFlowContext != null) {
+            flowContext = cacheHitFlowContext;
+        } else {
+            flowContext = new FlowContext(getClientAddress(), TCP, null, null);
+        }
+        for (ActivityTracker tracker : proxyServer.getActivityTrackers()) {
+            if (tracker instanceof AdvancedActivityTracker) {
+                ((AdvancedActivityTracker) tracker).bytesSentToClient(
+                        flowContext, numberOfBytes);
+            }
+        }
+    }
+
+    protected void recordResponseSentToClient(FlowContext flowContext,
+            HttpResponse httpResponse) {
+        for (ActivityTracker tracker : proxyServer.getActivityTrackers()) {
+            if (tracker instanceof AdvancedActivityTracker) {
+                ((AdvancedActivityTracker) tracker).responseSentToClient(
+                        flowContext, httpResponse);
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes that we write to the client, below the HTTP encoder and
+     * above any SSL or compression, so that they line up with what
+     * {@link ProxyHttpRequestDecoder} counts on the way in. Bodies served from
+     * files count too.
+     */
+    private class BytesWrittenMonitor extends ChannelOutboundHandlerAdapter {
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg,
+                ChannelPromise promise) throws Exception {
+            long bytes = 0;
+            if (msg instanceof ByteBuf) {
+                bytes = ((ByteBuf) msg).readableBytes();
+            } else if (msg instanceof FileRegion) {
+                bytes = ((FileRegion) msg).count();
+            }
+            if (bytes > 0) {
+                recordBytesSentToClient((int) Math.min(bytes,
+                        Integer.MAX_VALUE));
+            }
+            super.write(ctx, msg, promise);
+        }
+    }
+
     public InetSocketAddress getClientAddress() {
         return (InetSocketAddress) channel.remoteAddress();
     }
@@ -0,0 +1,318 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.MessageToByteEncoder;
+import io.netty.handler.codec.compression.DecompressionException;
+import io.netty.handler.codec.compression.SnappyFramedDecoder;
+import io.netty.handler.codec.compression.SnappyFramedEncoder;
+
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.littleshoot.proxy.LinkCompression;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Compresses the connection between two chained LittleProxies (see
+ * {@link LinkCompression}). The compression sits right behind the
+ * {@link io.netty.handler.ssl.SslHandler} (if any), so the rest of the
+ * pipeline sees plain HTTP both ways.
+ * </p>
+ * 
+ * <p>
+ * The proxy that chains decides whether to compress. The chained proxy, if
+ * it accepts compressed links at all, looks at the first byte of every
+ * connection from an HTTP client to tell: HTTP
+ * requests start with a method name in capital letters, whereas a zlib stream
+ * starts with 0x78 and a framed Snappy stream with 0x80. It then compresses
+ * what it sends back the same way.
+ * </p>
+ */
+class CompressedLink {
+    private static final Logger LOG = LoggerFactory
+            .getLogger(CompressedLink.class);
+
+    private static final String DECOMPRESSOR = "linkDecompressor";
+    private static final String COMPRESSOR = "linkCompressor";
+    private static final String DETECTOR = "linkCompressionDetector";
+
+    private static final byte ZLIB_HEADER = 0x78;
+
+    /**
+     * Our version of Netty predates the final Snappy framing format, whose
+     * stream identifier starts with 0xff.
+     */
+    private static final byte SNAPPY_STREAM_IDENTIFIER = (byte) 0x80;
+
+    /**
+     * Compresses the connection in the given pipeline, in front of everything
+     * that's in it already.
+     * 
+     * @param pipeline
+     * @param compression
+     */
+    static void addTo(ChannelPipeline pipeline, LinkCompression compression) {
+        if (compression == null || compression == LinkCompression.NONE) {
+            return;
+        }
+        pipeline.addFirst(COMPRESSOR, newCompressor(compression));
+        pipeline.addFirst(DECOMPRESSOR, newDecompressor(compression));
+    }
+
+    /**
+     * Gets the given pipeline ready to accept a compressed connection, by
+     * putting a detector in front of everything that's in it already.
+     * 
+     * @param pipeline
+     */
+    static void addDetectorTo(ChannelPipeline pipeline) {
+        pipeline.addFirst(DETECTOR, new Detector());
+    }
+
+    /**
+     * Whether the connection in the given pipeline is compressed, in which
+     * case only {@link ByteBuf}s can be written to it.
+     * 
+     * @param pipeline
+     * @return
+     */
+    static boolean isCompressed(ChannelPipeline pipeline) {
+        return pipeline.get(COMPRESSOR) != null;
+    }
+
+    private static ChannelHandler newDecompressor(LinkCompression compression) {
+        switch (compression) {
+        case DEFLATE:
+            return new InflatingDecoder();
+        case SNAPPY:
+            return new SnappyFramedDecoder(true);
+        default:
+            throw new IllegalArgumentException("Unknown link compression: "
+                    + compression);
+        }
+    }
+
+    private static ChannelHandler newCompressor(LinkCompression compression) {
+        switch (compression) {
+        case DEFLATE:
+            return new DeflatingEncoder();
+        case SNAPPY:
+            return new SnappyFramedEncoder();
+        default:
+            throw new IllegalArgumentException("Unknown link compression: "
+                    + compression);
+        }
+    }
+
+    /**
+     * Replaces itself with the decompressor and compressor for the connection,
+     * if it's compressed, or with nothing otherwise.
+     */
+    private static class Detector extends ByteToMessageDecoder {
+        @Override
+        protected void decode(ChannelHandlerContext ctx, ByteBuf in,
+                List<Object> out) throws Exception {
+            if (!in.isReadable()) {
+                return;
+            }
+            LinkCompression compression;
+            switch (in.getByte(in.readerIndex())) {
+            case ZLIB_HEADER:
+                compression = LinkCompression.DEFLATE;
+                break;
+            case SNAPPY_STREAM_IDENTIFIER:
+                compression = LinkCompression.SNAPPY;
+                break;
+            default:
+                compression = LinkCompression.NONE;
+            }
+            ChannelPipeline pipeline = ctx.pipeline();
+            if (compression != LinkCompression.NONE) {
+                LOG.debug("Accepting {} compressed connection", compression);
+                pipeline.addAfter(DETECTOR, COMPRESSOR,
+                        newCompressor(compression));
+                pipeline.addAfter(DETECTOR, DECOMPRESSOR,
+                        newDecompressor(compression));
+            }
+            out.add(in.readBytes(in.readableBytes()));
+            pipeline.remove(this);
+        }
+    }
+
+    /**
+     * Deflates everything written into a zlib stream with the JDK's
+     * {@link Deflater}, flushing after every write.
+     * 
+     * <p>
+     * Netty's {@link io.netty.handler.codec.compression.JdkZlibEncoder} stops
+     * deflating as soon as the {@link Deflater} has taken all the input, which
+     * can leave the end of a flush stuck in the {@link Deflater} when the data
+     * doesn't compress, until the next write comes along. For the last write
+     * of a response, that never happens.
+     * </p>
+     */
+    private static class DeflatingEncoder extends MessageToByteEncoder<ByteBuf> {
+        private final Deflater deflater = new Deflater();
+        private final byte[] buffer = new byte[8192];
+
+        @Override
+        protected void encode(ChannelHandlerContext ctx, ByteBuf msg,
+                ByteBuf out) throws Exception {
+            byte[] input = new byte[msg.readableBytes()];
+            msg.readBytes(input);
+            deflater.setInput(input);
+            while (true) {
+                int length = deflater.deflate(buffer, 0, buffer.length,
+                        Deflater.SYNC_FLUSH);
+                out.writeBytes(buffer, 0, length);
+                if (length < buffer.length) {
+                    // Everything's flushed
+                    break;
+                }
+            }
+        }
+
+        @Override
+        public void handlerRemoved(ChannelHandlerContext ctx)
+                throws Exception {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Inflates a zlib stream with the JDK's {@link Inflater}, so that we don't
+     * need JZlib for Netty's own decoder.
+     * 
+     * <p>
+     * A little compressed data can inflate to a lot, so what comes out is
+     * passed on in chunks of at most {@link #CHUNK_SIZE} bytes as it goes,
+     * rather than collected first. After {@link #MAX_BYTES_PER_PASS} bytes,
+     * the rest is left for a task of its own, so that one connection can't
+     * keep the event loop from the others.
+     * </p>
+     */
+    private static class InflatingDecoder extends ChannelInboundHandlerAdapter {
+        private static final int CHUNK_SIZE = 8192;
+        private static final int MAX_BYTES_PER_PASS = 256 * 1024;
+
+        private final Inflater inflater = new Inflater();
+
+        /**
+         * Compressed data that the {@link Inflater} hasn't taken yet.
+         */
+        private final ByteBuf pending = Unpooled.buffer();
+
+        private boolean passScheduled = false;
+        private boolean ended = false;
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg)
+                throws Exception {
+            if (!(msg instanceof ByteBuf)) {
+                ctx.fireChannelRead(msg);
+                return;
+            }
+            ByteBuf in = (ByteBuf) msg;
+            try {
+                if (!ended && !inflater.finished()) {
+                    pending.writeBytes(in);
+                }
+            } finally {
+                in.release();
+            }
+            if (!passScheduled) {
+                inflate(ctx);
+            }
+        }
+
+        private void inflate(final ChannelHandlerContext ctx) {
+            int inflatedThisPass = 0;
+            boolean outputFull = false;
+            while (!ended && !inflater.finished()) {
+                if (inflater.needsInput()) {
+                    if (pending.isReadable()) {
+                        byte[] input = new byte[pending.readableBytes()];
+                        pending.readBytes(input);
+                        pending.discardReadBytes();
+                        inflater.setInput(input);
+                    } else if (!outputFull) {
+                        // Everything's inflated
+                        break;
+                    }
+                }
+                if (inflatedThisPass >= MAX_BYTES_PER_PASS) {
+                    passScheduled = true;
+                    ctx.executor().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            passScheduled = false;
+                            try {
+                                inflate(ctx);
+                            } catch (DecompressionException de) {
+                                ctx.fireExceptionCaught(de);
+                            }
+                        }
+                    });
+                    return;
+                }
+                ByteBuf chunk = ctx.alloc().heapBuffer(CHUNK_SIZE,
+                        CHUNK_SIZE);
+                int length;
+                try {
+                    length = inflater.inflate(chunk.array(),
+                            chunk.arrayOffset(), CHUNK_SIZE);
+                } catch (DataFormatException dfe) {
+                    chunk.release();
+                    throw new DecompressionException(dfe);
+                }
+                if (inflater.needsDictionary()) {
+                    chunk.release();
+                    throw new DecompressionException(
+                            "Compressed link needs a preset dictionary");
+                }
+                // A full chunk might leave more output in the inflater even
+                // once it has taken all the input
+                outputFull = length == CHUNK_SIZE;
+                if (length == 0) {
+                    chunk.release();
+                    if (inflater.needsInput()) {
+                        continue;
+                    }
+                    break;
+                }
+                chunk.writerIndex(length);
+                inflatedThisPass += length;
+                ctx.fireChannelRead(chunk);
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx)
+                throws Exception {
+            super.channelInactive(ctx);
+            end();
+        }
+
+        @Override
+        public void handlerRemoved(ChannelHandlerContext ctx)
+                throws Exception {
+            end();
+        }
+
+        private void end() {
+            ended = true;
+            inflater.end();
+            pending.clear();
+        }
+    }
+}
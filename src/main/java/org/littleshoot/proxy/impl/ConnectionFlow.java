@@ -143,8 +143,8 @@ class ConnectionFlow {
     private void doProcessCurrentStep(ProxyConnection connection,
             final ProxyConnectionLogger LOG) {
         currentStep.execute().addListener(
-                new GenericFutureListener<Future>() {
-                    public void operationComplete(Future future)
+                new GenericFutureListener<Future<?>>() {
+                    public void operationComplete(Future<?> future)
                             throws Exception {
                         synchronized (connectLock) {
                             if (future.isSuccess()) {
@@ -0,0 +1,220 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelOption;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Connects to a host that resolves to several addresses by racing connection
+ * attempts to them, the way that RFC 8305 (Happy Eyeballs) describes, so that
+ * one address that doesn't answer doesn't hold us up until the connect
+ * timeout.
+ * </p>
+ * 
+ * <p>
+ * We try the addresses in the order that the resolver gave them to us, except
+ * that we alternate between IPv6 and IPv4 addresses (see
+ * {@link #interleave(List)}). Each attempt gets a head start of the
+ * connection attempt delay before we start the next one, unless it fails
+ * before then, in which case we start the next one right away. The first
+ * connection that's established wins, and we cancel the others.
+ * </p>
+ * 
+ * <p>
+ * The connections don't read anything until the winner has been handed off,
+ * so that whoever takes it can set up its pipeline first.
+ * </p>
+ */
+class ConnectionRace {
+    private static final Logger LOG = LoggerFactory
+            .getLogger(ConnectionRace.class);
+
+    private final Bootstrap bootstrap;
+    private final List<InetSocketAddress> addresses;
+    private final long attemptDelayInMillis;
+    private final EventExecutor executor;
+    private final Promise<Channel> winner;
+
+    /**
+     * The connection attempts that are still going.
+     */
+    private final List<Channel> attempts = new ArrayList<Channel>();
+    private int nextAddress = 0;
+    private int failedAttempts = 0;
+    private ScheduledFuture<?> timer;
+
+    /**
+     * Whether an attempt has won or all of them have failed.
+     */
+    private boolean decided = false;
+
+    /**
+     * Construct a new {@link ConnectionRace}.
+     * 
+     * @param bootstrap
+     *            set up for connecting, except for the address
+     * @param addresses
+     *            the addresses to race, as the resolver returned them
+     * @param attemptDelayInMillis
+     *            how long to give each attempt before starting the next one
+     */
+    ConnectionRace(Bootstrap bootstrap, List<InetSocketAddress> addresses,
+            long attemptDelayInMillis) {
+        this.bootstrap = bootstrap.clone().option(ChannelOption.AUTO_READ,
+                false);
+        this.addresses = interleave(addresses);
+        this.attemptDelayInMillis = attemptDelayInMillis;
+        this.executor = bootstrap.group().next();
+        this.winner = executor.newPromise();
+    }
+
+    /**
+     * Starts racing.
+     * 
+     * @return a Future for the winning connection, which fails with the cause
+     *         of the last failure if no attempt succeeds
+     */
+    Future<Channel> start() {
+        attemptNext();
+        return winner;
+    }
+
+    /**
+     * <p>
+     * Orders the given addresses so that IPv6 and IPv4 addresses alternate,
+     * starting with the family of the first one, and otherwise keeping the
+     * order of each family. If one family has more addresses than the other,
+     * its extra addresses go at the end.
+     * </p>
+     * 
+     * <p>
+     * That way, a network that's broken for one family only costs us one
+     * connection attempt delay.
+     * </p>
+     * 
+     * @param addresses
+     * @return
+     */
+    static List<InetSocketAddress> interleave(
+            List<InetSocketAddress> addresses) {
+        LinkedList<InetSocketAddress> ipv6 = new LinkedList<InetSocketAddress>();
+        LinkedList<InetSocketAddress> ipv4 = new LinkedList<InetSocketAddress>();
+        for (InetSocketAddress address : addresses) {
+            if (address.getAddress() instanceof Inet6Address) {
+                ipv6.add(address);
+            } else {
+                ipv4.add(address);
+            }
+        }
+        boolean ipv6First = !addresses.isEmpty()
+                && addresses.get(0).getAddress() instanceof Inet6Address;
+        LinkedList<InetSocketAddress> first = ipv6First ? ipv6 : ipv4;
+        LinkedList<InetSocketAddress> second = ipv6First ? ipv4 : ipv6;
+        List<InetSocketAddress> interleaved = new ArrayList<InetSocketAddress>(
+                addresses.size());
+        while (!first.isEmpty() || !second.isEmpty()) {
+            if (!first.isEmpty()) {
+                interleaved.add(first.removeFirst());
+            }
+            if (!second.isEmpty()) {
+                interleaved.add(second.removeFirst());
+            }
+        }
+        return interleaved;
+    }
+
+    private synchronized void attemptNext() {
+        if (timer != null) {
+            timer.cancel(false);
+            timer = null;
+        }
+        if (decided || nextAddress == addresses.size()) {
+            return;
+        }
+        final InetSocketAddress address = addresses.get(nextAddress++);
+        LOG.debug("Attempting to connect to {}", address);
+        if (nextAddress < addresses.size()) {
+            timer = executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    attemptNext();
+                }
+            }, attemptDelayInMillis, TimeUnit.MILLISECONDS);
+        }
+        ChannelFuture connectFuture = bootstrap.connect(address);
+        attempts.add(connectFuture.channel());
+        connectFuture.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future)
+                    throws Exception {
+                attemptFinished(address, future);
+            }
+        });
+    }
+
+    private void attemptFinished(InetSocketAddress address,
+            ChannelFuture future) {
+        Channel channel = future.channel();
+        List<Channel> losers;
+        synchronized (this) {
+            attempts.remove(channel);
+            if (!future.isSuccess() && decided) {
+                // Either we cancelled it, or it had lost anyway
+                return;
+            } else if (!future.isSuccess()) {
+                LOG.debug("Unable to connect to {}: {}", address,
+                        future.cause());
+                failedAttempts++;
+                if (failedAttempts < addresses.size()) {
+                    // Don't wait for the timer
+                    attemptNext();
+                    return;
+                }
+                decided = true;
+                losers = null;
+            } else if (decided) {
+                // Lost the race by a hair
+                losers = new ArrayList<Channel>();
+                losers.add(channel);
+                channel = null;
+            } else {
+                LOG.debug("Connected to {} first", address);
+                decided = true;
+                if (timer != null) {
+                    timer.cancel(false);
+                    timer = null;
+                }
+                losers = new ArrayList<Channel>(attempts);
+                attempts.clear();
+            }
+        }
+        if (losers == null) {
+            winner.tryFailure(future.cause());
+            return;
+        }
+        for (Channel loser : losers) {
+            // Closing a connection that's still connecting cancels it
+            loser.close();
+        }
+        if (channel != null) {
+            winner.trySuccess(channel);
+        }
+    }
+}
@@ -1,13 +1,16 @@
 package org.littleshoot.proxy.impl;
 
 import static org.littleshoot.proxy.TransportProtocol.*;
+import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ChannelFactory;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.ServerChannel;
 import io.netty.channel.group.ChannelGroup;
@@ -15,7 +18,15 @@ import io.netty.channel.group.ChannelGroupFuture;
 import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.channel.udt.nio.NioUdtProvider;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.spdy.SpdyFrameCodec;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
 import io.netty.util.concurrent.GlobalEventExecutor;
 
 import java.io.File;
@@ -26,8 +37,16 @@ import java.lang.Thread.UncaughtExceptionHandler;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.channels.spi.SelectorProvider;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -41,14 +60,20 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import javax.net.ssl.SSLContext;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.littleshoot.proxy.ActivityTracker;
+import org.littleshoot.proxy.CachingSSLContextSource;
+import org.littleshoot.proxy.AdvancedChainedProxyManager;
+import org.littleshoot.proxy.ChainedProxyListener;
 import org.littleshoot.proxy.ChainedProxyManager;
+import org.littleshoot.proxy.ClientProtocol;
 import org.littleshoot.proxy.HttpFilter;
 import org.littleshoot.proxy.HttpProxyServer;
 import org.littleshoot.proxy.HttpRequestFilter;
 import org.littleshoot.proxy.HttpResponseFilters;
 import org.littleshoot.proxy.ProxyAuthenticator;
 import org.littleshoot.proxy.SSLContextSource;
+import org.littleshoot.proxy.SslHandshakeStats;
 import org.littleshoot.proxy.TransportProtocol;
 import org.littleshoot.proxy.UnknownTransportProtocolError;
 import org.slf4j.Logger;
@@ -88,19 +113,48 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
             "HTTP-Proxy-Server", GlobalEventExecutor.INSTANCE);
 
     private final String name;
-    private final TransportProtocol transportProtocol;
-    private final int port;
-    private final SSLContextSource sslContextSource;
+
+    /**
+     * The ports that we listen on. The first is the main one, on which
+     * clients talk HTTP to us.
+     */
+    private final List<Listener> listeners = new ArrayList<Listener>();
+    private final CachingSSLContextSource sslContextSource;
+
+    /**
+     * The {@link CachingSSLContextSource}s of all of our listeners, by the
+     * {@link SSLContextSource} that each caches.
+     */
+    private final Map<SSLContextSource, CachingSSLContextSource> cachedSslContextSources = new IdentityHashMap<SSLContextSource, CachingSSLContextSource>();
     private final ProxyAuthenticator proxyAuthenticator;
     private final ChainedProxyManager chainProxyManager;
+    private final CachingSSLContextSource chainedProxySslContextSource;
     private final HttpRequestFilter requestFilter;
     private final HttpResponseFilters responseFilters;
     private final boolean useDnsSec;
     private final boolean transparent;
     private volatile int idleConnectionTimeout;
-    private final ServerBootstrap serverBootstrap;
-    private final EventLoopGroup clientToProxyBossPool;
-    private final EventLoopGroup clientToProxyWorkerPool;
+    private final ResponseCache responseCache;
+    private final Prefetcher prefetcher;
+    private final long segmentedFetchThresholdInBytes;
+    private final int segmentedFetchParallelism;
+    private final SslEngineFactory sslEngineFactory;
+    private final SslSessionCache sslSessionCache;
+    private final SslHandshakeExecutor sslHandshakeExecutor;
+    private final MitmManager mitmManager;
+    private final SpdyUpstreamPool spdyUpstreamPool;
+    private final WarmConnectionPool warmConnectionPool;
+    private final int connectionAttemptDelayInMillis;
+    private final int upgradedConnectionIdleTimeout;
+    private final UdtOptions udtOptions;
+    private final boolean acceptCompressedLinks;
+
+    /**
+     * These EventLoopGroups accept and serve connections from clients. All
+     * listeners with the same TransportProtocol share them.
+     */
+    private final Map<TransportProtocol, EventLoopGroup> clientToProxyBossPools = new ConcurrentHashMap<TransportProtocol, EventLoopGroup>();
+    private final Map<TransportProtocol, EventLoopGroup> clientToProxyWorkerPools = new ConcurrentHashMap<TransportProtocol, EventLoopGroup>();
 
     /**
      * These EventLoopGroups are used for making outgoing connections to
@@ -174,7 +228,9 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
      * @param sslContextSource
      *            (optional) if specified, this Proxy will encrypt inbound
      *            connections from clients using an {@link SSLContext} obtained
-     *            from this {@link SSLContextSource}.
+     *            from this {@link SSLContextSource}. The {@link SSLContext} is
+     *            only obtained once, until {@link #reloadSSLContexts()} is
+     *            called.
      * @param proxyAuthenticator
      *            (optional) If specified, requests to the proxy will be
      *            authenticated using HTTP BASIC authentication per the provided
@@ -196,6 +252,72 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
      *            touching requests and responses).
      * @param idleConnectionTimeout
      *            The timeout (in seconds) for auto-closing idle connections.
+     * @param maxCacheSizeInBytes
+     *            If greater than 0, responses will be cached in memory up to
+     *            this many bytes.
+     * @param cacheDirectory
+     *            (optional) if specified along with a cache size, the cache
+     *            will be saved to this directory when the proxy stops and
+     *            reloaded from it when the proxy starts.
+     * @param segmentedFetchThresholdInBytes
+     *            If greater than 0, GET requests are sent to the server asking
+     *            for only this many bytes, and any remainder is fetched in
+     *            parallel segments.
+     * @param segmentedFetchParallelism
+     *            The maximum number of segments to fetch at once.
+     * @param prefetchConcurrency
+     *            If greater than 0 and caching is enabled, subresources of
+     *            HTML pages are prefetched into the cache, this many at a time.
+     * @param prefetchBudgetInBytes
+     *            The maximum number of bytes to prefetch for any one page.
+     * @param sslSessionCacheSize
+     *            The maximum number of SSL sessions to keep for resuming
+     *            encrypted connections to servers and chained proxies.
+     * @param sslSessionTimeoutInSeconds
+     *            How long such SSL sessions may be resumed for.
+     * @param inboundSslSessionCacheSize
+     *            The maximum number of SSL sessions to keep for clients to
+     *            resume encrypted connections to us.
+     * @param inboundSslSessionTimeoutInSeconds
+     *            How long clients may resume such SSL sessions for.
+     * @param sslHandshakeThreads
+     *            The number of threads on which to run the expensive parts of
+     *            SSL handshakes. If 0, they're run on the event loops.
+     * @param mitmCaKey
+     *            (optional) if specified, CONNECT tunnels are intercepted,
+     *            presenting clients with certificates signed with this key
+     * @param mitmCaCertificate
+     *            The certificate that goes with mitmCaKey.
+     * @param mitmCertificateCacheSize
+     *            The number of hosts for which to keep generated certificates.
+     * @param mitmKeyPoolSize
+     *            The number of key pairs for such certificates to generate
+     *            ahead of time.
+     * @param spdyOrigins
+     *            The host:ports of servers to which we send requests over
+     *            SPDY.
+     * @param spdyConnectionsPerOrigin
+     *            The maximum number of SPDY connections to each of those, and
+     *            to a chained proxy's SPDY listener.
+     * @param chainedProxyWarmConnections
+     *            The most connections to keep open ahead of time to each
+     *            chained proxy for CONNECTs, or 0 for none.
+     * @param connectionAttemptDelayInMillis
+     *            How long to wait for a connection to one of a server's
+     *            addresses before also trying the next one.
+     * @param upgradedConnectionIdleTimeout
+     *            The timeout (in seconds) for closing connections that have
+     *            been upgraded to another protocol (e.g. WebSocket) once
+     *            nothing has gone either way for that long, or 0 for none.
+     * @param additionalListeners
+     *            Other ports to listen on besides the main one, each with its
+     *            own transport, encryption and protocol.
+     * @param udtOptions
+     *            The socket options for UDT connections, both from clients
+     *            and to chained proxies.
+     * @param acceptCompressedLinks
+     *            Whether clients that are themselves LittleProxies chained to
+     *            us may compress their connections to us.
      */
     private DefaultHttpProxyServer(String name,
             TransportProtocol transportProtocol,
@@ -208,54 +330,155 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
             boolean useDnsSec,
             boolean acceptAllSSLCertificates,
             boolean transparent,
-            int idleConnectionTimeout) {
+            int idleConnectionTimeout,
+            long maxCacheSizeInBytes,
+            File cacheDirectory,
+            long segmentedFetchThresholdInBytes,
+            int segmentedFetchParallelism,
+            int prefetchConcurrency,
+            long prefetchBudgetInBytes,
+            int sslSessionCacheSize,
+            int sslSessionTimeoutInSeconds,
+            int inboundSslSessionCacheSize,
+            int inboundSslSessionTimeoutInSeconds,
+            int sslHandshakeThreads,
+            PrivateKey mitmCaKey,
+            X509Certificate mitmCaCertificate,
+            int mitmCertificateCacheSize,
+            int mitmKeyPoolSize,
+            Collection<String> spdyOrigins,
+            int spdyConnectionsPerOrigin,
+            int chainedProxyWarmConnections,
+            int connectionAttemptDelayInMillis,
+            int upgradedConnectionIdleTimeout,
+            Collection<Listener> additionalListeners,
+            UdtOptions udtOptions,
+            boolean acceptCompressedLinks) {
         this.name = name;
-        this.transportProtocol = transportProtocol;
-        this.port = port;
-        this.sslContextSource = sslContextSource;
+        this.sslEngineFactory = new SslEngineFactory();
+        this.sslContextSource = CachingSSLContextSource
+                .cache(sslContextSource);
+        this.listeners.add(new Listener(port, transportProtocol,
+                this.sslContextSource, ClientProtocol.HTTP,
+                new SslSessionCache(sslEngineFactory,
+                        inboundSslSessionCacheSize,
+                        inboundSslSessionTimeoutInSeconds)));
+        // Listeners with the same source share its SSLContext, and with that
+        // its sessions
+        if (sslContextSource != null) {
+            cachedSslContextSources.put(sslContextSource,
+                    this.sslContextSource);
+        }
+        for (Listener listener : additionalListeners) {
+            CachingSSLContextSource cached = cachedSslContextSources
+                    .get(listener.sslContextSource);
+            if (cached == null && listener.sslContextSource != null) {
+                cached = CachingSSLContextSource
+                        .cache(listener.sslContextSource);
+                cachedSslContextSources.put(listener.sslContextSource, cached);
+            }
+            this.listeners.add(new Listener(listener.port,
+                    listener.transportProtocol, cached,
+                    listener.clientProtocol, new SslSessionCache(
+                            sslEngineFactory, inboundSslSessionCacheSize,
+                            inboundSslSessionTimeoutInSeconds)));
+        }
         this.proxyAuthenticator = proxyAuthenticator;
         this.chainProxyManager = chainProxyManager;
+        this.chainedProxySslContextSource = CachingSSLContextSource
+                .cache(chainProxyManager);
         this.requestFilter = requestFilter;
         this.responseFilters = responseFilters;
         this.useDnsSec = useDnsSec;
         this.transparent = transparent;
         this.idleConnectionTimeout = idleConnectionTimeout;
-
-        SelectorProvider selectorProvider = null;
-        switch (transportProtocol) {
-        case TCP:
-            selectorProvider = SelectorProvider.provider();
-            break;
-        case UDT:
-            selectorProvider = NioUdtProvider.BYTE_PROVIDER;
-            break;
-        default:
-            throw new UnknownTransportProtocolError(transportProtocol);
+        if (maxCacheSizeInBytes > 0) {
+            this.responseCache = new ResponseCache(maxCacheSizeInBytes,
+                    cacheDirectory);
+        } else {
+            this.responseCache = null;
+        }
+        if (responseCache != null && prefetchConcurrency > 0) {
+            this.prefetcher = new Prefetcher(this, responseCache,
+                    prefetchConcurrency, prefetchBudgetInBytes);
+        } else {
+            this.prefetcher = null;
+        }
+        this.segmentedFetchThresholdInBytes = segmentedFetchThresholdInBytes;
+        this.segmentedFetchParallelism = segmentedFetchParallelism;
+        this.sslSessionCache = new SslSessionCache(sslEngineFactory,
+                sslSessionCacheSize, sslSessionTimeoutInSeconds);
+        this.sslHandshakeExecutor = new SslHandshakeExecutor(name,
+                sslHandshakeThreads);
+        if (mitmCaKey != null) {
+            try {
+                this.mitmManager = new MitmManager(name, mitmCaKey,
+                        mitmCaCertificate, mitmCertificateCacheSize,
+                        mitmKeyPoolSize, acceptAllSSLCertificates);
+            } catch (GeneralSecurityException gse) {
+                throw new RuntimeException(
+                        "Unable to intercept CONNECT tunnels", gse);
+            }
+        } else {
+            this.mitmManager = null;
         }
 
-        this.clientToProxyBossPool = new NioEventLoopGroup(
-                MAXIMUM_INCOMING_THREADS,
-                CLIENT_TO_PROXY_THREAD_FACTORY, selectorProvider);
-        this.clientToProxyWorkerPool = new NioEventLoopGroup(
-                MAXIMUM_INCOMING_THREADS,
-                CLIENT_TO_PROXY_THREAD_FACTORY, selectorProvider);
+        for (Listener listener : listeners) {
+            TransportProtocol listenerTransportProtocol = listener.transportProtocol;
+            if (!clientToProxyBossPools
+                    .containsKey(listenerTransportProtocol)) {
+                SelectorProvider selectorProvider = selectorProviderFor(listenerTransportProtocol);
+                this.clientToProxyBossPools.put(listenerTransportProtocol,
+                        new NioEventLoopGroup(MAXIMUM_INCOMING_THREADS,
+                                CLIENT_TO_PROXY_THREAD_FACTORY,
+                                selectorProvider));
+                this.clientToProxyWorkerPools.put(listenerTransportProtocol,
+                        new NioEventLoopGroup(MAXIMUM_INCOMING_THREADS,
+                                CLIENT_TO_PROXY_THREAD_FACTORY,
+                                selectorProvider));
+            }
+        }
         this.proxyToServerWorkerPools.put(TCP, new NioEventLoopGroup(
                 MAXIMUM_OUTGOING_THREADS,
-                PROXY_TO_SERVER_THREAD_FACTORY, SelectorProvider.provider()));
+                PROXY_TO_SERVER_THREAD_FACTORY, selectorProviderFor(TCP)));
         this.proxyToServerWorkerPools.put(UDT, new NioEventLoopGroup(
                 MAXIMUM_OUTGOING_THREADS,
-                PROXY_TO_SERVER_THREAD_FACTORY, NioUdtProvider.BYTE_PROVIDER));
+                PROXY_TO_SERVER_THREAD_FACTORY, selectorProviderFor(UDT)));
+        if (!spdyOrigins.isEmpty() || chainProxyManager != null) {
+            // The chained proxy might want requests multiplexed over SPDY
+            this.spdyUpstreamPool = new SpdyUpstreamPool(this, spdyOrigins,
+                    spdyConnectionsPerOrigin, idleConnectionTimeout);
+        } else {
+            this.spdyUpstreamPool = null;
+        }
+        if (chainProxyManager != null && chainedProxyWarmConnections > 0) {
+            this.warmConnectionPool = new WarmConnectionPool(this,
+                    chainedProxyWarmConnections, idleConnectionTimeout);
+        } else {
+            this.warmConnectionPool = null;
+        }
+        this.connectionAttemptDelayInMillis = connectionAttemptDelayInMillis;
+        this.upgradedConnectionIdleTimeout = upgradedConnectionIdleTimeout;
+        this.udtOptions = udtOptions;
+        this.acceptCompressedLinks = acceptCompressedLinks;
 
         Thread.setDefaultUncaughtExceptionHandler(new UncaughtExceptionHandler() {
             public void uncaughtException(final Thread t, final Throwable e) {
                 LOG.error("Uncaught throwable", e);
             }
         });
+    }
 
-        // Use our thread names so users know there are LittleProxy threads.
-        this.serverBootstrap = new ServerBootstrap().group(
-                clientToProxyBossPool,
-                clientToProxyWorkerPool);
+    private static SelectorProvider selectorProviderFor(
+            TransportProtocol transportProtocol) {
+        switch (transportProtocol) {
+        case TCP:
+            return SelectorProvider.provider();
+        case UDT:
+            return NioUdtProvider.BYTE_PROVIDER;
+        default:
+            throw new UnknownTransportProtocolError(transportProtocol);
+        }
     }
 
     public boolean isUseDnsSec() {
@@ -274,31 +497,71 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
         this.idleConnectionTimeout = idleConnectionTimeout;
     }
 
+    public int getUpgradedConnectionIdleTimeout() {
+        return upgradedConnectionIdleTimeout;
+    }
+
     @Override
     public HttpProxyServer addActivityTracker(ActivityTracker activityTracker) {
         this.activityTrackers.add(activityTracker);
         return this;
     }
 
+    /**
+     * Gets fresh {@link SSLContext}s from the server's
+     * {@link SSLContextSource} and {@link ChainedProxyManager}, for example
+     * after certificates have been rotated. Until this is called, the server
+     * keeps using the ones that it got the first time round. Connections that
+     * are already open are unaffected.
+     */
+    public void reloadSSLContexts() {
+        for (CachingSSLContextSource source : new HashSet<CachingSSLContextSource>(
+                cachedSslContextSources.values())) {
+            LOG.info("Reloading SSLContext for client connections");
+            source.reload();
+        }
+        if (chainedProxySslContextSource != null) {
+            LOG.info("Reloading SSLContext for chained proxy connections");
+            chainedProxySslContextSource.reload();
+        }
+    }
+
     private HttpProxyServer start(final boolean localOnly,
             final boolean anyAddress) {
-        LOG.info("Starting proxy on port: " + this.port);
+        LOG.info("Starting proxy on port: " + listeners.get(0).port);
         this.stopped.set(false);
-        ChannelInitializer<Channel> initializer = new ChannelInitializer<Channel>() {
-            protected void initChannel(Channel ch) throws Exception {
-                SSLContext sslContext = null;
-                if (sslContextSource != null) {
-                    sslContext = sslContextSource.getSSLContext();
-                }
-                new ClientToProxyConnection(
-                        DefaultHttpProxyServer.this,
-                        sslContext,
-                        ch.pipeline());
-            };
-        };
-        switch (transportProtocol) {
+        if (responseCache != null) {
+            responseCache.restoreSnapshot();
+        }
+        for (Listener listener : listeners) {
+            startListener(listener,
+                    addressFor(listener.port, localOnly, anyAddress));
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                stop();
+            }
+        }));
+
+        return this;
+    }
+
+    /**
+     * Starts listening for clients as described by the given {@link Listener}.
+     * 
+     * @param listener
+     * @param isa
+     */
+    private void startListener(final Listener listener, InetSocketAddress isa) {
+        LOG.info("Listening for {} clients with {} transport on port: {}",
+                listener.clientProtocol, listener.transportProtocol,
+                listener.port);
+        ServerBootstrap serverBootstrap = new ServerBootstrap().group(
+                clientToProxyBossPools.get(listener.transportProtocol),
+                clientToProxyWorkerPools.get(listener.transportProtocol));
+        switch (listener.transportProtocol) {
         case TCP:
-            LOG.info("Proxy listening with TCP transport");
             serverBootstrap.channelFactory(new ChannelFactory<ServerChannel>() {
                 @Override
                 public ServerChannel newChannel() {
@@ -307,48 +570,116 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
             });
             break;
         case UDT:
-            LOG.info("Proxy listening with UDT transport");
             serverBootstrap.channelFactory(NioUdtProvider.BYTE_ACCEPTOR)
-                    .option(ChannelOption.SO_BACKLOG, 10)
-                    .option(ChannelOption.SO_REUSEADDR, true);
+                    .option(ChannelOption.SO_BACKLOG, udtOptions.getBacklog())
+                    .option(ChannelOption.SO_REUSEADDR, true)
+                    .handler(new ChannelInitializer<Channel>() {
+                        protected void initChannel(Channel ch)
+                                throws Exception {
+                            // Accepted connections inherit these
+                            udtOptions.apply(ch);
+                        };
+                    });
             break;
         default:
-            throw new UnknownTransportProtocolError(transportProtocol);
-        }
-        serverBootstrap.childHandler(initializer);
-
-        // Binding only to localhost can significantly improve the security of
-        // the proxy.
-        InetSocketAddress isa;
-        if (localOnly) {
-            isa = new InetSocketAddress("127.0.0.1", port);
-        } else if (anyAddress) {
-            isa = new InetSocketAddress(port);
-        } else {
-            try {
-                isa = new InetSocketAddress(NetworkUtils.getLocalHost(), port);
-            } catch (final UnknownHostException e) {
-                LOG.error("Could not get local host?", e);
-                isa = new InetSocketAddress(port);
-            }
+            throw new UnknownTransportProtocolError(listener.transportProtocol);
         }
+        serverBootstrap.childHandler(new ChannelInitializer<Channel>() {
+            protected void initChannel(Channel ch) throws Exception {
+                SSLContext sslContext = null;
+                if (listener.sslContextSource != null) {
+                    sslContext = listener.sslContextSource.getSSLContext();
+                }
+                switch (listener.clientProtocol) {
+                case HTTP:
+                    new ClientToProxyConnection(
+                            DefaultHttpProxyServer.this,
+                            sslContext,
+                            listener.inboundSslSessionCache,
+                            ch.pipeline());
+                    break;
+                case SPDY:
+                    initSpdyChannel(ch, sslContext,
+                            listener.inboundSslSessionCache);
+                    break;
+                case SOCKS:
+                    new ClientToProxyConnection(
+                            DefaultHttpProxyServer.this,
+                            sslContext,
+                            listener.inboundSslSessionCache,
+                            ch.pipeline(), true);
+                    break;
+                }
+            };
+        });
 
         serverBootstrap.bind(isa).addListener(new ChannelFutureListener() {
-
             @Override
             public void operationComplete(ChannelFuture future)
                     throws Exception {
                 allChannels.add(future.channel());
             }
         });
+    }
 
-        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
-            public void run() {
-                stop();
-            }
-        }));
+    /**
+     * Sets up a connection from a client that talks SPDY to us, which lets it
+     * send many requests at once over a single connection (see
+     * {@link SpdyClientSession}). SPDY is spoken from the start, or from the
+     * start of the SSL session if the listener has an {@link SSLContextSource},
+     * there's no negotiation.
+     * 
+     * @param ch
+     * @param sslContext
+     * @param inboundSslSessionCache
+     */
+    private void initSpdyChannel(Channel ch, SSLContext sslContext,
+            final SslSessionCache inboundSslSessionCache) {
+        registerChannel(ch);
+        ChannelPipeline pipeline = ch.pipeline();
+        pipeline.addLast("spdyCodec", new SpdyFrameCodec(
+                SpdyUpstreamSession.SPDY_VERSION));
+        pipeline.addLast("idle", new IdleStateHandler(0, 0,
+                getIdleConnectionTimeout()));
+        pipeline.addLast("spdySession", new SpdyClientSession(this));
+        if (sslContext != null) {
+            final long handshakeStartedAt = System.currentTimeMillis();
+            sslHandshakeExecutor.encrypt(pipeline,
+                    inboundSslSessionCache.newServerEngine(sslContext))
+                    .addListener(new GenericFutureListener<Future<Channel>>() {
+                        @Override
+                        public void operationComplete(Future<Channel> future)
+                                throws Exception {
+                            if (future.isSuccess()) {
+                                SslHandler handler = future.getNow()
+                                        .pipeline().get(SslHandler.class);
+                                inboundSslSessionCache.handshakeCompleted(
+                                        handler.engine().getSession(),
+                                        handshakeStartedAt);
+                            }
+                        }
+                    });
+        }
+    }
 
-        return this;
+    /**
+     * Binding only to localhost can significantly improve the security of the
+     * proxy.
+     */
+    private InetSocketAddress addressFor(int port, boolean localOnly,
+            boolean anyAddress) {
+        if (localOnly) {
+            return new InetSocketAddress("127.0.0.1", port);
+        } else if (anyAddress) {
+            return new InetSocketAddress(port);
+        } else {
+            try {
+                return new InetSocketAddress(NetworkUtils.getLocalHost(), port);
+            } catch (final UnknownHostException e) {
+                LOG.error("Could not get local host?", e);
+                return new InetSocketAddress(port);
+            }
+        }
     }
 
     private final AtomicBoolean stopped = new AtomicBoolean(false);
@@ -379,10 +710,17 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
             }
         }
 
+        if (spdyUpstreamPool != null) {
+            spdyUpstreamPool.stop();
+        }
+        if (warmConnectionPool != null) {
+            warmConnectionPool.stop();
+        }
+
         LOG.info("Shutting down event loops");
         List<EventLoopGroup> allEventLoopGroups = new ArrayList<EventLoopGroup>();
-        allEventLoopGroups.add(clientToProxyBossPool);
-        allEventLoopGroups.add(clientToProxyWorkerPool);
+        allEventLoopGroups.addAll(clientToProxyBossPools.values());
+        allEventLoopGroups.addAll(clientToProxyWorkerPools.values());
         allEventLoopGroups.addAll(proxyToServerWorkerPools.values());
         for (EventLoopGroup group : allEventLoopGroups) {
             group.shutdownGracefully();
@@ -396,6 +734,37 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
             }
         }
 
+        LOG.info(String.format(
+                "Resumed %1$s of %2$s SSL sessions with servers and chained proxies (%3$.1f%%)",
+                sslSessionCache.getResumedHandshakes(),
+                sslSessionCache.getResumedHandshakes()
+                        + sslSessionCache.getFullHandshakes(),
+                sslSessionCache.getResumptionRate() * 100));
+        for (Listener listener : listeners) {
+            if (listener.sslContextSource == null && mitmManager == null) {
+                continue;
+            }
+            SslSessionCache sessions = listener.inboundSslSessionCache;
+            LOG.info(String.format(
+                    "Clients on port %1$s resumed %2$s of %3$s SSL sessions (%4$.1f%%)",
+                    listener.port,
+                    sessions.getResumedHandshakes(),
+                    sessions.getResumedHandshakes()
+                            + sessions.getFullHandshakes(),
+                    sessions.getResumptionRate() * 100));
+        }
+
+        LOG.info("{}", sslHandshakeExecutor.getStats());
+        sslHandshakeExecutor.stop();
+        if (mitmManager != null) {
+            mitmManager.stop();
+        }
+
+        if (responseCache != null) {
+            LOG.info("Saving response cache");
+            responseCache.persistSnapshot();
+        }
+
         LOG.info("Done shutting down proxy");
     }
 
@@ -412,10 +781,42 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
         return chainProxyManager;
     }
 
+    /**
+     * Gets our {@link ChainedProxyManager} if it's also an
+     * {@link AdvancedChainedProxyManager}.
+     * 
+     * @return the manager, or null if it doesn't use any of those options
+     */
+    protected AdvancedChainedProxyManager getAdvancedChainProxyManager() {
+        return chainProxyManager instanceof AdvancedChainedProxyManager ? (AdvancedChainedProxyManager) chainProxyManager
+                : null;
+    }
+
+    /**
+     * Gets our {@link ChainedProxyManager} if it's also a
+     * {@link ChainedProxyListener}.
+     * 
+     * @return the listener, or null if the manager doesn't listen
+     */
+    protected ChainedProxyListener getChainedProxyListener() {
+        return chainProxyManager instanceof ChainedProxyListener ? (ChainedProxyListener) chainProxyManager
+                : null;
+    }
+
     protected SSLContextSource getSslContextSource() {
         return sslContextSource;
     }
 
+    /**
+     * Gets the {@link SSLContext} for encrypting connections to chained
+     * proxies, as obtained from the {@link ChainedProxyManager}.
+     * 
+     * @return
+     */
+    protected SSLContext getChainedProxySSLContext() {
+        return chainedProxySslContextSource.getSSLContext();
+    }
+
     protected ProxyAuthenticator getProxyAuthenticator() {
         return proxyAuthenticator;
     }
@@ -432,11 +833,194 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
         return activityTrackers;
     }
 
+    /**
+     * Gets the cache used for responses, if caching is enabled.
+     * 
+     * @return the cache, or null if caching is disabled
+     */
+    protected ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * Gets the prefetcher for subresources of HTML pages, if prefetching is
+     * enabled.
+     * 
+     * @return the prefetcher, or null if prefetching is disabled
+     */
+    protected Prefetcher getPrefetcher() {
+        return prefetcher;
+    }
+
+    /**
+     * Gets the factory through which all of our {@link SSLEngine}s are
+     * created.
+     * 
+     * @return
+     */
+    protected SslEngineFactory getSslEngineFactory() {
+        return sslEngineFactory;
+    }
+
+    /**
+     * Gets the executor that adds SSL to our connections and runs their
+     * handshakes.
+     * 
+     * @return
+     */
+    protected SslHandshakeExecutor getSslHandshakeExecutor() {
+        return sslHandshakeExecutor;
+    }
+
+    /**
+     * Gets the statistics about the SSL handshakes with our clients, the
+     * servers and chained proxies, such as how long they take and how many of
+     * their delegated tasks are waiting for one of the SSL handshake threads
+     * (see {@link DefaultHttpProxyServerBootstrap#withSslHandshakeThreads(int)}).
+     * 
+     * @return a snapshot of the statistics as they are now
+     */
+    public SslHandshakeStats getSslHandshakeStats() {
+        return sslHandshakeExecutor.getStats();
+    }
+
+    /**
+     * Gets the fraction of our SSL handshakes with servers and chained
+     * proxies that resumed an earlier session instead of doing a full
+     * handshake (see
+     * {@link DefaultHttpProxyServerBootstrap#withSslSessionCacheSize(int)}).
+     * 
+     * @return a number between 0 and 1, or 0 if there haven't been any such
+     *         handshakes yet
+     */
+    public double getSslSessionResumptionRate() {
+        return sslSessionCache.getResumptionRate();
+    }
+
+    /**
+     * Gets the fraction of SSL handshakes with clients on the given port that
+     * resumed an earlier session instead of doing a full handshake (see
+     * {@link DefaultHttpProxyServerBootstrap#withInboundSslSessionCacheSize(int)}).
+     * 
+     * @param port
+     *            one of the ports that we listen on
+     * @return a number between 0 and 1, or 0 if there haven't been any such
+     *         handshakes yet
+     * @throws IllegalArgumentException
+     *             if we don't listen on that port
+     */
+    public double getInboundSslSessionResumptionRate(int port) {
+        for (Listener listener : listeners) {
+            if (listener.port == port) {
+                return listener.inboundSslSessionCache.getResumptionRate();
+            }
+        }
+        throw new IllegalArgumentException("Not listening on port " + port);
+    }
+
+    /**
+     * Gets the {@link MitmManager} with which we intercept CONNECT tunnels.
+     * 
+     * @return the {@link MitmManager}, or null if we're not intercepting
+     */
+    protected MitmManager getMitmManager() {
+        return mitmManager;
+    }
+
+    /**
+     * Gets the pool of SPDY connections to servers that speak SPDY.
+     * 
+     * @return the pool, or null if we don't know any such servers
+     */
+    protected SpdyUpstreamPool getSpdyUpstreamPool() {
+        return spdyUpstreamPool;
+    }
+
+    /**
+     * Gets the pool of connections to chained proxies that we open ahead of
+     * time for CONNECTs.
+     * 
+     * @return the pool, or null if we don't open any
+     */
+    protected WarmConnectionPool getWarmConnectionPool() {
+        return warmConnectionPool;
+    }
+
+    /**
+     * Gets how long to wait for a connection to one of a server's addresses
+     * before also trying the next one (see {@link ConnectionRace}).
+     * 
+     * @return
+     */
+    protected int getConnectionAttemptDelayInMillis() {
+        return connectionAttemptDelayInMillis;
+    }
+
+    /**
+     * Gets the cache of SSL sessions for connections on which we're the SSL
+     * client.
+     * 
+     * @return
+     */
+    protected SslSessionCache getSslSessionCache() {
+        return sslSessionCache;
+    }
+
+    protected long getSegmentedFetchThresholdInBytes() {
+        return segmentedFetchThresholdInBytes;
+    }
+
+    protected int getSegmentedFetchParallelism() {
+        return segmentedFetchParallelism;
+    }
+
+    protected UdtOptions getUdtOptions() {
+        return udtOptions;
+    }
+
+    /**
+     * Whether to look out for compressed connections from LittleProxies
+     * chained to us (see {@link CompressedLink}).
+     * 
+     * @return
+     */
+    protected boolean isAcceptCompressedLinks() {
+        return acceptCompressedLinks;
+    }
+
     protected EventLoopGroup getProxyToServerWorkerFor(
             TransportProtocol transportProtocol) {
         return this.proxyToServerWorkerPools.get(transportProtocol);
     }
 
+    /**
+     * Opens a plain HTTP connection straight to a server for requests that the
+     * proxy makes of its own accord, rather than on behalf of a client.
+     * 
+     * @param address
+     *            the server's address
+     * @param handler
+     *            handles the {@link HttpObject}s that the server sends back
+     * @return a future for the connection attempt
+     */
+    ChannelFuture connectDirectly(InetSocketAddress address,
+            final ChannelHandler handler) {
+        return new Bootstrap()
+                .group(getProxyToServerWorkerFor(TCP))
+                .channel(NioSocketChannel.class)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) throws Exception {
+                        ChannelPipeline pipeline = ch.pipeline();
+                        pipeline.addLast("codec", new HttpClientCodec(8192,
+                                8192 * 2, 8192 * 2));
+                        pipeline.addLast("idle", new IdleStateHandler(
+                                getIdleConnectionTimeout(), 0, 0));
+                        pipeline.addLast("handler", handler);
+                    }
+                }).connect(address);
+    }
+
     private final ThreadFactory CLIENT_TO_PROXY_THREAD_FACTORY = new ThreadFactory() {
 
         private int num = 0;
@@ -459,6 +1043,40 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
         }
     };
 
+    /**
+     * A port that we listen on, and how clients talk to us there.
+     */
+    private static class Listener {
+        private final int port;
+        private final TransportProtocol transportProtocol;
+        private final SSLContextSource sslContextSource;
+        private final ClientProtocol clientProtocol;
+
+        /**
+         * Keeps count of the SSL sessions that clients on this port resume,
+         * which can differ a lot from port to port.
+         */
+        private final SslSessionCache inboundSslSessionCache;
+
+        private Listener(int port, TransportProtocol transportProtocol,
+                SSLContextSource sslContextSource,
+                ClientProtocol clientProtocol) {
+            this(port, transportProtocol, sslContextSource, clientProtocol,
+                    null);
+        }
+
+        private Listener(int port, TransportProtocol transportProtocol,
+                SSLContextSource sslContextSource,
+                ClientProtocol clientProtocol,
+                SslSessionCache inboundSslSessionCache) {
+            this.port = port;
+            this.transportProtocol = transportProtocol;
+            this.sslContextSource = sslContextSource;
+            this.clientProtocol = clientProtocol;
+            this.inboundSslSessionCache = inboundSslSessionCache;
+        }
+    }
+
     /**
      * Utility for configuring and building an {@link HttpProxyServer}. The
      * HttpProxyServer is built using {@link #build()}. Sensible defaults are
@@ -478,6 +1096,37 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
         private boolean acceptAllSSLCertificates = false;
         private boolean transparent = false;
         private int idleConnectionTimeout = 70;
+        private long maxCacheSizeInBytes = 0;
+        private File cacheDirectory = null;
+        private long segmentedFetchThresholdInBytes = 0;
+        private int segmentedFetchParallelism = 4;
+        private int prefetchConcurrency = 0;
+        private long prefetchBudgetInBytes = 2 * 1024 * 1024;
+        private int sslSessionCacheSize = 1000;
+        private int sslSessionTimeoutInSeconds = 3600;
+        private int inboundSslSessionCacheSize = 10000;
+        private int inboundSslSessionTimeoutInSeconds = 86400;
+        private int sslHandshakeThreads = 0;
+        private PrivateKey mitmCaKey = null;
+        private X509Certificate mitmCaCertificate = null;
+        private int mitmCertificateCacheSize = 1000;
+        private int mitmKeyPoolSize = 8;
+        private Collection<String> spdyOrigins = new ArrayList<String>();
+        private int spdyConnectionsPerOrigin = 2;
+        private int chainedProxyWarmConnections = 0;
+        private int connectionAttemptDelayInMillis = 250;
+        private int spdyPort = 0;
+        private int upgradedConnectionIdleTimeout = 300;
+        private int socksPort = 0;
+        private int udtBacklog = 10;
+        private int udtSendBufferSizeInBytes = 0;
+        private int udtReceiveBufferSizeInBytes = 0;
+        private int udpSendBufferSizeInBytes = 0;
+        private int udpReceiveBufferSizeInBytes = 0;
+        private int udtFlightWindowSizeInPackets = 0;
+        private long udtMaxBandwidthInBytesPerSecond = 0;
+        private boolean acceptCompressedLinks = false;
+        private final List<Listener> additionalListeners = new ArrayList<Listener>();
 
         private DefaultHttpProxyServerBootstrap() {
         }
@@ -490,8 +1139,160 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
                             "accept_all_ssl_certificates");
             this.transparent = ProxyUtils.extractBooleanDefaultFalse(
                     props, "transparent");
+            this.acceptCompressedLinks = ProxyUtils
+                    .extractBooleanDefaultFalse(props,
+                            "accept_compressed_links");
             this.idleConnectionTimeout = ProxyUtils.extractInt(props,
                     "idle_connection_timeout");
+            this.maxCacheSizeInBytes = ProxyUtils.extractLong(props,
+                    "max_cache_size_in_bytes");
+            String cacheDirectory = props.getProperty("cache_directory");
+            if (StringUtils.isNotBlank(cacheDirectory)) {
+                this.cacheDirectory = new File(cacheDirectory.trim());
+            }
+            this.segmentedFetchThresholdInBytes = ProxyUtils.extractLong(props,
+                    "segmented_fetch_threshold_in_bytes");
+            int segmentedFetchParallelism = ProxyUtils.extractInt(props,
+                    "segmented_fetch_parallelism");
+            if (segmentedFetchParallelism > 0) {
+                this.segmentedFetchParallelism = segmentedFetchParallelism;
+            }
+            this.prefetchConcurrency = ProxyUtils.extractInt(props,
+                    "prefetch_concurrency");
+            long prefetchBudgetInBytes = ProxyUtils.extractLong(props,
+                    "prefetch_budget_in_bytes");
+            if (prefetchBudgetInBytes > 0) {
+                this.prefetchBudgetInBytes = prefetchBudgetInBytes;
+            }
+            int sslSessionCacheSize = ProxyUtils.extractInt(props,
+                    "ssl_session_cache_size");
+            if (sslSessionCacheSize >= 0) {
+                this.sslSessionCacheSize = sslSessionCacheSize;
+            }
+            int sslSessionTimeoutInSeconds = ProxyUtils.extractInt(props,
+                    "ssl_session_timeout_in_seconds");
+            if (sslSessionTimeoutInSeconds >= 0) {
+                this.sslSessionTimeoutInSeconds = sslSessionTimeoutInSeconds;
+            }
+            int inboundSslSessionCacheSize = ProxyUtils.extractInt(props,
+                    "inbound_ssl_session_cache_size");
+            if (inboundSslSessionCacheSize >= 0) {
+                this.inboundSslSessionCacheSize = inboundSslSessionCacheSize;
+            }
+            int inboundSslSessionTimeoutInSeconds = ProxyUtils.extractInt(
+                    props, "inbound_ssl_session_timeout_in_seconds");
+            if (inboundSslSessionTimeoutInSeconds >= 0) {
+                this.inboundSslSessionTimeoutInSeconds = inboundSslSessionTimeoutInSeconds;
+            }
+            int sslHandshakeThreads = ProxyUtils.extractInt(props,
+                    "ssl_handshake_threads");
+            if (sslHandshakeThreads >= 0) {
+                this.sslHandshakeThreads = sslHandshakeThreads;
+            }
+            String mitmKeyStore = props.getProperty("mitm_keystore");
+            if (StringUtils.isNotBlank(mitmKeyStore)) {
+                loadMitmCertificateAuthority(new File(mitmKeyStore.trim()),
+                        props.getProperty("mitm_keystore_password", ""),
+                        props.getProperty("mitm_keystore_alias"));
+            }
+            int mitmCertificateCacheSize = ProxyUtils.extractInt(props,
+                    "mitm_certificate_cache_size");
+            if (mitmCertificateCacheSize > 0) {
+                this.mitmCertificateCacheSize = mitmCertificateCacheSize;
+            }
+            int mitmKeyPoolSize = ProxyUtils.extractInt(props,
+                    "mitm_key_pool_size");
+            if (mitmKeyPoolSize >= 0) {
+                this.mitmKeyPoolSize = mitmKeyPoolSize;
+            }
+            String spdyOrigins = props.getProperty("spdy_origins");
+            if (StringUtils.isNotBlank(spdyOrigins)) {
+                withSpdyOrigins(StringUtils.split(spdyOrigins, ", "));
+            }
+            int spdyConnectionsPerOrigin = ProxyUtils.extractInt(props,
+                    "spdy_connections_per_origin");
+            if (spdyConnectionsPerOrigin > 0) {
+                this.spdyConnectionsPerOrigin = spdyConnectionsPerOrigin;
+            }
+            int chainedProxyWarmConnections = ProxyUtils.extractInt(props,
+                    "chained_proxy_warm_connections");
+            if (chainedProxyWarmConnections > 0) {
+                this.chainedProxyWarmConnections = chainedProxyWarmConnections;
+            }
+            int connectionAttemptDelayInMillis = ProxyUtils.extractInt(props,
+                    "connection_attempt_delay_in_millis");
+            if (connectionAttemptDelayInMillis > 0) {
+                this.connectionAttemptDelayInMillis = connectionAttemptDelayInMillis;
+            }
+            int spdyPort = ProxyUtils.extractInt(props, "spdy_port");
+            if (spdyPort > 0) {
+                this.spdyPort = spdyPort;
+            }
+            int upgradedConnectionIdleTimeout = ProxyUtils.extractInt(props,
+                    "upgraded_connection_idle_timeout");
+            if (upgradedConnectionIdleTimeout >= 0) {
+                this.upgradedConnectionIdleTimeout = upgradedConnectionIdleTimeout;
+            }
+            int socksPort = ProxyUtils.extractInt(props, "socks_port");
+            if (socksPort > 0) {
+                this.socksPort = socksPort;
+            }
+            int udtBacklog = ProxyUtils.extractInt(props, "udt_backlog");
+            if (udtBacklog > 0) {
+                this.udtBacklog = udtBacklog;
+            }
+            this.udtSendBufferSizeInBytes = ProxyUtils.extractInt(props,
+                    "udt_send_buffer_size_in_bytes");
+            this.udtReceiveBufferSizeInBytes = ProxyUtils.extractInt(props,
+                    "udt_receive_buffer_size_in_bytes");
+            this.udpSendBufferSizeInBytes = ProxyUtils.extractInt(props,
+                    "udp_send_buffer_size_in_bytes");
+            this.udpReceiveBufferSizeInBytes = ProxyUtils.extractInt(props,
+                    "udp_receive_buffer_size_in_bytes");
+            this.udtFlightWindowSizeInPackets = ProxyUtils.extractInt(props,
+                    "udt_flight_window_size_in_packets");
+            this.udtMaxBandwidthInBytesPerSecond = ProxyUtils.extractLong(
+                    props, "udt_max_bandwidth_in_bytes_per_second");
+        }
+
+        /**
+         * Loads the certificate authority for intercepting CONNECT tunnels
+         * from a key store.
+         * 
+         * @param keyStoreFile
+         * @param password
+         * @param alias
+         *            (optional) the alias of the key entry to use. If not
+         *            given, the first key entry is used.
+         */
+        private void loadMitmCertificateAuthority(File keyStoreFile,
+                String password, String alias) {
+            InputStream is = null;
+            try {
+                is = new FileInputStream(keyStoreFile);
+                KeyStore keyStore = KeyStore.getInstance(KeyStore
+                        .getDefaultType());
+                keyStore.load(is, password.toCharArray());
+                if (StringUtils.isBlank(alias)) {
+                    for (String candidate : Collections.list(keyStore
+                            .aliases())) {
+                        if (keyStore.isKeyEntry(candidate)) {
+                            alias = candidate;
+                            break;
+                        }
+                    }
+                }
+                this.mitmCaKey = (PrivateKey) keyStore.getKey(alias.trim(),
+                        password.toCharArray());
+                this.mitmCaCertificate = (X509Certificate) keyStore
+                        .getCertificate(alias.trim());
+            } catch (Exception e) {
+                throw new RuntimeException(
+                        "Unable to load certificate authority from "
+                                + keyStoreFile, e);
+            } finally {
+                IOUtils.closeQuietly(is);
+            }
         }
 
         public DefaultHttpProxyServerBootstrap withName(String name) {
@@ -563,6 +1364,508 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
             return this;
         }
 
+        /**
+         * Enables caching of responses in memory, up to the given number of
+         * bytes. Caching is disabled by default.
+         * 
+         * @param maxCacheSizeInBytes
+         * @return
+         */
+        public DefaultHttpProxyServerBootstrap withMaxCacheSizeInBytes(
+                long maxCacheSizeInBytes) {
+            this.maxCacheSizeInBytes = maxCacheSizeInBytes;
+            return this;
+        }
+
+        /**
+         * Saves the response cache to the given directory when the proxy stops,
+         * and reloads it from there when the proxy starts, so that a restarted
+         * proxy comes back up with a warm cache. Only has an effect if caching
+         * is enabled with {@link #withMaxCacheSizeInBytes(long)}.
+         * 
+         * @param cacheDirectory
+         * @return
+         */
+        public DefaultHttpProxyServerBootstrap withCacheDirectory(
+                File cacheDirectory) {
+            this.cacheDirectory = cacheDirectory;
+            return this;
+        }
+
+        /**
+         * Fetches large responses in several segments over parallel
+         * connections to the server. GET requests are sent to the server
+         * asking for only the first segmentedFetchThresholdInBytes bytes. If
+         * the server supports ranges and the response turns out to be larger
+         * than that, the rest is split into segments that are fetched in
+         * parallel and streamed to the client in order. Disabled by default.
+         * 
+         * @param segmentedFetchThresholdInBytes
+         * @return
+         */
+        public DefaultHttpProxyServerBootstrap withSegmentedFetchThresholdInBytes(
+                long segmentedFetchThresholdInBytes) {
+            this.segmentedFetchThresholdInBytes = segmentedFetchThresholdInBytes;
+            return this;
+        }
+
+        /**
+         * The maximum number of segments to fetch at once, including the
+         * leading one, when segmented fetching is enabled with
+         * {@link #withSegmentedFetchThresholdInBytes(long)}. Defaults to 4.
+         * 
+         * @param segmentedFetchParallelism
+         * @return
+         */
+        public DefaultHttpProxyServerBootstrap withSegmentedFetchParallelism(
+                int segmentedFetchParallelism) {
+            this.segmentedFetchParallelism = segmentedFetchParallelism;
+            return this;
+        }
+
+        /**
+         * Prefetches the images, scripts, stylesheets and so on of HTML pages
+         * into the cache while the pages are on their way to the client, up to
+         * the given number at a time. Only has an effect if caching is enabled
+         * with {@link #withMaxCacheSizeInBytes(long)}. Disabled by default.
+         * 
+         * @param prefetchConcurrency
+         * @return
+         */
+        public DefaultHttpProxyServerBootstrap withPrefetchConcurrency(
+                int prefetchConcurrency) {
+            this.prefetchConcurrency = prefetchConcurrency;
+            return this;
+        }
+
+        /**
+         * The maximum number of bytes to prefetch on behalf of any one page,
+         * when prefetching is enabled with
+         * {@link #withPrefetchConcurrency(int)}. Defaults to 2 MB.
+         * 
+         * @param prefetchBudgetInBytes
+         * @return
+         */
+        public DefaultHttpProxyServerBootstrap withPrefetchBudgetInBytes(
+                long prefetchBudgetInBytes) {
+            this.prefetchBudgetInBytes = prefetchBudgetInBytes;
+            return this;
+        }
+
+        /**
+         * The maximum number of SSL sessions to keep for resuming encrypted
+         * connections to servers and chained proxies, per {@link SSLContext}.
+         * 0 means no limit. Defaults to 1000.
+         * 
+         * @param sslSessionCacheSize
+         * @return
+         */
+        public DefaultHttpProxyServerBootstrap withSslSessionCacheSize(
+                int sslSessionCacheSize) {
+            this.sslSessionCacheSize = sslSessionCacheSize;
+            return this;
+        }
+
+        /**
+         * How long an SSL session with a server or chained proxy may be
+         * resumed for after it was established. 0 means no limit. Defaults to
+         * 1 hour.
+         * 
+         * @param sslSessionTimeoutInSeconds
+         * @return
+         */
+        public DefaultHttpProxyServerBootstrap withSslSessionTimeoutInSeconds(
+                int sslSessionTimeoutInSeconds) {
+            this.sslSessionTimeoutInSeconds = sslSessionTimeoutInSeconds;
+            return this;
+        }
+
+        /**
+         * The maximum number of SSL sessions to keep for clients to resume
+         * their encrypted connections to us, per {@link SSLContext}. 0 means
+         * no limit. Defaults to 10000.
+         * 
+         * @param inboundSslSessionCacheSize
+         * @return
+         */
+        public DefaultHttpProxyServerBootstrap withInboundSslSessionCacheSize(
+                int inboundSslSessionCacheSize) {
+            this.inboundSslSessionCacheSize = inboundSslSessionCacheSize;
+            return this;
+        }
+
+        /**
+         * How long a client may resume its SSL session with us for after it
+         * was established. 0 means no limit. Defaults to 24 hours, so that
+         * clients that come back now and then (like phones waking up) can
+         * skip the full handshake.
+         * 
+         * @param inboundSslSessionTimeoutInSeconds
+         * @return
+         */
+        public DefaultHttpProxyServerBootstrap withInboundSslSessionTimeoutInSeconds(
+                int inboundSslSessionTimeoutInSeconds) {
+            this.inboundSslSessionTimeoutInSeconds = inboundSslSessionTimeoutInSeconds;
+            return this;
+        }
+
+        /**
+         * The number of threads on which to run the expensive parts of SSL
+         * handshakes (the public key operations and certificate validation).
+         * With 0, the default, they're run on the event loops, where they
+         * delay the other connections on those loops.
+         * 
+         * @param sslHandshakeThreads
+         * @return
+         */
+        public DefaultHttpProxyServerBootstrap withSslHandshakeThreads(
+                int sslHandshakeThreads) {
+            this.sslHandshakeThreads = sslHandshakeThreads;
+            return this;
+        }
+
+        /**
+         * Intercepts CONNECT tunnels (man in the middle) instead of just
+         * relaying them. The proxy answers the client's TLS handshake with a
+         * certificate for the requested host that's signed by the given
+         * certificate authority, and makes its own TLS connection to the
+         * server. The requests inside the tunnel then go through the same
+         * filtering and caching as plain HTTP requests. Clients have to trust
+         * the certificate authority for this to work.
+         * 
+         * @param caKey
+         * @param caCertificate
+         * @return
+         */
+        public DefaultHttpProxyServerBootstrap withManInTheMiddle(
+                PrivateKey caKey, X509Certificate caCertificate) {
+            this.mitmCaKey = caKey;
+            this.mitmCaCertificate = caCertificate;
+            return this;
+        }
+
+        /**
+         * The number of hosts for which to keep the certificates that we
+         * generated when intercepting CONNECT tunnels. Defaults to 1000.
+         * 
+         * @param mitmCertificateCacheSize
+         * @return
+         */
+        public DefaultHttpProxyServerBootstrap withMitmCertificateCacheSize(
+                int mitmCertificateCacheSize) {
+            this.mitmCertificateCacheSize = mitmCertificateCacheSize;
+            return this;
+        }
+
+        /**
+         * The number of key pairs to generate ahead of time for new
+         * certificates, so that generating a certificate for a host that we
+         * haven't seen before doesn't hold up its first connection. Defaults
+         * to 8. With 0, key pairs are generated as they're needed.
+         * 
+         * @param mitmKeyPoolSize
+         * @return
+         */
+        public DefaultHttpProxyServerBootstrap withMitmKeyPoolSize(
+                int mitmKeyPoolSize) {
+            this.mitmKeyPoolSize = mitmKeyPoolSize;
+            return this;
+        }
+
+        /**
+         * <p>
+         * Servers (as host:port) that we know speak SPDY/3 over plain TCP.
+         * Requests to them are sent as streams over a few shared connections
+         * instead of taking up a connection each, no matter which client they
+         * come from.
+         * </p>
+         * 
+         * <p>
+         * Requests through a chained proxy, CONNECT tunnels and requests whose
+         * responses get filtered still go over HTTP/1.1.
+         * </p>
+         * 
+         * @param hostAndPorts
+         * @return
+         */
+        public DefaultHttpProxyServerBootstrap withSpdyOrigins(
+                String... hostAndPorts) {
+            this.spdyOrigins.addAll(Arrays.asList(hostAndPorts));
+            return this;
+        }
+
+        /**
+         * The maximum number of SPDY connections to open to each of the
+         * {@link #withSpdyOrigins(String...) SPDY origins}, and to a chained
+         * proxy that we multiplex requests to. Another connection is only
+         * opened once the existing ones carry as many streams as the server
+         * allows. Defaults to 2.
+         * 
+         * @param spdyConnectionsPerOrigin
+         * @return
+         */
+        public DefaultHttpProxyServerBootstrap withSpdyConnectionsPerOrigin(
+                int spdyConnectionsPerOrigin) {
+            this.spdyConnectionsPerOrigin = spdyConnectionsPerOrigin;
+            return this;
+        }
+
+        /**
+         * <p>
+         * The most connections to each chained proxy to open ahead of time,
+         * connected and past the TLS handshake if we encrypt them, so that a
+         * CONNECT through the chained proxy only has to wait for the chained
+         * proxy to answer it. How many we actually keep ready follows the rate
+         * of CONNECTs, and ones that nobody picks up are closed after the idle
+         * connection timeout.
+         * </p>
+         * 
+         * <p>
+         * Defaults to 0, which opens a new connection for each CONNECT.
+         * </p>
+         * 
+         * @param chainedProxyWarmConnections
+         * @return
+         */
+        public DefaultHttpProxyServerBootstrap withChainedProxyWarmConnections(
+                int chainedProxyWarmConnections) {
+            this.chainedProxyWarmConnections = chainedProxyWarmConnections;
+            return this;
+        }
+
+        /**
+         * <p>
+         * When a server (or chained proxy) resolves to more than one address,
+         * we race connections to them, and this is how long each connection
+         * attempt gets before we start the next one as well. We start the next
+         * one right away if an attempt fails. The first connection that's
+         * established is the one we use.
+         * </p>
+         * 
+         * <p>
+         * Defaults to 250 milliseconds, as RFC 8305 recommends.
+         * </p>
+         * 
+         * @param connectionAttemptDelayInMillis
+         * @return
+         */
+        public DefaultHttpProxyServerBootstrap withConnectionAttemptDelayInMillis(
+                int connectionAttemptDelayInMillis) {
+            this.connectionAttemptDelayInMillis = connectionAttemptDelayInMillis;
+            return this;
+        }
+
+        /**
+         * <p>
+         * Also listen on the given port for clients that talk SPDY/3 to us,
+         * which lets them send many requests at once over one connection.
+         * Each request is otherwise handled like one on the main port. If
+         * we're configured with an {@link SSLContextSource}, SPDY clients have
+         * to use SSL too.
+         * </p>
+         * 
+         * <p>
+         * Clients have to know to use SPDY on this port, as there's no
+         * protocol negotiation. CONNECT requests aren't supported over SPDY.
+         * </p>
+         * 
+         * @param spdyPort
+         * @return
+         */
+        public DefaultHttpProxyServerBootstrap withSpdyPort(int spdyPort) {
+            this.spdyPort = spdyPort;
+            return this;
+        }
+
+        /**
+         * <p>
+         * Sets how long connections that have been upgraded to another
+         * protocol, such as WebSocket, may sit idle before we close them.
+         * Such connections are meant to stay open, so this only counts once
+         * nothing has gone either way, and it defaults to 300 seconds rather
+         * than the idle timeout for HTTP connections.
+         * </p>
+         * 
+         * <p>
+         * 0 means never to close them for being idle.
+         * </p>
+         * 
+         * @param upgradedConnectionIdleTimeout
+         *            in seconds
+         * @return
+         */
+        public DefaultHttpProxyServerBootstrap withUpgradedConnectionIdleTimeout(
+                int upgradedConnectionIdleTimeout) {
+            this.upgradedConnectionIdleTimeout = upgradedConnectionIdleTimeout;
+            return this;
+        }
+
+        /**
+         * <p>
+         * Also listen on the given port for clients that talk SOCKS5 rather
+         * than HTTP to us, such as applications that have no notion of HTTP
+         * proxies. They're tunneled to where they ask to go just like clients
+         * that send us a CONNECT on the main port, including through the
+         * chained proxy, if any.
+         * </p>
+         * 
+         * <p>
+         * If we have a {@link ProxyAuthenticator}, SOCKS clients have to log in
+         * with a username and password too. Only the CONNECT command is
+         * supported, and only for IPv4 addresses and host names.
+         * </p>
+         * 
+         * @param socksPort
+         * @return
+         */
+        public DefaultHttpProxyServerBootstrap withSocksPort(int socksPort) {
+            this.socksPort = socksPort;
+            return this;
+        }
+
+        /**
+         * <p>
+         * Also listen on the given port, with the given transport and for
+         * clients that talk the given protocol. The connections from all
+         * listeners share our thread pools, caches and connections to servers.
+         * </p>
+         * 
+         * <p>
+         * The settings made with {@link #withPort(int)},
+         * {@link #withTransportProtocol(TransportProtocol)} and
+         * {@link #withSslContextSource(SSLContextSource)} are for the main
+         * listener, on which clients talk HTTP. This can be called any number
+         * of times to add others.
+         * </p>
+         * 
+         * @param port
+         * @param transportProtocol
+         * @param sslContextSource
+         *            (optional) if specified, connections from clients on this
+         *            port are encrypted with {@link SSLContext}s from this
+         *            source
+         * @param clientProtocol
+         * @return
+         */
+        public DefaultHttpProxyServerBootstrap withListener(int port,
+                TransportProtocol transportProtocol,
+                SSLContextSource sslContextSource,
+                ClientProtocol clientProtocol) {
+            this.additionalListeners.add(new Listener(port, transportProtocol,
+                    sslContextSource, clientProtocol));
+            return this;
+        }
+
+        /**
+         * <p>
+         * Sets how many UDT connections may be waiting for us to accept them
+         * at once. Defaults to 10.
+         * </p>
+         * 
+         * @param udtBacklog
+         * @return
+         */
+        public DefaultHttpProxyServerBootstrap withUdtBacklog(int udtBacklog) {
+            this.udtBacklog = udtBacklog;
+            return this;
+        }
+
+        /**
+         * <p>
+         * Sets the size of UDT's own send and receive buffers, for UDT
+         * connections from clients and to chained proxies. On links with a lot
+         * of latency, the receive buffer in particular needs to hold at least
+         * a round trip's worth of data (the bandwidth-delay product), or it
+         * caps our throughput.
+         * </p>
+         * 
+         * <p>
+         * 0 leaves the default, which is 10 MB.
+         * </p>
+         * 
+         * @param udtSendBufferSizeInBytes
+         * @param udtReceiveBufferSizeInBytes
+         * @return
+         */
+        public DefaultHttpProxyServerBootstrap withUdtBufferSizesInBytes(
+                int udtSendBufferSizeInBytes, int udtReceiveBufferSizeInBytes) {
+            this.udtSendBufferSizeInBytes = udtSendBufferSizeInBytes;
+            this.udtReceiveBufferSizeInBytes = udtReceiveBufferSizeInBytes;
+            return this;
+        }
+
+        /**
+         * <p>
+         * Sets the size of the send and receive buffers of the UDP sockets
+         * underneath UDT connections. 0 leaves the default, which is 1 MB.
+         * </p>
+         * 
+         * @param udpSendBufferSizeInBytes
+         * @param udpReceiveBufferSizeInBytes
+         * @return
+         */
+        public DefaultHttpProxyServerBootstrap withUdpBufferSizesInBytes(
+                int udpSendBufferSizeInBytes, int udpReceiveBufferSizeInBytes) {
+            this.udpSendBufferSizeInBytes = udpSendBufferSizeInBytes;
+            this.udpReceiveBufferSizeInBytes = udpReceiveBufferSizeInBytes;
+            return this;
+        }
+
+        /**
+         * <p>
+         * Sets the maximum number of packets that a UDT connection may have
+         * in flight without being acknowledged. Like the receive buffer, this
+         * needs to cover the bandwidth-delay product of the link. 0 leaves
+         * UDT's default, which is 25600 packets.
+         * </p>
+         * 
+         * <p>
+         * This is for raising the window: the UDT library we use can crash
+         * when packets are lost on connections with a much smaller one.
+         * </p>
+         * 
+         * @param udtFlightWindowSizeInPackets
+         * @return
+         */
+        public DefaultHttpProxyServerBootstrap withUdtFlightWindowSizeInPackets(
+                int udtFlightWindowSizeInPackets) {
+            this.udtFlightWindowSizeInPackets = udtFlightWindowSizeInPackets;
+            return this;
+        }
+
+        /**
+         * <p>
+         * Caps how fast each UDT connection may send, so that it leaves room
+         * for other traffic on the link. 0 leaves it uncapped.
+         * </p>
+         * 
+         * @param udtMaxBandwidthInBytesPerSecond
+         * @return
+         */
+        public DefaultHttpProxyServerBootstrap withUdtMaxBandwidthInBytesPerSecond(
+                long udtMaxBandwidthInBytesPerSecond) {
+            this.udtMaxBandwidthInBytesPerSecond = udtMaxBandwidthInBytesPerSecond;
+            return this;
+        }
+
+        /**
+         * <p>
+         * Lets LittleProxies that are chained to us compress their
+         * connections to us (see {@link AdvancedChainedProxyManager}), in
+         * which case we compress what we send back the same way. Off by
+         * default, since it costs CPU and memory to inflate what clients send
+         * us, and only makes sense on links between proxies.
+         * </p>
+         * 
+         * @param acceptCompressedLinks
+         * @return
+         */
+        public DefaultHttpProxyServerBootstrap withAcceptCompressedLinks(
+                boolean acceptCompressedLinks) {
+            this.acceptCompressedLinks = acceptCompressedLinks;
+            return this;
+        }
+
         /**
          * Starts the server.
          * 
@@ -577,12 +1880,40 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
          */
         public DefaultHttpProxyServer start(boolean localOnly,
                 boolean anyAddress) {
+            List<Listener> additionalListeners = new ArrayList<Listener>(
+                    this.additionalListeners);
+            if (spdyPort > 0) {
+                additionalListeners.add(new Listener(spdyPort, TCP,
+                        sslContextSource, ClientProtocol.SPDY));
+            }
+            if (socksPort > 0) {
+                // SOCKS clients don't encrypt their connections to us
+                additionalListeners.add(new Listener(socksPort, TCP, null,
+                        ClientProtocol.SOCKS));
+            }
             DefaultHttpProxyServer server = new DefaultHttpProxyServer(
                     name, transportProtocol, port, sslContextSource,
                     proxyAuthenticator, chainProxyManager,
                     requestFilter, responseFilters, useDnsSec,
                     acceptAllSSLCertificates, transparent,
-                    idleConnectionTimeout);
+                    idleConnectionTimeout, maxCacheSizeInBytes,
+                    cacheDirectory, segmentedFetchThresholdInBytes,
+                    segmentedFetchParallelism, prefetchConcurrency,
+                    prefetchBudgetInBytes,
+                    sslSessionCacheSize, sslSessionTimeoutInSeconds,
+                    inboundSslSessionCacheSize,
+                    inboundSslSessionTimeoutInSeconds, sslHandshakeThreads, mitmCaKey, mitmCaCertificate,
+                    mitmCertificateCacheSize, mitmKeyPoolSize, spdyOrigins,
+                    spdyConnectionsPerOrigin, chainedProxyWarmConnections,
+                    connectionAttemptDelayInMillis,
+                    upgradedConnectionIdleTimeout, additionalListeners, new UdtOptions(udtBacklog,
+                            udtSendBufferSizeInBytes,
+                            udtReceiveBufferSizeInBytes,
+                            udpSendBufferSizeInBytes,
+                            udpReceiveBufferSizeInBytes,
+                            udtFlightWindowSizeInPackets,
+                            udtMaxBandwidthInBytesPerSecond),
+                    acceptCompressedLinks);
             server.start(localOnly, anyAddress);
             return server;
         }
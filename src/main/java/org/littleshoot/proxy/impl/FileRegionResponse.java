@@ -0,0 +1,133 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.FileRegion;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedInput;
+
+import java.io.EOFException;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>
+ * A response from the {@link ResponseCache} whose body lives in a region of a
+ * file (the data file of a {@link CacheSnapshot}). The response itself only
+ * carries the status line and headers, the body has to be written separately
+ * using one of {@link #toFileRegion()} or {@link #toChunkedInput()}.
+ * </p>
+ * 
+ * <p>
+ * Over plain TCP connections, the body should be sent as a {@link FileRegion},
+ * which lets the operating system copy it straight from the page cache to the
+ * socket without it ever passing through user space. An {@link SslHandler}
+ * needs to see the bytes in order to encrypt them, so over SSL (and over UDT,
+ * which can't transfer files) the body is read in chunks instead.
+ * </p>
+ * 
+ * <p>
+ * The file is shared with the snapshot and with any other responses that are
+ * being sent from it at the same time, so it is only ever read at explicit
+ * positions and never closed by us.
+ * </p>
+ */
+class FileRegionResponse extends DefaultHttpResponse {
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final FileChannel file;
+    private final long position;
+    private final long count;
+
+    /**
+     * Construct a new {@link FileRegionResponse}.
+     * 
+     * @param version
+     * @param status
+     * @param file
+     *            the file containing the body
+     * @param position
+     *            where in the file the body starts
+     * @param count
+     *            the length of the body
+     */
+    FileRegionResponse(HttpVersion version, HttpResponseStatus status,
+            FileChannel file, long position, long count) {
+        super(version, status);
+        this.file = file;
+        this.position = position;
+        this.count = count;
+    }
+
+    long getContentLength() {
+        return count;
+    }
+
+    /**
+     * Gets the body as a {@link FileRegion}, for zero-copy transfer to a
+     * socket.
+     * 
+     * @return
+     */
+    FileRegion toFileRegion() {
+        return new DefaultFileRegion(file, position, count) {
+            @Override
+            protected void deallocate() {
+                // The file belongs to the snapshot, leave it open
+            }
+        };
+    }
+
+    /**
+     * Gets the body as a {@link ChunkedInput}, for connections that can't
+     * take a {@link FileRegion}.
+     * 
+     * @return
+     */
+    ChunkedInput<ByteBuf> toChunkedInput() {
+        return new ChunkedInput<ByteBuf>() {
+            private long offset = 0;
+
+            @Override
+            public boolean isEndOfInput() throws Exception {
+                return offset >= count;
+            }
+
+            @Override
+            public void close() throws Exception {
+                // The file belongs to the snapshot, leave it open
+            }
+
+            @Override
+            public ByteBuf readChunk(ChannelHandlerContext ctx)
+                    throws Exception {
+                if (isEndOfInput()) {
+                    return null;
+                }
+                int chunkSize = (int) Math.min(CHUNK_SIZE, count - offset);
+                ByteBuf chunk = ctx.alloc().buffer(chunkSize);
+                try {
+                    while (chunk.readableBytes() < chunkSize) {
+                        int read = file.read(
+                                chunk.nioBuffer(chunk.writerIndex(), chunkSize
+                                        - chunk.readableBytes()),
+                                position + offset + chunk.readableBytes());
+                        if (read < 0) {
+                            throw new EOFException(
+                                    "Cached body extends past end of file");
+                        }
+                        chunk.writerIndex(chunk.writerIndex() + read);
+                    }
+                    offset += chunkSize;
+                    return chunk;
+                } catch (Exception e) {
+                    chunk.release();
+                    throw e;
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,138 @@
+package org.littleshoot.proxy.impl;
+
+/**
+ * <p>
+ * A count-min sketch that estimates how often each key has been seen recently,
+ * using 4-bit counters so that it stays small even for large caches.
+ * </p>
+ * 
+ * <p>
+ * Each key maps to one counter in each of 4 rows, and its estimated frequency
+ * is the smallest of those counters. The counters are packed 16 to a long in a
+ * single table. For each row, the key's hash picks a long with that row's own
+ * seed, so a key's 4 counters usually live in 4 different longs. Within a
+ * long, the key's hash picks one of 4 groups of 4 counters, and row i uses the
+ * i-th counter of that group.
+ * </p>
+ * 
+ * <p>
+ * To keep the estimates reflecting recent history, all counters are halved
+ * once the number of increments reaches 10 times the width of the sketch.
+ * </p>
+ */
+class FrequencySketch {
+    private static final long[] SEEDS = new long[] { 0xc3a5c85c97cb3127L,
+            0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+    /**
+     * Clears the high bit of each counter after a shift.
+     */
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    /**
+     * Selects the low bit of each counter.
+     */
+    private static final long ONE_MASK = 0x1111111111111111L;
+
+    private static final int MAX_FREQUENCY = 15;
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int size = 0;
+
+    /**
+     * Construct a new {@link FrequencySketch}.
+     * 
+     * @param expectedEntries
+     *            roughly how many distinct keys the cache holds at once
+     */
+    FrequencySketch(int expectedEntries) {
+        int entries = Math.min(Math.max(16, expectedEntries), 1 << 24);
+        int length = Integer.highestOneBit(entries - 1) << 1;
+        this.table = new long[length];
+        this.tableMask = length - 1;
+        this.sampleSize = 10 * length;
+    }
+
+    /**
+     * Estimates how often the given key has been seen recently.
+     * 
+     * @param key
+     * @return the estimated frequency, between 0 and 15
+     */
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = MAX_FREQUENCY;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Records an occurrence of the given key.
+     * 
+     * @param key
+     */
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean incremented = false;
+        for (int i = 0; i < 4; i++) {
+            incremented |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (incremented && ++size == sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Increments the given counter within the given long, unless it's already
+     * at its maximum.
+     */
+    private boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long mask = 0xfL << offset;
+        if ((table[index] & mask) != mask) {
+            table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Ages all counters by halving them.
+     */
+    private void reset() {
+        int oddCounters = 0;
+        for (int i = 0; i < table.length; i++) {
+            oddCounters += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        // Halving rounds odd counters down, account for what that dropped
+        size = (size >>> 1) - (oddCounters >>> 2);
+    }
+
+    /**
+     * Picks the long holding the key's counter for the given row.
+     */
+    private int indexOf(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return ((int) h) & tableMask;
+    }
+
+    /**
+     * Mixes the bits of the hash code so that similar keys end up in different
+     * counters.
+     */
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
@@ -0,0 +1,240 @@
+package org.littleshoot.proxy.impl;
+
+import static org.littleshoot.proxy.TransportProtocol.TCP;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.littleshoot.proxy.AdvancedChainedProxyManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Races a direct connection to the server against a new connection to a
+ * chained proxy, for a request that's allowed to fall back to an unchained
+ * connection (see
+ * {@link AdvancedChainedProxyManager#getFallbackHedgeDelayInMillis(HttpRequest)}).
+ * </p>
+ * 
+ * <p>
+ * If the connection to the chained proxy hasn't been established within the
+ * hedge delay, we start connecting to the server directly as well, and if it
+ * fails before then, we connect directly right away. Whichever connection is
+ * established first gets the request, and the other one is closed. If both
+ * fail, the client gets a 502 Bad Gateway.
+ * </p>
+ * 
+ * <p>
+ * We only hedge requests without a body, so the only thing that we might have
+ * to hold on to until we know where the request goes is the empty chunk that
+ * ends it.
+ * </p>
+ */
+class HedgedConnect {
+    private static final Logger LOG = LoggerFactory
+            .getLogger(HedgedConnect.class);
+
+    private final ClientToProxyConnection clientConnection;
+    private final ProxyToServerConnection chainedConnection;
+    private final HttpRequest request;
+    private final HttpRequest originalRequest;
+    private final EventExecutor executor;
+
+    private ProxyToServerConnection directConnection;
+    private ProxyToServerConnection winner;
+    private ScheduledFuture<?> timer;
+    private boolean chainedConnectionFailed = false;
+    private boolean directConnectionFailed = false;
+
+    /**
+     * Chunks of the request that we've read before knowing which connection
+     * it goes to.
+     */
+    private final List<HttpContent> pendingChunks = new ArrayList<HttpContent>();
+
+    /**
+     * Construct a new {@link HedgedConnect}.
+     * 
+     * @param proxyServer
+     * @param clientConnection
+     * @param chainedConnection
+     *            the connection to the chained proxy
+     * @param request
+     *            the request as it's being sent to the chained proxy
+     * @param originalRequest
+     *            a copy of the original request
+     */
+    HedgedConnect(DefaultHttpProxyServer proxyServer,
+            ClientToProxyConnection clientConnection,
+            ProxyToServerConnection chainedConnection,
+            HttpRequest request,
+            HttpRequest originalRequest) {
+        this.clientConnection = clientConnection;
+        this.chainedConnection = chainedConnection;
+        this.request = request;
+        this.originalRequest = originalRequest;
+        this.executor = proxyServer.getProxyToServerWorkerFor(TCP).next();
+    }
+
+    ProxyToServerConnection getChainedConnection() {
+        return chainedConnection;
+    }
+
+    /**
+     * Starts connecting directly after the given delay, unless the connection
+     * to the chained proxy has been established or has failed by then.
+     * 
+     * @param delayInMillis
+     */
+    synchronized void start(long delayInMillis) {
+        if (winner != null || chainedConnectionFailed) {
+            return;
+        }
+        timer = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                LOG.debug(
+                        "Still connecting to chained proxy for {}, connecting directly as well",
+                        request.getUri());
+                connectDirectly();
+            }
+        }, delayInMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Called when the connection to the chained proxy or to the server has
+     * been established.
+     * 
+     * @param connection
+     * @return true if it's the first, which gets the request, or false if the
+     *         other one already has it
+     */
+    boolean connected(ProxyToServerConnection connection) {
+        ProxyToServerConnection loser;
+        synchronized (this) {
+            if (winner != null) {
+                return false;
+            }
+            LOG.debug("Won the race for {}: {}", request.getUri(),
+                    connection.getAddress());
+            winner = connection;
+            if (timer != null) {
+                timer.cancel(false);
+            }
+            if (connection == chainedConnection) {
+                loser = directConnectionFailed ? null : directConnection;
+            } else {
+                loser = chainedConnectionFailed ? null : chainedConnection;
+            }
+            if (!pendingChunks.isEmpty()) {
+                writePendingChunksTo(connection);
+            }
+        }
+        if (loser != null) {
+            // If it's still connecting without a channel yet, it will find
+            // out that it lost once it connects
+            loser.disconnect();
+        }
+        return true;
+    }
+
+    /**
+     * Called when the connection to the chained proxy or to the server has
+     * failed.
+     * 
+     * @param connection
+     * @return true if the request has nowhere left to go, in which case the
+     *         failure should be handled as usual
+     */
+    synchronized boolean failed(ProxyToServerConnection connection) {
+        if (connection == chainedConnection) {
+            chainedConnectionFailed = true;
+        } else {
+            directConnectionFailed = true;
+        }
+        if (winner != null) {
+            // It had lost anyway
+            return false;
+        }
+        if (directConnection == null && !directConnectionFailed) {
+            // Don't wait for the timer
+            if (timer != null) {
+                timer.cancel(false);
+            }
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    connectDirectly();
+                }
+            });
+            return false;
+        }
+        return chainedConnectionFailed && directConnectionFailed;
+    }
+
+    /**
+     * Passes on a chunk of the request to whichever connection gets it,
+     * holding on to it if we don't know that yet.
+     * 
+     * @param chunk
+     */
+    void write(HttpContent chunk) {
+        ProxyToServerConnection connection;
+        synchronized (this) {
+            if (winner == null) {
+                pendingChunks.add(chunk);
+                return;
+            }
+            connection = winner;
+        }
+        connection.write(chunk);
+    }
+
+    private void connectDirectly() {
+        ProxyToServerConnection connection;
+        synchronized (this) {
+            if (winner != null || directConnection != null
+                    || directConnectionFailed) {
+                return;
+            }
+            try {
+                directConnection = clientConnection.connectDirectlyFor(this,
+                        request);
+            } catch (UnknownHostException uhe) {
+                LOG.info("Bad Host {}", request.getUri());
+                directConnectionFailed = true;
+                if (chainedConnectionFailed) {
+                    clientConnection.writeBadGateway(request);
+                }
+                return;
+            }
+            connection = directConnection;
+        }
+        connection.write(request, originalRequest);
+    }
+
+    /**
+     * The winner writes the request itself as soon as it's told that it won,
+     * on its own event loop, so we queue the chunks up behind that.
+     */
+    private void writePendingChunksTo(final ProxyToServerConnection connection) {
+        final List<HttpContent> chunks = new ArrayList<HttpContent>(
+                pendingChunks);
+        pendingChunks.clear();
+        connection.ctx.executor().execute(new Runnable() {
+            @Override
+            public void run() {
+                for (HttpContent chunk : chunks) {
+                    connection.write(chunk);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,64 @@
+package org.littleshoot.proxy.impl;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link CacheEvictionPolicy} that admits everything and evicts the least
+ * recently used entries first.
+ */
+class LruEvictionPolicy implements CacheEvictionPolicy {
+    private final long maxWeight;
+
+    /**
+     * Weights by key, least recently used first.
+     */
+    private final LinkedHashMap<String, Long> weights = new LinkedHashMap<String, Long>(
+            16, 0.75f, true);
+    private long weight = 0;
+
+    LruEvictionPolicy(long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    @Override
+    public void recordHit(String key) {
+        // Moves the key to the most recently used position
+        weights.get(key);
+    }
+
+    @Override
+    public void recordMiss(String key) {
+    }
+
+    @Override
+    public List<String> add(String key, long weight) {
+        weights.put(key, weight);
+        this.weight += weight;
+        List<String> evicted = new ArrayList<String>();
+        Iterator<Map.Entry<String, Long>> it = weights.entrySet().iterator();
+        while (this.weight > maxWeight && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            evicted.add(eldest.getKey());
+            this.weight -= eldest.getValue();
+            it.remove();
+        }
+        return evicted;
+    }
+
+    @Override
+    public void remove(String key) {
+        Long removed = weights.remove(key);
+        if (removed != null) {
+            weight -= removed;
+        }
+    }
+
+    @Override
+    public long getWeight() {
+        return weight;
+    }
+}
@@ -0,0 +1,337 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.Security;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Supplies what the proxy needs to intercept CONNECT tunnels: an
+ * {@link SSLContext} for each host that presents a certificate for that host
+ * (signed by our certificate authority) to the client, and an
+ * {@link SSLContext} for talking to the real server.
+ * </p>
+ * 
+ * <p>
+ * Issuing a certificate takes a key pair and a signature. Generating key pairs
+ * is by far the slower part, so a background thread keeps a pool of them
+ * ready. The {@link SSLContext}s for the most recently used hosts are kept in
+ * an LRU cache, which also lets clients resume their sessions with us.
+ * </p>
+ * 
+ * <p>
+ * Even with a key pair at hand, signing takes long enough to hold up every
+ * other connection on an event loop, so certificates are issued on threads of
+ * our own (see {@link #sslContextFor(String, EventExecutor)}).
+ * </p>
+ */
+class MitmManager {
+    private static final Logger LOG = LoggerFactory
+            .getLogger(MitmManager.class);
+
+    private static final String KEY_ALGORITHM = "RSA";
+    private static final int KEY_SIZE = 2048;
+    private static final char[] PASSWORD = "littleproxy".toCharArray();
+
+    private final CertificateGenerator certificateGenerator;
+    private final SSLContext serverSslContext;
+    private final boolean verifyServerHosts;
+    private final BlockingQueue<KeyPair> keyPairs;
+    private final Thread keyPairFiller;
+    private final ExecutorService certificateIssuer;
+    private final Map<String, SSLContext> sslContextsByHost;
+
+    private final AtomicLong certificatesGenerated = new AtomicLong(0);
+    private final AtomicLong keyPairsGeneratedInline = new AtomicLong(0);
+
+    /**
+     * Construct a new {@link MitmManager}.
+     * 
+     * @param name
+     *            the name of the proxy server, used for naming threads
+     * @param caKey
+     *            the private key of the certificate authority with which to
+     *            sign certificates
+     * @param caCertificate
+     *            the certificate of that certificate authority
+     * @param certificateCacheSize
+     *            how many hosts to keep {@link SSLContext}s for
+     * @param keyPoolSize
+     *            how many key pairs to generate ahead of time. If 0, they're
+     *            generated when needed.
+     * @param acceptAllSSLCertificates
+     *            if true, we don't check the certificates of the servers that
+     *            we connect to
+     * @throws GeneralSecurityException
+     */
+    MitmManager(final String name, PrivateKey caKey,
+            X509Certificate caCertificate,
+            final int certificateCacheSize, int keyPoolSize,
+            boolean acceptAllSSLCertificates) throws GeneralSecurityException {
+        this.certificateGenerator = new CertificateGenerator(caKey,
+                caCertificate);
+        this.serverSslContext = acceptAllSSLCertificates ? trustingSslContext()
+                : SSLContext.getDefault();
+        this.verifyServerHosts = !acceptAllSSLCertificates;
+        this.sslContextsByHost = new LinkedHashMap<String, SSLContext>(16,
+                0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, SSLContext> eldest) {
+                return size() > certificateCacheSize;
+            }
+        };
+
+        this.certificateIssuer = Executors.newFixedThreadPool(Runtime
+                .getRuntime().availableProcessors(), new ThreadFactory() {
+            private int num = 0;
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-MitmCertificates-" + num++);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        if (keyPoolSize > 0) {
+            this.keyPairs = new LinkedBlockingQueue<KeyPair>(keyPoolSize);
+            this.keyPairFiller = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            keyPairs.put(generateKeyPair());
+                        }
+                    } catch (InterruptedException ie) {
+                        LOG.debug("Stopped generating key pairs");
+                    } catch (GeneralSecurityException gse) {
+                        LOG.error("Unable to generate key pair", gse);
+                    }
+                }
+            }, name + "-MitmKeyPairs");
+            this.keyPairFiller.setDaemon(true);
+            this.keyPairFiller.start();
+        } else {
+            this.keyPairs = null;
+            this.keyPairFiller = null;
+        }
+    }
+
+    /**
+     * Gets an {@link SSLContext} like {@link #sslContextFor(String)}, but
+     * without blocking: if we have to issue a certificate, that's done on one
+     * of our own threads.
+     * 
+     * @param host
+     * @param executor
+     *            the executor on which to notify the listeners of the returned
+     *            future
+     * @return a future for the {@link SSLContext}
+     */
+    Future<SSLContext> sslContextFor(final String host,
+            EventExecutor executor) {
+        final Promise<SSLContext> promise = executor.newPromise();
+        synchronized (sslContextsByHost) {
+            SSLContext sslContext = sslContextsByHost.get(host);
+            if (sslContext != null) {
+                return promise.setSuccess(sslContext);
+            }
+        }
+        try {
+            certificateIssuer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        promise.setSuccess(sslContextFor(host));
+                    } catch (GeneralSecurityException gse) {
+                        promise.setFailure(gse);
+                    } catch (RuntimeException re) {
+                        promise.setFailure(re);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            promise.setFailure(ree);
+        }
+        return promise;
+    }
+
+    /**
+     * Gets an {@link SSLContext} that presents the client with a certificate
+     * for the given host, issuing one if we don't have one cached.
+     * 
+     * @param host
+     * @return
+     * @throws GeneralSecurityException
+     */
+    SSLContext sslContextFor(String host) throws GeneralSecurityException {
+        synchronized (sslContextsByHost) {
+            SSLContext sslContext = sslContextsByHost.get(host);
+            if (sslContext != null) {
+                return sslContext;
+            }
+        }
+
+        // Issue the certificate outside of the lock. If two connections to
+        // the same host race, we issue two certificates and keep the first.
+        SSLContext sslContext = newSslContext(host);
+        synchronized (sslContextsByHost) {
+            SSLContext existing = sslContextsByHost.get(host);
+            if (existing != null) {
+                return existing;
+            }
+            sslContextsByHost.put(host, sslContext);
+            return sslContext;
+        }
+    }
+
+    /**
+     * Gets the {@link SSLContext} for connecting to the servers whose traffic
+     * we're intercepting.
+     * 
+     * @return
+     */
+    SSLContext getServerSslContext() {
+        return serverSslContext;
+    }
+
+    /**
+     * Determines whether connections that use the given {@link SSLContext}
+     * are to servers whose traffic we're intercepting, and need to check that
+     * the server's certificate is for the host that the client asked for.
+     * Otherwise, any trusted certificate would do, and we'd vouch for it to
+     * the client under the name of whatever host it asked for.
+     * 
+     * @param sslContext
+     * @return
+     */
+    boolean shouldVerifyServerHost(SSLContext sslContext) {
+        return verifyServerHosts && sslContext == serverSslContext;
+    }
+
+    X509Certificate getCaCertificate() {
+        return certificateGenerator.getCaCertificate();
+    }
+
+    /**
+     * The number of certificates that we've issued.
+     * 
+     * @return
+     */
+    long getCertificatesGenerated() {
+        return certificatesGenerated.get();
+    }
+
+    /**
+     * The number of times that the key pair pool was empty, so that we had to
+     * generate a key pair while the client waited.
+     * 
+     * @return
+     */
+    long getKeyPairsGeneratedInline() {
+        return keyPairsGeneratedInline.get();
+    }
+
+    void stop() {
+        certificateIssuer.shutdownNow();
+        if (keyPairFiller != null) {
+            keyPairFiller.interrupt();
+        }
+    }
+
+    private SSLContext newSslContext(String host)
+            throws GeneralSecurityException {
+        KeyPair keyPair = nextKeyPair();
+        X509Certificate certificate = certificateGenerator.generate(host,
+                keyPair.getPublic());
+        certificatesGenerated.incrementAndGet();
+        LOG.debug("Issued certificate for {}", host);
+
+        try {
+            KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+            keyStore.load(null, null);
+            keyStore.setKeyEntry(host, keyPair.getPrivate(), PASSWORD,
+                    new Certificate[] { certificate, getCaCertificate() });
+            String algorithm = Security
+                    .getProperty("ssl.KeyManagerFactory.algorithm");
+            if (algorithm == null) {
+                algorithm = "SunX509";
+            }
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(algorithm);
+            kmf.init(keyStore, PASSWORD);
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(kmf.getKeyManagers(), null, null);
+            return sslContext;
+        } catch (IOException ioe) {
+            throw new GeneralSecurityException(
+                    "Unable to build key store for " + host, ioe);
+        }
+    }
+
+    private KeyPair nextKeyPair() throws GeneralSecurityException {
+        KeyPair keyPair = keyPairs != null ? keyPairs.poll() : null;
+        if (keyPair == null) {
+            keyPairsGeneratedInline.incrementAndGet();
+            keyPair = generateKeyPair();
+        }
+        return keyPair;
+    }
+
+    private static KeyPair generateKeyPair() throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator
+                .getInstance(KEY_ALGORITHM);
+        generator.initialize(KEY_SIZE);
+        return generator.generateKeyPair();
+    }
+
+    private static SSLContext trustingSslContext()
+            throws GeneralSecurityException {
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, new TrustManager[] { new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain,
+                    String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain,
+                    String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        } }, null);
+        return sslContext;
+    }
+}
@@ -0,0 +1,277 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>
+ * A response held by the {@link ResponseCache} of which we only have some
+ * parts, obtained by proxying 206 responses to Range requests.
+ * </p>
+ * 
+ * <p>
+ * The parts are kept as non-overlapping segments, sorted by offset. Adjacent or
+ * overlapping segments are merged as they arrive. Segments are only ever
+ * combined if they carry the same validator (a strong ETag or Last-Modified
+ * date), so that we never stitch together bytes from different versions of the
+ * resource.
+ * </p>
+ */
+class PartialResponse {
+    private final String key;
+    private final HttpVersion protocolVersion;
+    private final HttpHeaders headers;
+    private final Map<String, String> varyingRequestHeaders;
+    private final long storedAt;
+    private final long initialAgeMillis;
+    private final long freshUntil;
+    private final long totalLength;
+    private final String validator;
+
+    /**
+     * Segments by offset.
+     */
+    private final TreeMap<Long, ByteBuf> segments = new TreeMap<Long, ByteBuf>();
+    private long bytesHeld = 0;
+
+    /**
+     * Construct a new {@link PartialResponse}.
+     * 
+     * @param key
+     * @param protocolVersion
+     * @param headers
+     *            the end-to-end headers of the response, excluding
+     *            Content-Range and Content-Length
+     * @param varyingRequestHeaders
+     * @param storedAt
+     * @param initialAgeMillis
+     * @param freshUntil
+     * @param totalLength
+     *            the length of the complete body
+     * @param validator
+     *            the strong ETag or Last-Modified date of the response
+     */
+    PartialResponse(String key,
+            HttpVersion protocolVersion,
+            HttpHeaders headers,
+            Map<String, String> varyingRequestHeaders,
+            long storedAt,
+            long initialAgeMillis,
+            long freshUntil,
+            long totalLength,
+            String validator) {
+        this.key = key;
+        this.protocolVersion = protocolVersion;
+        this.headers = headers;
+        this.varyingRequestHeaders = varyingRequestHeaders;
+        this.storedAt = storedAt;
+        this.initialAgeMillis = initialAgeMillis;
+        this.freshUntil = freshUntil;
+        this.totalLength = totalLength;
+        this.validator = validator;
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    long getTotalLength() {
+        return totalLength;
+    }
+
+    String getValidator() {
+        return validator;
+    }
+
+    boolean isFresh(long now) {
+        return now < freshUntil;
+    }
+
+    long ageInSeconds(long now) {
+        return (initialAgeMillis + Math.max(0, now - storedAt)) / 1000;
+    }
+
+    boolean matchesVaryingHeaders(HttpHeaders requestHeaders) {
+        for (Map.Entry<String, String> varying : varyingRequestHeaders
+                .entrySet()) {
+            String value = requestHeaders.get(varying.getKey());
+            if (value == null ? varying.getValue() != null : !value
+                    .equals(varying.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The number of bytes of the body that we hold.
+     * 
+     * @return
+     */
+    synchronized long getWeight() {
+        return bytesHeld;
+    }
+
+    /**
+     * Adds a segment of the body, merging it with any segments that it
+     * overlaps or touches.
+     * 
+     * @param offset
+     *            where in the body the segment starts
+     * @param bytes
+     *            the content of the segment
+     */
+    synchronized void addSegment(long offset, ByteBuf bytes) {
+        long start = offset;
+        long end = offset + bytes.readableBytes();
+
+        // Find the existing segments that this one overlaps or touches
+        Long floor = segments.floorKey(start);
+        if (floor != null && floor + segments.get(floor).readableBytes() >= start) {
+            start = floor;
+        }
+        Map<Long, ByteBuf> touched = segments.subMap(start, true, end, true);
+        for (Map.Entry<Long, ByteBuf> segment : touched.entrySet()) {
+            end = Math.max(end, segment.getKey()
+                    + segment.getValue().readableBytes());
+        }
+
+        ByteBuf merged = Unpooled.buffer((int) (end - start));
+        merged.writerIndex((int) (end - start));
+        Iterator<Map.Entry<Long, ByteBuf>> it = touched.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, ByteBuf> segment = it.next();
+            ByteBuf existing = segment.getValue();
+            merged.setBytes((int) (segment.getKey() - start), existing,
+                    existing.readerIndex(), existing.readableBytes());
+            bytesHeld -= existing.readableBytes();
+            it.remove();
+        }
+        merged.setBytes((int) (offset - start), bytes, bytes.readerIndex(),
+                bytes.readableBytes());
+        segments.put(start, merged);
+        bytesHeld += merged.readableBytes();
+    }
+
+    /**
+     * Whether we hold the complete body.
+     * 
+     * @return
+     */
+    synchronized boolean isComplete() {
+        return bytesHeld == totalLength;
+    }
+
+    /**
+     * Finds the span of the given range that we don't hold, from the first
+     * missing byte to the last missing byte.
+     * 
+     * @param range
+     *            a resolved range
+     * @return the missing span, or null if we hold the whole range
+     */
+    synchronized ByteRange missingSpan(ByteRange range) {
+        long firstMissing = -1;
+        long lastMissing = -1;
+        long position = range.getStart();
+        while (position <= range.getEnd()) {
+            Map.Entry<Long, ByteBuf> segment = segments.floorEntry(position);
+            long segmentEnd = segment == null ? -1 : segment.getKey()
+                    + segment.getValue().readableBytes();
+            if (segmentEnd > position) {
+                // We hold this position, skip to the end of the segment
+                position = segmentEnd;
+            } else {
+                // We're missing bytes up to the next segment
+                Long next = segments.higherKey(position);
+                long gapEnd = next == null ? range.getEnd() : Math.min(
+                        next - 1, range.getEnd());
+                if (firstMissing < 0) {
+                    firstMissing = position;
+                }
+                lastMissing = gapEnd;
+                position = gapEnd + 1;
+            }
+        }
+        return firstMissing < 0 ? null : ByteRange.of(firstMissing,
+                lastMissing, totalLength);
+    }
+
+    /**
+     * Gets the given bytes of the body.
+     * 
+     * @param start
+     * @param end
+     *            the last byte (inclusive)
+     * @return a buffer sharing content with our segments, or null if we don't
+     *         hold all of those bytes
+     */
+    synchronized ByteBuf read(long start, long end) {
+        if (start > end) {
+            return Unpooled.EMPTY_BUFFER;
+        }
+        Map.Entry<Long, ByteBuf> segment = segments.floorEntry(start);
+        if (segment == null) {
+            return null;
+        }
+        ByteBuf bytes = segment.getValue();
+        long segmentEnd = segment.getKey() + bytes.readableBytes() - 1;
+        if (segmentEnd < end) {
+            return null;
+        }
+        // Segments are merged as they arrive, so one segment holds it all
+        return Unpooled.wrappedBuffer(bytes.nioBuffer(bytes.readerIndex()
+                + (int) (start - segment.getKey()), (int) (end - start + 1)));
+    }
+
+    /**
+     * Builds a 206 response for the given range, if we hold all of it.
+     * 
+     * @param range
+     *            a resolved range
+     * @return the response, or null if we're missing some of the range
+     */
+    FullHttpResponse toHttpResponse(ByteRange range) {
+        ByteBuf body = read(range.getStart(), range.getEnd());
+        if (body == null) {
+            return null;
+        }
+        FullHttpResponse response = new DefaultFullHttpResponse(
+                protocolVersion, HttpResponseStatus.PARTIAL_CONTENT, body);
+        for (Map.Entry<String, String> header : headers.entries()) {
+            response.headers().add(header.getKey(), header.getValue());
+        }
+        response.headers().set(HttpHeaders.Names.CONTENT_RANGE,
+                range.toContentRangeHeader());
+        response.headers().set(HttpHeaders.Names.CONTENT_LENGTH,
+                range.getLength());
+        return response;
+    }
+
+    /**
+     * Turns this into a complete {@link CachedResponse}, once we hold the
+     * whole body.
+     * 
+     * @return
+     */
+    synchronized CachedResponse toCachedResponse() {
+        ByteBuf body = segments.firstEntry().getValue();
+        return new CachedResponse(key, protocolVersion, HttpResponseStatus.OK,
+                headers, varyingRequestHeaders, storedAt, initialAgeMillis,
+                freshUntil, body);
+    }
+
+    @Override
+    public String toString() {
+        return key + " (" + bytesHeld + " of " + totalLength + " bytes)";
+    }
+}
@@ -0,0 +1,501 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.timeout.IdleStateEvent;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Warms the {@link ResponseCache} with the subresources (images, scripts,
+ * stylesheets and so on) of HTML pages as they pass through the proxy, so that
+ * by the time the browser gets round to asking for them, they may already be
+ * cached.
+ * </p>
+ * 
+ * <p>
+ * Pages are scanned for links incrementally as they stream through to the
+ * client (see {@link Scan}). Only subresources from the same origin as the
+ * page are prefetched, on connections of their own and only a limited number
+ * at a time. Each page has a budget for the number of bytes that may be
+ * prefetched on its behalf. Prefetching is strictly best effort: if too many
+ * prefetches are already waiting, new ones are simply dropped.
+ * </p>
+ */
+class Prefetcher {
+    private static final Logger LOG = LoggerFactory.getLogger(Prefetcher.class);
+
+    private static final int MAX_QUEUED_PREFETCHES = 256;
+
+    /**
+     * Request headers that we copy from the page's request, so that
+     * prefetched responses that vary on them match the browser's requests.
+     */
+    private static final List<String> COPIED_REQUEST_HEADERS = Arrays
+            .asList(new String[] { HttpHeaders.Names.USER_AGENT,
+                    HttpHeaders.Names.ACCEPT_LANGUAGE,
+                    HttpHeaders.Names.ACCEPT_ENCODING });
+
+    private final DefaultHttpProxyServer proxyServer;
+    private final ResponseCache responseCache;
+    private final int maxConcurrentPrefetches;
+    private final long budgetInBytesPerPage;
+
+    private final Queue<Prefetch> queuedPrefetches = new LinkedList<Prefetch>();
+    private final Set<String> keysBeingPrefetched = new HashSet<String>();
+    private int numberOfPrefetchesInFlight = 0;
+
+    private final AtomicLong prefetchesCompleted = new AtomicLong(0);
+
+    /**
+     * Construct a new {@link Prefetcher}.
+     * 
+     * @param proxyServer
+     * @param responseCache
+     *            the cache to prefetch into
+     * @param maxConcurrentPrefetches
+     *            how many prefetches may be in flight at once
+     * @param budgetInBytesPerPage
+     *            how many bytes may be prefetched on behalf of a single page
+     */
+    Prefetcher(DefaultHttpProxyServer proxyServer,
+            ResponseCache responseCache,
+            int maxConcurrentPrefetches,
+            long budgetInBytesPerPage) {
+        this.proxyServer = proxyServer;
+        this.responseCache = responseCache;
+        this.maxConcurrentPrefetches = maxConcurrentPrefetches;
+        this.budgetInBytesPerPage = budgetInBytesPerPage;
+    }
+
+    /**
+     * Starts scanning the response to the given request for subresources to
+     * prefetch.
+     * 
+     * @param serverConnection
+     *            the connection to the server that the page comes from
+     * @param request
+     *            the request for the page
+     * @return
+     */
+    Scan newScan(ProxyToServerConnection serverConnection,
+            HttpRequest request) {
+        return new Scan(serverConnection.getServerHostAndPort(),
+                serverConnection.getAddress(), request);
+    }
+
+    /**
+     * The number of prefetches that have run to completion, whether or not
+     * their responses turned out to be cacheable.
+     * 
+     * @return
+     */
+    long getPrefetchesCompleted() {
+        return prefetchesCompleted.get();
+    }
+
+    private synchronized void schedule(Prefetch prefetch) {
+        if (keysBeingPrefetched.contains(prefetch.key)
+                || responseCache.contains(prefetch.key)) {
+            return;
+        }
+        if (queuedPrefetches.size() >= MAX_QUEUED_PREFETCHES) {
+            LOG.debug("Too many queued prefetches, dropping {}", prefetch.key);
+            return;
+        }
+        keysBeingPrefetched.add(prefetch.key);
+        queuedPrefetches.add(prefetch);
+        startQueuedPrefetches();
+    }
+
+    private synchronized void finished(Prefetch prefetch) {
+        numberOfPrefetchesInFlight -= 1;
+        keysBeingPrefetched.remove(prefetch.key);
+        prefetchesCompleted.incrementAndGet();
+        startQueuedPrefetches();
+    }
+
+    private void startQueuedPrefetches() {
+        while (numberOfPrefetchesInFlight < maxConcurrentPrefetches) {
+            Prefetch prefetch = queuedPrefetches.poll();
+            if (prefetch == null) {
+                return;
+            }
+            if (prefetch.scan.remainingBudget.get() <= 0) {
+                LOG.debug("Budget used up, not prefetching {}", prefetch.key);
+                keysBeingPrefetched.remove(prefetch.key);
+                continue;
+            }
+            numberOfPrefetchesInFlight += 1;
+            prefetch.start();
+        }
+    }
+
+    /**
+     * Scans an HTML page for links to subresources as it streams through the
+     * proxy, scheduling a prefetch for each one found.
+     */
+    class Scan {
+        private final String hostAndPort;
+        private final InetSocketAddress address;
+        private final HttpRequest pageRequest;
+        private final AtomicLong remainingBudget = new AtomicLong(
+                budgetInBytesPerPage);
+        private final LinkScanner linkScanner = new LinkScanner();
+        private URI base;
+
+        private Scan(String hostAndPort, InetSocketAddress address,
+                HttpRequest pageRequest) {
+            this.hostAndPort = hostAndPort;
+            this.address = address;
+            this.pageRequest = pageRequest;
+        }
+
+        /**
+         * Checks whether the response is an HTML page that we can scan.
+         * 
+         * @param response
+         * @return false if the response isn't worth scanning, in which case
+         *         this scan should be abandoned
+         */
+        boolean start(HttpResponse response) {
+            if (!HttpResponseStatus.OK.equals(response.getStatus())) {
+                return false;
+            }
+            String contentType = response.headers().get(
+                    HttpHeaders.Names.CONTENT_TYPE);
+            if (contentType == null
+                    || !contentType.toLowerCase(Locale.US).startsWith(
+                            "text/html")) {
+                return false;
+            }
+            String contentEncoding = response.headers().get(
+                    HttpHeaders.Names.CONTENT_ENCODING);
+            if (contentEncoding != null
+                    && !HttpHeaders.Values.IDENTITY
+                            .equalsIgnoreCase(contentEncoding.trim())) {
+                // We don't inflate pages just to look for links
+                return false;
+            }
+            try {
+                base = new URI("http://" + hostAndPort
+                        + ProxyUtils.stripHost(pageRequest.getUri()));
+            } catch (Exception e) {
+                LOG.debug("Unable to parse page URI {}", pageRequest.getUri());
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Scans the next chunk of the page.
+         * 
+         * @param chunk
+         */
+        void append(HttpContent chunk) {
+            for (String link : linkScanner.scan(chunk.content())) {
+                String path = sameOriginPathFor(link);
+                if (path != null) {
+                    schedule(new Prefetch(this, path));
+                }
+            }
+        }
+
+        /**
+         * Resolves a link found on the page.
+         * 
+         * @param link
+         * @return the path and query of the link, or null if it isn't to the
+         *         same origin as the page
+         */
+        private String sameOriginPathFor(String link) {
+            URI uri;
+            try {
+                uri = base.resolve(link.trim().replace("&amp;", "&"));
+            } catch (Exception e) {
+                LOG.debug("Ignoring unparseable link {}", link);
+                return null;
+            }
+            if (!"http".equalsIgnoreCase(uri.getScheme())
+                    || uri.getRawAuthority() == null
+                    || !uri.getRawAuthority().equalsIgnoreCase(
+                            base.getRawAuthority())) {
+                return null;
+            }
+            String path = uri.getRawPath();
+            if (path == null || path.length() == 0) {
+                path = "/";
+            }
+            return uri.getRawQuery() == null ? path : path + "?"
+                    + uri.getRawQuery();
+        }
+    }
+
+    /**
+     * A background request for a single subresource, whose response goes
+     * straight into the cache.
+     */
+    private class Prefetch extends SimpleChannelInboundHandler<HttpObject> {
+        private final Scan scan;
+        private final HttpRequest request;
+        private final String key;
+        private final AtomicBoolean finished = new AtomicBoolean(false);
+        private ResponseCache.Capture capture;
+
+        private Prefetch(Scan scan, String path) {
+            this.scan = scan;
+            this.request = new DefaultHttpRequest(HttpVersion.HTTP_1_1,
+                    HttpMethod.GET, path);
+            HttpHeaders headers = request.headers();
+            headers.set(HttpHeaders.Names.HOST, scan.hostAndPort);
+            for (String name : COPIED_REQUEST_HEADERS) {
+                String value = scan.pageRequest.headers().get(name);
+                if (value != null) {
+                    headers.set(name, value);
+                }
+            }
+            // We close the connection ourselves once we're done. Asking the
+            // server to close it could get us a body delimited only by the
+            // close, which we wouldn't cache.
+            ProxyUtils.addVia(request);
+            this.key = ResponseCache.keyFor(scan.hostAndPort, request);
+        }
+
+        private void start() {
+            LOG.debug("Prefetching {}", key);
+            capture = responseCache.newCapture(key, request);
+            proxyServer.connectDirectly(scan.address, this).addListener(
+                    new ChannelFutureListener() {
+                        @Override
+                        public void operationComplete(ChannelFuture future)
+                                throws Exception {
+                            if (future.isSuccess()) {
+                                future.channel().writeAndFlush(request);
+                            } else {
+                                LOG.debug("Unable to connect to prefetch {}",
+                                        key);
+                                finish();
+                            }
+                        }
+                    });
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg)
+                throws Exception {
+            if (finished.get()) {
+                return;
+            }
+            if (msg instanceof HttpResponse) {
+                HttpResponse response = (HttpResponse) msg;
+                long contentLength = HttpHeaders.getContentLength(response, 0);
+                if (contentLength > scan.remainingBudget.get()
+                        || !capture.start(response)) {
+                    LOG.debug("Not caching prefetched {}", key);
+                    finish();
+                    ctx.close();
+                    return;
+                }
+            }
+            if (msg instanceof HttpContent) {
+                HttpContent chunk = (HttpContent) msg;
+                long remainingBudget = scan.remainingBudget.addAndGet(-chunk
+                        .content().readableBytes());
+                if (remainingBudget < 0 || !capture.append(chunk)) {
+                    LOG.debug("Prefetched {} is too large", key);
+                    finish();
+                    ctx.close();
+                } else if (msg instanceof LastHttpContent) {
+                    capture.finish();
+                    finish();
+                    ctx.close();
+                }
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx)
+                throws Exception {
+            finish();
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt)
+                throws Exception {
+            if (evt instanceof IdleStateEvent) {
+                LOG.debug("Timed out prefetching {}", key);
+                ctx.close();
+            }
+            super.userEventTriggered(ctx, evt);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause)
+                throws Exception {
+            LOG.debug("Error prefetching " + key, cause);
+            ctx.close();
+        }
+
+        private void finish() {
+            if (finished.compareAndSet(false, true)) {
+                finished(this);
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Picks out the links to subresources from HTML that arrives in pieces.
+     * </p>
+     * 
+     * <p>
+     * This is deliberately simple-minded: it looks at every tag, including any
+     * that turn up in scripts or comments, and only at the src attributes of
+     * the tags that embed things in a page, and the href attributes of
+     * stylesheets and icons. Links to other pages are never followed.
+     * </p>
+     */
+    static class LinkScanner {
+        private static final int MAX_TAG_LENGTH = 4096;
+
+        private static final Set<String> TAGS_WITH_SRC = new HashSet<String>(
+                Arrays.asList(new String[] { "img", "script", "input",
+                        "embed", "source" }));
+
+        private static final Pattern TAG_NAME = Pattern
+                .compile("^\\s*([a-zA-Z][a-zA-Z0-9]*)");
+
+        private static final Pattern ATTRIBUTE = Pattern.compile(
+                "\\s([a-zA-Z-]+)\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)'|([^\\s\"'>]+))");
+
+        private final StringBuilder tag = new StringBuilder();
+        private boolean inTag = false;
+
+        /**
+         * The quote character of the attribute value that we're in, if any.
+         */
+        private char quote = 0;
+
+        /**
+         * Scans the next piece of HTML.
+         * 
+         * @param html
+         * @return the links to subresources in any tags that end in this
+         *         piece
+         */
+        List<String> scan(ByteBuf html) {
+            List<String> links = new ArrayList<String>();
+            for (int i = html.readerIndex(); i < html.writerIndex(); i++) {
+                char c = (char) (html.getByte(i) & 0xff);
+                if (!inTag) {
+                    if (c == '<') {
+                        inTag = true;
+                        quote = 0;
+                        tag.setLength(0);
+                    }
+                } else if (c == '>' && quote == 0) {
+                    inTag = false;
+                    String link = linkIn(tag);
+                    if (link != null && link.length() > 0) {
+                        links.add(link);
+                    }
+                } else if (tag.length() < MAX_TAG_LENGTH) {
+                    if (c == quote) {
+                        quote = 0;
+                    } else if (quote == 0 && (c == '"' || c == '\'')
+                            && followsEquals()) {
+                        quote = c;
+                    }
+                    tag.append(c);
+                } else {
+                    // Too long to be a tag we're interested in
+                    inTag = false;
+                }
+            }
+            return links;
+        }
+
+        /**
+         * Whether the last non-whitespace character of the tag so far is an
+         * equals sign, meaning that a quote would start an attribute value.
+         */
+        private boolean followsEquals() {
+            for (int i = tag.length() - 1; i >= 0; i--) {
+                if (!Character.isWhitespace(tag.charAt(i))) {
+                    return tag.charAt(i) == '=';
+                }
+            }
+            return false;
+        }
+
+        private static String linkIn(CharSequence tag) {
+            Matcher name = TAG_NAME.matcher(tag);
+            if (!name.find()) {
+                return null;
+            }
+            String tagName = name.group(1).toLowerCase(Locale.US);
+            boolean isLink = "link".equals(tagName);
+            if (!isLink && !TAGS_WITH_SRC.contains(tagName)) {
+                return null;
+            }
+
+            String src = null;
+            String href = null;
+            String rel = null;
+            Matcher attribute = ATTRIBUTE.matcher(tag);
+            while (attribute.find()) {
+                String attributeName = attribute.group(1).toLowerCase(
+                        Locale.US);
+                String value = attribute.group(2) != null ? attribute
+                        .group(2) : attribute.group(3) != null ? attribute
+                        .group(3) : attribute.group(4);
+                if ("src".equals(attributeName)) {
+                    src = value;
+                } else if ("href".equals(attributeName)) {
+                    href = value;
+                } else if ("rel".equals(attributeName)) {
+                    rel = value.toLowerCase(Locale.US);
+                }
+            }
+            if (!isLink) {
+                return src;
+            }
+            if (rel != null
+                    && (rel.contains("stylesheet") || rel.contains("icon"))) {
+                return href;
+            }
+            return null;
+        }
+    }
+}
@@ -13,8 +13,8 @@ import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpObject;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponse;
-import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
 import io.netty.util.ReferenceCounted;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
@@ -257,7 +257,20 @@ abstract class ProxyConnection<I extends HttpObject> extends
      * @return a future for the asynchronous write operation
      */
     protected void writeRaw(ByteBuf buf) {
-        writeToChannel(buf);
+        if (tunneling) {
+            // The buffer is flushed along with any others that we're given
+            // from the same read, see readComplete()
+            writeToChannel(buf, false);
+        } else {
+            writeToChannel(buf);
+        }
+    }
+
+    /**
+     * Flushes whatever we've written to the connection without flushing.
+     */
+    protected void flush() {
+        channel.flush();
     }
 
     /**
@@ -269,7 +282,12 @@ abstract class ProxyConnection<I extends HttpObject> extends
      * @return
      */
     protected ChannelFuture writeToChannel(Object msg) {
-        ChannelFuture future = channel.writeAndFlush(msg);
+        return writeToChannel(msg, true);
+    }
+
+    private ChannelFuture writeToChannel(Object msg, boolean flush) {
+        ChannelFuture future = flush ? channel.writeAndFlush(msg) : channel
+                .write(msg);
         future.addListener(new ChannelFutureListener() {
             @Override
             public void operationComplete(ChannelFuture future)
@@ -327,17 +345,7 @@ abstract class ProxyConnection<I extends HttpObject> extends
 
         protected Future execute() {
             try {
-                ChannelPipeline pipeline = ctx.pipeline();
-                if (pipeline.get("encoder") != null) {
-                    pipeline.remove("encoder");
-                }
-                if (pipeline.get("decoder") != null) {
-                    pipeline.remove("decoder");
-                }
-                if (pipeline.get("idle") != null) {
-                    pipeline.remove("idle");
-                }
-                tunneling = true;
+                startTunneling(0);
                 return channel.newSucceededFuture();
             } catch (Throwable t) {
                 return channel.newFailedFuture(t);
@@ -345,6 +353,41 @@ abstract class ProxyConnection<I extends HttpObject> extends
         }
     };
 
+    /**
+     * <p>
+     * Switches this connection to shoveling raw bytes, as we do for CONNECT
+     * tunnels and once a connection has been upgraded to another protocol.
+     * The HTTP encoder, decoder and idle timer are taken out of the pipeline.
+     * </p>
+     * 
+     * <p>
+     * This must be called on the channel's event loop.
+     * </p>
+     * 
+     * @param idleTimeoutSeconds
+     *            if greater than 0, the connection is closed once nothing has
+     *            been read from or written to it for this long
+     */
+    protected void startTunneling(int idleTimeoutSeconds) {
+        // Anything left over in the decoder is passed on as we remove it, and
+        // has to be treated as raw bytes
+        tunneling = true;
+        ChannelPipeline pipeline = ctx.pipeline();
+        if (pipeline.get("encoder") != null) {
+            pipeline.remove("encoder");
+        }
+        if (pipeline.get("decoder") != null) {
+            pipeline.remove("decoder");
+        }
+        if (pipeline.get("idle") != null) {
+            pipeline.remove("idle");
+        }
+        if (idleTimeoutSeconds > 0) {
+            pipeline.addBefore(ctx.name(), "idle", new IdleStateHandler(0,
+                    0, idleTimeoutSeconds));
+        }
+    }
+
     /**
      * Encrypts traffic on this connection with SSL/TLS.
      * 
@@ -363,11 +406,28 @@ abstract class ProxyConnection<I extends HttpObject> extends
      */
     protected Future<Channel> encrypt(ChannelPipeline pipeline) {
         LOG.debug("Enabling encryption with SSLContext: {}", sslContext);
-        SSLEngine engine = sslContext.createSSLEngine();
-        engine.setUseClientMode(runsAsSSLClient);
-        SslHandler handler = new SslHandler(engine);
-        pipeline.addFirst("ssl", handler);
-        return handler.handshakeFuture();
+        return proxyServer.getSslHandshakeExecutor().encrypt(pipeline,
+                newSSLEngine());
+    }
+
+    /**
+     * Creates the {@link SSLEngine} with which to encrypt this connection.
+     * 
+     * @return
+     */
+    protected SSLEngine newSSLEngine() {
+        SslEngineFactory factory = proxyServer.getSslEngineFactory();
+        return runsAsSSLClient ? factory.newClientEngine(sslContext, null, -1)
+                : factory.newServerEngine(sslContext);
+    }
+
+    /**
+     * Callback that's invoked once Netty has passed us everything that it read
+     * from the socket in one go. In tunneling mode, that's when we flush what
+     * we've relayed to the other side, so that a burst of reads costs only one
+     * flush.
+     */
+    protected void readComplete() {
     }
 
     /**
@@ -514,6 +574,16 @@ abstract class ProxyConnection<I extends HttpObject> extends
         read(msg);
     }
 
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx)
+            throws Exception {
+        try {
+            readComplete();
+        } finally {
+            super.channelReadComplete(ctx);
+        }
+    }
+
     @Override
     public void channelRegistered(ChannelHandlerContext ctx) throws Exception {
         try {
@@ -2,11 +2,19 @@ package org.littleshoot.proxy.impl;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpMessage;
+import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseDecoder;
+import io.netty.handler.codec.http.HttpResponseStatus;
 
 import java.util.List;
 
 class ProxyHttpResponseDecoder extends HttpResponseDecoder {
+    /**
+     * Once the server has switched protocols, whatever it sends is no longer
+     * HTTP. We pass it on as is until we're taken out of the pipeline.
+     */
+    private boolean switchedProtocols = false;
 
     ProxyHttpResponseDecoder() {
         super();
@@ -21,9 +29,30 @@ class ProxyHttpResponseDecoder extends HttpResponseDecoder {
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf buffer,
             List<Object> out) throws Exception {
+        if (switchedProtocols) {
+            int bytesRead = actualReadableBytes();
+            out.add(buffer.readSlice(bytesRead).retain());
+            out.add(new ConnectionTracer(bytesRead));
+            return;
+        }
         super.decode(ctx, buffer, out);
         int bytesRead = buffer.readerIndex();
         out.add(new ConnectionTracer(bytesRead));
     }
 
+    /**
+     * A 101 Switching Protocols response never has a body, whatever protocol
+     * it's switching to.
+     */
+    @Override
+    protected boolean isContentAlwaysEmpty(HttpMessage msg) {
+        if (msg instanceof HttpResponse
+                && HttpResponseStatus.SWITCHING_PROTOCOLS
+                        .equals(((HttpResponse) msg).getStatus())) {
+            switchedProtocols = true;
+            return true;
+        }
+        return super.isContentAlwaysEmpty(msg);
+    }
+
 }
@@ -5,6 +5,7 @@ import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ChannelFactory;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
@@ -18,18 +19,28 @@ import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpRequestEncoder;
 import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.timeout.IdleStateHandler;
 import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.Promise;
 
 import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 
+import org.apache.commons.lang3.StringUtils;
+import org.littleshoot.proxy.ChainedProxyListener;
 import org.littleshoot.proxy.HttpFilter;
+import org.littleshoot.proxy.LinkCompression;
 import org.littleshoot.proxy.TransportProtocol;
 import org.littleshoot.proxy.UnknownTransportProtocolError;
 
@@ -55,7 +66,16 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
     private final ClientToProxyConnection clientConnection;
     private volatile TransportProtocol transportProtocol;
     private volatile SSLContext sslContext;
+    private volatile LinkCompression linkCompression;
     private volatile InetSocketAddress address;
+
+    /**
+     * All of the addresses that the server resolved to. If there's more than
+     * one, we race connections to them (see {@link ConnectionRace}), and
+     * {@link #address} becomes the one that we connected to.
+     */
+    private volatile List<InetSocketAddress> addresses;
+
     private final String serverHostAndPort;
     private volatile String chainedProxyHostAndPort;
     private final HttpFilter responseFilter;
@@ -85,6 +105,13 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
      */
     private final Queue<HttpRequest> issuedRequests = new LinkedList<HttpRequest>();
 
+    /**
+     * When we sent the requests to the chained proxy, if any, that it hasn't
+     * started responding to yet, so that we can tell the
+     * {@link ChainedProxyListener} how long it took.
+     */
+    private final Queue<Long> chainedRequestTimes = new ConcurrentLinkedQueue<Long>();
+
     /**
      * While we're doing a chunked transfer, this keeps track of the HttpRequest
      * to which we're responding.
@@ -112,13 +139,16 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
             DefaultHttpProxyServer proxyServer,
             ClientToProxyConnection clientConnection,
             TransportProtocol transportProtocol, SSLContext sslContext,
-            InetSocketAddress address, String serverHostAndPort,
+            LinkCompression linkCompression,
+            List<InetSocketAddress> addresses, String serverHostAndPort,
             String chainedProxyHostAndPort, HttpFilter responseFilter) {
         super(DISCONNECTED, proxyServer, sslContext, true);
         this.clientConnection = clientConnection;
         this.transportProtocol = transportProtocol;
         this.sslContext = sslContext;
-        this.address = address;
+        this.linkCompression = linkCompression;
+        this.addresses = addresses;
+        this.address = addresses.get(0);
         this.serverHostAndPort = serverHostAndPort;
         this.chainedProxyHostAndPort = chainedProxyHostAndPort;
         this.responseFilter = responseFilter;
@@ -148,6 +178,12 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
     protected ConnectionState readHTTPInitial(HttpResponse httpResponse) {
         LOG.debug("Received raw response: {}", httpResponse);
 
+        Long requestSentAt = chainedRequestTimes.poll();
+        if (requestSentAt != null) {
+            proxyServer.getChainedProxyListener().responseReceivedFromChainedProxy(
+                    chainedProxyHostAndPort,
+                    System.currentTimeMillis() - requestSentAt);
+        }
         rememberCurrentRequest();
         rememberCurrentResponse(httpResponse);
         filterResponseIfNecessary(httpResponse);
@@ -167,6 +203,13 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
         clientConnection.write(buf);
     }
 
+    @Override
+    protected void readComplete() {
+        if (isTunneling()) {
+            clientConnection.flush();
+        }
+    }
+
     /***************************************************************************
      * Writing
      **************************************************************************/
@@ -226,6 +269,14 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
             issuedRequests.add(httpRequest);
             // Track stats
             clientConnection.recordRequestSentToServer(this, httpRequest);
+            ChainedProxyListener chainedProxyListener = proxyServer
+                    .getChainedProxyListener();
+            if (chainedProxyHostAndPort != null
+                    && chainedProxyListener != null) {
+                chainedRequestTimes.add(System.currentTimeMillis());
+                chainedProxyListener
+                        .requestSentToChainedProxy(chainedProxyHostAndPort);
+            }
         }
         super.writeHttp(httpObject);
     }
@@ -248,8 +299,18 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
 
     @Override
     protected void disconnected() {
+        // If we hadn't made it through our ConnectionFlow, the client
+        // connection never counted us as connected and hears about the
+        // failure from the flow instead
+        boolean wasConnecting = isConnecting();
         super.disconnected();
-        clientConnection.serverDisconnected(this);
+        while (chainedRequestTimes.poll() != null) {
+            proxyServer.getChainedProxyListener().requestFailedAtChainedProxy(
+                    chainedProxyHostAndPort);
+        }
+        if (!wasConnecting) {
+            clientConnection.serverDisconnected(this);
+        }
     }
 
     @Override
@@ -381,15 +442,25 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
         }
 
         if (ProxyUtils.isCONNECT(initialRequest)) {
-            if (clientConnection.shouldChain(initialRequest)) {
+            if (chainedProxyHostAndPort != null) {
                 // If we're chaining to another proxy, send over the CONNECT
                 // request
                 this.connectionFlow.then(HTTPCONNECTWithChainedProxy);
             }
 
-            this.connectionFlow.then(StartTunneling)
-                    .then(clientConnection.RespondCONNECTSuccessful)
-                    .then(clientConnection.StartTunneling);
+            if (clientConnection.shouldIntercept(initialRequest,
+                    chainedProxyHostAndPort)) {
+                // We'll be speaking HTTP with both sides of the tunnel, over
+                // TLS connections that we terminate ourselves
+                this.connectionFlow
+                        .then(clientConnection.IssueMitmCertificate)
+                        .then(clientConnection.RespondCONNECTSuccessful)
+                        .then(clientConnection.InterceptTunnel);
+            } else {
+                this.connectionFlow.then(StartTunneling)
+                        .then(clientConnection.RespondCONNECTSuccessful)
+                        .then(clientConnection.StartTunneling);
+            }
         }
     }
 
@@ -405,6 +476,11 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
 
         @Override
         protected Future<?> execute() {
+            Channel warmChannel = takeWarmChannel();
+            if (warmChannel != null) {
+                return adopt(warmChannel);
+            }
+
             Bootstrap cb = new Bootstrap().group(proxyServer
                     .getProxyToServerWorkerFor(transportProtocol));
 
@@ -427,27 +503,211 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
                 throw new UnknownTransportProtocolError(transportProtocol);
             }
 
+            cb.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 40 * 1000);
+
+            if (transportProtocol == TransportProtocol.TCP
+                    && addresses.size() > 1) {
+                return race(cb);
+            }
+
             cb.handler(new ChannelInitializer<Channel>() {
                 protected void initChannel(Channel ch) throws Exception {
+                    if (transportProtocol == TransportProtocol.UDT) {
+                        proxyServer.getUdtOptions().apply(ch);
+                    }
                     initChannelPipeline(ch.pipeline(), initialRequest);
                 };
             });
-            cb.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 40 * 1000);
 
-            return cb.connect(address);
+            ChannelFuture connectFuture = cb.connect(address);
+            if (chainedProxyHostAndPort != null) {
+                reportConnectTo(chainedProxyHostAndPort, connectFuture);
+            }
+            return connectFuture;
         }
     };
 
+    /**
+     * Takes a connection that's already open (and encrypted, if need be) from
+     * the {@link WarmConnectionPool}, if this is a CONNECT through a chained
+     * proxy and there's one ready.
+     * 
+     * @return the connection, or null if we have to open one
+     */
+    private Channel takeWarmChannel() {
+        WarmConnectionPool warmConnectionPool = proxyServer
+                .getWarmConnectionPool();
+        if (warmConnectionPool == null || chainedProxyHostAndPort == null
+                || !ProxyUtils.isCONNECT(initialRequest)) {
+            return null;
+        }
+        return warmConnectionPool.take(chainedProxyHostAndPort, address,
+                transportProtocol, sslContext);
+    }
+
+    /**
+     * Connects to whichever of the server's addresses answers first.
+     * 
+     * @param cb
+     *            set up for connecting, except for the pipeline
+     * @return a Future for when the winning connection is ours
+     */
+    private Future<?> race(Bootstrap cb) {
+        cb.handler(new ChannelInitializer<Channel>() {
+            protected void initChannel(Channel ch) throws Exception {
+                proxyServer.registerChannel(ch);
+            };
+        });
+        final Promise<Void> connected = cb.group().next().newPromise();
+        Future<Channel> raceFuture = new ConnectionRace(cb, addresses,
+                proxyServer.getConnectionAttemptDelayInMillis()).start();
+        if (chainedProxyHostAndPort != null) {
+            reportConnectTo(chainedProxyHostAndPort, raceFuture);
+        }
+        raceFuture.addListener(new GenericFutureListener<Future<Channel>>() {
+            @Override
+            public void operationComplete(Future<Channel> future)
+                    throws Exception {
+                if (future.isSuccess()) {
+                    final Channel winner = future.getNow();
+                    address = (InetSocketAddress) winner.remoteAddress();
+                    winner.eventLoop().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            adopt(winner, connected);
+                        }
+                    });
+                } else {
+                    connected.setFailure(future.cause());
+                }
+            }
+        });
+        return connected;
+    }
+
+    /**
+     * Makes a connection from the {@link WarmConnectionPool} ours.
+     * 
+     * @param warmChannel
+     * @return a Future for when the connection is ours
+     */
+    private Future<?> adopt(final Channel warmChannel) {
+        final Promise<Void> adopted = warmChannel.eventLoop().newPromise();
+        warmChannel.eventLoop().execute(new Runnable() {
+            @Override
+            public void run() {
+                WarmConnectionPool.release(warmChannel.pipeline());
+                adopt(warmChannel, adopted);
+            }
+        });
+        return adopted;
+    }
+
+    /**
+     * Makes a connection that somebody else opened, from the
+     * {@link WarmConnectionPool} or a {@link ConnectionRace}, ours, setting up
+     * its pipeline the way {@link #ConnectChannel} would have. This must be
+     * called on the connection's event loop.
+     * 
+     * @param openChannel
+     * @param adopted
+     *            completed once the connection is ours
+     */
+    private void adopt(Channel openChannel, Promise<Void> adopted) {
+        ChannelPipeline pipeline = openChannel.pipeline();
+        initChannelPipeline(pipeline, initialRequest);
+        // The channel was registered and became active before we were in its
+        // pipeline
+        ctx = pipeline.context(ProxyToServerConnection.this);
+        channel = openChannel;
+        if (openChannel.isActive()) {
+            // Connections from a ConnectionRace don't read until they're ours
+            openChannel.config().setAutoRead(true);
+            adopted.setSuccess(null);
+        } else {
+            adopted.setFailure(new ClosedChannelException());
+        }
+    }
+
+    /**
+     * Tells the {@link ChainedProxyListener} whether and how quickly we manage
+     * to connect to the given chained proxy.
+     * 
+     * @param hostAndPort
+     * @param connectFuture
+     */
+    private void reportConnectTo(final String hostAndPort,
+            Future<?> connectFuture) {
+        final ChainedProxyListener chainedProxyListener = proxyServer
+                .getChainedProxyListener();
+        if (chainedProxyListener == null) {
+            return;
+        }
+        final long connectStartedAt = System.currentTimeMillis();
+        connectFuture.addListener(new GenericFutureListener<Future<Object>>() {
+            @Override
+            public void operationComplete(Future<Object> future)
+                    throws Exception {
+                if (future.isSuccess()) {
+                    chainedProxyListener.connectedToChainedProxy(hostAndPort,
+                            System.currentTimeMillis() - connectStartedAt);
+                } else {
+                    chainedProxyListener
+                            .failedToConnectToChainedProxy(hostAndPort);
+                }
+            }
+        });
+    }
+
     /**
      * Encrypts the channel.
      */
     private ConnectionFlowStep EncryptChannel = new ConnectionFlowStep(this,
             HANDSHAKING) {
         protected Future<?> execute() {
-            return encrypt();
+            if (ctx.pipeline().get(SslHandler.class) != null) {
+                // We took it from the WarmConnectionPool already encrypted
+                return channel.newSucceededFuture();
+            }
+            final long handshakeStartedAt = System.currentTimeMillis();
+            return encrypt().addListener(
+                    new GenericFutureListener<Future<Channel>>() {
+                        @Override
+                        public void operationComplete(Future<Channel> future)
+                                throws Exception {
+                            if (future.isSuccess()) {
+                                SslHandler handler = future.getNow()
+                                        .pipeline().get(SslHandler.class);
+                                proxyServer.getSslSessionCache()
+                                        .handshakeCompleted(
+                                                handler.engine().getSession(),
+                                                handshakeStartedAt);
+                            }
+                        }
+                    });
         }
     };
 
+    /**
+     * Creates a client mode {@link SSLEngine} that knows which server or
+     * chained proxy it's talking to, so that it can resume an earlier session
+     * with that peer (see {@link SslSessionCache}). If we're intercepting the
+     * traffic to the server, the engine also checks that the server's
+     * certificate is for that server.
+     */
+    @Override
+    protected SSLEngine newSSLEngine() {
+        String peerHostAndPort = chainedProxyHostAndPort != null ? chainedProxyHostAndPort
+                : serverHostAndPort;
+        MitmManager mitmManager = proxyServer.getMitmManager();
+        boolean verifyPeerHost = chainedProxyHostAndPort == null
+                && mitmManager != null
+                && mitmManager.shouldVerifyServerHost(sslContext);
+        return proxyServer.getSslSessionCache().newClientEngine(sslContext,
+                StringUtils.substringBefore(peerHostAndPort, ":"),
+                address.getPort(), verifyPeerHost);
+    }
+
     /**
      * Writes the HTTP CONNECT to the server and waits for a 200 response.
      */
@@ -486,20 +746,24 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
      * Try connecting to a new address, using a new set of connection
      * parameters.
      * 
-     * @param newAddress
+     * @param newAddresses
      * @param transportProtocol
      * @param sslContext
+     * @param linkCompression
      * @param chainedProxyHostAndPort
      * @param initialRequest
      */
-    protected void retryConnecting(InetSocketAddress newAddress,
+    protected void retryConnecting(List<InetSocketAddress> newAddresses,
             TransportProtocol transportProtocol,
             SSLContext sslContext,
+            LinkCompression linkCompression,
             String chainedProxyHostAndPort,
             HttpRequest initialRequest) {
-        this.address = newAddress;
+        this.addresses = newAddresses;
+        this.address = newAddresses.get(0);
         this.transportProtocol = transportProtocol;
         this.sslContext = sslContext;
+        this.linkCompression = linkCompression;
         this.chainedProxyHostAndPort = chainedProxyHostAndPort;
         this.connectAndWrite(initialRequest);
     }
@@ -512,6 +776,7 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
      */
     private void initChannelPipeline(ChannelPipeline pipeline,
             HttpRequest httpRequest) {
+        CompressedLink.addTo(pipeline, linkCompression);
         pipeline.addLast("decoder", new ProxyHttpResponseDecoder(8192,
                 8192 * 2,
                 8192 * 2));
@@ -522,8 +787,18 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
         // filters
         // themselves so that a filter can choose to operate more in streaming
         // fashion if it doesn't need the memory overhead of aggregating chunks.
-        if (!ProxyUtils.isCONNECT(httpRequest)
-                && shouldFilterResponseTo(httpRequest)) {
+        boolean intercepting = clientConnection.shouldIntercept(httpRequest,
+                chainedProxyHostAndPort);
+        boolean tunneling = ProxyUtils.isCONNECT(httpRequest) && !intercepting;
+        // Connections for upgrade requests will likely end up relaying some
+        // other protocol
+        boolean upgrading = ProxyUtils.isUpgrade(httpRequest);
+        // When intercepting a tunnel, we don't know what we'll be asked for
+        // yet, so be ready to filter whatever comes through
+        boolean filtering = intercepting ? responseFilter != null
+                : !tunneling && !upgrading
+                        && shouldFilterResponseTo(httpRequest);
+        if (filtering) {
             pipeline.addLast("inflater", new HttpContentDecompressor());
             pipeline.addLast("aggregator", new HttpObjectAggregator(
                     this.responseFilter.getMaxResponseSize()));// 2048576));
@@ -532,7 +807,7 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
         pipeline.addLast("encoder", new HttpRequestEncoder());
 
         // Set idle timeout
-        if (ProxyUtils.isCONNECT(httpRequest)) {
+        if (tunneling) {
             // Could be any protocol if it's connect, so hard to say what the
             // timeout should be, if any. Don't set one.
         } else {
@@ -571,8 +846,12 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
      */
     void connectionSucceeded(boolean shouldForwardInitialRequest) {
         become(AWAITING_INITIAL);
-        clientConnection.serverConnectionSucceeded(this,
-                shouldForwardInitialRequest);
+        if (!clientConnection.serverConnectionSucceeded(this,
+                shouldForwardInitialRequest)) {
+            LOG.debug("Lost the race for the initial request, disconnecting");
+            disconnect();
+            return;
+        }
 
         if (shouldForwardInitialRequest) {
             LOG.debug("Writing initial request");
@@ -206,9 +206,19 @@ public class ProxyUtils {
         return hostAndPort;
     }
 
+    /**
+     * Parses the host an HTTP request is being sent to, without the port.
+     * IPv6 literals come back without their brackets.
+     * 
+     * @param request
+     *            The URI, or a host and port.
+     * @return The host.
+     */
     public static String parseHost(final String request) {
         final String hostAndPort = ProxyUtils.parseHostAndPort(request);
-        if (hostAndPort.contains(":")) {
+        if (hostAndPort.startsWith("[")) {
+            return StringUtils.substringBetween(hostAndPort, "[", "]");
+        } else if (hostAndPort.contains(":")) {
             return StringUtils.substringBefore(hostAndPort, ":");
         } else {
             return hostAndPort;
@@ -321,6 +331,14 @@ public class ProxyUtils {
         return -1;
     }
 
+    public static long extractLong(final Properties props, final String key) {
+        final String value = props.getProperty(key);
+        if (StringUtils.isNotBlank(value) && NumberUtils.isNumber(value)) {
+            return Long.parseLong(value);
+        }
+        return -1;
+    }
+
     public static boolean isCONNECT(HttpObject httpObject) {
         return httpObject instanceof HttpRequest
                 && HttpMethod.CONNECT.equals(((HttpRequest) httpObject)
@@ -339,6 +357,29 @@ public class ProxyUtils {
                         .equals(((HttpRequest) httpObject).getMethod());
     }
 
+    /**
+     * Determines whether the given message asks to switch the connection to
+     * another protocol (e.g. WebSocket), i.e. it has an Upgrade header that's
+     * named in its Connection header.
+     * 
+     * @param httpMessage
+     * @return
+     */
+    public static boolean isUpgrade(HttpMessage httpMessage) {
+        HttpHeaders headers = httpMessage.headers();
+        if (!headers.contains(HttpHeaders.Names.UPGRADE)) {
+            return false;
+        }
+        for (String connection : headers.getAll(HttpHeaders.Names.CONNECTION)) {
+            for (String token : connection.split(",")) {
+                if (HttpHeaders.Values.UPGRADE.equalsIgnoreCase(token.trim())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     private static boolean checkTrueOrFalse(final String val,
             final String str1, final String str2) {
         final String str = val.trim();
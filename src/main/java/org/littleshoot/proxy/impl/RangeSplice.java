@@ -0,0 +1,87 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+/**
+ * <p>
+ * Describes how to answer a Range request when the {@link ResponseCache} holds
+ * some, but not all, of the requested bytes.
+ * </p>
+ * 
+ * <p>
+ * Only the missing span is requested from the server. The bytes that we
+ * already hold before and after that span are then spliced around the server's
+ * 206 response, so that the client receives the full range it asked for.
+ * </p>
+ */
+class RangeSplice {
+    private final ByteRange requested;
+    private final ByteRange fetched;
+    private final ByteBuf prefix;
+    private final ByteBuf suffix;
+
+    /**
+     * Construct a new {@link RangeSplice}.
+     * 
+     * @param requested
+     *            the (resolved) range that the client asked for
+     * @param fetched
+     *            the range that we're requesting from the server
+     * @param prefix
+     *            the cached bytes from the start of the requested range up to
+     *            the fetched range
+     * @param suffix
+     *            the cached bytes from the end of the fetched range to the end
+     *            of the requested range
+     */
+    RangeSplice(ByteRange requested, ByteRange fetched, ByteBuf prefix,
+            ByteBuf suffix) {
+        this.requested = requested;
+        this.fetched = fetched;
+        this.prefix = prefix;
+        this.suffix = suffix;
+    }
+
+    ByteRange getFetched() {
+        return fetched;
+    }
+
+    ByteBuf getPrefix() {
+        return prefix.duplicate();
+    }
+
+    ByteBuf getSuffix() {
+        return suffix.duplicate();
+    }
+
+    /**
+     * Rewrites the server's response so that it describes the full range that
+     * the client asked for.
+     * 
+     * @param response
+     * @return false if the server didn't respond with the range we asked for,
+     *         in which case its response should be passed on untouched
+     */
+    boolean applyTo(HttpResponse response) {
+        if (!HttpResponseStatus.PARTIAL_CONTENT.equals(response.getStatus())) {
+            return false;
+        }
+        ByteRange received = ByteRange.fromContentRangeHeader(response
+                .headers().get(HttpHeaders.Names.CONTENT_RANGE));
+        if (received == null || received.getStart() != fetched.getStart()
+                || received.getEnd() != fetched.getEnd()
+                || received.getTotalLength() != fetched.getTotalLength()) {
+            return false;
+        }
+        response.headers().set(HttpHeaders.Names.CONTENT_RANGE,
+                requested.toContentRangeHeader());
+        if (response.headers().contains(HttpHeaders.Names.CONTENT_LENGTH)) {
+            response.headers().set(HttpHeaders.Names.CONTENT_LENGTH,
+                    requested.getLength());
+        }
+        return true;
+    }
+}
@@ -0,0 +1,783 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * A shared, in-memory cache of HTTP responses, bounded by the total size of the
+ * cached bodies. Which responses get admitted and evicted is decided by a
+ * {@link TinyLfuEvictionPolicy}, so that large one-off downloads don't push
+ * out responses that are requested over and over.
+ * </p>
+ * 
+ * <p>
+ * Only fresh responses to plain GET requests are cached, and they're only
+ * served for as long as they remain fresh - we never revalidate. Requests with
+ * credentials or preconditions, as well as responses marked private or
+ * no-store, responses that set cookies and responses that vary on everything,
+ * always bypass the cache.
+ * </p>
+ * 
+ * <p>
+ * Requests for a single byte range are answered from complete responses where
+ * possible. 206 responses that carry a validator are kept as
+ * {@link PartialResponse}s, which can answer later Range requests for bytes
+ * that they hold, and tell us which span is still missing for the rest (see
+ * {@link RangeSplice}). Once all of its bytes have arrived, a partial response
+ * is promoted to a complete one.
+ * </p>
+ * 
+ * <p>
+ * If a cache directory is configured, the contents of the cache are written to
+ * a {@link CacheSnapshot} when the proxy stops and read back in when it starts
+ * up again, so a restarted proxy doesn't have to go back to the origin for
+ * everything.
+ * </p>
+ */
+class ResponseCache {
+    private static final Logger LOG = LoggerFactory
+            .getLogger(ResponseCache.class);
+
+    /**
+     * Headers that describe the connection to the origin rather than the
+     * response itself, which we don't store.
+     */
+    private static final Set<String> UNSTORED_HEADERS = new HashSet<String>(
+            Arrays.asList(new String[] { "connection", "keep-alive",
+                    "proxy-authenticate", "proxy-connection", "trailer",
+                    "transfer-encoding", "upgrade", "content-length",
+                    "content-range", "age" }));
+
+    /**
+     * Used to size the eviction policy's frequency sketch.
+     */
+    private static final int ASSUMED_AVERAGE_RESPONSE_SIZE = 16 * 1024;
+
+    private final int maxObjectSizeInBytes;
+    private final File directory;
+
+    private final Map<String, CachedResponse> responses = new HashMap<String, CachedResponse>();
+    private final Map<String, PartialResponse> partialResponses = new HashMap<String, PartialResponse>();
+    private final CacheEvictionPolicy evictionPolicy;
+    private long sizeInBytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Construct a new {@link ResponseCache}.
+     * 
+     * @param maxSizeInBytes
+     *            the maximum total size of the cached bodies
+     * @param directory
+     *            (optional) the directory in which to keep a snapshot of the
+     *            cache across restarts
+     */
+    ResponseCache(long maxSizeInBytes, File directory) {
+        this.evictionPolicy = new TinyLfuEvictionPolicy(maxSizeInBytes,
+                (int) Math.min(Integer.MAX_VALUE, maxSizeInBytes
+                        / ASSUMED_AVERAGE_RESPONSE_SIZE));
+        // Don't let any one response push out more than 1/8th of the cache
+        this.maxObjectSizeInBytes = (int) Math.min(Integer.MAX_VALUE,
+                maxSizeInBytes / 8);
+        this.directory = directory;
+    }
+
+    /**
+     * Fills the cache from the snapshot in our directory, if there is one.
+     */
+    void restoreSnapshot() {
+        if (directory == null) {
+            return;
+        }
+        for (CachedResponse response : CacheSnapshot.load(directory)) {
+            put(response);
+        }
+    }
+
+    /**
+     * Writes the current contents of the cache to our directory, so that they
+     * can be restored the next time the proxy starts.
+     */
+    void persistSnapshot() {
+        if (directory == null) {
+            return;
+        }
+        List<CachedResponse> toPersist;
+        synchronized (this) {
+            toPersist = new ArrayList<CachedResponse>(responses.values());
+        }
+        long now = System.currentTimeMillis();
+        Iterator<CachedResponse> it = toPersist.iterator();
+        while (it.hasNext()) {
+            if (!it.next().isFresh(now)) {
+                it.remove();
+            }
+        }
+        try {
+            CacheSnapshot.write(directory, toPersist);
+        } catch (IOException ioe) {
+            LOG.warn("Unable to write cache snapshot to " + directory, ioe);
+        }
+    }
+
+    /**
+     * Builds the key under which responses to the given request are cached.
+     * 
+     * @param hostAndPort
+     *            the host and port to which the request is addressed
+     * @param request
+     * @return
+     */
+    static String keyFor(String hostAndPort, HttpRequest request) {
+        String normalizedHostAndPort = hostAndPort.toLowerCase(Locale.US);
+        if (normalizedHostAndPort.endsWith(":80")) {
+            normalizedHostAndPort = normalizedHostAndPort.substring(0,
+                    normalizedHostAndPort.length() - 3);
+        }
+        return "http://" + normalizedHostAndPort
+                + ProxyUtils.stripHost(request.getUri());
+    }
+
+    /**
+     * Determines whether or not responses to the given request may be served
+     * from or stored in the cache.
+     * 
+     * @param request
+     * @return
+     */
+    static boolean isCacheable(HttpRequest request) {
+        if (!HttpMethod.GET.equals(request.getMethod())
+                || ProxyUtils.isUpgrade(request)) {
+            return false;
+        }
+        HttpHeaders headers = request.headers();
+        if (headers.contains(HttpHeaders.Names.RANGE)
+                && ByteRange.fromRangeHeader(headers
+                        .get(HttpHeaders.Names.RANGE)) == null) {
+            // Multiple or malformed ranges are left to the server
+            return false;
+        }
+        if (headers.contains(HttpHeaders.Names.AUTHORIZATION)
+                || headers.contains(HttpHeaders.Names.IF_MATCH)
+                || headers.contains(HttpHeaders.Names.IF_NONE_MATCH)
+                || headers.contains(HttpHeaders.Names.IF_MODIFIED_SINCE)
+                || headers.contains(HttpHeaders.Names.IF_UNMODIFIED_SINCE)
+                || headers.contains(HttpHeaders.Names.IF_RANGE)) {
+            return false;
+        }
+        Map<String, String> cacheControl = cacheControl(headers);
+        if (cacheControl.containsKey(HttpHeaders.Values.NO_CACHE)
+                || cacheControl.containsKey(HttpHeaders.Values.NO_STORE)) {
+            return false;
+        }
+        String pragma = headers.get(HttpHeaders.Names.PRAGMA);
+        return pragma == null
+                || !pragma.toLowerCase(Locale.US).contains(
+                        HttpHeaders.Values.NO_CACHE);
+    }
+
+    /**
+     * Looks up a response to the given request. If the request is for a byte
+     * range, the response is a 206 containing just that range.
+     * 
+     * @param key
+     *            the key for the request (see
+     *            {@link #keyFor(String, HttpRequest)})
+     * @param request
+     * @return a new response ready for sending to the client, or null if we
+     *         can't answer the request from the cache
+     */
+    FullHttpResponse responseFor(String key, HttpRequest request) {
+        return (FullHttpResponse) responseFor(key, request, false);
+    }
+
+    /**
+     * Like {@link #responseFor(String, HttpRequest)}, but optionally allows
+     * responses whose bodies live in our snapshot to be sent straight from
+     * disk.
+     * 
+     * @param key
+     * @param request
+     * @param allowFileRegion
+     *            whether the caller can handle a {@link FileRegionResponse}
+     * @return a new response ready for sending to the client (either a
+     *         {@link FullHttpResponse} or a {@link FileRegionResponse}), or
+     *         null if we can't answer the request from the cache
+     */
+    HttpResponse responseFor(String key, HttpRequest request,
+            boolean allowFileRegion) {
+        long now = System.currentTimeMillis();
+        ByteRange requested = ByteRange.fromRangeHeader(request.headers().get(
+                HttpHeaders.Names.RANGE));
+        HttpResponse response = null;
+        long ageInSeconds = 0;
+
+        CachedResponse cachedResponse = freshResponse(key, request, now);
+        if (cachedResponse != null) {
+            ByteRange resolved = requested == null ? null : requested
+                    .resolve(cachedResponse.getContentLength());
+            if (requested == null || resolved != null) {
+                if (allowFileRegion && cachedResponse.isInSnapshot()) {
+                    response = cachedResponse.toFileRegionResponse(resolved);
+                } else if (resolved == null) {
+                    response = cachedResponse.toHttpResponse();
+                } else {
+                    response = cachedResponse.toHttpResponse(resolved);
+                }
+            }
+            ageInSeconds = cachedResponse.ageInSeconds(now);
+        } else if (requested != null) {
+            PartialResponse partialResponse = freshPartialResponse(key,
+                    request, now);
+            if (partialResponse != null) {
+                ByteRange resolved = requested.resolve(partialResponse
+                        .getTotalLength());
+                if (resolved != null) {
+                    response = partialResponse.toHttpResponse(resolved);
+                }
+                ageInSeconds = partialResponse.ageInSeconds(now);
+            }
+        }
+
+        synchronized (this) {
+            if (response != null) {
+                evictionPolicy.recordHit(key);
+            } else {
+                evictionPolicy.recordMiss(key);
+            }
+        }
+        if (response != null) {
+            hits.incrementAndGet();
+            response.headers().set(HttpHeaders.Names.AGE, ageInSeconds);
+        } else {
+            misses.incrementAndGet();
+        }
+        return response;
+    }
+
+    /**
+     * <p>
+     * For a Range request that we can only partially answer from the cache,
+     * works out which span of the range we still need and rewrites the request
+     * to fetch only that span from the server.
+     * </p>
+     * 
+     * <p>
+     * The rewritten request carries an If-Range header, so that if the
+     * resource has changed, the server sends the complete new version instead.
+     * </p>
+     * 
+     * @param key
+     *            the key for the request (see
+     *            {@link #keyFor(String, HttpRequest)})
+     * @param request
+     *            the request, which is modified if a splice is returned
+     * @return how to splice the cached bytes around the server's response, or
+     *         null if the request should be sent on unchanged
+     */
+    RangeSplice spliceFor(String key, HttpRequest request) {
+        ByteRange requested = ByteRange.fromRangeHeader(request.headers().get(
+                HttpHeaders.Names.RANGE));
+        if (requested == null) {
+            return null;
+        }
+        PartialResponse partialResponse = freshPartialResponse(key, request,
+                System.currentTimeMillis());
+        if (partialResponse == null) {
+            return null;
+        }
+        ByteRange resolved = requested.resolve(partialResponse
+                .getTotalLength());
+        if (resolved == null) {
+            return null;
+        }
+        ByteRange missing = partialResponse.missingSpan(resolved);
+        if (missing == null) {
+            return null;
+        }
+        ByteBuf prefix = partialResponse.read(resolved.getStart(),
+                missing.getStart() - 1);
+        ByteBuf suffix = partialResponse.read(missing.getEnd() + 1,
+                resolved.getEnd());
+        if (prefix == null || suffix == null
+                || (!prefix.isReadable() && !suffix.isReadable())) {
+            return null;
+        }
+        LOG.debug("Fetching only {} of {} for {}", missing, resolved, key);
+        request.headers().set(HttpHeaders.Names.RANGE,
+                missing.toRangeHeader());
+        request.headers().set(HttpHeaders.Names.IF_RANGE,
+                partialResponse.getValidator());
+        return new RangeSplice(resolved, missing, prefix, suffix);
+    }
+
+    private CachedResponse freshResponse(String key, HttpRequest request,
+            long now) {
+        CachedResponse response;
+        synchronized (this) {
+            response = responses.get(key);
+        }
+        if (response == null) {
+            return null;
+        }
+        if (!response.isFresh(now)) {
+            remove(key);
+            return null;
+        }
+        if (!response.matchesVaryingHeaders(request.headers())) {
+            return null;
+        }
+        if (response.content() == null) {
+            // Body in snapshot turned out to be unusable
+            remove(key);
+            return null;
+        }
+        return response;
+    }
+
+    private PartialResponse freshPartialResponse(String key,
+            HttpRequest request, long now) {
+        PartialResponse partialResponse;
+        synchronized (this) {
+            partialResponse = partialResponses.get(key);
+        }
+        if (partialResponse == null) {
+            return null;
+        }
+        if (!partialResponse.isFresh(now)) {
+            remove(key);
+            return null;
+        }
+        return partialResponse.matchesVaryingHeaders(request.headers()) ? partialResponse
+                : null;
+    }
+
+    /**
+     * Starts capturing the response to the given request.
+     * 
+     * @param key
+     *            the key for the request (see
+     *            {@link #keyFor(String, HttpRequest)})
+     * @param request
+     *            the request as received from the client
+     * @return
+     */
+    Capture newCapture(String key, HttpRequest request) {
+        return new Capture(key, new DefaultHttpHeaders().set(request
+                .headers()));
+    }
+
+    /**
+     * Whether we hold a complete response under the given key, fresh or not.
+     * 
+     * @param key
+     * @return
+     */
+    synchronized boolean contains(String key) {
+        return responses.containsKey(key);
+    }
+
+    synchronized long getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    synchronized int getNumberOfResponses() {
+        return responses.size();
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    synchronized void put(CachedResponse response) {
+        String key = response.getKey();
+        remove(key);
+        responses.put(key, response);
+        sizeInBytes += response.getWeight();
+        evictAll(evictionPolicy.add(key, response.getWeight()));
+    }
+
+    /**
+     * Adds a segment to the partial response for the given key, starting a
+     * new partial response if the segment doesn't belong with the one we
+     * already have.
+     */
+    private synchronized void putSegment(PartialResponse template,
+            long offset, ByteBuf bytes) {
+        String key = template.getKey();
+        if (responses.containsKey(key)) {
+            // We already have the whole thing
+            return;
+        }
+        PartialResponse partialResponse = partialResponses.get(key);
+        if (partialResponse != null
+                && (!partialResponse.getValidator().equals(
+                        template.getValidator()) || partialResponse
+                        .getTotalLength() != template.getTotalLength())) {
+            LOG.debug("Discarding segments of old version of {}", key);
+            partialResponse = null;
+        }
+        if (partialResponse == null) {
+            remove(key);
+            partialResponse = template;
+            partialResponses.put(key, partialResponse);
+        } else {
+            evictionPolicy.remove(key);
+            sizeInBytes -= partialResponse.getWeight();
+        }
+
+        partialResponse.addSegment(offset, bytes);
+        if (partialResponse.isComplete()) {
+            LOG.debug("Assembled complete response for {}", key);
+            partialResponses.remove(key);
+            put(partialResponse.toCachedResponse());
+        } else {
+            sizeInBytes += partialResponse.getWeight();
+            evictAll(evictionPolicy.add(key, partialResponse.getWeight()));
+        }
+    }
+
+    private synchronized void remove(String key) {
+        CachedResponse response = responses.remove(key);
+        PartialResponse partialResponse = partialResponses.remove(key);
+        if (response != null || partialResponse != null) {
+            evictionPolicy.remove(key);
+        }
+        forget(response, partialResponse);
+    }
+
+    private void evictAll(List<String> keys) {
+        for (String key : keys) {
+            CachedResponse response = responses.remove(key);
+            PartialResponse partialResponse = partialResponses.remove(key);
+            LOG.debug("Evicting {}", response != null ? response
+                    : partialResponse);
+            forget(response, partialResponse);
+        }
+    }
+
+    private void forget(CachedResponse response,
+            PartialResponse partialResponse) {
+        if (response != null) {
+            sizeInBytes -= response.getWeight();
+        }
+        if (partialResponse != null) {
+            sizeInBytes -= partialResponse.getWeight();
+        }
+    }
+
+    /**
+     * <p>
+     * Accumulates a response from the origin as it's proxied back to the
+     * client, and stores it once it's complete.
+     * </p>
+     * 
+     * <p>
+     * Captures are used by a single connection at a time and are not
+     * thread-safe.
+     * </p>
+     */
+    class Capture {
+        private final String key;
+        private final HttpHeaders requestHeaders;
+        private HttpVersion protocolVersion;
+        private HttpResponseStatus status;
+        private HttpHeaders headers;
+        private ByteRange segment;
+        private String validator;
+        private Map<String, String> varyingRequestHeaders;
+        private long storedAt;
+        private long initialAgeMillis;
+        private long freshUntil;
+        private long expectedContentLength;
+        private ByteBuf content;
+
+        private Capture(String key, HttpHeaders requestHeaders) {
+            this.key = key;
+            this.requestHeaders = requestHeaders;
+        }
+
+        /**
+         * Begins capturing the given response.
+         * 
+         * @param response
+         * @return false if the response isn't cacheable, in which case this
+         *         capture should be abandoned
+         */
+        boolean start(HttpResponse response) {
+            HttpHeaders headers = response.headers();
+            if (HttpResponseStatus.PARTIAL_CONTENT.equals(response
+                    .getStatus())) {
+                segment = ByteRange.fromContentRangeHeader(headers
+                        .get(HttpHeaders.Names.CONTENT_RANGE));
+                validator = validatorFor(headers);
+                if (segment == null || validator == null
+                        || segment.getTotalLength() > maxObjectSizeInBytes) {
+                    return false;
+                }
+            } else if (!HttpResponseStatus.OK.equals(response.getStatus())) {
+                return false;
+            }
+            if (headers.contains(HttpHeaders.Names.SET_COOKIE)) {
+                return false;
+            }
+            Map<String, String> cacheControl = cacheControl(headers);
+            if (cacheControl.containsKey(HttpHeaders.Values.NO_STORE)
+                    || cacheControl.containsKey(HttpHeaders.Values.NO_CACHE)
+                    || cacheControl.containsKey(HttpHeaders.Values.PRIVATE)) {
+                return false;
+            }
+            long contentLength = HttpHeaders.getContentLength(response, -1);
+            if (contentLength > maxObjectSizeInBytes) {
+                return false;
+            }
+            if (contentLength < 0
+                    && !HttpHeaders.isTransferEncodingChunked(response)) {
+                // Body is delimited by the connection closing, so we can't
+                // tell a complete body from a truncated one
+                return false;
+            }
+            if (!recordVaryingRequestHeaders(headers)) {
+                return false;
+            }
+
+            long now = System.currentTimeMillis();
+            Date date = dateHeader(response, HttpHeaders.Names.DATE);
+            long dateMillis = date != null ? date.getTime() : now;
+            long lifetimeMillis = freshnessLifetime(response, cacheControl,
+                    dateMillis);
+            long ageMillis = Math.max(0, now - dateMillis);
+            String age = headers.get(HttpHeaders.Names.AGE);
+            if (age != null) {
+                try {
+                    ageMillis = Math.max(ageMillis,
+                            Long.parseLong(age.trim()) * 1000);
+                } catch (NumberFormatException nfe) {
+                    return false;
+                }
+            }
+            if (lifetimeMillis <= ageMillis) {
+                return false;
+            }
+
+            // Copy what we need now, since the response is about to be
+            // modified for sending on to the client
+            this.protocolVersion = response.getProtocolVersion();
+            this.status = response.getStatus();
+            this.headers = storedHeaders(headers);
+            this.storedAt = now;
+            this.initialAgeMillis = ageMillis;
+            this.freshUntil = now + lifetimeMillis - ageMillis;
+            this.expectedContentLength = contentLength;
+            this.content = Unpooled.buffer(contentLength > 0 ? (int) contentLength
+                    : 256);
+            return true;
+        }
+
+        /**
+         * Adds a chunk of the body to this capture.
+         * 
+         * @param chunk
+         * @return false if the body has grown too large to cache, in which
+         *         case this capture should be abandoned
+         */
+        boolean append(HttpContent chunk) {
+            ByteBuf bytes = chunk.content();
+            if (content.readableBytes() + bytes.readableBytes() > maxObjectSizeInBytes) {
+                content.release();
+                return false;
+            }
+            content.writeBytes(bytes, bytes.readerIndex(),
+                    bytes.readableBytes());
+            return true;
+        }
+
+        /**
+         * Stores the captured response in the cache.
+         */
+        void finish() {
+            if (expectedContentLength >= 0
+                    && content.readableBytes() != expectedContentLength) {
+                LOG.debug("Not caching incomplete response for {}", key);
+                return;
+            }
+            if (segment != null) {
+                if (content.readableBytes() != segment.getLength()) {
+                    LOG.debug("Not caching incomplete segment for {}", key);
+                    return;
+                }
+                LOG.debug("Caching segment {} for {}", segment, key);
+                putSegment(new PartialResponse(key, protocolVersion, headers,
+                        varyingRequestHeaders, storedAt, initialAgeMillis,
+                        freshUntil, segment.getTotalLength(), validator),
+                        segment.getStart(), content);
+            } else {
+                LOG.debug("Caching {} bytes for {}", content.readableBytes(),
+                        key);
+                put(new CachedResponse(key, protocolVersion, status, headers,
+                        varyingRequestHeaders, storedAt, initialAgeMillis,
+                        freshUntil, content));
+            }
+        }
+
+        /**
+         * Records the values of the request headers named in the response's
+         * Vary header.
+         * 
+         * @return false if the response varies on something that we can't
+         *         match on
+         */
+        private boolean recordVaryingRequestHeaders(HttpHeaders headers) {
+            varyingRequestHeaders = new HashMap<String, String>();
+            for (String vary : headers.getAll(HttpHeaders.Names.VARY)) {
+                for (String name : vary.split(",")) {
+                    name = name.trim();
+                    if ("*".equals(name)) {
+                        return false;
+                    }
+                    if (name.length() > 0) {
+                        varyingRequestHeaders.put(name,
+                                requestHeaders.get(name));
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Copies the end-to-end headers of a response for storing in the cache.
+     */
+    private static HttpHeaders storedHeaders(HttpHeaders responseHeaders) {
+        HttpHeaders headers = new DefaultHttpHeaders();
+        Set<String> connectionTokens = new HashSet<String>();
+        for (String connection : responseHeaders
+                .getAll(HttpHeaders.Names.CONNECTION)) {
+            for (String token : connection.split(",")) {
+                connectionTokens.add(token.trim().toLowerCase(Locale.US));
+            }
+        }
+        for (Map.Entry<String, String> header : responseHeaders.entries()) {
+            String name = header.getKey().toLowerCase(Locale.US);
+            if (!UNSTORED_HEADERS.contains(name)
+                    && !connectionTokens.contains(name)) {
+                headers.add(header.getKey(), header.getValue());
+            }
+        }
+        return headers;
+    }
+
+    /**
+     * Finds a validator that tells us whether two responses are for the same
+     * version of a resource: a strong ETag, or failing that a Last-Modified
+     * date.
+     * 
+     * @return the validator, or null if the response doesn't have one
+     */
+    static String validatorFor(HttpHeaders headers) {
+        String etag = headers.get(HttpHeaders.Names.ETAG);
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return headers.get(HttpHeaders.Names.LAST_MODIFIED);
+    }
+
+    /**
+     * Determines how long a response is fresh for, per RFC 2616 Section
+     * 13.2.4. We don't apply heuristic freshness, so responses without explicit
+     * freshness information get a lifetime of 0.
+     */
+    private static long freshnessLifetime(HttpResponse response,
+            Map<String, String> cacheControl, long dateMillis) {
+        String maxAge = cacheControl.get("s-maxage");
+        if (maxAge == null) {
+            maxAge = cacheControl.get(HttpHeaders.Values.MAX_AGE);
+        }
+        if (maxAge != null) {
+            try {
+                return Long.parseLong(maxAge) * 1000;
+            } catch (NumberFormatException nfe) {
+                return 0;
+            }
+        }
+        Date expires = dateHeader(response, HttpHeaders.Names.EXPIRES);
+        if (expires != null) {
+            return expires.getTime() - dateMillis;
+        }
+        return 0;
+    }
+
+    private static Date dateHeader(HttpResponse response, String name) {
+        if (!response.headers().contains(name)) {
+            return null;
+        }
+        try {
+            return HttpHeaders.getDateHeader(response, name);
+        } catch (Exception e) {
+            // Invalid dates (like "Expires: 0") mean already expired
+            return new Date(0);
+        }
+    }
+
+    /**
+     * Parses the Cache-Control directives in the given headers.
+     * 
+     * @return a map of directive name (lower case) to value (null if the
+     *         directive has no value)
+     */
+    private static Map<String, String> cacheControl(HttpHeaders headers) {
+        Map<String, String> directives = new HashMap<String, String>();
+        for (String cacheControl : headers
+                .getAll(HttpHeaders.Names.CACHE_CONTROL)) {
+            for (String directive : cacheControl.split(",")) {
+                String name = directive.trim();
+                String value = null;
+                int equals = name.indexOf('=');
+                if (equals > 0) {
+                    value = name.substring(equals + 1).trim();
+                    if (value.startsWith("\"") && value.endsWith("\"")
+                            && value.length() > 1) {
+                        value = value.substring(1, value.length() - 1);
+                    }
+                    name = name.substring(0, equals).trim();
+                }
+                if (name.length() > 0) {
+                    directives.put(name.toLowerCase(Locale.US), value);
+                }
+            }
+        }
+        return directives;
+    }
+}
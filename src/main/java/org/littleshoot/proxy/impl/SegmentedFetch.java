@@ -0,0 +1,527 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.timeout.IdleStateEvent;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Fetches a large response as several byte ranges over separate connections
+ * to the server, so that the transfer isn't limited by the TCP window of a
+ * single connection.
+ * </p>
+ * 
+ * <p>
+ * The client's request goes out on its {@link ProxyToServerConnection} as
+ * usual, but with a Range header asking only for the leading segment. If the
+ * server's 206 response shows that there's more to come, the rest of the body
+ * is split into segments that are requested in parallel on connections of
+ * their own, and the 206 is turned back into the 200 that the client expects.
+ * The leading segment is streamed to the client as it arrives. Each following
+ * segment is streamed as soon as the ones before it are done, with anything
+ * that arrives early held in memory until then.
+ * </p>
+ * 
+ * <p>
+ * Segments are requested with an If-Range header carrying the leading
+ * segment's validator, and have to come back as exactly the range we asked
+ * for, with the same ETag and Last-Modified as the leading segment. If the
+ * resource changes midway through or a segment fails, the client will already
+ * have received the response headers, so all we can do is close its
+ * connection.
+ * </p>
+ * 
+ * <p>
+ * If the leading segment has no strong ETag and no Last-Modified, the server
+ * can't tell us when the resource has changed, so we don't split up the rest
+ * of the body. Instead we ask for all of it in one range once the leading
+ * segment is done, on the same connection if we can keep that open.
+ * </p>
+ */
+class SegmentedFetch {
+    private static final Logger LOG = LoggerFactory
+            .getLogger(SegmentedFetch.class);
+
+    /**
+     * We don't split the rest of the body into segments smaller than this.
+     */
+    private static final long MIN_SEGMENT_SIZE = 64 * 1024;
+
+    private final DefaultHttpProxyServer proxyServer;
+    private final ClientToProxyConnection clientConnection;
+    private final ProxyToServerConnection serverConnection;
+    private final HttpRequest request;
+    private final long leadingSegmentSize;
+    private final int parallelism;
+
+    /**
+     * The segments following the leading one.
+     */
+    private final List<Segment> segments = new ArrayList<Segment>();
+
+    /**
+     * The number of the segment that we're currently streaming to the client,
+     * where 0 is the leading segment and 1 is the first of {@link #segments}.
+     */
+    private int currentSegment = 0;
+
+    /**
+     * If the leading segment came without a validator, the rest of the body,
+     * which we fetch in one go on the leading connection.
+     */
+    private ByteRange remainder;
+    private HttpRequest remainderRequest;
+    private long remainderReceived = 0;
+
+    private String leadingETag;
+    private String leadingLastModified;
+
+    private boolean done = false;
+
+    /**
+     * Construct a new {@link SegmentedFetch}.
+     * 
+     * @param proxyServer
+     * @param clientConnection
+     * @param serverConnection
+     *            the connection that the leading segment comes through
+     * @param request
+     *            the request as it's being sent to the server
+     * @param leadingSegmentSize
+     *            how many bytes to ask for in the original request
+     * @param parallelism
+     *            the maximum number of segments to fetch at once, including
+     *            the leading one
+     */
+    SegmentedFetch(DefaultHttpProxyServer proxyServer,
+            ClientToProxyConnection clientConnection,
+            ProxyToServerConnection serverConnection,
+            HttpRequest request,
+            long leadingSegmentSize,
+            int parallelism) {
+        this.proxyServer = proxyServer;
+        this.clientConnection = clientConnection;
+        this.serverConnection = serverConnection;
+        this.request = request;
+        this.leadingSegmentSize = leadingSegmentSize;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Limits the request to the leading segment.
+     */
+    void requestLeadingSegment() {
+        request.headers().set(HttpHeaders.Names.RANGE,
+                ByteRange.of(0, leadingSegmentSize - 1, -1).toRangeHeader());
+    }
+
+    /**
+     * Handles the head of the server's response to the leading segment,
+     * turning it into a 200 and starting to fetch the rest of the body if
+     * necessary.
+     * 
+     * @param response
+     * @return false if the server didn't respond with a range that we can use
+     *         (for example because it doesn't support ranges and sent the
+     *         whole body instead), in which case its response should be
+     *         passed on untouched
+     */
+    synchronized boolean start(HttpResponse response) {
+        if (!HttpResponseStatus.PARTIAL_CONTENT.equals(response.getStatus())) {
+            return false;
+        }
+        HttpHeaders headers = response.headers();
+        ByteRange leadingSegment = ByteRange.fromContentRangeHeader(headers
+                .get(HttpHeaders.Names.CONTENT_RANGE));
+        if (leadingSegment == null || leadingSegment.getStart() != 0) {
+            return false;
+        }
+
+        long totalLength = leadingSegment.getTotalLength();
+        leadingETag = headers.get(HttpHeaders.Names.ETAG);
+        leadingLastModified = headers.get(HttpHeaders.Names.LAST_MODIFIED);
+        String validator = ResponseCache.validatorFor(headers);
+        boolean leadingConnectionStaysOpen = HttpHeaders.isKeepAlive(request)
+                && HttpHeaders.isKeepAlive(response);
+        response.setStatus(HttpResponseStatus.OK);
+        headers.remove(HttpHeaders.Names.CONTENT_RANGE);
+        headers.remove(HttpHeaders.Names.TRANSFER_ENCODING);
+        headers.set(HttpHeaders.Names.CONTENT_LENGTH, totalLength);
+
+        long remaining = totalLength - leadingSegment.getLength();
+        if (remaining > 0 && validator == null) {
+            ByteRange rest = ByteRange.of(leadingSegment.getEnd() + 1,
+                    totalLength - 1, totalLength);
+            if (leadingConnectionStaysOpen) {
+                LOG.debug(
+                        "No validator for {}, fetching remaining {} bytes on the same connection",
+                        request.getUri(), remaining);
+                remainder = rest;
+            } else {
+                LOG.debug(
+                        "No validator for {}, fetching remaining {} bytes in one segment",
+                        request.getUri(), remaining);
+                Segment segment = new Segment(rest);
+                segments.add(segment);
+                segment.fetch(serverConnection.getAddress(), null);
+            }
+        } else if (remaining > 0) {
+            int numberOfSegments = (int) Math.max(1, Math.min(
+                    parallelism - 1, remaining / MIN_SEGMENT_SIZE));
+            long segmentSize = (remaining + numberOfSegments - 1)
+                    / numberOfSegments;
+            LOG.debug("Fetching remaining {} bytes of {} in {} segments",
+                    remaining, request.getUri(), numberOfSegments);
+            for (long start = leadingSegment.getEnd() + 1; start < totalLength; start += segmentSize) {
+                Segment segment = new Segment(ByteRange.of(start,
+                        Math.min(start + segmentSize, totalLength) - 1,
+                        totalLength));
+                segments.add(segment);
+                segment.fetch(serverConnection.getAddress(), validator);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether there are segments to stream after the leading one.
+     * 
+     * @return
+     */
+    synchronized boolean hasMoreSegments() {
+        return !segments.isEmpty() || remainder != null;
+    }
+
+    /**
+     * Called once the whole leading segment has been written to the client.
+     */
+    synchronized void leadingSegmentFinished() {
+        currentSegment = 1;
+        if (remainder != null) {
+            requestRemainder();
+        } else {
+            streamReadySegments();
+        }
+    }
+
+    /**
+     * Whether the given request is the one for the rest of the body on the
+     * leading connection, whose response comes back through
+     * {@link #remainderRead(HttpObject)} rather than going to the client as
+     * is.
+     * 
+     * @param httpRequest
+     * @return
+     */
+    synchronized boolean isRemainderRequest(HttpRequest httpRequest) {
+        return httpRequest != null && httpRequest == remainderRequest;
+    }
+
+    /**
+     * Handles part of the server's response to the request for the rest of
+     * the body on the leading connection.
+     * 
+     * @param msg
+     */
+    synchronized void remainderRead(HttpObject msg) {
+        if (done) {
+            return;
+        }
+        if (msg instanceof HttpResponse
+                && !isExpectedResponse((HttpResponse) msg, remainder)) {
+            return;
+        }
+        if (msg instanceof HttpContent) {
+            ByteBuf content = ((HttpContent) msg).content();
+            remainderReceived += content.readableBytes();
+            if (remainderReceived > remainder.getLength()) {
+                fail("Received too much content for " + remainder);
+                return;
+            }
+            if (content.isReadable()) {
+                clientConnection.respondWithSegment(request,
+                        new DefaultHttpContent(content));
+            }
+            if (remainderReceived == remainder.getLength()) {
+                LOG.debug("Finished segmented fetch of {}", request.getUri());
+                done = true;
+                clientConnection.respondWithSegment(request,
+                        LastHttpContent.EMPTY_LAST_CONTENT);
+            } else if (msg instanceof LastHttpContent) {
+                fail("Received incomplete content for " + remainder);
+            }
+        }
+    }
+
+    /**
+     * Called when a {@link ProxyToServerConnection} disconnects. If that's the
+     * one bringing the leading segment and we don't have all of it yet, we'll
+     * never get it.
+     * 
+     * @param disconnected
+     */
+    synchronized void serverDisconnected(ProxyToServerConnection disconnected) {
+        if (disconnected == serverConnection && currentSegment == 0) {
+            fail("Lost connection to server before receiving leading segment");
+        } else if (disconnected == serverConnection && remainderRequest != null) {
+            fail("Lost connection to server before receiving " + remainder);
+        }
+    }
+
+    /**
+     * Stops fetching, for example because the client has gone away.
+     */
+    synchronized void cancel() {
+        if (!done) {
+            done = true;
+            closeSegments();
+        }
+    }
+
+    /**
+     * Streams whatever we have of the current segment to the client, moving
+     * on to the next segment while the current one is complete.
+     */
+    private void streamReadySegments() {
+        while (!done && currentSegment <= segments.size()) {
+            Segment segment = segments.get(currentSegment - 1);
+            segment.flush();
+            if (!segment.isComplete()) {
+                return;
+            }
+            currentSegment += 1;
+        }
+        if (!done) {
+            LOG.debug("Finished segmented fetch of {}", request.getUri());
+            done = true;
+            clientConnection.respondWithSegment(request,
+                    LastHttpContent.EMPTY_LAST_CONTENT);
+        }
+    }
+
+    private void requestRemainder() {
+        remainderRequest = new DefaultHttpRequest(
+                request.getProtocolVersion(), request.getMethod(),
+                request.getUri());
+        remainderRequest.headers().set(request.headers());
+        remainderRequest.headers().set(HttpHeaders.Names.RANGE,
+                remainder.toRangeHeader());
+        LOG.debug("Requesting {} of {}", remainder, request.getUri());
+        clientConnection.fetchingRemainder(remainderRequest, this);
+        serverConnection.write(remainderRequest, request);
+    }
+
+    /**
+     * Checks that the server responded to our request for the given range
+     * with exactly that range of the same version of the resource as the
+     * leading segment, failing the fetch if it didn't.
+     */
+    private boolean isExpectedResponse(HttpResponse response, ByteRange range) {
+        HttpHeaders headers = response.headers();
+        ByteRange contentRange = ByteRange.fromContentRangeHeader(headers
+                .get(HttpHeaders.Names.CONTENT_RANGE));
+        if (!HttpResponseStatus.PARTIAL_CONTENT.equals(response.getStatus())
+                || contentRange == null
+                || contentRange.getStart() != range.getStart()
+                || contentRange.getEnd() != range.getEnd()
+                || contentRange.getTotalLength() != range.getTotalLength()) {
+            fail("Server responded to " + range + " with "
+                    + response.getStatus() + " " + contentRange);
+            return false;
+        }
+        if (!sameAsLeading(leadingETag, headers.get(HttpHeaders.Names.ETAG))
+                || !sameAsLeading(leadingLastModified,
+                        headers.get(HttpHeaders.Names.LAST_MODIFIED))) {
+            fail("Resource changed before we got " + range);
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean sameAsLeading(String leading, String value) {
+        return leading == null || leading.equals(value);
+    }
+
+    private void fail(String reason) {
+        if (done) {
+            return;
+        }
+        LOG.warn("Segmented fetch of {} failed: {}", request.getUri(), reason);
+        done = true;
+        closeSegments();
+        clientConnection.segmentedFetchFailed(request);
+    }
+
+    private void closeSegments() {
+        for (Segment segment : segments) {
+            segment.close();
+        }
+    }
+
+    /**
+     * A segment fetched on a connection of its own.
+     */
+    private class Segment extends SimpleChannelInboundHandler<HttpObject> {
+        private final ByteRange range;
+        private final Queue<ByteBuf> buffered = new LinkedList<ByteBuf>();
+        private volatile Channel channel;
+        private long received = 0;
+        private boolean complete = false;
+
+        private Segment(ByteRange range) {
+            this.range = range;
+        }
+
+        private void fetch(InetSocketAddress address, String validator) {
+            final HttpRequest segmentRequest = new DefaultHttpRequest(
+                    request.getProtocolVersion(), request.getMethod(),
+                    request.getUri());
+            segmentRequest.headers().set(request.headers());
+            segmentRequest.headers().set(HttpHeaders.Names.RANGE,
+                    range.toRangeHeader());
+            if (validator != null) {
+                segmentRequest.headers().set(HttpHeaders.Names.IF_RANGE,
+                        validator);
+            }
+            segmentRequest.headers().set(HttpHeaders.Names.CONNECTION,
+                    HttpHeaders.Values.CLOSE);
+
+            ChannelFuture connectFuture = proxyServer.connectDirectly(
+                    address, this);
+            channel = connectFuture.channel();
+            connectFuture.addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future)
+                        throws Exception {
+                    if (future.isSuccess()) {
+                        future.channel().writeAndFlush(segmentRequest);
+                    } else {
+                        synchronized (SegmentedFetch.this) {
+                            fail("Unable to connect for " + range + ": "
+                                    + future.cause());
+                        }
+                    }
+                }
+            });
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg)
+                throws Exception {
+            synchronized (SegmentedFetch.this) {
+                if (done) {
+                    return;
+                }
+                if (msg instanceof HttpResponse
+                        && !isExpectedResponse((HttpResponse) msg, range)) {
+                    return;
+                }
+                if (msg instanceof HttpContent) {
+                    ByteBuf content = ((HttpContent) msg).content();
+                    received += content.readableBytes();
+                    if (received > range.getLength()) {
+                        fail("Received too much content for " + range);
+                        return;
+                    }
+                    if (content.isReadable()) {
+                        buffered.add(content.retain());
+                    }
+                    if (received == range.getLength()) {
+                        complete = true;
+                        ctx.close();
+                    } else if (msg instanceof LastHttpContent) {
+                        fail("Received incomplete content for " + range);
+                        return;
+                    }
+                    if (isCurrent()) {
+                        streamReadySegments();
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx)
+                throws Exception {
+            synchronized (SegmentedFetch.this) {
+                if (!complete) {
+                    fail("Connection closed before receiving " + range);
+                }
+            }
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt)
+                throws Exception {
+            if (evt instanceof IdleStateEvent) {
+                synchronized (SegmentedFetch.this) {
+                    fail("Timed out waiting for " + range);
+                }
+            }
+            super.userEventTriggered(ctx, evt);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause)
+                throws Exception {
+            synchronized (SegmentedFetch.this) {
+                fail("Error fetching " + range + ": " + cause);
+            }
+        }
+
+        private boolean isCurrent() {
+            return currentSegment > 0
+                    && segments.get(currentSegment - 1) == this;
+        }
+
+        private boolean isComplete() {
+            return complete;
+        }
+
+        /**
+         * Writes everything that we've buffered so far to the client.
+         */
+        private void flush() {
+            ByteBuf content;
+            while ((content = buffered.poll()) != null) {
+                clientConnection.respondWithSegment(request,
+                        new DefaultHttpContent(content));
+                // The write holds its own reference
+                content.release();
+            }
+        }
+
+        private void close() {
+            ByteBuf content;
+            while ((content = buffered.poll()) != null) {
+                content.release();
+            }
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.socks.SocksAddressType;
+import io.netty.handler.codec.socks.SocksAuthRequest;
+import io.netty.handler.codec.socks.SocksAuthRequestDecoder;
+import io.netty.handler.codec.socks.SocksAuthResponse;
+import io.netty.handler.codec.socks.SocksAuthScheme;
+import io.netty.handler.codec.socks.SocksAuthStatus;
+import io.netty.handler.codec.socks.SocksCmdRequest;
+import io.netty.handler.codec.socks.SocksCmdRequestDecoder;
+import io.netty.handler.codec.socks.SocksCmdResponse;
+import io.netty.handler.codec.socks.SocksCmdStatus;
+import io.netty.handler.codec.socks.SocksCmdType;
+import io.netty.handler.codec.socks.SocksInitRequest;
+import io.netty.handler.codec.socks.SocksInitRequestDecoder;
+import io.netty.handler.codec.socks.SocksInitResponse;
+import io.netty.handler.codec.socks.SocksMessageEncoder;
+import io.netty.handler.codec.socks.SocksRequest;
+
+import org.littleshoot.proxy.ProxyAuthenticator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Takes a SOCKS5 client through its handshake, at the front of a
+ * {@link ClientToProxyConnection}'s pipeline.
+ * </p>
+ * 
+ * <p>
+ * Once the client asks us to connect somewhere, we pass that on as an HTTP
+ * CONNECT request, so from then on it's handled just like one: it goes through
+ * the chained proxy (if any), is recorded by the
+ * {@link org.littleshoot.proxy.ActivityTracker}s and ends up as a raw tunnel.
+ * The connection just answers the client in SOCKS rather than HTTP.
+ * </p>
+ * 
+ * <p>
+ * If the proxy has a {@link ProxyAuthenticator}, clients have to log in with
+ * a username and password (RFC 1929). We only support the CONNECT command.
+ * </p>
+ */
+class SocksHandshake extends SimpleChannelInboundHandler<SocksRequest> {
+    private static final Logger LOG = LoggerFactory
+            .getLogger(SocksHandshake.class);
+
+    private final ProxyAuthenticator proxyAuthenticator;
+
+    SocksHandshake(ProxyAuthenticator proxyAuthenticator) {
+        this.proxyAuthenticator = proxyAuthenticator;
+    }
+
+    /**
+     * Adds what we need to read the handshake to the given pipeline, which
+     * must not have anything in it yet.
+     * 
+     * @param pipeline
+     * @param proxyAuthenticator
+     */
+    static void addTo(ChannelPipeline pipeline,
+            ProxyAuthenticator proxyAuthenticator) {
+        pipeline.addLast("socksDecoder", new SocksInitRequestDecoder());
+        pipeline.addLast("socksEncoder", new SocksMessageEncoder());
+        pipeline.addLast("socksHandshake", new SocksHandshake(
+                proxyAuthenticator));
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, SocksRequest request)
+            throws Exception {
+        // The decoders take themselves out of the pipeline once they've read
+        // their message
+        switch (request.requestType()) {
+        case INIT:
+            readInit(ctx, (SocksInitRequest) request);
+            break;
+        case AUTH:
+            readAuth(ctx, (SocksAuthRequest) request);
+            break;
+        case CMD:
+            readCmd(ctx, (SocksCmdRequest) request);
+            break;
+        default:
+            LOG.debug("Closing connection after unknown SOCKS request");
+            ctx.close();
+        }
+    }
+
+    private void readInit(ChannelHandlerContext ctx, SocksInitRequest request) {
+        SocksAuthScheme required = proxyAuthenticator != null ? SocksAuthScheme.AUTH_PASSWORD
+                : SocksAuthScheme.NO_AUTH;
+        if (!request.authSchemes().contains(required)) {
+            LOG.debug("Client doesn't support {}, closing connection",
+                    required);
+            ctx.writeAndFlush(new SocksInitResponse(SocksAuthScheme.UNKNOWN))
+                    .addListener(ChannelFutureListener.CLOSE);
+            return;
+        }
+        if (required == SocksAuthScheme.AUTH_PASSWORD) {
+            ctx.pipeline().addBefore(ctx.name(), "socksDecoder",
+                    new SocksAuthRequestDecoder());
+        } else {
+            ctx.pipeline().addBefore(ctx.name(), "socksDecoder",
+                    new SocksCmdRequestDecoder());
+        }
+        ctx.writeAndFlush(new SocksInitResponse(required));
+    }
+
+    private void readAuth(ChannelHandlerContext ctx, SocksAuthRequest request) {
+        if (!proxyAuthenticator.authenticate(request.username(),
+                request.password())) {
+            LOG.debug("Bad credentials from {}, closing connection",
+                    request.username());
+            ctx.writeAndFlush(new SocksAuthResponse(SocksAuthStatus.FAILURE))
+                    .addListener(ChannelFutureListener.CLOSE);
+            return;
+        }
+        ctx.pipeline().addBefore(ctx.name(), "socksDecoder",
+                new SocksCmdRequestDecoder());
+        ctx.writeAndFlush(new SocksAuthResponse(SocksAuthStatus.SUCCESS));
+    }
+
+    private void readCmd(ChannelHandlerContext ctx, SocksCmdRequest request) {
+        SocksCmdStatus refusal = null;
+        if (request.cmdType() != SocksCmdType.CONNECT) {
+            refusal = SocksCmdStatus.COMMAND_NOT_SUPPORTED;
+        } else if (request.addressType() == SocksAddressType.UNKNOWN) {
+            refusal = SocksCmdStatus.ADDRESS_NOT_SUPPORTED;
+        }
+        if (refusal != null) {
+            LOG.debug("Refusing SOCKS {} to {} with {}", request.cmdType(),
+                    request.host(), refusal);
+            ctx.writeAndFlush(
+                    new SocksCmdResponse(refusal, SocksAddressType.IPv4))
+                    .addListener(ChannelFutureListener.CLOSE);
+            return;
+        }
+
+        // Like HTTP requests, we deal in host:port strings, which need
+        // brackets around IPv6 addresses
+        String host = request.addressType() == SocksAddressType.IPv6 ? "["
+                + request.host() + "]" : request.host();
+        String hostAndPort = host + ":" + request.port();
+        LOG.debug("Client asked to connect to {}", hostAndPort);
+        HttpRequest connect = new DefaultHttpRequest(HttpVersion.HTTP_1_1,
+                HttpMethod.CONNECT, hostAndPort);
+        HttpHeaders.setHost(connect, hostAndPort);
+        ChannelPipeline pipeline = ctx.pipeline();
+        pipeline.remove(this);
+        // The request goes in past the HTTP decoder, as if it had decoded it
+        pipeline.context("decoder").fireChannelRead(connect);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause)
+            throws Exception {
+        LOG.debug("Closing connection after failed SOCKS handshake", cause);
+        ctx.close();
+    }
+}
@@ -0,0 +1,320 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.spdy.DefaultSpdyGoAwayFrame;
+import io.netty.handler.codec.spdy.DefaultSpdyRstStreamFrame;
+import io.netty.handler.codec.spdy.DefaultSpdySettingsFrame;
+import io.netty.handler.codec.spdy.DefaultSpdySynReplyFrame;
+import io.netty.handler.codec.spdy.SpdyDataFrame;
+import io.netty.handler.codec.spdy.SpdyFrame;
+import io.netty.handler.codec.spdy.SpdyGoAwayFrame;
+import io.netty.handler.codec.spdy.SpdyHeaders;
+import io.netty.handler.codec.spdy.SpdyPingFrame;
+import io.netty.handler.codec.spdy.SpdyRstStreamFrame;
+import io.netty.handler.codec.spdy.SpdySettingsFrame;
+import io.netty.handler.codec.spdy.SpdyStreamStatus;
+import io.netty.handler.codec.spdy.SpdySynReplyFrame;
+import io.netty.handler.codec.spdy.SpdySynStreamFrame;
+import io.netty.handler.codec.spdy.SpdyWindowUpdateFrame;
+import io.netty.handler.timeout.IdleStateEvent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Serves a client that talks SPDY/3 to us, so that it can send many requests
+ * at once over a single connection.
+ * </p>
+ * 
+ * <p>
+ * Each stream is handed to a {@link SpdyStreamChannel}, which passes its
+ * request to a {@link ClientToProxyConnection} just like an HTTP/1.1 client
+ * would. Once a stream is done, its {@link SpdyStreamChannel} (along with its
+ * connections to servers) is kept around for the next stream, so we end up
+ * with about as many of them as the client has streams open at a time.
+ * </p>
+ * 
+ * <p>
+ * All of the session's state is only touched on its channel's event loop.
+ * </p>
+ */
+class SpdyClientSession extends SimpleChannelInboundHandler<SpdyFrame> {
+    private static final Logger LOG = LoggerFactory
+            .getLogger(SpdyClientSession.class);
+
+    /**
+     * The number of streams that we let the client have open at once.
+     */
+    static final int MAX_CONCURRENT_STREAMS = 100;
+
+    /**
+     * The window that we give the client for each stream, i.e. how much of a
+     * request body it may send before we've passed any of it on.
+     */
+    static final int RECEIVE_WINDOW_SIZE = SpdyUpstreamSession.DEFAULT_WINDOW_SIZE;
+
+    private final DefaultHttpProxyServer proxyServer;
+    private ChannelHandlerContext ctx;
+
+    private final Map<Integer, SpdyStreamChannel> lanesByStreamId = new HashMap<Integer, SpdyStreamChannel>();
+    private final LinkedList<SpdyStreamChannel> idleLanes = new LinkedList<SpdyStreamChannel>();
+
+    private int lastStreamId = 0;
+    private int initialSendWindowSize = SpdyUpstreamSession.DEFAULT_WINDOW_SIZE;
+    private boolean goingAway = false;
+
+    SpdyClientSession(DefaultHttpProxyServer proxyServer) {
+        this.proxyServer = proxyServer;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+        SpdySettingsFrame settings = new DefaultSpdySettingsFrame();
+        settings.setValue(SpdySettingsFrame.SETTINGS_MAX_CONCURRENT_STREAMS,
+                MAX_CONCURRENT_STREAMS);
+        ctx.writeAndFlush(settings);
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        LOG.debug("SPDY client disconnected");
+        for (SpdyStreamChannel lane : allLanes()) {
+            lane.close();
+        }
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx)
+            throws Exception {
+        // Our lanes are only writable while the client connection is
+        for (SpdyStreamChannel lane : allLanes()) {
+            lane.pipeline().fireChannelWritabilityChanged();
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause)
+            throws Exception {
+        LOG.info("Error on SPDY client connection", cause);
+        ctx.close();
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt)
+            throws Exception {
+        if (evt instanceof IdleStateEvent && lanesByStreamId.isEmpty()) {
+            LOG.debug("Closing idle SPDY client connection");
+            ctx.close();
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, SpdyFrame frame)
+            throws Exception {
+        if (frame instanceof SpdySynStreamFrame) {
+            synStreamReceived((SpdySynStreamFrame) frame);
+        } else if (frame instanceof SpdyDataFrame) {
+            SpdyDataFrame data = (SpdyDataFrame) frame;
+            SpdyStreamChannel lane = lanesByStreamId.get(data.getStreamId());
+            if (lane != null) {
+                lane.dataReceived(data.content(), data.isLast());
+            }
+        } else if (frame instanceof SpdyWindowUpdateFrame) {
+            SpdyWindowUpdateFrame update = (SpdyWindowUpdateFrame) frame;
+            SpdyStreamChannel lane = lanesByStreamId.get(update
+                    .getStreamId());
+            if (lane != null) {
+                lane.windowUpdated(update.getDeltaWindowSize());
+            }
+        } else if (frame instanceof SpdyRstStreamFrame) {
+            SpdyStreamChannel lane = lanesByStreamId
+                    .remove(((SpdyRstStreamFrame) frame).getStreamId());
+            if (lane != null) {
+                LOG.debug("Client reset stream {}", lane.getStreamId());
+                lane.reset();
+            }
+        } else if (frame instanceof SpdySettingsFrame) {
+            SpdySettingsFrame settings = (SpdySettingsFrame) frame;
+            if (settings.isSet(SpdySettingsFrame.SETTINGS_INITIAL_WINDOW_SIZE)) {
+                int windowSize = settings
+                        .getValue(SpdySettingsFrame.SETTINGS_INITIAL_WINDOW_SIZE);
+                int delta = windowSize - initialSendWindowSize;
+                initialSendWindowSize = windowSize;
+                for (SpdyStreamChannel lane : new ArrayList<SpdyStreamChannel>(
+                        lanesByStreamId.values())) {
+                    lane.windowUpdated(delta);
+                }
+            }
+        } else if (frame instanceof SpdyPingFrame) {
+            // Pings from the client have odd ids, and have to be echoed
+            if (((SpdyPingFrame) frame).getId() % 2 == 1) {
+                ctx.writeAndFlush(frame);
+            }
+        } else if (frame instanceof SpdyGoAwayFrame) {
+            LOG.debug("SPDY client going away");
+            goingAway = true;
+            closeIfDone();
+        }
+    }
+
+    private void synStreamReceived(SpdySynStreamFrame frame) {
+        int streamId = frame.getStreamId();
+        if (streamId <= lastStreamId || streamId % 2 == 0) {
+            LOG.info("Invalid stream id from SPDY client: {}", streamId);
+            ctx.writeAndFlush(new DefaultSpdyGoAwayFrame(lastStreamId))
+                    .addListener(ChannelFutureListener.CLOSE);
+            return;
+        }
+        lastStreamId = streamId;
+        if (goingAway || lanesByStreamId.size() >= MAX_CONCURRENT_STREAMS) {
+            ctx.writeAndFlush(new DefaultSpdyRstStreamFrame(streamId,
+                    SpdyStreamStatus.REFUSED_STREAM));
+            return;
+        }
+        HttpRequest request = requestFor(frame);
+        if (request == null) {
+            ctx.writeAndFlush(new DefaultSpdyRstStreamFrame(streamId,
+                    SpdyStreamStatus.PROTOCOL_ERROR));
+            return;
+        }
+        if (HttpMethod.CONNECT.equals(request.getMethod())) {
+            // Tunnels need a connection of their own
+            SpdySynReplyFrame reply = new DefaultSpdySynReplyFrame(streamId);
+            SpdyHeaders.setStatus(SpdyUpstreamSession.SPDY_VERSION, reply,
+                    HttpResponseStatus.METHOD_NOT_ALLOWED);
+            SpdyHeaders.setVersion(SpdyUpstreamSession.SPDY_VERSION, reply,
+                    HttpVersion.HTTP_1_1);
+            reply.setLast(true);
+            ctx.writeAndFlush(reply);
+            return;
+        }
+
+        SpdyStreamChannel lane = idleLanes.poll();
+        if (lane == null) {
+            lane = newLane();
+        }
+        lanesByStreamId.put(streamId, lane);
+        lane.start(streamId, request, frame.isLast(), initialSendWindowSize);
+    }
+
+    private SpdyStreamChannel newLane() {
+        SpdyStreamChannel lane = new SpdyStreamChannel(ctx.channel(), this);
+        // The session itself is encrypted, if at all, and CONNECTs aren't
+        // allowed, so lanes never need SSL sessions of their own
+        new ClientToProxyConnection(proxyServer, null, null, lane.pipeline());
+        ctx.channel().eventLoop().register(lane);
+        return lane;
+    }
+
+    /**
+     * Called by a lane once it's done with a stream, at which point it's
+     * ready for another one.
+     * 
+     * @param lane
+     * @param streamId
+     */
+    void streamFinished(SpdyStreamChannel lane, int streamId) {
+        lanesByStreamId.remove(streamId);
+        idleLanes.add(lane);
+        closeIfDone();
+    }
+
+    /**
+     * Called by a lane once it's closed.
+     * 
+     * @param lane
+     * @param streamId
+     *            the stream that it was carrying, or 0 if none
+     * @param reset
+     *            whether to tell the client that we've abandoned that stream
+     */
+    void laneClosed(SpdyStreamChannel lane, int streamId, boolean reset) {
+        idleLanes.remove(lane);
+        if (streamId != 0 && lanesByStreamId.get(streamId) == lane) {
+            lanesByStreamId.remove(streamId);
+        }
+        if (reset && ctx.channel().isActive()) {
+            ctx.writeAndFlush(new DefaultSpdyRstStreamFrame(streamId,
+                    SpdyStreamStatus.CANCEL));
+        }
+        closeIfDone();
+    }
+
+    private void closeIfDone() {
+        if (goingAway && lanesByStreamId.isEmpty()) {
+            ctx.close();
+        }
+    }
+
+    private List<SpdyStreamChannel> allLanes() {
+        List<SpdyStreamChannel> lanes = new ArrayList<SpdyStreamChannel>(
+                lanesByStreamId.values());
+        lanes.addAll(idleLanes);
+        return lanes;
+    }
+
+    /**
+     * Turns a SYN_STREAM frame into the head of an HTTP/1.1 request.
+     * 
+     * @param frame
+     * @return the request, or null if the frame is missing any of the method,
+     *         URL and version
+     */
+    static HttpRequest requestFor(SpdySynStreamFrame frame) {
+        HttpMethod method;
+        String url;
+        HttpVersion version;
+        try {
+            method = SpdyHeaders.getMethod(SpdyUpstreamSession.SPDY_VERSION,
+                    frame);
+            url = SpdyHeaders.getUrl(SpdyUpstreamSession.SPDY_VERSION, frame);
+            version = SpdyHeaders.getVersion(SpdyUpstreamSession.SPDY_VERSION,
+                    frame);
+        } catch (RuntimeException re) {
+            return null;
+        }
+        if (method == null || url == null || version == null) {
+            return null;
+        }
+        HttpRequest request = new DefaultHttpRequest(version, method, url);
+        for (Map.Entry<String, String> header : frame.headers()) {
+            String name = header.getKey();
+            if (!name.startsWith(":")
+                    && !SpdyUpstreamSession.CONNECTION_HEADERS.contains(name
+                            .toLowerCase(Locale.US))) {
+                request.headers().add(name, header.getValue());
+            }
+        }
+        String host = SpdyHeaders.getHost(frame);
+        if (host != null) {
+            HttpHeaders.setHost(request, host);
+        }
+        if (!frame.isLast() && !HttpHeaders.isContentLengthSet(request)) {
+            // SPDY ends the body with a flag on its last frame. Over HTTP/1.1,
+            // we have to say up front how it ends.
+            HttpHeaders.setTransferEncodingChunked(request);
+        }
+        return request;
+    }
+}
@@ -0,0 +1,376 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.AbstractChannel;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelConfig;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelMetadata;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.DefaultChannelConfig;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.MessageToMessageEncoder;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.spdy.DefaultSpdyDataFrame;
+import io.netty.handler.codec.spdy.DefaultSpdySynReplyFrame;
+import io.netty.handler.codec.spdy.DefaultSpdyWindowUpdateFrame;
+import io.netty.handler.codec.spdy.SpdyDataFrame;
+import io.netty.handler.codec.spdy.SpdyFrame;
+import io.netty.handler.codec.spdy.SpdyHeaders;
+import io.netty.handler.codec.spdy.SpdySynReplyFrame;
+import io.netty.util.ReferenceCountUtil;
+
+import java.net.SocketAddress;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * <p>
+ * A virtual {@link Channel} that carries the streams of a SPDY client
+ * connection (see {@link SpdyClientSession}) to a
+ * {@link ClientToProxyConnection}, one stream at a time. To the
+ * {@link ClientToProxyConnection}, it looks like an HTTP/1.1 connection on
+ * which the client sends one request after the other, so requests take the
+ * same path as they do from any other client, and connections to servers are
+ * kept alive and reused from one stream to the next.
+ * </p>
+ * 
+ * <p>
+ * Requests are read already decoded. Responses are turned into SPDY frames by
+ * the {@link Encoder} in the pipeline, and data frames are only passed on to
+ * the client connection as far as the client's window for the stream allows.
+ * The rest waits in our outbound buffer, which makes us unwritable once it
+ * fills up, so that the {@link ClientToProxyConnection} stops reading from the
+ * server. In the other direction, we only let the client send more of a
+ * request body once the {@link ClientToProxyConnection} has read what it
+ * already sent, so a slow server only holds up the client on that stream.
+ * </p>
+ * 
+ * <p>
+ * The channel is registered with the event loop of the client connection, and
+ * all of its state is only touched there.
+ * </p>
+ */
+class SpdyStreamChannel extends AbstractChannel {
+    private static final ChannelMetadata METADATA = new ChannelMetadata(false);
+
+    private final SpdyClientSession session;
+    private final ChannelConfig config = new DefaultChannelConfig(this);
+    private final Queue<Object> inbound = new LinkedList<Object>();
+    private volatile boolean open = true;
+    private boolean readPending = false;
+
+    private int streamId = 0;
+    private int sendWindow;
+    private int unacknowledged;
+    private boolean finReceived;
+    private boolean finSent;
+
+    SpdyStreamChannel(Channel parent, SpdyClientSession session) {
+        super(parent);
+        this.session = session;
+    }
+
+    /**
+     * Starts carrying the given stream.
+     * 
+     * @param streamId
+     * @param request
+     *            the request that the client opened the stream with
+     * @param last
+     *            whether that's the whole request, i.e. it has no body
+     * @param sendWindow
+     *            the client's initial window for the stream
+     */
+    void start(int streamId, HttpRequest request, boolean last,
+            int sendWindow) {
+        this.streamId = streamId;
+        this.sendWindow = sendWindow;
+        this.unacknowledged = 0;
+        this.finReceived = last;
+        this.finSent = false;
+        received(request);
+        if (last) {
+            received(LastHttpContent.EMPTY_LAST_CONTENT);
+        }
+    }
+
+    /**
+     * The id of the stream that we're carrying, or 0 if we're idle.
+     * 
+     * @return
+     */
+    int getStreamId() {
+        return streamId;
+    }
+
+    /**
+     * Part of the request body has arrived.
+     * 
+     * @param content
+     * @param last
+     */
+    void dataReceived(ByteBuf content, boolean last) {
+        if (finReceived) {
+            return;
+        }
+        content.retain();
+        finReceived = last;
+        received(last ? new DefaultLastHttpContent(content)
+                : new DefaultHttpContent(content));
+        finishIfDone();
+    }
+
+    /**
+     * The client is taking more of the response.
+     * 
+     * @param delta
+     */
+    void windowUpdated(int delta) {
+        sendWindow += delta;
+        flush();
+    }
+
+    /**
+     * The client abandoned the stream, so there's no need to tell it that
+     * we're abandoning it too.
+     */
+    void reset() {
+        finSent = true;
+        close();
+    }
+
+    @Override
+    public ChannelConfig config() {
+        return config;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public boolean isActive() {
+        return open && parent().isActive();
+    }
+
+    @Override
+    public boolean isWritable() {
+        return super.isWritable() && parent().isWritable();
+    }
+
+    @Override
+    public ChannelMetadata metadata() {
+        return METADATA;
+    }
+
+    @Override
+    protected AbstractUnsafe newUnsafe() {
+        return new AbstractUnsafe() {
+            @Override
+            public void connect(SocketAddress remoteAddress,
+                    SocketAddress localAddress, ChannelPromise promise) {
+                promise.setFailure(new UnsupportedOperationException());
+            }
+        };
+    }
+
+    @Override
+    protected boolean isCompatible(EventLoop loop) {
+        return true;
+    }
+
+    @Override
+    protected SocketAddress localAddress0() {
+        return parent().localAddress();
+    }
+
+    @Override
+    protected SocketAddress remoteAddress0() {
+        return parent().remoteAddress();
+    }
+
+    @Override
+    protected void doBind(SocketAddress localAddress) throws Exception {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    protected void doDisconnect() throws Exception {
+        doClose();
+    }
+
+    @Override
+    protected void doClose() throws Exception {
+        if (!open) {
+            return;
+        }
+        open = false;
+        Object msg;
+        while ((msg = inbound.poll()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
+        session.laneClosed(this, streamId, streamId != 0 && !finSent);
+    }
+
+    @Override
+    protected void doBeginRead() throws Exception {
+        readPending = true;
+        deliverInbound();
+    }
+
+    @Override
+    protected void doWrite(ChannelOutboundBuffer in) throws Exception {
+        Channel parent = parent();
+        boolean wrote = false;
+        Object msg;
+        while ((msg = in.current()) != null) {
+            if (msg instanceof SpdyDataFrame) {
+                SpdyDataFrame data = (SpdyDataFrame) msg;
+                ByteBuf content = data.content();
+                if (content.readableBytes() > sendWindow) {
+                    // Send what the client's window allows, and wait for it
+                    // to take more
+                    if (sendWindow > 0) {
+                        parent.write(new DefaultSpdyDataFrame(data
+                                .getStreamId(), content.readSlice(sendWindow)
+                                .retain()));
+                        sendWindow = 0;
+                        wrote = true;
+                    }
+                    break;
+                }
+                sendWindow -= content.readableBytes();
+            }
+            if (msg instanceof SpdyFrame) {
+                parent.write(ReferenceCountUtil.retain(msg));
+                wrote = true;
+                if (isLast(msg)) {
+                    finSent = true;
+                }
+            }
+            in.remove();
+        }
+        if (wrote) {
+            parent.flush();
+        }
+        finishIfDone();
+    }
+
+    private void received(Object msg) {
+        inbound.add(msg);
+        deliverInbound();
+    }
+
+    private void deliverInbound() {
+        boolean delivered = false;
+        Object msg;
+        while (readPending && (msg = inbound.poll()) != null) {
+            int length = msg instanceof HttpContent ? ((HttpContent) msg)
+                    .content().readableBytes() : 0;
+            pipeline().fireChannelRead(msg);
+            readPending = config.isAutoRead();
+            delivered = true;
+            acknowledge(length);
+        }
+        if (delivered) {
+            pipeline().fireChannelReadComplete();
+        }
+    }
+
+    /**
+     * Lets the client send more of the request body once we've read a good
+     * part of its window.
+     */
+    private void acknowledge(int length) {
+        if (length == 0 || finReceived || !isActive()) {
+            return;
+        }
+        unacknowledged += length;
+        if (unacknowledged >= SpdyClientSession.RECEIVE_WINDOW_SIZE / 2) {
+            parent().writeAndFlush(new DefaultSpdyWindowUpdateFrame(streamId,
+                    unacknowledged));
+            unacknowledged = 0;
+        }
+    }
+
+    /**
+     * Once both we and the client are done with the stream, we're ready for
+     * the next one.
+     */
+    private void finishIfDone() {
+        if (streamId != 0 && finSent && finReceived && open) {
+            int finishedStreamId = streamId;
+            streamId = 0;
+            session.streamFinished(this, finishedStreamId);
+        }
+    }
+
+    private static boolean isLast(Object frame) {
+        return (frame instanceof SpdyDataFrame && ((SpdyDataFrame) frame)
+                .isLast())
+                || (frame instanceof SpdySynReplyFrame && ((SpdySynReplyFrame) frame)
+                        .isLast());
+    }
+
+    /**
+     * Turns the response that the {@link ClientToProxyConnection} writes into
+     * frames for the stream that we're carrying.
+     */
+    static class Encoder extends MessageToMessageEncoder<Object> {
+        @Override
+        protected void encode(ChannelHandlerContext ctx, Object msg,
+                List<Object> out) throws Exception {
+            int streamId = ((SpdyStreamChannel) ctx.channel()).getStreamId();
+            if (msg instanceof HttpResponse) {
+                SpdySynReplyFrame reply = replyFor(streamId,
+                        (HttpResponse) msg);
+                out.add(reply);
+                if (msg instanceof LastHttpContent
+                        && !((LastHttpContent) msg).content().isReadable()) {
+                    reply.setLast(true);
+                    return;
+                }
+            }
+            if (msg instanceof HttpContent) {
+                SpdyDataFrame data = new DefaultSpdyDataFrame(streamId,
+                        ((HttpContent) msg).content().retain());
+                data.setLast(msg instanceof LastHttpContent);
+                out.add(data);
+            } else if (msg instanceof ByteBuf && ((ByteBuf) msg).isReadable()) {
+                // e.g. from a ChunkedWriteHandler
+                out.add(new DefaultSpdyDataFrame(streamId, ((ByteBuf) msg)
+                        .retain()));
+            } else if (!(msg instanceof HttpResponse)) {
+                // Empty buffers just mark the end of a write, pass them on
+                out.add(ReferenceCountUtil.retain(msg));
+            }
+        }
+
+        private static SpdySynReplyFrame replyFor(int streamId,
+                HttpResponse response) {
+            SpdySynReplyFrame reply = new DefaultSpdySynReplyFrame(streamId);
+            for (Map.Entry<String, String> header : response.headers()) {
+                String name = header.getKey().toLowerCase(Locale.US);
+                if (!SpdyUpstreamSession.CONNECTION_HEADERS.contains(name)) {
+                    reply.headers().add(name, header.getValue());
+                }
+            }
+            SpdyHeaders.setStatus(SpdyUpstreamSession.SPDY_VERSION, reply,
+                    response.getStatus());
+            SpdyHeaders.setVersion(SpdyUpstreamSession.SPDY_VERSION, reply,
+                    response.getProtocolVersion());
+            return reply;
+        }
+    }
+}
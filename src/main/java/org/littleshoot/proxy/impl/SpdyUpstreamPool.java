@@ -0,0 +1,340 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.channel.udt.nio.NioUdtProvider;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.spdy.SpdyFrameCodec;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.commons.lang3.StringUtils;
+import org.littleshoot.proxy.AdvancedChainedProxyManager;
+import org.littleshoot.proxy.TransportProtocol;
+import org.littleshoot.proxy.UnknownTransportProtocolError;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Keeps a few {@link SpdyUpstreamSession}s open to each server that we know
+ * speaks SPDY, and spreads requests from all of our clients over them as
+ * streams. So instead of one connection per request in flight, a busy server
+ * only sees a handful of connections from us.
+ * </p>
+ * 
+ * <p>
+ * We use SPDY/3 in place of HTTP/2, which our version of Netty doesn't
+ * implement, with prior knowledge over plain TCP, since there's no ALPN (or
+ * NPN) in the JDK that we build against to negotiate it over TLS. Only the
+ * servers that we've been told about are contacted this way.
+ * </p>
+ * 
+ * <p>
+ * A request goes to the server's least loaded session. Another session is
+ * only opened once all of them are full (i.e. at the server's limit of
+ * concurrent streams) and we have fewer than the maximum per server. Failing
+ * that, the stream waits in the least loaded session until it can be opened.
+ * </p>
+ * 
+ * <p>
+ * We also use this for the link to a chained proxy that's a LittleProxy
+ * listening for SPDY clients (see
+ * {@link AdvancedChainedProxyManager#getMultiplexedHostAndPort(HttpRequest)}). Since
+ * both ends are ours, that link can use UDT and TLS, without needing to
+ * negotiate SPDY.
+ * </p>
+ */
+class SpdyUpstreamPool {
+    private static final Logger LOG = LoggerFactory
+            .getLogger(SpdyUpstreamPool.class);
+
+    private final DefaultHttpProxyServer proxyServer;
+    private final Set<String> origins;
+    private final int connectionsPerOrigin;
+    private final int idleConnectionTimeout;
+
+    private final Map<String, List<SpdyUpstreamSession>> sessionsByKey = new HashMap<String, List<SpdyUpstreamSession>>();
+
+    private final AtomicLong sessionsOpened = new AtomicLong(0);
+    private final AtomicLong streamsOpened = new AtomicLong(0);
+
+    /**
+     * Construct a new {@link SpdyUpstreamPool}.
+     * 
+     * @param proxyServer
+     *            the server, whose event loops, UDT options and SSL session
+     *            cache our connections use
+     * @param origins
+     *            the host:ports of the servers that speak SPDY
+     * @param connectionsPerOrigin
+     *            the maximum number of connections to open to each of them
+     * @param idleConnectionTimeout
+     *            how long (in seconds) to keep connections without any streams
+     *            open
+     */
+    SpdyUpstreamPool(DefaultHttpProxyServer proxyServer,
+            Collection<String> origins, int connectionsPerOrigin,
+            int idleConnectionTimeout) {
+        this.proxyServer = proxyServer;
+        this.origins = new HashSet<String>();
+        for (String origin : origins) {
+            this.origins.add(normalize(origin));
+        }
+        this.connectionsPerOrigin = Math.max(1, connectionsPerOrigin);
+        this.idleConnectionTimeout = idleConnectionTimeout;
+    }
+
+    /**
+     * Whether we talk SPDY to the given server.
+     * 
+     * @param hostAndPort
+     * @return
+     */
+    boolean isSpdyOrigin(String hostAndPort) {
+        return origins.contains(normalize(hostAndPort));
+    }
+
+    /**
+     * Sends a request to the given server on a new stream.
+     * 
+     * @param hostAndPort
+     *            the server
+     * @param request
+     *            the request, with its URI stripped of the host
+     * @param hasBody
+     *            whether the request has a body to follow
+     * @param listener
+     *            receives the response
+     * @return the stream
+     */
+    SpdyUpstreamSession.Stream open(String hostAndPort, HttpRequest request,
+            boolean hasBody, SpdyUpstreamSession.Listener listener) {
+        return open(hostAndPort, TransportProtocol.TCP, null, request, hasBody,
+                listener);
+    }
+
+    /**
+     * Sends a request to the given server or chained proxy on a new stream,
+     * over a connection with the given transport and encryption.
+     * 
+     * @param hostAndPort
+     *            the server or chained proxy
+     * @param transportProtocol
+     *            the transport for our connections to it
+     * @param sslContext
+     *            (optional) if given, our connections to it are encrypted with
+     *            this
+     * @param request
+     *            the request, with its URI stripped of the host
+     * @param hasBody
+     *            whether the request has a body to follow
+     * @param listener
+     *            receives the response
+     * @return the stream
+     */
+    SpdyUpstreamSession.Stream open(String hostAndPort,
+            TransportProtocol transportProtocol, SSLContext sslContext,
+            HttpRequest request, boolean hasBody,
+            SpdyUpstreamSession.Listener listener) {
+        streamsOpened.incrementAndGet();
+        return sessionFor(normalize(hostAndPort), transportProtocol,
+                sslContext).open(request, hasBody, listener);
+    }
+
+    /**
+     * The number of connections that we've opened so far.
+     * 
+     * @return
+     */
+    long getSessionsOpened() {
+        return sessionsOpened.get();
+    }
+
+    /**
+     * The number of requests that we've sent so far.
+     * 
+     * @return
+     */
+    long getStreamsOpened() {
+        return streamsOpened.get();
+    }
+
+    /**
+     * The number of connections that are currently open (or opening) to the
+     * given server.
+     * 
+     * @param hostAndPort
+     * @return
+     */
+    synchronized int getSessionCount(String hostAndPort) {
+        List<SpdyUpstreamSession> sessions = sessionsByKey
+                .get(normalize(hostAndPort));
+        return sessions == null ? 0 : sessions.size();
+    }
+
+    /**
+     * Closes all of our connections.
+     */
+    synchronized void stop() {
+        for (List<SpdyUpstreamSession> sessions : sessionsByKey
+                .values()) {
+            for (SpdyUpstreamSession session : sessions) {
+                session.close();
+            }
+        }
+        sessionsByKey.clear();
+    }
+
+    /**
+     * Called by a session once it stops taking new streams.
+     * 
+     * @param session
+     */
+    synchronized void sessionClosing(SpdyUpstreamSession session) {
+        for (List<SpdyUpstreamSession> sessions : sessionsByKey
+                .values()) {
+            sessions.remove(session);
+        }
+    }
+
+    private synchronized SpdyUpstreamSession sessionFor(String hostAndPort,
+            TransportProtocol transportProtocol, SSLContext sslContext) {
+        String key = keyFor(hostAndPort, transportProtocol, sslContext);
+        List<SpdyUpstreamSession> sessions = sessionsByKey.get(key);
+        if (sessions == null) {
+            sessions = new ArrayList<SpdyUpstreamSession>();
+            sessionsByKey.put(key, sessions);
+        }
+        SpdyUpstreamSession leastLoaded = null;
+        for (SpdyUpstreamSession session : sessions) {
+            if (!session.isClosing()
+                    && (leastLoaded == null || session.getLoad() < leastLoaded
+                            .getLoad())) {
+                leastLoaded = session;
+            }
+        }
+        if (leastLoaded == null
+                || (leastLoaded.isFull() && sessions.size() < connectionsPerOrigin)) {
+            SpdyUpstreamSession session = connect(hostAndPort,
+                    transportProtocol, sslContext);
+            sessions.add(session);
+            return session;
+        }
+        return leastLoaded;
+    }
+
+    private SpdyUpstreamSession connect(String hostAndPort,
+            final TransportProtocol transportProtocol,
+            final SSLContext sslContext) {
+        LOG.debug("Opening SPDY session with {} over {}", hostAndPort,
+                transportProtocol);
+        sessionsOpened.incrementAndGet();
+        final SpdyUpstreamSession session = new SpdyUpstreamSession(this,
+                hostAndPort);
+        final String host = StringUtils.substringBefore(hostAndPort, ":");
+        final int port = Integer.parseInt(StringUtils.substringAfter(
+                hostAndPort, ":"));
+        Bootstrap cb = new Bootstrap().group(
+                proxyServer.getProxyToServerWorkerFor(transportProtocol))
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 40 * 1000);
+        switch (transportProtocol) {
+        case TCP:
+            cb.channel(NioSocketChannel.class).option(
+                    ChannelOption.TCP_NODELAY, true);
+            break;
+        case UDT:
+            cb.channelFactory(NioUdtProvider.BYTE_CONNECTOR).option(
+                    ChannelOption.SO_REUSEADDR, true);
+            break;
+        default:
+            throw new UnknownTransportProtocolError(transportProtocol);
+        }
+        session.connecting(cb.handler(new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) throws Exception {
+                if (transportProtocol == TransportProtocol.UDT) {
+                    proxyServer.getUdtOptions().apply(ch);
+                }
+                ChannelPipeline pipeline = ch.pipeline();
+                pipeline.addLast("spdyCodec", new SpdyFrameCodec(
+                        SpdyUpstreamSession.SPDY_VERSION));
+                pipeline.addLast("idle", new IdleStateHandler(0, 0,
+                        idleConnectionTimeout));
+                pipeline.addLast("session", session);
+                if (sslContext != null) {
+                    encrypt(pipeline, sslContext, host, port);
+                }
+            }
+        }).connect(new InetSocketAddress(host, port)));
+        return session;
+    }
+
+    /**
+     * Encrypts a new connection, resuming an earlier SSL session with the same
+     * peer if we can. Anything the session writes before the handshake is done
+     * waits for it.
+     */
+    private void encrypt(ChannelPipeline pipeline, SSLContext sslContext,
+            String host, int port) {
+        final SslSessionCache sslSessionCache = proxyServer
+                .getSslSessionCache();
+        final long handshakeStartedAt = System.currentTimeMillis();
+        proxyServer.getSslHandshakeExecutor()
+                .encrypt(pipeline,
+                        sslSessionCache.newClientEngine(sslContext, host, port))
+                .addListener(new GenericFutureListener<Future<Channel>>() {
+                    @Override
+                    public void operationComplete(Future<Channel> future)
+                            throws Exception {
+                        if (future.isSuccess()) {
+                            SslHandler handler = future.getNow().pipeline()
+                                    .get(SslHandler.class);
+                            sslSessionCache.handshakeCompleted(handler
+                                    .engine().getSession(), handshakeStartedAt);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * The key for the sessions to the given peer with the given transport and
+     * encryption, which for plain TCP is just its host and port.
+     */
+    private static String keyFor(String hostAndPort,
+            TransportProtocol transportProtocol, SSLContext sslContext) {
+        if (transportProtocol == TransportProtocol.TCP && sslContext == null) {
+            return hostAndPort;
+        }
+        return transportProtocol + (sslContext != null ? "+TLS" : "") + "://"
+                + hostAndPort;
+    }
+
+    /**
+     * Puts a host and port into the form we key our sessions by, filling in
+     * port 80 if there isn't one.
+     */
+    private static String normalize(String hostAndPort) {
+        String normalized = hostAndPort.trim().toLowerCase(Locale.US);
+        return normalized.contains(":") ? normalized : normalized + ":80";
+    }
+}
@@ -0,0 +1,711 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.spdy.DefaultSpdyDataFrame;
+import io.netty.handler.codec.spdy.DefaultSpdyRstStreamFrame;
+import io.netty.handler.codec.spdy.DefaultSpdySettingsFrame;
+import io.netty.handler.codec.spdy.DefaultSpdySynStreamFrame;
+import io.netty.handler.codec.spdy.DefaultSpdyWindowUpdateFrame;
+import io.netty.handler.codec.spdy.SpdyDataFrame;
+import io.netty.handler.codec.spdy.SpdyFrame;
+import io.netty.handler.codec.spdy.SpdyGoAwayFrame;
+import io.netty.handler.codec.spdy.SpdyHeaders;
+import io.netty.handler.codec.spdy.SpdyPingFrame;
+import io.netty.handler.codec.spdy.SpdyRstStreamFrame;
+import io.netty.handler.codec.spdy.SpdySettingsFrame;
+import io.netty.handler.codec.spdy.SpdyStreamStatus;
+import io.netty.handler.codec.spdy.SpdySynReplyFrame;
+import io.netty.handler.codec.spdy.SpdySynStreamFrame;
+import io.netty.handler.codec.spdy.SpdyWindowUpdateFrame;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * A SPDY/3 connection to an upstream server, carrying many requests at once as
+ * separate streams.
+ * </p>
+ * 
+ * <p>
+ * Netty takes care of the framing and header compression, but we manage the
+ * streams ourselves rather than using Netty's SpdySessionHandler, which
+ * acknowledges received data as soon as it arrives. We only acknowledge data
+ * (with a WINDOW_UPDATE) once the {@link Listener} has passed it on, so a slow
+ * client only holds up the server's sending on its own stream. Likewise,
+ * request bodies are only sent as far as the server's window for that stream
+ * allows, with the {@link Listener} told to stop and resume sending more.
+ * </p>
+ * 
+ * <p>
+ * All of the session's state is only touched on its channel's event loop.
+ * </p>
+ */
+class SpdyUpstreamSession extends SimpleChannelInboundHandler<SpdyFrame> {
+    private static final Logger LOG = LoggerFactory
+            .getLogger(SpdyUpstreamSession.class);
+
+    static final int SPDY_VERSION = 3;
+
+    /**
+     * The window size for each stream until the peer says otherwise.
+     */
+    static final int DEFAULT_WINDOW_SIZE = 64 * 1024;
+
+    /**
+     * The window that we give the server for each stream, i.e. how much of a
+     * response it may send before the client has taken any of it.
+     */
+    static final int RECEIVE_WINDOW_SIZE = 256 * 1024;
+
+    /**
+     * Request and response headers that only mean something to a single
+     * HTTP/1.1 connection, which SPDY doesn't allow.
+     */
+    static final Set<String> CONNECTION_HEADERS = new HashSet<String>(
+            Arrays.asList(new String[] { "connection", "keep-alive",
+                    "proxy-connection", "transfer-encoding", "host",
+                    "upgrade" }));
+
+    /**
+     * Receives the response to a request, and is told when to hold off on
+     * sending its body.
+     */
+    interface Listener {
+        /**
+         * The head of the response has arrived.
+         * 
+         * @param response
+         */
+        void responseReceived(HttpResponse response);
+
+        /**
+         * Part of the response body has arrived. The last part is always a
+         * {@link LastHttpContent}.
+         * 
+         * @param chunk
+         *            the content, which the {@link Listener} now owns
+         * @return a future for when the content has been passed on, at which
+         *         point we let the server send more
+         */
+        Future<?> contentReceived(HttpContent chunk);
+
+        /**
+         * The stream failed before the whole response arrived.
+         * 
+         * @param cause
+         */
+        void failed(Throwable cause);
+
+        /**
+         * The server isn't taking any more of the request body for now.
+         */
+        void sendWindowExhausted();
+
+        /**
+         * The server is taking request body again after
+         * {@link #sendWindowExhausted()}.
+         */
+        void sendWindowAvailable();
+    }
+
+    private final SpdyUpstreamPool pool;
+    private final String hostAndPort;
+    private volatile Channel channel;
+
+    private final Map<Integer, Stream> streams = new HashMap<Integer, Stream>();
+
+    /**
+     * Streams that we can't open yet, because we're still connecting or the
+     * server doesn't allow any more concurrent streams.
+     */
+    private final Queue<Stream> waiting = new LinkedList<Stream>();
+
+    /**
+     * The number of streams that are open or waiting to be, which the pool
+     * reads from other threads.
+     */
+    private final AtomicInteger load = new AtomicInteger(0);
+
+    private volatile int maxConcurrentStreams = Integer.MAX_VALUE;
+    private volatile boolean closing = false;
+    private int initialSendWindowSize = DEFAULT_WINDOW_SIZE;
+    private int nextStreamId = 1;
+
+    /**
+     * Construct a new {@link SpdyUpstreamSession}.
+     * 
+     * @param pool
+     *            the pool that this session belongs to
+     * @param hostAndPort
+     *            the server, used for the :host of requests that don't have a
+     *            Host header
+     */
+    SpdyUpstreamSession(SpdyUpstreamPool pool, String hostAndPort) {
+        this.pool = pool;
+        this.hostAndPort = hostAndPort;
+    }
+
+    /**
+     * Tells us how the connection attempt for this session went.
+     * 
+     * @param connectFuture
+     */
+    void connecting(ChannelFuture connectFuture) {
+        this.channel = connectFuture.channel();
+        connectFuture.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future)
+                    throws Exception {
+                if (!future.isSuccess()) {
+                    LOG.info("Unable to connect to {} for SPDY: {}",
+                            hostAndPort, future.cause());
+                    closed(future.cause());
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts a request on a new stream.
+     * 
+     * @param request
+     *            the request, with its URI stripped of the host
+     * @param hasBody
+     *            whether the request has a body to follow with
+     *            {@link Stream#write(HttpContent)}
+     * @param listener
+     *            receives the response
+     * @return the stream
+     */
+    Stream open(HttpRequest request, boolean hasBody, Listener listener) {
+        final Stream stream = new Stream(request, hasBody, listener);
+        load.incrementAndGet();
+        channel.eventLoop().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (closing || !channel.isRegistered()) {
+                    stream.fail(new ClosedChannelException());
+                } else if (!channel.isActive()
+                        || streams.size() >= maxConcurrentStreams) {
+                    waiting.add(stream);
+                } else {
+                    stream.start();
+                }
+            }
+        });
+        return stream;
+    }
+
+    /**
+     * The number of streams that are open or waiting to be opened.
+     * 
+     * @return
+     */
+    int getLoad() {
+        return load.get();
+    }
+
+    /**
+     * Whether the server would have us wait before opening another stream.
+     * 
+     * @return
+     */
+    boolean isFull() {
+        return load.get() >= maxConcurrentStreams;
+    }
+
+    /**
+     * Whether this session is shutting down and shouldn't be given new streams.
+     * 
+     * @return
+     */
+    boolean isClosing() {
+        return closing;
+    }
+
+    void close() {
+        closing = true;
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        LOG.debug("Opened SPDY session with {}", hostAndPort);
+        SpdySettingsFrame settings = new DefaultSpdySettingsFrame();
+        settings.setValue(SpdySettingsFrame.SETTINGS_INITIAL_WINDOW_SIZE,
+                RECEIVE_WINDOW_SIZE);
+        ctx.writeAndFlush(settings);
+        startWaitingStreams();
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        LOG.debug("SPDY session with {} closed", hostAndPort);
+        closed(new ClosedChannelException());
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause)
+            throws Exception {
+        LOG.info("Error on SPDY session with " + hostAndPort, cause);
+        ctx.close();
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt)
+            throws Exception {
+        if (evt instanceof IdleStateEvent && streams.isEmpty()
+                && waiting.isEmpty()) {
+            LOG.debug("Closing idle SPDY session with {}", hostAndPort);
+            close();
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, SpdyFrame frame)
+            throws Exception {
+        if (frame instanceof SpdyDataFrame) {
+            SpdyDataFrame data = (SpdyDataFrame) frame;
+            Stream stream = streams.get(data.getStreamId());
+            if (stream != null) {
+                stream.dataReceived(data.content(), data.isLast());
+            }
+        } else if (frame instanceof SpdySynReplyFrame) {
+            SpdySynReplyFrame reply = (SpdySynReplyFrame) frame;
+            Stream stream = streams.get(reply.getStreamId());
+            if (stream != null) {
+                stream.replyReceived(reply);
+            }
+        } else if (frame instanceof SpdyWindowUpdateFrame) {
+            SpdyWindowUpdateFrame update = (SpdyWindowUpdateFrame) frame;
+            Stream stream = streams.get(update.getStreamId());
+            if (stream != null) {
+                stream.sendWindow += update.getDeltaWindowSize();
+                stream.sendPendingContent();
+            }
+        } else if (frame instanceof SpdyRstStreamFrame) {
+            SpdyRstStreamFrame reset = (SpdyRstStreamFrame) frame;
+            Stream stream = streams.get(reset.getStreamId());
+            if (stream != null) {
+                stream.fail(new IOException("Server reset stream: "
+                        + reset.getStatus()));
+            }
+        } else if (frame instanceof SpdySettingsFrame) {
+            settingsReceived((SpdySettingsFrame) frame);
+        } else if (frame instanceof SpdyPingFrame) {
+            // Pings from the server have even ids, and have to be echoed
+            if (((SpdyPingFrame) frame).getId() % 2 == 0) {
+                ctx.writeAndFlush(frame);
+            }
+        } else if (frame instanceof SpdyGoAwayFrame) {
+            goAwayReceived(((SpdyGoAwayFrame) frame).getLastGoodStreamId());
+        } else if (frame instanceof SpdySynStreamFrame) {
+            // We don't accept pushed streams
+            ctx.writeAndFlush(new DefaultSpdyRstStreamFrame(
+                    ((SpdySynStreamFrame) frame).getStreamId(),
+                    SpdyStreamStatus.REFUSED_STREAM));
+        }
+    }
+
+    private void settingsReceived(SpdySettingsFrame settings) {
+        if (settings.isSet(SpdySettingsFrame.SETTINGS_MAX_CONCURRENT_STREAMS)) {
+            maxConcurrentStreams = settings
+                    .getValue(SpdySettingsFrame.SETTINGS_MAX_CONCURRENT_STREAMS);
+        }
+        if (settings.isSet(SpdySettingsFrame.SETTINGS_INITIAL_WINDOW_SIZE)) {
+            int windowSize = settings
+                    .getValue(SpdySettingsFrame.SETTINGS_INITIAL_WINDOW_SIZE);
+            int delta = windowSize - initialSendWindowSize;
+            initialSendWindowSize = windowSize;
+            for (Stream stream : new ArrayList<Stream>(streams.values())) {
+                stream.sendWindow += delta;
+                stream.sendPendingContent();
+            }
+        }
+        startWaitingStreams();
+    }
+
+    /**
+     * The server is going away, and won't process any streams after the given
+     * one.
+     * 
+     * @param lastGoodStreamId
+     */
+    private void goAwayReceived(int lastGoodStreamId) {
+        LOG.debug("SPDY session with {} going away", hostAndPort);
+        closing = true;
+        pool.sessionClosing(this);
+        for (Stream stream : new ArrayList<Stream>(streams.values())) {
+            if (stream.id > lastGoodStreamId) {
+                stream.fail(new IOException("Server refused stream"));
+            }
+        }
+        failWaitingStreams(new IOException("Server is going away"));
+        closeIfDone();
+    }
+
+    private void closed(Throwable cause) {
+        closing = true;
+        pool.sessionClosing(this);
+        for (Stream stream : new ArrayList<Stream>(streams.values())) {
+            stream.fail(cause);
+        }
+        failWaitingStreams(cause);
+    }
+
+    private void failWaitingStreams(Throwable cause) {
+        Stream stream;
+        while ((stream = waiting.poll()) != null) {
+            stream.fail(cause);
+        }
+    }
+
+    private void startWaitingStreams() {
+        while (!closing && streams.size() < maxConcurrentStreams
+                && !waiting.isEmpty()) {
+            waiting.poll().start();
+        }
+    }
+
+    private void closeIfDone() {
+        if (closing && streams.isEmpty() && waiting.isEmpty()) {
+            channel.close();
+        }
+    }
+
+    /**
+     * A single request and its response.
+     */
+    class Stream {
+        private final HttpRequest request;
+        private final boolean hasBody;
+        private final Listener listener;
+        private final Queue<ByteBuf> pendingContent = new LinkedList<ByteBuf>();
+        private int id = 0;
+        private int sendWindow;
+        private boolean requestComplete;
+        private boolean finSent = false;
+        private boolean sendBlocked = false;
+        private int unacknowledged = 0;
+        private boolean done = false;
+
+        private Stream(HttpRequest request, boolean hasBody, Listener listener) {
+            this.request = request;
+            this.hasBody = hasBody;
+            this.listener = listener;
+            this.requestComplete = !hasBody;
+        }
+
+        /**
+         * Sends part of the request body. Anything after the first
+         * {@link LastHttpContent}, and anything written to a request without a
+         * body, is ignored.
+         * 
+         * @param chunk
+         */
+        void write(HttpContent chunk) {
+            final ByteBuf content = chunk.content().retain();
+            final boolean last = chunk instanceof LastHttpContent;
+            channel.eventLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (done || requestComplete) {
+                        content.release();
+                        return;
+                    }
+                    pendingContent.add(content);
+                    requestComplete = last;
+                    sendPendingContent();
+                }
+            });
+        }
+
+        /**
+         * Abandons the stream, e.g. because the client went away.
+         */
+        void cancel() {
+            channel.eventLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!done) {
+                        LOG.debug("Cancelling SPDY stream {}", id);
+                        finish(SpdyStreamStatus.CANCEL);
+                    }
+                }
+            });
+        }
+
+        private void start() {
+            if (nextStreamId < 0) {
+                // We've run out of stream ids, time for a new session
+                closing = true;
+                pool.sessionClosing(SpdyUpstreamSession.this);
+                fail(new IOException("Out of stream ids"));
+                closeIfDone();
+                return;
+            }
+            id = nextStreamId;
+            nextStreamId += 2;
+            sendWindow = initialSendWindowSize;
+            streams.put(id, this);
+            finSent = !hasBody;
+            channel.writeAndFlush(synStreamFor(id, request, hostAndPort,
+                    !hasBody));
+            sendPendingContent();
+        }
+
+        /**
+         * Sends as much of the request body as the server's window allows.
+         */
+        private void sendPendingContent() {
+            if (id == 0 || done || finSent) {
+                return;
+            }
+            boolean wrote = false;
+            while (!pendingContent.isEmpty()) {
+                ByteBuf content = pendingContent.peek();
+                int length = Math.min(content.readableBytes(),
+                        Math.max(sendWindow, 0));
+                if (length == 0 && content.isReadable()) {
+                    break;
+                }
+                boolean allSent = length == content.readableBytes();
+                boolean last = allSent && requestComplete
+                        && pendingContent.size() == 1;
+                SpdyDataFrame frame = new DefaultSpdyDataFrame(id,
+                        content.readSlice(length).retain());
+                frame.setLast(last);
+                channel.write(frame);
+                wrote = true;
+                sendWindow -= length;
+                if (allSent) {
+                    pendingContent.poll().release();
+                }
+                if (last) {
+                    finSent = true;
+                }
+            }
+            if (wrote) {
+                channel.flush();
+            }
+
+            boolean blocked = !pendingContent.isEmpty();
+            if (blocked != sendBlocked) {
+                sendBlocked = blocked;
+                if (blocked) {
+                    listener.sendWindowExhausted();
+                } else {
+                    listener.sendWindowAvailable();
+                }
+            }
+        }
+
+        private void replyReceived(SpdySynReplyFrame reply) {
+            HttpResponse response = responseFor(reply, request.getMethod());
+            if (response == null) {
+                LOG.info("Invalid SPDY reply from {}: {}", hostAndPort, reply);
+                fail(new IOException("Invalid reply"));
+                return;
+            }
+            listener.responseReceived(response);
+            if (reply.isLast()) {
+                listener.contentReceived(LastHttpContent.EMPTY_LAST_CONTENT);
+                finish(null);
+            }
+        }
+
+        private void dataReceived(ByteBuf content, boolean last) {
+            final int length = content.readableBytes();
+            content.retain();
+            HttpContent chunk = last ? new DefaultLastHttpContent(content)
+                    : new DefaultHttpContent(content);
+            Future<?> passedOn = listener.contentReceived(chunk);
+            if (last) {
+                finish(null);
+            } else if (length > 0) {
+                passedOn.addListener(new GenericFutureListener<Future<Object>>() {
+                    @Override
+                    public void operationComplete(Future<Object> future)
+                            throws Exception {
+                        acknowledge(length);
+                    }
+                });
+            }
+        }
+
+        /**
+         * Lets the server know that the given number of bytes have been passed
+         * on, once that adds up to a good part of the window.
+         */
+        private void acknowledge(final int length) {
+            channel.eventLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (done) {
+                        return;
+                    }
+                    unacknowledged += length;
+                    if (unacknowledged >= RECEIVE_WINDOW_SIZE / 2) {
+                        channel.writeAndFlush(new DefaultSpdyWindowUpdateFrame(
+                                id, unacknowledged));
+                        unacknowledged = 0;
+                    }
+                }
+            });
+        }
+
+        private void fail(Throwable cause) {
+            if (!done) {
+                finish(SpdyStreamStatus.CANCEL);
+                listener.failed(cause);
+            }
+        }
+
+        /**
+         * Cleans up after the stream, resetting it if it isn't finished on our
+         * side or the server's.
+         * 
+         * @param status
+         *            how to reset the stream if the server isn't done, or null
+         *            if it is
+         */
+        private void finish(SpdyStreamStatus status) {
+            if (done) {
+                return;
+            }
+            done = true;
+            load.decrementAndGet();
+            ByteBuf content;
+            while ((content = pendingContent.poll()) != null) {
+                content.release();
+            }
+            if (id == 0) {
+                waiting.remove(this);
+                return;
+            }
+            if ((status != null || !finSent) && channel.isActive()) {
+                channel.writeAndFlush(new DefaultSpdyRstStreamFrame(id,
+                        status != null ? status : SpdyStreamStatus.CANCEL));
+            }
+            streams.remove(id);
+            startWaitingStreams();
+            closeIfDone();
+        }
+    }
+
+    /**
+     * Turns an HTTP request into a SYN_STREAM frame.
+     * 
+     * @param streamId
+     * @param request
+     * @param defaultHost
+     *            the :host to use if the request has no Host header
+     * @param last
+     *            whether the request has no body
+     * @return
+     */
+    static SpdySynStreamFrame synStreamFor(int streamId, HttpRequest request,
+            String defaultHost, boolean last) {
+        SpdySynStreamFrame frame = new DefaultSpdySynStreamFrame(streamId, 0,
+                (byte) 0);
+        frame.setLast(last);
+        for (Map.Entry<String, String> header : request.headers()) {
+            String name = header.getKey().toLowerCase(Locale.US);
+            if (!CONNECTION_HEADERS.contains(name)) {
+                frame.headers().add(name, header.getValue());
+            }
+        }
+        SpdyHeaders.setMethod(SPDY_VERSION, frame, request.getMethod());
+        SpdyHeaders.setUrl(SPDY_VERSION, frame,
+                ProxyUtils.stripHost(request.getUri()));
+        SpdyHeaders.setVersion(SPDY_VERSION, frame,
+                request.getProtocolVersion());
+        SpdyHeaders.setHost(frame, HttpHeaders.getHost(request, defaultHost));
+        SpdyHeaders.setScheme(SPDY_VERSION, frame, "http");
+        return frame;
+    }
+
+    /**
+     * Turns a SYN_REPLY frame into the head of an HTTP/1.1 response.
+     * 
+     * @param reply
+     * @param method
+     *            the method of the request that this is the reply to
+     * @return the response, or null if the reply is missing its status
+     */
+    static HttpResponse responseFor(SpdySynReplyFrame reply, HttpMethod method) {
+        HttpResponseStatus status;
+        try {
+            status = SpdyHeaders.getStatus(SPDY_VERSION, reply);
+        } catch (RuntimeException re) {
+            status = null;
+        }
+        if (status == null) {
+            return null;
+        }
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1,
+                status);
+        for (Map.Entry<String, String> header : reply.headers()) {
+            String name = header.getKey();
+            if (!name.startsWith(":")
+                    && !CONNECTION_HEADERS.contains(name
+                            .toLowerCase(Locale.US))) {
+                response.headers().add(name, header.getValue());
+            }
+        }
+        if (!HttpHeaders.isContentLengthSet(response) && mayHaveBody(status)
+                && !HttpMethod.HEAD.equals(method)) {
+            // SPDY ends the body with a flag on its last frame. Over HTTP/1.1,
+            // we have to say up front how it ends.
+            if (reply.isLast()) {
+                HttpHeaders.setContentLength(response, 0);
+            } else {
+                HttpHeaders.setTransferEncodingChunked(response);
+            }
+        }
+        return response;
+    }
+
+    private static boolean mayHaveBody(HttpResponseStatus status) {
+        int code = status.code();
+        return code >= 200 && code != 204 && code != 304;
+    }
+}
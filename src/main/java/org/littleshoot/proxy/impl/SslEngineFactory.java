@@ -0,0 +1,68 @@
+package org.littleshoot.proxy.impl;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+
+/**
+ * <p>
+ * Creates the {@link SSLEngine}s with which the proxy encrypts its
+ * connections.
+ * </p>
+ * 
+ * <p>
+ * These are always the JDK's engines, since Netty only gained its native
+ * OpenSSL engine after the version that we're built against. Everything that
+ * creates engines goes through here, so that's the only place that will need
+ * to change once the native engine can be used.
+ * </p>
+ */
+class SslEngineFactory {
+    /**
+     * Creates an engine for a connection on which we're the SSL server.
+     * 
+     * @param sslContext
+     * @return
+     */
+    SSLEngine newServerEngine(SSLContext sslContext) {
+        SSLEngine engine = sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        return engine;
+    }
+
+    /**
+     * Creates an engine for a connection on which we're the SSL client.
+     * 
+     * @param sslContext
+     * @param peerHost
+     * @param peerPort
+     * @return
+     */
+    SSLEngine newClientEngine(SSLContext sslContext, String peerHost,
+            int peerPort) {
+        return newClientEngine(sslContext, peerHost, peerPort, false);
+    }
+
+    /**
+     * Creates an engine for a connection on which we're the SSL client.
+     * 
+     * @param sslContext
+     * @param peerHost
+     * @param peerPort
+     * @param verifyPeerHost
+     *            if true, the handshake fails unless the peer's certificate is
+     *            for peerHost
+     * @return
+     */
+    SSLEngine newClientEngine(SSLContext sslContext, String peerHost,
+            int peerPort, boolean verifyPeerHost) {
+        SSLEngine engine = sslContext.createSSLEngine(peerHost, peerPort);
+        engine.setUseClientMode(true);
+        if (verifyPeerHost) {
+            SSLParameters parameters = engine.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            engine.setSSLParameters(parameters);
+        }
+        return engine;
+    }
+}
@@ -0,0 +1,410 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLEngine;
+
+import org.littleshoot.proxy.SslHandshakeStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Adds {@link SslHandler}s to pipelines and keeps statistics about the
+ * handshakes that they do.
+ * </p>
+ * 
+ * <p>
+ * The expensive parts of a handshake (the public key operations and
+ * certificate validation) are done by delegated tasks of the
+ * {@link SSLEngine}. By default, {@link SslHandler} runs those on the event
+ * loop, where they hold up every other connection on that loop. If this
+ * executor has been given any threads, the tasks are run on those threads
+ * instead.
+ * </p>
+ * 
+ * <p>
+ * The {@link SslHandler} in the version of Netty that we use doesn't cope well
+ * with tasks that finish later: it discards any data that the engine didn't
+ * consume while a task was running, and doesn't pick the handshake back up
+ * once the task is done. So, during the handshake, each connection also gets a
+ * {@link HandshakeGate} in front of its {@link SslHandler}. The gate passes
+ * records to the {@link SslHandler} one at a time, holds on to them while a
+ * task is running, and resumes the handshake when the task is done.
+ * </p>
+ */
+class SslHandshakeExecutor {
+    private static final Logger LOG = LoggerFactory
+            .getLogger(SslHandshakeExecutor.class);
+
+    private static final int TLS_HEADER_LENGTH = 5;
+
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicInteger tasksInFlight = new AtomicInteger(0);
+    private final AtomicLong tasksCompleted = new AtomicLong(0);
+    private final AtomicLong taskNanos = new AtomicLong(0);
+
+    private final AtomicLong handshakes = new AtomicLong(0);
+    private final AtomicLong failedHandshakes = new AtomicLong(0);
+    private final AtomicLong handshakeNanos = new AtomicLong(0);
+    private final AtomicLong maxHandshakeNanos = new AtomicLong(0);
+
+    /**
+     * Construct a new {@link SslHandshakeExecutor}.
+     * 
+     * @param name
+     *            the name of the proxy server, used for naming threads
+     * @param threads
+     *            how many threads to run delegated tasks on. If 0, they're run
+     *            on the event loop.
+     */
+    SslHandshakeExecutor(final String name, int threads) {
+        if (threads <= 0) {
+            this.executor = null;
+            return;
+        }
+        this.executor = new ThreadPoolExecutor(threads, threads, 60,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private int num = 0;
+
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, name + "-SslHandshake-"
+                                + num++);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    /**
+     * <p>
+     * Adds an {@link SslHandler} using the given {@link SSLEngine} to the
+     * front of the given pipeline.
+     * </p>
+     * 
+     * <p>
+     * When the handshake's tasks are run on our own threads, the handshake
+     * usually finishes while the {@link SslHandler} is in the middle of
+     * flushing. Anything that listeners to its handshake future write right
+     * away would overtake the last handshake message, so in that case the
+     * returned future is only completed once the {@link SslHandler} is done.
+     * </p>
+     * 
+     * @param pipeline
+     * @param engine
+     * @return a Future for when the SSL handshake has completed
+     */
+    Future<Channel> encrypt(final ChannelPipeline pipeline, SSLEngine engine) {
+        if (executor == null) {
+            SslHandler handler = new SslHandler(engine);
+            pipeline.addFirst("ssl", handler);
+            final long startedAt = System.nanoTime();
+            return handler.handshakeFuture().addListener(
+                    new GenericFutureListener<Future<Channel>>() {
+                        @Override
+                        public void operationComplete(Future<Channel> future)
+                                throws Exception {
+                            handshakeCompleted(startedAt, future.isSuccess());
+                        }
+                    });
+        }
+
+        final HandshakeGate gate = new HandshakeGate();
+        SslHandler handler = new SslHandler(engine, gate);
+        pipeline.addFirst("ssl", handler);
+        pipeline.addFirst("sslHandshakeGate", gate);
+
+        final Promise<Channel> promise = ImmediateEventExecutor.INSTANCE
+                .newPromise();
+        final long startedAt = System.nanoTime();
+        handler.handshakeFuture().addListener(
+                new GenericFutureListener<Future<Channel>>() {
+                    @Override
+                    public void operationComplete(final Future<Channel> future)
+                            throws Exception {
+                        handshakeCompleted(startedAt, future.isSuccess());
+                        gate.open();
+                        pipeline.channel().eventLoop().execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (future.isSuccess()) {
+                                    promise.setSuccess(future.getNow());
+                                } else {
+                                    promise.setFailure(future.cause());
+                                }
+                            }
+                        });
+                    }
+                });
+        return promise;
+    }
+
+    /**
+     * Stops the threads that run delegated tasks.
+     */
+    void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * The number of delegated tasks that are waiting for a thread.
+     * 
+     * @return
+     */
+    int getQueueDepth() {
+        return executor == null ? 0 : executor.getQueue().size();
+    }
+
+    /**
+     * The number of delegated tasks that have been handed to us and haven't
+     * finished yet, including the ones that are still queued.
+     * 
+     * @return
+     */
+    int getTasksInFlight() {
+        return tasksInFlight.get();
+    }
+
+    /**
+     * The average time that it took to run a delegated task (not counting the
+     * time spent waiting in the queue), in milliseconds.
+     * 
+     * @return
+     */
+    double getAverageTaskMillis() {
+        long completed = tasksCompleted.get();
+        return completed == 0 ? 0 : taskNanos.get() / 1000000.0 / completed;
+    }
+
+    long getHandshakes() {
+        return handshakes.get();
+    }
+
+    long getFailedHandshakes() {
+        return failedHandshakes.get();
+    }
+
+    /**
+     * The average time from the start of a handshake to its end, in
+     * milliseconds.
+     * 
+     * @return
+     */
+    double getAverageHandshakeMillis() {
+        long count = handshakes.get() + failedHandshakes.get();
+        return count == 0 ? 0 : handshakeNanos.get() / 1000000.0 / count;
+    }
+
+    double getMaxHandshakeMillis() {
+        return maxHandshakeNanos.get() / 1000000.0;
+    }
+
+    /**
+     * Takes a snapshot of our statistics.
+     * 
+     * @return
+     */
+    SslHandshakeStats getStats() {
+        return new SslHandshakeStats(getHandshakes(), getFailedHandshakes(),
+                getAverageHandshakeMillis(), getMaxHandshakeMillis(),
+                getQueueDepth(), getTasksInFlight(), getAverageTaskMillis());
+    }
+
+    private void handshakeCompleted(long startedAt, boolean success) {
+        long nanos = System.nanoTime() - startedAt;
+        if (success) {
+            handshakes.incrementAndGet();
+        } else {
+            failedHandshakes.incrementAndGet();
+        }
+        handshakeNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = maxHandshakeNanos.get())
+                && !maxHandshakeNanos.compareAndSet(max, nanos)) {
+        }
+    }
+
+    /**
+     * <p>
+     * Sits in front of an {@link SslHandler} during the handshake, feeding it
+     * one record at a time. Also serves as that {@link SslHandler}'s executor
+     * for delegated tasks.
+     * </p>
+     * 
+     * <p>
+     * Apart from the delegated tasks themselves, everything here happens on
+     * the event loop.
+     * </p>
+     */
+    private class HandshakeGate extends ChannelInboundHandlerAdapter implements
+            Executor {
+        private ChannelHandlerContext ctx;
+        private ByteBuf buffered = Unpooled.EMPTY_BUFFER;
+        private int pendingTasks = 0;
+        private boolean open = false;
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+            this.ctx = ctx;
+        }
+
+        @Override
+        public void handlerRemoved(ChannelHandlerContext ctx)
+                throws Exception {
+            buffered.release();
+            buffered = Unpooled.EMPTY_BUFFER;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg)
+                throws Exception {
+            if (!(msg instanceof ByteBuf)) {
+                ctx.fireChannelRead(msg);
+                return;
+            }
+            ByteBuf in = (ByteBuf) msg;
+            if (!buffered.isReadable()) {
+                buffered.release();
+                buffered = ctx.alloc().buffer(in.readableBytes());
+            }
+            buffered.writeBytes(in);
+            in.release();
+            feed();
+        }
+
+        /**
+         * Passes buffered records to the {@link SslHandler}, one at a time,
+         * until one of them sets off a delegated task.
+         */
+        private void feed() {
+            while (!open && pendingTasks == 0
+                    && buffered.readableBytes() >= TLS_HEADER_LENGTH) {
+                int contentType = buffered.getUnsignedByte(buffered
+                        .readerIndex());
+                if (contentType < 20 || contentType > 23) {
+                    // Not a TLS record (maybe an SSLv2 hello), let the
+                    // SslHandler deal with it
+                    open = true;
+                    break;
+                }
+                int recordLength = TLS_HEADER_LENGTH
+                        + buffered.getUnsignedShort(buffered.readerIndex() + 3);
+                if (buffered.readableBytes() < recordLength) {
+                    return;
+                }
+                ctx.fireChannelRead(buffered.readBytes(recordLength));
+            }
+            if (open && pendingTasks == 0) {
+                removeSelf();
+            }
+        }
+
+        /**
+         * Called once the handshake is done, after which records can be passed
+         * straight through.
+         */
+        private void open() {
+            open = true;
+            // We may be in the middle of passing a record to the SslHandler,
+            // so wait until it's done before passing it anything else
+            ctx.executor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (pendingTasks == 0) {
+                        removeSelf();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Hands anything that we're still holding on to over to the
+         * {@link SslHandler} and gets out of the way.
+         */
+        private void removeSelf() {
+            if (ctx.pipeline().context(this) == null) {
+                return;
+            }
+            if (buffered.isReadable()) {
+                ByteBuf remaining = buffered;
+                buffered = Unpooled.EMPTY_BUFFER;
+                ctx.fireChannelRead(remaining);
+            }
+            ctx.pipeline().remove(this);
+        }
+
+        @Override
+        public void execute(final Runnable task) {
+            if (open) {
+                // Without the gate, the SslHandler can't wait for tasks, so
+                // the odd task after the handshake (e.g. for processing a TLS
+                // 1.3 session ticket) has to be run right here
+                task.run();
+                return;
+            }
+            pendingTasks += 1;
+            tasksInFlight.incrementAndGet();
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        long start = System.nanoTime();
+                        try {
+                            task.run();
+                        } finally {
+                            taskNanos.addAndGet(System.nanoTime() - start);
+                            tasksCompleted.incrementAndGet();
+                            tasksInFlight.decrementAndGet();
+                            ctx.executor().execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    taskDone();
+                                }
+                            });
+                        }
+                    }
+                });
+            } catch (RuntimeException re) {
+                LOG.debug("Unable to run task off the event loop", re);
+                tasksInFlight.decrementAndGet();
+                pendingTasks -= 1;
+                task.run();
+            }
+        }
+
+        /**
+         * Picks the handshake back up after a delegated task has finished.
+         */
+        private void taskDone() {
+            pendingTasks -= 1;
+            if (pendingTasks > 0 || !ctx.channel().isActive()) {
+                return;
+            }
+            // The engine may have something to send now
+            ctx.channel().flush();
+            feed();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package org.littleshoot.proxy.impl;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Manages SSL sessions, so that reconnecting to a peer can resume an earlier
+ * session with an abbreviated handshake instead of doing a full one. The proxy
+ * uses one of these for the connections on which it is the SSL client
+ * (connections to servers and chained proxies) and another one for the
+ * connections on which it is the SSL server (encrypted connections from
+ * clients).
+ * </p>
+ * 
+ * <p>
+ * The sessions themselves are cached by the JDK, in the client or server
+ * {@link SSLSessionContext} of each {@link SSLContext}. On the client side,
+ * the JDK only looks for a session to resume if the {@link SSLEngine} knows
+ * the host and port of its peer, so engines need to be created with
+ * {@link #newClientEngine(SSLContext, String, int)}. On the server side, the
+ * client tells us which session it'd like to resume. This class bounds the
+ * size of those caches and how long sessions stay in them, and keeps count of
+ * how many handshakes managed to resume a session.
+ * </p>
+ * 
+ * <p>
+ * We don't issue stateless session tickets (RFC 5077): the JDK's
+ * {@link SSLEngine} only supports them from Java 13 on, where it issues them
+ * by itself, with keys that it rotates on its own and that expire along with
+ * the session timeout configured here.
+ * </p>
+ * 
+ * <p>
+ * Note that sessions are cached per {@link SSLContext}, so only connections
+ * that use the same {@link SSLContext} can share sessions.
+ * </p>
+ */
+class SslSessionCache {
+    private static final Logger LOG = LoggerFactory
+            .getLogger(SslSessionCache.class);
+
+    private final SslEngineFactory engineFactory;
+    private final int maxSessions;
+    private final int sessionTimeoutInSeconds;
+
+    private final Set<SSLSessionContext> configuredContexts = Collections
+            .newSetFromMap(new WeakHashMap<SSLSessionContext, Boolean>());
+
+    private final AtomicLong fullHandshakes = new AtomicLong(0);
+    private final AtomicLong resumedHandshakes = new AtomicLong(0);
+
+    /**
+     * Construct a new {@link SslSessionCache}.
+     * 
+     * @param engineFactory
+     *            creates our engines
+     * @param maxSessions
+     *            the maximum number of sessions to keep per {@link SSLContext}
+     * @param sessionTimeoutInSeconds
+     *            how long a session may be resumed for after it was created
+     */
+    SslSessionCache(SslEngineFactory engineFactory, int maxSessions,
+            int sessionTimeoutInSeconds) {
+        this.engineFactory = engineFactory;
+        this.maxSessions = maxSessions;
+        this.sessionTimeoutInSeconds = sessionTimeoutInSeconds;
+    }
+
+    /**
+     * Creates a client mode {@link SSLEngine} for talking to the given peer,
+     * which will try to resume any session that we still have for that peer.
+     * 
+     * @param sslContext
+     * @param peerHost
+     * @param peerPort
+     * @return
+     */
+    SSLEngine newClientEngine(SSLContext sslContext, String peerHost,
+            int peerPort) {
+        return newClientEngine(sslContext, peerHost, peerPort, false);
+    }
+
+    /**
+     * Creates a client mode {@link SSLEngine} for talking to the given peer,
+     * which will try to resume any session that we still have for that peer.
+     * 
+     * @param sslContext
+     * @param peerHost
+     * @param peerPort
+     * @param verifyPeerHost
+     *            if true, the handshake fails unless the peer's certificate is
+     *            for peerHost
+     * @return
+     */
+    SSLEngine newClientEngine(SSLContext sslContext, String peerHost,
+            int peerPort, boolean verifyPeerHost) {
+        configure(sslContext.getClientSessionContext());
+        return engineFactory.newClientEngine(sslContext, peerHost, peerPort,
+                verifyPeerHost);
+    }
+
+    /**
+     * Creates a server mode {@link SSLEngine}, which will let clients resume
+     * any session that we still have for them.
+     * 
+     * @param sslContext
+     * @return
+     */
+    SSLEngine newServerEngine(SSLContext sslContext) {
+        configure(sslContext.getServerSessionContext());
+        return engineFactory.newServerEngine(sslContext);
+    }
+
+    /**
+     * Records the outcome of a handshake.
+     * 
+     * @param session
+     *            the session that the handshake established
+     * @param handshakeStartedAt
+     *            when the handshake started (millis since epoch)
+     */
+    void handshakeCompleted(SSLSession session, long handshakeStartedAt) {
+        // A full handshake creates a new session, whereas resuming a session
+        // gives us back the one that was created during an earlier handshake
+        if (session.getCreationTime() < handshakeStartedAt) {
+            LOG.debug("Resumed SSL session with {}:{}", session.getPeerHost(),
+                    session.getPeerPort());
+            resumedHandshakes.incrementAndGet();
+        } else {
+            LOG.debug("Full SSL handshake with {}:{}", session.getPeerHost(),
+                    session.getPeerPort());
+            fullHandshakes.incrementAndGet();
+        }
+    }
+
+    long getFullHandshakes() {
+        return fullHandshakes.get();
+    }
+
+    long getResumedHandshakes() {
+        return resumedHandshakes.get();
+    }
+
+    /**
+     * The fraction of handshakes that resumed an earlier session.
+     * 
+     * @return a number between 0 and 1, or 0 if there haven't been any
+     *         handshakes yet
+     */
+    double getResumptionRate() {
+        long resumed = resumedHandshakes.get();
+        long total = resumed + fullHandshakes.get();
+        return total == 0 ? 0 : (double) resumed / total;
+    }
+
+    /**
+     * Applies our limits to the given session cache, the first time we see it.
+     * 
+     * @param sessions
+     */
+    private synchronized void configure(SSLSessionContext sessions) {
+        if (sessions == null || !configuredContexts.add(sessions)) {
+            return;
+        }
+        sessions.setSessionCacheSize(maxSessions);
+        sessions.setSessionTimeout(sessionTimeoutInSeconds);
+    }
+}
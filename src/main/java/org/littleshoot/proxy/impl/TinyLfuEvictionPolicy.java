@@ -0,0 +1,182 @@
+package org.littleshoot.proxy.impl;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * <p>
+ * A {@link CacheEvictionPolicy} along the lines of W-TinyLFU, which keeps
+ * one-hit wonders and scans from flushing out popular entries.
+ * </p>
+ * 
+ * <p>
+ * New entries go into a small LRU window (1% of the cache). Entries that fall
+ * out of the window are only admitted into the main part of the cache if a
+ * {@link FrequencySketch} says they've been requested more often than the
+ * entries they would displace. The main part of the cache is a segmented LRU:
+ * entries start out on probation and move into the protected segment (80% of
+ * the main part) when they're hit again. Entries that overflow the protected
+ * segment drop back into probation, and eviction victims are always taken
+ * from probation first.
+ * </p>
+ */
+class TinyLfuEvictionPolicy implements CacheEvictionPolicy {
+    private static final double WINDOW_FRACTION = 0.01;
+    private static final double PROTECTED_FRACTION = 0.8;
+
+    private final FrequencySketch sketch;
+    private final long maxWindowWeight;
+    private final long maxMainWeight;
+    private final long maxProtectedWeight;
+
+    private final Segment window = new Segment();
+    private final Segment probation = new Segment();
+    private final Segment protectedSegment = new Segment();
+
+    /**
+     * Construct a new {@link TinyLfuEvictionPolicy}.
+     * 
+     * @param maxWeight
+     *            the maximum total weight of all entries
+     * @param expectedEntries
+     *            roughly how many entries the cache will hold, used for sizing
+     *            the frequency sketch
+     */
+    TinyLfuEvictionPolicy(long maxWeight, int expectedEntries) {
+        this.sketch = new FrequencySketch(expectedEntries);
+        this.maxWindowWeight = Math.max(1, (long) (maxWeight * WINDOW_FRACTION));
+        this.maxMainWeight = maxWeight - maxWindowWeight;
+        this.maxProtectedWeight = (long) (maxMainWeight * PROTECTED_FRACTION);
+    }
+
+    @Override
+    public void recordHit(String key) {
+        sketch.increment(key);
+        if (window.touch(key) || protectedSegment.touch(key)) {
+            return;
+        }
+        Long weight = probation.remove(key);
+        if (weight != null) {
+            protectedSegment.addMostRecent(key, weight);
+            while (protectedSegment.weight > maxProtectedWeight) {
+                String demoted = protectedSegment.leastRecent();
+                probation.addMostRecent(demoted,
+                        protectedSegment.remove(demoted));
+            }
+        }
+    }
+
+    @Override
+    public void recordMiss(String key) {
+        sketch.increment(key);
+    }
+
+    @Override
+    public List<String> add(String key, long weight) {
+        List<String> evicted = new ArrayList<String>();
+        window.addMostRecent(key, weight);
+        while (window.weight > maxWindowWeight) {
+            String candidate = window.leastRecent();
+            admitToMain(candidate, window.remove(candidate), evicted);
+        }
+        return evicted;
+    }
+
+    @Override
+    public void remove(String key) {
+        if (window.remove(key) == null && probation.remove(key) == null) {
+            protectedSegment.remove(key);
+        }
+    }
+
+    @Override
+    public long getWeight() {
+        return window.weight + probation.weight + protectedSegment.weight;
+    }
+
+    /**
+     * Moves an entry that just fell out of the window into probation, if it's
+     * popular enough to be worth evicting the entries that it would replace.
+     */
+    private void admitToMain(String candidate, long candidateWeight,
+            List<String> evicted) {
+        if (candidateWeight > maxMainWeight) {
+            evicted.add(candidate);
+            return;
+        }
+        long excess = probation.weight + protectedSegment.weight
+                + candidateWeight - maxMainWeight;
+        if (excess <= 0) {
+            probation.addMostRecent(candidate, candidateWeight);
+            return;
+        }
+
+        // Find the least recently used entries that would make enough room
+        List<String> victims = new ArrayList<String>();
+        int victimFrequency = 0;
+        long freed = 0;
+        for (Segment segment : new Segment[] { probation, protectedSegment }) {
+            for (String victim : segment.weights.keySet()) {
+                if (freed >= excess) {
+                    break;
+                }
+                victims.add(victim);
+                victimFrequency = Math.max(victimFrequency,
+                        sketch.frequency(victim));
+                freed += segment.weights.get(victim);
+            }
+        }
+
+        if (sketch.frequency(candidate) > victimFrequency) {
+            for (String victim : victims) {
+                remove(victim);
+            }
+            evicted.addAll(victims);
+            probation.addMostRecent(candidate, candidateWeight);
+        } else {
+            evicted.add(candidate);
+        }
+    }
+
+    /**
+     * An LRU list of keys and their weights.
+     */
+    private static class Segment {
+        /**
+         * Weights by key, least recently used first.
+         */
+        private final LinkedHashMap<String, Long> weights = new LinkedHashMap<String, Long>();
+        private long weight = 0;
+
+        private void addMostRecent(String key, long weight) {
+            weights.put(key, weight);
+            this.weight += weight;
+        }
+
+        private Long remove(String key) {
+            Long removed = weights.remove(key);
+            if (removed != null) {
+                weight -= removed;
+            }
+            return removed;
+        }
+
+        /**
+         * Moves the given key to the most recently used position, if it's in
+         * this segment.
+         */
+        private boolean touch(String key) {
+            Long existing = weights.remove(key);
+            if (existing == null) {
+                return false;
+            }
+            weights.put(key, existing);
+            return true;
+        }
+
+        private String leastRecent() {
+            return weights.keySet().iterator().next();
+        }
+    }
+}
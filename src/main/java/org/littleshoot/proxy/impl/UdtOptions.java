@@ -0,0 +1,113 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.channel.Channel;
+import io.netty.channel.udt.nio.NioUdtProvider;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.barchart.udt.ExceptionUDT;
+import com.barchart.udt.OptionUDT;
+import com.barchart.udt.SocketUDT;
+
+/**
+ * <p>
+ * Socket options for UDT connections, both the ones that we accept and the
+ * ones that we open to chained proxies.
+ * </p>
+ * 
+ * <p>
+ * UDT only looks at most of these before a socket connects or starts
+ * listening, and sockets that we accept take them from the socket that
+ * accepted them. So they're applied with {@link #apply(Channel)} as soon as a
+ * channel is registered, before it's bound or connected. We set them on the
+ * {@link SocketUDT} ourselves because Netty's own UDT channel options don't
+ * make it to the socket once the channel exists.
+ * </p>
+ * 
+ * <p>
+ * Anything left at 0 keeps UDT's (or Netty's) default.
+ * </p>
+ */
+class UdtOptions {
+    private static final Logger LOG = LoggerFactory
+            .getLogger(UdtOptions.class);
+
+    private final int backlog;
+    private final int sendBufferSizeInBytes;
+    private final int receiveBufferSizeInBytes;
+    private final int udpSendBufferSizeInBytes;
+    private final int udpReceiveBufferSizeInBytes;
+    private final int flightWindowSizeInPackets;
+    private final long maxBandwidthInBytesPerSecond;
+
+    /**
+     * Construct a new {@link UdtOptions}.
+     * 
+     * @param backlog
+     *            how many connections may wait to be accepted
+     * @param sendBufferSizeInBytes
+     *            the size of UDT's own send buffer
+     * @param receiveBufferSizeInBytes
+     *            the size of UDT's own receive buffer, which also caps how
+     *            much the peer may have in flight
+     * @param udpSendBufferSizeInBytes
+     *            the size of the underlying UDP socket's send buffer
+     * @param udpReceiveBufferSizeInBytes
+     *            the size of the underlying UDP socket's receive buffer
+     * @param flightWindowSizeInPackets
+     *            the maximum number of unacknowledged packets in flight
+     * @param maxBandwidthInBytesPerSecond
+     *            the most that a single connection may send per second
+     */
+    UdtOptions(int backlog, int sendBufferSizeInBytes,
+            int receiveBufferSizeInBytes, int udpSendBufferSizeInBytes,
+            int udpReceiveBufferSizeInBytes, int flightWindowSizeInPackets,
+            long maxBandwidthInBytesPerSecond) {
+        this.backlog = backlog;
+        this.sendBufferSizeInBytes = sendBufferSizeInBytes;
+        this.receiveBufferSizeInBytes = receiveBufferSizeInBytes;
+        this.udpSendBufferSizeInBytes = udpSendBufferSizeInBytes;
+        this.udpReceiveBufferSizeInBytes = udpReceiveBufferSizeInBytes;
+        this.flightWindowSizeInPackets = flightWindowSizeInPackets;
+        this.maxBandwidthInBytesPerSecond = maxBandwidthInBytesPerSecond;
+    }
+
+    int getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * Applies these options to the given UDT channel, which must not be bound
+     * or connected yet.
+     * 
+     * @param channel
+     * @throws ExceptionUDT
+     *             if UDT won't take one of the options
+     */
+    void apply(Channel channel) throws ExceptionUDT {
+        SocketUDT socket = NioUdtProvider.socketUDT(channel);
+        setIfPositive(socket, OptionUDT.Protocol_Send_Buffer_Size,
+                sendBufferSizeInBytes);
+        setIfPositive(socket, OptionUDT.Protocol_Receive_Buffer_Size,
+                receiveBufferSizeInBytes);
+        setIfPositive(socket, OptionUDT.System_Send_Buffer_Size,
+                udpSendBufferSizeInBytes);
+        setIfPositive(socket, OptionUDT.System_Receive_Buffer_Size,
+                udpReceiveBufferSizeInBytes);
+        setIfPositive(socket, OptionUDT.Flight_Window_Size,
+                flightWindowSizeInPackets);
+        if (maxBandwidthInBytesPerSecond > 0) {
+            socket.setOption(OptionUDT.Maximum_Bandwidth,
+                    maxBandwidthInBytesPerSecond);
+        }
+        LOG.debug("Applied UDT options to {}", channel);
+    }
+
+    private void setIfPositive(SocketUDT socket, OptionUDT<Integer> option,
+            int value) throws ExceptionUDT {
+        if (value > 0) {
+            socket.setOption(option, value);
+        }
+    }
+}
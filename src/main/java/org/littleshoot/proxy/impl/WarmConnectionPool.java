@@ -0,0 +1,441 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.channel.udt.nio.NioUdtProvider;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.commons.lang3.StringUtils;
+import org.littleshoot.proxy.TransportProtocol;
+import org.littleshoot.proxy.UnknownTransportProtocolError;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Opens connections to chained proxies ahead of time, already connected and,
+ * if we encrypt them, done with the TLS handshake, for CONNECT requests to
+ * pick up. A CONNECT through a chained proxy then only has to wait for the
+ * chained proxy's answer to the CONNECT itself, rather than also for the
+ * round trips of opening and encrypting a connection.
+ * </p>
+ * 
+ * <p>
+ * The number of connections that we keep ready for each chained proxy follows
+ * the rate of CONNECTs that we send it: enough to cover the ones that arrive
+ * while we open another connection (the rate, averaged over the last
+ * {@link #RATE_WINDOW_MILLIS} or so, times how long it takes to open a
+ * connection), plus one, up to the configured maximum. Every CONNECT tops the
+ * ready connections back up to that. We don't open any until the first
+ * CONNECT to a chained proxy, and once CONNECTs stop, the ready connections
+ * are closed after the idle connection timeout.
+ * </p>
+ * 
+ * <p>
+ * A ready connection carries nothing until it's handed out, so if the chained
+ * proxy sends anything on it, or closes it, we drop it.
+ * </p>
+ */
+class WarmConnectionPool {
+    private static final Logger LOG = LoggerFactory
+            .getLogger(WarmConnectionPool.class);
+
+    /**
+     * The time over which we average the rate of CONNECTs.
+     */
+    static final long RATE_WINDOW_MILLIS = 10000;
+
+    /**
+     * The weight of the latest measurement in the moving average of how long
+     * it takes to open a connection.
+     */
+    private static final double SETUP_TIME_WEIGHT = 0.3;
+
+    private final DefaultHttpProxyServer proxyServer;
+    private final int maxConnectionsPerProxy;
+    private final int idleConnectionTimeout;
+
+    private final Map<String, Peer> peersByKey = new HashMap<String, Peer>();
+
+    private final AtomicLong connectionsOpened = new AtomicLong(0);
+    private final AtomicLong connectionsTaken = new AtomicLong(0);
+
+    /**
+     * Construct a new {@link WarmConnectionPool}.
+     * 
+     * @param proxyServer
+     *            the server, whose event loops, UDT options and SSL session
+     *            cache our connections use
+     * @param maxConnectionsPerProxy
+     *            the most connections to keep ready for each chained proxy
+     * @param idleConnectionTimeout
+     *            how long (in seconds) to keep a ready connection that nobody
+     *            picks up
+     */
+    WarmConnectionPool(DefaultHttpProxyServer proxyServer,
+            int maxConnectionsPerProxy, int idleConnectionTimeout) {
+        this.proxyServer = proxyServer;
+        this.maxConnectionsPerProxy = maxConnectionsPerProxy;
+        this.idleConnectionTimeout = idleConnectionTimeout;
+    }
+
+    /**
+     * Hands out a ready connection to the given chained proxy for a CONNECT,
+     * if we have one, and starts opening more as needed. The connection still
+     * has our own handlers in its pipeline, which the caller takes out with
+     * {@link #release(ChannelPipeline)} on the connection's event loop.
+     * 
+     * @param hostAndPort
+     *            the chained proxy
+     * @param address
+     *            its address
+     * @param transportProtocol
+     *            the transport of our connections to it
+     * @param sslContext
+     *            (optional) if given, our connections to it are encrypted with
+     *            this
+     * @return a ready connection, or null if we don't have one
+     */
+    synchronized Channel take(String hostAndPort, InetSocketAddress address,
+            TransportProtocol transportProtocol, SSLContext sslContext) {
+        String key = keyFor(hostAndPort, transportProtocol, sslContext);
+        Peer peer = peersByKey.get(key);
+        if (peer == null) {
+            peer = new Peer(hostAndPort, address, transportProtocol,
+                    sslContext);
+            peersByKey.put(key, peer);
+        }
+        peer.connectArrived();
+        Channel channel = null;
+        while (channel == null && !peer.ready.isEmpty()) {
+            Channel candidate = peer.ready.poll();
+            if (candidate.isActive()) {
+                channel = candidate;
+            }
+        }
+        if (channel != null) {
+            connectionsTaken.incrementAndGet();
+            LOG.debug("Using ready connection to {}", hostAndPort);
+        }
+        int target = targetSize(peer.getRate(), peer.setupMillis,
+                maxConnectionsPerProxy);
+        while (peer.ready.size() + peer.opening < target) {
+            open(peer);
+        }
+        return channel;
+    }
+
+    /**
+     * Takes our own handlers out of the pipeline of a connection that we've
+     * handed out. This must be called on the connection's event loop.
+     * 
+     * @param pipeline
+     */
+    static void release(ChannelPipeline pipeline) {
+        pipeline.remove("warmIdle");
+        pipeline.remove("warm");
+    }
+
+    /**
+     * The number of connections that we've opened so far.
+     * 
+     * @return
+     */
+    long getConnectionsOpened() {
+        return connectionsOpened.get();
+    }
+
+    /**
+     * The number of CONNECTs that found a ready connection.
+     * 
+     * @return
+     */
+    long getConnectionsTaken() {
+        return connectionsTaken.get();
+    }
+
+    /**
+     * The number of connections that are ready for the given chained proxy
+     * right now.
+     * 
+     * @param hostAndPort
+     * @param transportProtocol
+     * @param sslContext
+     * @return
+     */
+    synchronized int getReadyCount(String hostAndPort,
+            TransportProtocol transportProtocol, SSLContext sslContext) {
+        Peer peer = peersByKey.get(keyFor(hostAndPort, transportProtocol,
+                sslContext));
+        return peer == null ? 0 : peer.ready.size();
+    }
+
+    /**
+     * Closes all of our ready connections.
+     */
+    synchronized void stop() {
+        for (Peer peer : peersByKey.values()) {
+            for (Channel channel : peer.ready) {
+                channel.close();
+            }
+            peer.ready.clear();
+        }
+        peersByKey.clear();
+    }
+
+    /**
+     * How many connections to keep ready (or opening) for a chained proxy:
+     * the CONNECTs that we expect while we open a connection, plus one.
+     * 
+     * @param connectsPerSecond
+     *            the recent rate of CONNECTs
+     * @param setupMillis
+     *            how long it takes to open a connection, or less than 0 if we
+     *            don't know yet
+     * @param max
+     *            the most that we keep
+     * @return
+     */
+    static int targetSize(double connectsPerSecond, double setupMillis,
+            int max) {
+        if (setupMillis < 0) {
+            return Math.min(1, max);
+        }
+        int expected = (int) Math.ceil(connectsPerSecond * setupMillis
+                / 1000.0);
+        return Math.min(expected + 1, max);
+    }
+
+    private void open(final Peer peer) {
+        LOG.debug("Opening ready connection to {} over {}", peer.hostAndPort,
+                peer.transportProtocol);
+        peer.opening++;
+        connectionsOpened.incrementAndGet();
+        final long startedAt = System.currentTimeMillis();
+        final Warm warm = new Warm(peer);
+        Bootstrap cb = new Bootstrap().group(
+                proxyServer.getProxyToServerWorkerFor(peer.transportProtocol))
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 40 * 1000);
+        switch (peer.transportProtocol) {
+        case TCP:
+            cb.channel(NioSocketChannel.class);
+            break;
+        case UDT:
+            cb.channelFactory(NioUdtProvider.BYTE_CONNECTOR).option(
+                    ChannelOption.SO_REUSEADDR, true);
+            break;
+        default:
+            throw new UnknownTransportProtocolError(peer.transportProtocol);
+        }
+        cb.handler(new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) throws Exception {
+                if (peer.transportProtocol == TransportProtocol.UDT) {
+                    proxyServer.getUdtOptions().apply(ch);
+                }
+                proxyServer.registerChannel(ch);
+                ChannelPipeline pipeline = ch.pipeline();
+                pipeline.addLast("warmIdle", new IdleStateHandler(0, 0,
+                        idleConnectionTimeout));
+                pipeline.addLast("warm", warm);
+            }
+        }).connect(peer.address).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future)
+                    throws Exception {
+                if (!future.isSuccess()) {
+                    opened(peer, null, startedAt);
+                } else if (peer.sslContext == null) {
+                    opened(peer, future.channel(), startedAt);
+                } else {
+                    encrypt(peer, future.channel(), startedAt);
+                }
+            }
+        });
+    }
+
+    /**
+     * Does the TLS handshake on a new connection, resuming an earlier SSL
+     * session with the chained proxy if we can.
+     */
+    private void encrypt(final Peer peer, final Channel channel,
+            final long startedAt) {
+        final SslSessionCache sslSessionCache = proxyServer
+                .getSslSessionCache();
+        final long handshakeStartedAt = System.currentTimeMillis();
+        proxyServer
+                .getSslHandshakeExecutor()
+                .encrypt(
+                        channel.pipeline(),
+                        sslSessionCache.newClientEngine(peer.sslContext,
+                                StringUtils.substringBefore(peer.hostAndPort,
+                                        ":"), peer.address.getPort()))
+                .addListener(new GenericFutureListener<Future<Channel>>() {
+                    @Override
+                    public void operationComplete(Future<Channel> future)
+                            throws Exception {
+                        if (future.isSuccess()) {
+                            SslHandler handler = channel.pipeline().get(
+                                    SslHandler.class);
+                            sslSessionCache.handshakeCompleted(handler
+                                    .engine().getSession(), handshakeStartedAt);
+                            opened(peer, channel, startedAt);
+                        } else {
+                            channel.close();
+                            opened(peer, null, startedAt);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Called once a connection is ready, or null if it failed.
+     */
+    private synchronized void opened(Peer peer, Channel channel,
+            long startedAt) {
+        peer.opening--;
+        if (channel == null) {
+            LOG.debug("Unable to open ready connection to {}",
+                    peer.hostAndPort);
+            return;
+        }
+        long setupMillis = System.currentTimeMillis() - startedAt;
+        peer.setupMillis = peer.setupMillis < 0 ? setupMillis
+                : SETUP_TIME_WEIGHT * setupMillis + (1 - SETUP_TIME_WEIGHT)
+                        * peer.setupMillis;
+        if (peersByKey.get(keyFor(peer.hostAndPort, peer.transportProtocol,
+                peer.sslContext)) != peer || !channel.isActive()) {
+            // We've been stopped, or it's closed already
+            channel.close();
+            return;
+        }
+        peer.ready.add(channel);
+    }
+
+    private synchronized void dropped(Peer peer, Channel channel) {
+        peer.ready.remove(channel);
+    }
+
+    /**
+     * The key for the connections to the given chained proxy with the given
+     * transport and encryption.
+     */
+    private static String keyFor(String hostAndPort,
+            TransportProtocol transportProtocol, SSLContext sslContext) {
+        return transportProtocol + (sslContext != null ? "+TLS" : "") + "://"
+                + hostAndPort;
+    }
+
+    /**
+     * What we know about one chained proxy. Guarded by the pool.
+     */
+    private static class Peer {
+        private final String hostAndPort;
+        private final InetSocketAddress address;
+        private final TransportProtocol transportProtocol;
+        private final SSLContext sslContext;
+
+        private final LinkedList<Channel> ready = new LinkedList<Channel>();
+        private int opening = 0;
+
+        /**
+         * A moving average of how long it takes to open a connection, or -1
+         * until we've opened one.
+         */
+        private double setupMillis = -1;
+
+        /**
+         * The rate of CONNECTs per second as of {@link #lastConnectAt}, which
+         * decays exponentially from there.
+         */
+        private double rate = 0;
+        private long lastConnectAt = System.currentTimeMillis();
+
+        private Peer(String hostAndPort, InetSocketAddress address,
+                TransportProtocol transportProtocol, SSLContext sslContext) {
+            this.hostAndPort = hostAndPort;
+            this.address = address;
+            this.transportProtocol = transportProtocol;
+            this.sslContext = sslContext;
+        }
+
+        private void connectArrived() {
+            rate = getRate() + 1000.0 / RATE_WINDOW_MILLIS;
+            lastConnectAt = System.currentTimeMillis();
+        }
+
+        private double getRate() {
+            long elapsed = System.currentTimeMillis() - lastConnectAt;
+            return rate * Math.exp(-(double) elapsed / RATE_WINDOW_MILLIS);
+        }
+    }
+
+    /**
+     * Sits at the end of a ready connection's pipeline until it's handed out,
+     * and drops the connection if anything happens to it in the meantime.
+     */
+    private class Warm extends ChannelInboundHandlerAdapter {
+        private final Peer peer;
+
+        private Warm(Peer peer) {
+            this.peer = peer;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg)
+                throws Exception {
+            LOG.debug("Chained proxy {} sent something on a ready connection",
+                    peer.hostAndPort);
+            ReferenceCountUtil.release(msg);
+            ctx.close();
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt)
+                throws Exception {
+            if (evt instanceof IdleStateEvent) {
+                LOG.debug("Closing idle ready connection to {}",
+                        peer.hostAndPort);
+                ctx.close();
+            } else {
+                super.userEventTriggered(ctx, evt);
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx)
+                throws Exception {
+            dropped(peer, ctx.channel());
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause)
+                throws Exception {
+            LOG.debug("Error on ready connection to {}", peer.hostAndPort,
+                    cause);
+            ctx.close();
+        }
+    }
+}
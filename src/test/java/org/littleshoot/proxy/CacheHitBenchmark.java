@@ -0,0 +1,190 @@
+package org.littleshoot.proxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.params.ConnRoutePNames;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+
+/**
+ * <p>
+ * Measures the throughput of cache hits for a large object.
+ * </p>
+ * 
+ * <p>
+ * The object is first cached by a proxy, which holds it in memory. That proxy
+ * is then restarted, after which the object is served from the cache snapshot
+ * on disk, using zero-copy file transfers. Both proxies are measured with
+ * several clients repeatedly downloading the object at once.
+ * </p>
+ * 
+ * <p>
+ * Usage: CacheHitBenchmark [objectSizeInMegabytes] [clients]
+ * [downloadsPerClient]
+ * </p>
+ */
+public class CacheHitBenchmark {
+    private static final int WEB_SERVER_PORT = 8942;
+    private static final int PROXY_PORT = 8943;
+    private static final String URL = "http://127.0.0.1:" + WEB_SERVER_PORT
+            + "/large";
+
+    public static void main(String[] args) throws Exception {
+        int objectSize = (args.length > 0 ? Integer.parseInt(args[0]) : 32)
+                * 1024 * 1024;
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int downloadsPerClient = args.length > 2 ? Integer.parseInt(args[2])
+                : 20;
+
+        final byte[] body = new byte[objectSize];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) i;
+        }
+        Server webServer = new Server(WEB_SERVER_PORT);
+        webServer.setHandler(new AbstractHandler() {
+            public void handle(String target, Request baseRequest,
+                    HttpServletRequest request, HttpServletResponse response)
+                    throws IOException, ServletException {
+                response.setStatus(HttpServletResponse.SC_OK);
+                response.setHeader("Cache-Control", "max-age=3600");
+                response.setContentLength(body.length);
+                response.getOutputStream().write(body);
+                baseRequest.setHandled(true);
+            }
+        });
+        webServer.start();
+
+        File cacheDirectory = File.createTempFile("littleproxy-benchmark", "");
+        cacheDirectory.delete();
+        cacheDirectory.mkdirs();
+        try {
+            HttpProxyServer proxyServer = startProxy(cacheDirectory,
+                    objectSize);
+            double fromMemory;
+            try {
+                // Prime the cache
+                download(clients, 1, 1);
+                fromMemory = download(clients, clients, downloadsPerClient);
+            } finally {
+                proxyServer.stop();
+            }
+
+            proxyServer = startProxy(cacheDirectory, objectSize);
+            double fromFile;
+            try {
+                // Let the first hit verify the body
+                download(clients, 1, 1);
+                fromFile = download(clients, clients, downloadsPerClient);
+            } finally {
+                proxyServer.stop();
+            }
+
+            System.out.println(String.format(
+                    "Cache hits of a %1$sMB object with %2$s clients:",
+                    objectSize / 1024 / 1024, clients));
+            System.out.println(String.format(
+                    "  From memory:              %1$.1f MB/s", fromMemory));
+            System.out.println(String.format(
+                    "  From snapshot (sendfile): %1$.1f MB/s", fromFile));
+        } finally {
+            webServer.stop();
+            FileUtils.deleteDirectory(cacheDirectory);
+        }
+    }
+
+    private static HttpProxyServer startProxy(File cacheDirectory,
+            int objectSize) throws Exception {
+        HttpProxyServer server = DefaultHttpProxyServer.bootstrap()
+                .withPort(PROXY_PORT)
+                .withMaxCacheSizeInBytes(16L * objectSize)
+                .withCacheDirectory(cacheDirectory)
+                .start();
+        for (int i = 0; i < 50; i++) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress("127.0.0.1", PROXY_PORT));
+                break;
+            } catch (IOException ioe) {
+                Thread.sleep(100);
+            } finally {
+                socket.close();
+            }
+        }
+        return server;
+    }
+
+    /**
+     * Downloads the object repeatedly from several threads at once.
+     * 
+     * @return the throughput in megabytes per second
+     */
+    private static double download(int maxConnections, int clients,
+            final int downloadsPerClient) throws Exception {
+        PoolingClientConnectionManager connectionManager = new PoolingClientConnectionManager();
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+        final DefaultHttpClient httpClient = new DefaultHttpClient(
+                connectionManager);
+        httpClient.getParams().setParameter(ConnRoutePNames.DEFAULT_PROXY,
+                new HttpHost("127.0.0.1", PROXY_PORT, "http"));
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        try {
+            long start = System.nanoTime();
+            List<Future<Long>> results = new ArrayList<Future<Long>>();
+            for (int i = 0; i < clients; i++) {
+                results.add(executor.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        long bytes = 0;
+                        byte[] buffer = new byte[64 * 1024];
+                        for (int j = 0; j < downloadsPerClient; j++) {
+                            HttpResponse response = httpClient
+                                    .execute(new HttpGet(URL));
+                            InputStream in = response.getEntity()
+                                    .getContent();
+                            try {
+                                int read;
+                                while ((read = in.read(buffer)) >= 0) {
+                                    bytes += read;
+                                }
+                            } finally {
+                                in.close();
+                            }
+                        }
+                        return bytes;
+                    }
+                }));
+            }
+            long bytes = 0;
+            for (Future<Long> result : results) {
+                bytes += result.get();
+            }
+            double seconds = (System.nanoTime() - start) / 1000000000.0;
+            return bytes / 1024.0 / 1024.0 / seconds;
+        } finally {
+            executor.shutdown();
+            connectionManager.shutdown();
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package org.littleshoot.proxy;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+
+/**
+ * Tests caching of responses, including byte ranges and keeping the cache
+ * across a restart of the proxy.
+ */
+public class CachingProxyTest {
+    private static final int WEB_SERVER_PORT = 8933;
+    private static final int PROXY_PORT = 8934;
+    private static final int RESTARTED_PROXY_PORT = 8935;
+    private static final long MAX_CACHE_SIZE = 10 * 1024 * 1024;
+    private static final String RANGED_BODY = "0123456789abcdefghij";
+    private static final String LARGE_BODY = largeBody(1024 * 1024);
+
+    private final AtomicInteger requestsToServer = new AtomicInteger(0);
+    private final List<String> rangesRequested = new CopyOnWriteArrayList<String>();
+    private Server webServer;
+    private HttpProxyServer proxyServer;
+    private File cacheDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        cacheDirectory = File.createTempFile("littleproxy-cache", "");
+        cacheDirectory.delete();
+        cacheDirectory.mkdirs();
+
+        webServer = new Server(WEB_SERVER_PORT);
+        webServer.setHandler(new AbstractHandler() {
+            public void handle(String target, Request baseRequest,
+                    HttpServletRequest request, HttpServletResponse response)
+                    throws IOException, ServletException {
+                int requestNumber = requestsToServer.incrementAndGet();
+                if (target.startsWith("/large")) {
+                    response.setStatus(HttpServletResponse.SC_OK);
+                    response.setHeader("Cache-Control", "max-age=3600");
+                    response.setContentLength(LARGE_BODY.length());
+                    response.getOutputStream().write(
+                            LARGE_BODY.getBytes("US-ASCII"));
+                    baseRequest.setHandled(true);
+                    return;
+                }
+                if (target.startsWith("/ranged")) {
+                    writeRange(request, response);
+                    baseRequest.setHandled(true);
+                    return;
+                }
+                response.setStatus(HttpServletResponse.SC_OK);
+                if (target.startsWith("/uncacheable")) {
+                    response.setHeader("Cache-Control", "no-store");
+                } else {
+                    response.setHeader("Cache-Control", "max-age=3600");
+                }
+                baseRequest.setHandled(true);
+                response.getWriter().write(
+                        "Response number " + requestNumber + "\n");
+            }
+        });
+        webServer.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try {
+            webServer.stop();
+        } finally {
+            try {
+                if (proxyServer != null) {
+                    proxyServer.stop();
+                }
+            } finally {
+                FileUtils.deleteDirectory(cacheDirectory);
+            }
+        }
+    }
+
+    @Test
+    public void testCacheableResponseIsServedFromCache() throws Exception {
+        proxyServer = startProxy(PROXY_PORT);
+        String first = get(PROXY_PORT, "/cacheable");
+        String second = get(PROXY_PORT, "/cacheable");
+        assertEquals("Response number 1\n", first);
+        assertEquals("Cached response should have been served", first,
+                second);
+        assertEquals("Server should only have been hit once", 1,
+                requestsToServer.get());
+    }
+
+    @Test
+    public void testCacheHitsAreTracked() throws Exception {
+        proxyServer = startProxy(PROXY_PORT);
+        final AtomicInteger responsesSent = new AtomicInteger(0);
+        final AtomicInteger bytesSent = new AtomicInteger(0);
+        final AtomicInteger responsesReceived = new AtomicInteger(0);
+        proxyServer.addActivityTracker(new ActivityTrackerAdapter() {
+            @Override
+            public void responseSentToClient(FlowContext flowContext,
+                    io.netty.handler.codec.http.HttpResponse httpResponse) {
+                responsesSent.incrementAndGet();
+            }
+
+            @Override
+            public void bytesSentToClient(FlowContext flowContext,
+                    int numberOfBytes) {
+                bytesSent.addAndGet(numberOfBytes);
+            }
+
+            @Override
+            public void responseReceived(FlowContext flowContext,
+                    io.netty.handler.codec.http.HttpResponse httpResponse) {
+                responsesReceived.incrementAndGet();
+            }
+        });
+
+        get(PROXY_PORT, "/cacheable");
+        int bytesForProxiedResponse = bytesSent.get();
+        assertTrue(bytesForProxiedResponse > 0);
+        get(PROXY_PORT, "/large");
+        int bytesBeforeCacheHits = bytesSent.get();
+        get(PROXY_PORT, "/cacheable");
+        get(PROXY_PORT, "/large");
+
+        assertEquals("Only 2 responses should have come from the server", 2,
+                responsesReceived.get());
+        assertEquals("Cache hits should have been tracked as sent", 4,
+                responsesSent.get());
+        assertTrue("Bytes of cache hits should have been tracked",
+                bytesSent.get() - bytesBeforeCacheHits > LARGE_BODY.length());
+    }
+
+    @Test
+    public void testCacheHitsAreFiltered() throws Exception {
+        final List<String> filtered = new CopyOnWriteArrayList<String>();
+        proxyServer = startProxy(PROXY_PORT, new HttpRequestFilter() {
+            @Override
+            public void filter(
+                    io.netty.handler.codec.http.HttpRequest httpRequest) {
+                filtered.add(httpRequest.getUri());
+            }
+        });
+        get(PROXY_PORT, "/cacheable");
+        get(PROXY_PORT, "/cacheable");
+        assertEquals("Server should only have been hit once", 1,
+                requestsToServer.get());
+        assertEquals("The cache hit should have been filtered too", 2,
+                filtered.size());
+    }
+
+    @Test
+    public void testUncacheableResponseIsNotCached() throws Exception {
+        proxyServer = startProxy(PROXY_PORT);
+        assertEquals("Response number 1\n", get(PROXY_PORT, "/uncacheable"));
+        assertEquals("Response number 2\n", get(PROXY_PORT, "/uncacheable"));
+        assertEquals(2, requestsToServer.get());
+    }
+
+    @Test
+    public void testCacheSurvivesRestart() throws Exception {
+        proxyServer = startProxy(PROXY_PORT);
+        String original = get(PROXY_PORT, "/cacheable");
+        proxyServer.stop();
+
+        proxyServer = startProxy(RESTARTED_PROXY_PORT);
+        assertEquals(
+                "Restarted proxy should have served response from its snapshot",
+                original, get(RESTARTED_PROXY_PORT, "/cacheable"));
+        assertEquals("Server should only have been hit once", 1,
+                requestsToServer.get());
+    }
+
+    @Test
+    public void testLargeResponseIsSentFromSnapshot() throws Exception {
+        proxyServer = startProxy(PROXY_PORT);
+        assertEquals(LARGE_BODY, get(PROXY_PORT, "/large"));
+        proxyServer.stop();
+
+        proxyServer = startProxy(RESTARTED_PROXY_PORT);
+        assertEquals(LARGE_BODY, get(RESTARTED_PROXY_PORT, "/large"));
+        assertEquals(LARGE_BODY, get(RESTARTED_PROXY_PORT, "/large"));
+        assertEquals(LARGE_BODY.substring(500000, 600000),
+                getRange(RESTARTED_PROXY_PORT, "/large", "bytes=500000-599999"));
+        assertEquals("Server should only have been hit once", 1,
+                requestsToServer.get());
+    }
+
+    @Test
+    public void testCorruptSnapshotIsIgnored() throws Exception {
+        proxyServer = startProxy(PROXY_PORT);
+        get(PROXY_PORT, "/cacheable");
+        proxyServer.stop();
+
+        File data = new File(cacheDirectory, "cache.data");
+        FileUtils.writeStringToFile(data, "Corrupted!\n");
+
+        proxyServer = startProxy(RESTARTED_PROXY_PORT);
+        assertEquals("Corrupt body should have been refetched",
+                "Response number 2\n", get(RESTARTED_PROXY_PORT, "/cacheable"));
+    }
+
+    @Test
+    public void testRangesAreSplicedFromCachedSegments() throws Exception {
+        proxyServer = startProxy(PROXY_PORT);
+        assertEquals("01234", getRange(PROXY_PORT, "/ranged", "bytes=0-4"));
+        assertEquals("abcdefghij",
+                getRange(PROXY_PORT, "/ranged", "bytes=10-"));
+        assertEquals("Held range should have been served from cache",
+                "cdef", getRange(PROXY_PORT, "/ranged", "bytes=12-15"));
+        assertEquals(2, requestsToServer.get());
+
+        assertEquals("23456789abc",
+                getRange(PROXY_PORT, "/ranged", "bytes=2-12"));
+        assertEquals("Only the missing bytes should have been fetched",
+                "bytes=5-9", rangesRequested.get(2));
+
+        assertEquals("Assembled response should have been served from cache",
+                RANGED_BODY, get(PROXY_PORT, "/ranged"));
+        assertEquals(3, requestsToServer.get());
+    }
+
+    private HttpProxyServer startProxy(int port) throws Exception {
+        return startProxy(port, null);
+    }
+
+    private HttpProxyServer startProxy(int port,
+            HttpRequestFilter requestFilter) throws Exception {
+        HttpProxyServer server = DefaultHttpProxyServer.bootstrap()
+                .withPort(port)
+                .withMaxCacheSizeInBytes(MAX_CACHE_SIZE)
+                .withCacheDirectory(cacheDirectory)
+                .withRequestFilter(requestFilter)
+                .start();
+        // The proxy binds asynchronously, wait for it to start listening
+        for (int i = 0; i < 50; i++) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress("127.0.0.1", port));
+                break;
+            } catch (IOException ioe) {
+                Thread.sleep(100);
+            } finally {
+                socket.close();
+            }
+        }
+        return server;
+    }
+
+    /**
+     * Serves single byte ranges of {@link #RANGED_BODY}.
+     */
+    private void writeRange(HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        response.setHeader("Cache-Control", "max-age=3600");
+        response.setHeader("ETag", "\"v1\"");
+        response.setHeader("Accept-Ranges", "bytes");
+        String range = request.getHeader("Range");
+        int start = 0;
+        int end = RANGED_BODY.length() - 1;
+        if (range != null) {
+            rangesRequested.add(range);
+            String[] bounds = range.substring("bytes=".length()).split("-",
+                    -1);
+            start = Integer.parseInt(bounds[0]);
+            if (bounds[1].length() > 0) {
+                end = Math.min(end, Integer.parseInt(bounds[1]));
+            }
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setHeader("Content-Range", "bytes " + start + "-" + end
+                    + "/" + RANGED_BODY.length());
+        } else {
+            response.setStatus(HttpServletResponse.SC_OK);
+        }
+        response.setContentLength(end - start + 1);
+        response.getOutputStream().write(
+                RANGED_BODY.substring(start, end + 1).getBytes("US-ASCII"));
+    }
+
+    private static String largeBody(int length) {
+        StringBuilder body = new StringBuilder(length);
+        for (int line = 0; body.length() < length; line++) {
+            body.append("Line ").append(line).append("\n");
+        }
+        return body.substring(0, length);
+    }
+
+    private String getRange(int proxyPort, String path, String range)
+            throws Exception {
+        HttpClient httpClient = TestUtils.createProxiedHttpClient(proxyPort);
+        try {
+            HttpGet request = new HttpGet("http://127.0.0.1:"
+                    + WEB_SERVER_PORT + path);
+            request.setHeader("Range", range);
+            HttpResponse response = httpClient.execute(request);
+            assertEquals(206, response.getStatusLine().getStatusCode());
+            return EntityUtils.toString(response.getEntity());
+        } finally {
+            httpClient.getConnectionManager().shutdown();
+        }
+    }
+
+    private String get(int proxyPort, String path) throws Exception {
+        HttpClient httpClient = TestUtils.createProxiedHttpClient(proxyPort);
+        try {
+            HttpResponse response = httpClient.execute(new HttpGet(
+                    "http://127.0.0.1:" + WEB_SERVER_PORT + path));
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            return EntityUtils.toString(response.getEntity());
+        } finally {
+            httpClient.getConnectionManager().shutdown();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package org.littleshoot.proxy;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+
+import org.junit.Test;
+
+public class CachingSSLContextSourceTest {
+    private final AtomicInteger calls = new AtomicInteger(0);
+
+    private final SSLContextSource source = new SSLContextSource() {
+        @Override
+        public SSLContext getSSLContext() {
+            calls.incrementAndGet();
+            try {
+                return SSLContext.getInstance("TLS");
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    @Test
+    public void testContextIsOnlyBuiltOnce() {
+        CachingSSLContextSource cache = new CachingSSLContextSource(source);
+        assertEquals("Shouldn't build the context until it's needed", 0,
+                calls.get());
+        SSLContext first = cache.getSSLContext();
+        assertSame(first, cache.getSSLContext());
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void testReload() {
+        CachingSSLContextSource cache = new CachingSSLContextSource(source);
+        SSLContext first = cache.getSSLContext();
+        SSLContext reloaded = cache.reload();
+        assertNotSame(first, reloaded);
+        assertSame(reloaded, cache.getSSLContext());
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void testFailedReloadKeepsOldContext() {
+        final AtomicInteger attempts = new AtomicInteger(0);
+        CachingSSLContextSource cache = new CachingSSLContextSource(
+                new SSLContextSource() {
+                    @Override
+                    public SSLContext getSSLContext() {
+                        if (attempts.incrementAndGet() > 1) {
+                            throw new RuntimeException("Bad certificate");
+                        }
+                        return source.getSSLContext();
+                    }
+                });
+        SSLContext first = cache.getSSLContext();
+        try {
+            cache.reload();
+            fail("Reload should have failed");
+        } catch (RuntimeException re) {
+            // expected
+        }
+        assertSame(first, cache.getSSLContext());
+    }
+
+    @Test
+    public void testCacheDoesNotRewrap() {
+        CachingSSLContextSource cache = CachingSSLContextSource.cache(source);
+        assertSame(cache, CachingSSLContextSource.cache(cache));
+        assertNull(CachingSSLContextSource.cache(null));
+    }
+}
@@ -0,0 +1,426 @@
+package org.littleshoot.proxy;
+
+import static org.junit.Assert.*;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+
+/**
+ * Tests for {@link ChainedProxyPool}, first fed with made up measurements and
+ * then in front of a fast and a slow chained proxy.
+ */
+public class ChainedProxyPoolTest {
+    private static final String A = "127.0.0.1:1001";
+    private static final String B = "127.0.0.1:1002";
+    private static final String C = "127.0.0.1:1003";
+
+    private static final int WEB_SERVER_PORT = 8979;
+    private static final int FAST_PROXY_PORT = 8983;
+    private static final int SLOW_PROXY_PORT = 8984;
+    private static final int RELAY_PORT = 8985;
+    private static final int DOWNSTREAM_PROXY_PORT = 8986;
+    private static final int FIRST_PROXY_PORT = 8987;
+    private static final int SECOND_PROXY_PORT = 8988;
+
+    @Test
+    public void testRoundRobin() throws Exception {
+        ChainedProxyPool pool = new ChainedProxyPool(
+                LoadBalancingStrategy.ROUND_ROBIN, A, B, C);
+        // Being busy makes no difference
+        pool.requestSentToChainedProxy(A);
+        Map<String, Integer> picks = pick(pool, 30);
+        assertEquals(10, (int) picks.get(A));
+        assertEquals(10, (int) picks.get(B));
+        assertEquals(10, (int) picks.get(C));
+    }
+
+    @Test
+    public void testLeastOutstanding() throws Exception {
+        ChainedProxyPool pool = new ChainedProxyPool(
+                LoadBalancingStrategy.LEAST_OUTSTANDING, A, B);
+        pool.requestSentToChainedProxy(A);
+        pool.requestSentToChainedProxy(A);
+        pool.requestSentToChainedProxy(B);
+        assertEquals(20, (int) pick(pool, 20).get(B));
+
+        pool.responseReceivedFromChainedProxy(A, 10);
+        pool.requestFailedAtChainedProxy(A);
+        assertEquals(0, pool.getOutstandingRequests(A));
+        assertEquals(20, (int) pick(pool, 20).get(A));
+    }
+
+    @Test
+    public void testPeakEwma() throws Exception {
+        ChainedProxyPool pool = new ChainedProxyPool(
+                LoadBalancingStrategy.PEAK_EWMA, A, B);
+        pool.connectedToChainedProxy(A, 5);
+        pool.connectedToChainedProxy(B, 10);
+        assertEquals(20, (int) pick(pool, 20).get(A));
+
+        // A single slow response counts in full right away
+        pool.requestSentToChainedProxy(A);
+        pool.responseReceivedFromChainedProxy(A, 50);
+        assertEquals(20, (int) pick(pool, 20).get(B));
+
+        // Fast ones only bring it down gradually
+        pool.requestSentToChainedProxy(A);
+        pool.responseReceivedFromChainedProxy(A, 1);
+        assertEquals(20, (int) pick(pool, 20).get(B));
+
+        // Requests that are outstanding count against the latency
+        for (int i = 0; i < 10; i++) {
+            pool.requestSentToChainedProxy(B);
+        }
+        assertEquals(20, (int) pick(pool, 20).get(A));
+    }
+
+    @Test
+    public void testPeakEwmaPenalizesUnmeasuredProxiesThatAreBusy()
+            throws Exception {
+        ChainedProxyPool pool = new ChainedProxyPool(
+                LoadBalancingStrategy.PEAK_EWMA, A, B);
+        pool.connectedToChainedProxy(A, 1000);
+        pool.requestSentToChainedProxy(B);
+        assertEquals(20, (int) pick(pool, 20).get(A));
+    }
+
+    @Test
+    public void testSlowProxyIsEjectedAndReadmitted() throws Exception {
+        ChainedProxyPool pool = new ChainedProxyPool(
+                LoadBalancingStrategy.ROUND_ROBIN, A, B, C)
+                .withEjectionTimeInSeconds(1);
+        pool.connectedToChainedProxy(A, 10);
+        pool.connectedToChainedProxy(B, 12);
+        for (int i = 0; i < 2; i++) {
+            pool.connectedToChainedProxy(C, 500);
+        }
+        assertFalse("Two strikes shouldn't be enough", pool.isEjected(C));
+        pool.connectedToChainedProxy(C, 500);
+        assertTrue("Slow proxy should have been ejected", pool.isEjected(C));
+        assertNull(pick(pool, 20).get(C));
+
+        Thread.sleep(1100);
+        assertFalse("Slow proxy should have been readmitted",
+                pool.isEjected(C));
+        assertNotNull(pick(pool, 20).get(C));
+    }
+
+    @Test
+    public void testStrikesHaveToBeInARow() throws Exception {
+        ChainedProxyPool pool = new ChainedProxyPool(
+                LoadBalancingStrategy.ROUND_ROBIN, A, B, C);
+        pool.connectedToChainedProxy(A, 10);
+        pool.connectedToChainedProxy(B, 12);
+        for (int i = 0; i < 10; i++) {
+            pool.connectedToChainedProxy(C, 500);
+            pool.connectedToChainedProxy(C, 500);
+            pool.connectedToChainedProxy(C, 11);
+        }
+        assertFalse(pool.isEjected(C));
+    }
+
+    @Test
+    public void testFailingProxyIsEjected() throws Exception {
+        ChainedProxyPool pool = new ChainedProxyPool(
+                LoadBalancingStrategy.PEAK_EWMA, A, B);
+        for (int i = 0; i < 3; i++) {
+            pool.failedToConnectToChainedProxy(B);
+        }
+        assertTrue(pool.isEjected(B));
+        assertEquals(20, (int) pick(pool, 20).get(A));
+    }
+
+    @Test
+    public void testAtMostHalfThePoolIsEjected() throws Exception {
+        ChainedProxyPool pool = new ChainedProxyPool(
+                LoadBalancingStrategy.ROUND_ROBIN, A, B, C);
+        for (int i = 0; i < 3; i++) {
+            pool.failedToConnectToChainedProxy(A);
+            pool.failedToConnectToChainedProxy(B);
+        }
+        assertTrue(pool.isEjected(A));
+        assertFalse(pool.isEjected(B));
+    }
+
+    @Test
+    public void testConsistentHashIsSticky() throws Exception {
+        ChainedProxyPool pool = new ChainedProxyPool(
+                LoadBalancingStrategy.CONSISTENT_HASH, A, B, C);
+        Map<String, Integer> picks = new HashMap<String, Integer>();
+        for (int i = 0; i < 300; i++) {
+            HttpRequest request = request("http://site" + i + ".com/");
+            String hostAndPort = pool.getHostAndPort(request);
+            for (int j = 0; j < 5; j++) {
+                assertEquals(hostAndPort, pool.getHostAndPort(request));
+            }
+            Integer count = picks.get(hostAndPort);
+            picks.put(hostAndPort, count == null ? 1 : count + 1);
+        }
+        for (String hostAndPort : new String[] { A, B, C }) {
+            assertTrue(hostAndPort + " got " + picks.get(hostAndPort)
+                    + " of 300 sites", picks.get(hostAndPort) > 50);
+        }
+    }
+
+    @Test
+    public void testConsistentHashOnHostOrUri() throws Exception {
+        ChainedProxyPool byHost = new ChainedProxyPool(
+                LoadBalancingStrategy.CONSISTENT_HASH, A, B, C);
+        ChainedProxyPool byUri = new ChainedProxyPool(
+                LoadBalancingStrategy.CONSISTENT_HASH, A, B, C)
+                .withHashKey(HashKey.URI);
+        Set<String> byHostPicks = new HashSet<String>();
+        Set<String> byUriPicks = new HashSet<String>();
+        for (int i = 0; i < 100; i++) {
+            HttpRequest request = request("http://site.com/" + i);
+            byHostPicks.add(byHost.getHostAndPort(request));
+            byUriPicks.add(byUri.getHostAndPort(request));
+        }
+        assertEquals(1, byHostPicks.size());
+        assertEquals(3, byUriPicks.size());
+    }
+
+    @Test
+    public void testConsistentHashRemapsMinimally() throws Exception {
+        ChainedProxyPool pool = new ChainedProxyPool(
+                LoadBalancingStrategy.CONSISTENT_HASH, A, B, C);
+        Map<String, String> before = new HashMap<String, String>();
+        for (int i = 0; i < 1000; i++) {
+            String uri = "http://site" + i + ".com/";
+            before.put(uri, pool.getHostAndPort(request(uri)));
+        }
+
+        String d = "127.0.0.1:1004";
+        pool.addChainedProxy(d);
+        int moved = 0;
+        for (Map.Entry<String, String> entry : before.entrySet()) {
+            String now = pool.getHostAndPort(request(entry.getKey()));
+            if (!now.equals(entry.getValue())) {
+                assertEquals("Sites should only have moved to the new proxy",
+                        d, now);
+                moved += 1;
+            }
+        }
+        assertTrue("About a quarter of the sites should have moved, not "
+                + moved, moved > 150 && moved < 350);
+
+        pool.removeChainedProxy(d);
+        pool.removeChainedProxy(C);
+        for (Map.Entry<String, String> entry : before.entrySet()) {
+            String now = pool.getHostAndPort(request(entry.getKey()));
+            if (!C.equals(entry.getValue())) {
+                assertEquals("Only the removed proxy's sites should move",
+                        entry.getValue(), now);
+            }
+        }
+    }
+
+    @Test
+    public void testConsistentHashBoundsLoad() throws Exception {
+        ChainedProxyPool pool = new ChainedProxyPool(
+                LoadBalancingStrategy.CONSISTENT_HASH, A, B, C);
+        HttpRequest hot = request("http://hot.com/");
+        String home = pool.getHostAndPort(hot);
+        List<String> picks = new ArrayList<String>();
+        for (int i = 0; i < 12; i++) {
+            String hostAndPort = pool.getHostAndPort(hot);
+            pool.requestSentToChainedProxy(hostAndPort);
+            picks.add(hostAndPort);
+        }
+        for (String hostAndPort : new String[] { A, B, C }) {
+            int outstanding = pool.getOutstandingRequests(hostAndPort);
+            assertTrue(hostAndPort + " has " + outstanding
+                    + " requests outstanding, more than 1.25 times the average",
+                    outstanding <= 5);
+        }
+
+        // Once its requests finish, the hot site goes back home
+        for (String hostAndPort : picks) {
+            pool.responseReceivedFromChainedProxy(hostAndPort, 10);
+        }
+        assertEquals(home, pool.getHostAndPort(hot));
+    }
+
+    /**
+     * Chains through a pool of a fast proxy and one behind a relay that adds
+     * latency, and checks that nearly everything goes to the fast one.
+     */
+    @Test
+    public void testPrefersFastProxy() throws Exception {
+        Server webServer = startWebServer();
+        final AtomicInteger fastRequests = new AtomicInteger(0);
+        final AtomicInteger slowRequests = new AtomicInteger(0);
+        HttpProxyServer fastProxy = startCountingProxy(FAST_PROXY_PORT,
+                fastRequests);
+        HttpProxyServer slowProxy = startCountingProxy(SLOW_PROXY_PORT,
+                slowRequests);
+        LossyRelay relay = new LossyRelay(TransportProtocol.TCP, RELAY_PORT,
+                SLOW_PROXY_PORT, 150, 0).start();
+        String fast = "127.0.0.1:" + FAST_PROXY_PORT;
+        String slow = "127.0.0.1:" + RELAY_PORT;
+        ChainedProxyPool pool = new ChainedProxyPool(
+                LoadBalancingStrategy.PEAK_EWMA, fast, slow);
+        HttpProxyServer downstreamProxy = DefaultHttpProxyServer.bootstrap()
+                .withPort(DOWNSTREAM_PROXY_PORT)
+                .withChainProxyManager(pool)
+                .start();
+        try {
+            waitForListener(FAST_PROXY_PORT);
+            waitForListener(SLOW_PROXY_PORT);
+            waitForListener(DOWNSTREAM_PROXY_PORT);
+            for (int i = 0; i < 30; i++) {
+                assertEquals("Hello /" + i, get("/" + i));
+            }
+            assertEquals(30, fastRequests.get() + slowRequests.get());
+            assertTrue("Slow proxy should have had few requests, not "
+                    + slowRequests.get(), slowRequests.get() <= 3);
+            assertEquals(0, pool.getOutstandingRequests(fast));
+            assertEquals(0, pool.getOutstandingRequests(slow));
+        } finally {
+            downstreamProxy.stop();
+            relay.stop();
+            slowProxy.stop();
+            fastProxy.stop();
+            webServer.stop();
+        }
+    }
+
+    /**
+     * Sends requests through a round robin pool of two chained proxies, and
+     * checks that they take turns. The pool must only be asked once per
+     * request for this to work.
+     */
+    @Test
+    public void testRoundRobinThroughProxies() throws Exception {
+        Server webServer = startWebServer();
+        final AtomicInteger firstRequests = new AtomicInteger(0);
+        final AtomicInteger secondRequests = new AtomicInteger(0);
+        HttpProxyServer firstProxy = startCountingProxy(FIRST_PROXY_PORT,
+                firstRequests);
+        HttpProxyServer secondProxy = startCountingProxy(SECOND_PROXY_PORT,
+                secondRequests);
+        ChainedProxyPool pool = new ChainedProxyPool(
+                LoadBalancingStrategy.ROUND_ROBIN, "127.0.0.1:"
+                        + FIRST_PROXY_PORT, "127.0.0.1:" + SECOND_PROXY_PORT);
+        HttpProxyServer downstreamProxy = DefaultHttpProxyServer.bootstrap()
+                .withPort(DOWNSTREAM_PROXY_PORT)
+                .withChainProxyManager(pool)
+                .start();
+        try {
+            waitForListener(FIRST_PROXY_PORT);
+            waitForListener(SECOND_PROXY_PORT);
+            waitForListener(DOWNSTREAM_PROXY_PORT);
+            for (int i = 0; i < 10; i++) {
+                assertEquals("Hello /" + i, get("/" + i));
+            }
+            assertEquals(5, firstRequests.get());
+            assertEquals(5, secondRequests.get());
+        } finally {
+            downstreamProxy.stop();
+            secondProxy.stop();
+            firstProxy.stop();
+            webServer.stop();
+        }
+    }
+
+    private static Map<String, Integer> pick(ChainedProxyPool pool, int times) {
+        Map<String, Integer> picks = new HashMap<String, Integer>();
+        for (int i = 0; i < times; i++) {
+            String hostAndPort = pool.getHostAndPort(null);
+            Integer count = picks.get(hostAndPort);
+            picks.put(hostAndPort, count == null ? 1 : count + 1);
+        }
+        return picks;
+    }
+
+    private static HttpRequest request(String uri) {
+        return new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET,
+                uri);
+    }
+
+    private Server startWebServer() throws Exception {
+        Server webServer = new Server(WEB_SERVER_PORT);
+        webServer.setHandler(new AbstractHandler() {
+            public void handle(String target, Request baseRequest,
+                    HttpServletRequest request, HttpServletResponse response)
+                    throws IOException, ServletException {
+                response.setStatus(HttpServletResponse.SC_OK);
+                baseRequest.setHandled(true);
+                response.getWriter().write("Hello " + target);
+            }
+        });
+        webServer.start();
+        return webServer;
+    }
+
+    private HttpProxyServer startCountingProxy(int port,
+            final AtomicInteger requests) {
+        HttpProxyServer proxy = DefaultHttpProxyServer.bootstrap()
+                .withPort(port)
+                .start();
+        proxy.addActivityTracker(new ActivityTrackerAdapter() {
+            @Override
+            public void requestReceivedFromClient(FlowContext flowContext,
+                    HttpRequest httpRequest) {
+                requests.incrementAndGet();
+            }
+        });
+        return proxy;
+    }
+
+    private String get(String path) throws Exception {
+        HttpClient httpClient = TestUtils
+                .createProxiedHttpClient(DOWNSTREAM_PROXY_PORT);
+        try {
+            HttpResponse response = httpClient.execute(new HttpGet(
+                    "http://127.0.0.1:" + WEB_SERVER_PORT + path));
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            return EntityUtils.toString(response.getEntity());
+        } finally {
+            httpClient.getConnectionManager().shutdown();
+        }
+    }
+
+    /**
+     * The proxies bind asynchronously, this waits for one to start listening.
+     */
+    private void waitForListener(int port) throws Exception {
+        for (int i = 0; i < 50; i++) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress("127.0.0.1", port));
+                return;
+            } catch (IOException ioe) {
+                Thread.sleep(100);
+            } finally {
+                socket.close();
+            }
+        }
+    }
+}
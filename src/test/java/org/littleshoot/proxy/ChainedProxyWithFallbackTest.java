@@ -1,7 +1,23 @@
 package org.littleshoot.proxy;
 
+import static org.junit.Assert.*;
 import io.netty.handler.codec.http.HttpRequest;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.KeyStore;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.params.ConnRoutePNames;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
 import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
 
 /**
@@ -13,23 +29,85 @@ public class ChainedProxyWithFallbackTest extends BaseProxyTest {
     private static final int DOWNSTREAM_PROXY_PORT = 49999;
     private static final String DOWNSTREAM_PROXY_HOST_AND_PORT = "127.0.0.1:"
             + DOWNSTREAM_PROXY_PORT;
+    private static final int MITM_PROXY_PORT = 49998;
 
     @Override
     protected void setUp() {
         this.proxyServer = DefaultHttpProxyServer.bootstrap()
                 .withPort(proxyServerPort)
-                .withChainProxyManager(new ChainedProxyManagerAdapter() {
-                    @Override
-                    public String getHostAndPort(HttpRequest httpRequest) {
-                        return DOWNSTREAM_PROXY_HOST_AND_PORT;
-                    }
-
-                    @Override
-                    public boolean allowFallbackToUnchainedConnection(
-                            HttpRequest httpRequest) {
-                        return true;
-                    }
-                })
+                .withChainProxyManager(new FallbackChainedProxyManager())
                 .start();
     }
+
+    /**
+     * Once a CONNECT falls back to a direct connection, the proxy intercepts
+     * its tunnel, so it has to speak TLS with the server.
+     */
+    @Test
+    public void testInterceptedConnectFallsBackToDirectConnection()
+            throws Exception {
+        SelfSignedSSLContextSource certificateAuthority = new SelfSignedSSLContextSource(
+                "littleproxy_mitm_keystore.jks");
+        HttpProxyServer mitmProxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(MITM_PROXY_PORT)
+                .withChainProxyManager(new FallbackChainedProxyManager())
+                .withManInTheMiddle(certificateAuthority.getPrivateKey(),
+                        certificateAuthority.getCertificate())
+                .withAcceptAllSSLCertificates(true)
+                .start();
+        DefaultHttpClient httpClient = new DefaultHttpClient();
+        try {
+            waitForProxy(MITM_PROXY_PORT);
+            KeyStore trustStore = KeyStore.getInstance("JKS");
+            trustStore.load(null, null);
+            trustStore.setCertificateEntry("ca",
+                    certificateAuthority.getCertificate());
+            httpClient
+                    .getConnectionManager()
+                    .getSchemeRegistry()
+                    .register(
+                            new Scheme("https", 443, new SSLSocketFactory(
+                                    trustStore)));
+            httpClient.getParams().setParameter(ConnRoutePNames.DEFAULT_PROXY,
+                    new HttpHost("127.0.0.1", MITM_PROXY_PORT));
+
+            HttpResponse response = httpClient.execute(new HttpGet(
+                    "https://localhost:" + httpsWebServerPort + "/"));
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            assertEquals("Received 0 bytes\n",
+                    EntityUtils.toString(response.getEntity()));
+        } finally {
+            httpClient.getConnectionManager().shutdown();
+            mitmProxyServer.stop();
+        }
+    }
+
+    private void waitForProxy(int port) throws Exception {
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+        for (int i = 0; i < 50; i++) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(address);
+                return;
+            } catch (IOException ioe) {
+                Thread.sleep(100);
+            } finally {
+                IOUtils.closeQuietly(socket);
+            }
+        }
+    }
+
+    private static class FallbackChainedProxyManager extends
+            ChainedProxyManagerAdapter {
+        @Override
+        public String getHostAndPort(HttpRequest httpRequest) {
+            return DOWNSTREAM_PROXY_HOST_AND_PORT;
+        }
+
+        @Override
+        public boolean allowFallbackToUnchainedConnection(
+                HttpRequest httpRequest) {
+            return true;
+        }
+    }
 }
@@ -0,0 +1,204 @@
+package org.littleshoot.proxy;
+
+import static org.junit.Assert.*;
+import io.netty.handler.codec.http.HttpRequest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+
+/**
+ * Tests compressing the connection to a chained proxy, by watching what goes
+ * over it through a {@link LossyRelay} that doesn't delay or drop anything.
+ */
+public class CompressedChainedProxyTest {
+    private static final int WEB_SERVER_PORT = 8969;
+    private static final int UPSTREAM_PROXY_PORT = 8970;
+    private static final int RELAY_PORT = 8971;
+    private static final int DOWNSTREAM_PROXY_PORT = 8972;
+
+    private static final byte[] BODY = repetitiveBody(256 * 1024);
+
+    private Server webServer;
+    private HttpProxyServer upstreamProxy;
+    private LossyRelay relay;
+    private HttpProxyServer downstreamProxy;
+
+    @Before
+    public void setUp() throws Exception {
+        webServer = new Server(WEB_SERVER_PORT);
+        webServer.setHandler(new AbstractHandler() {
+            public void handle(String target, Request baseRequest,
+                    HttpServletRequest request, HttpServletResponse response)
+                    throws IOException, ServletException {
+                response.setStatus(HttpServletResponse.SC_OK);
+                baseRequest.setHandled(true);
+                if ("POST".equals(request.getMethod())) {
+                    InputStream in = request.getInputStream();
+                    byte[] buf = new byte[8192];
+                    int read;
+                    while ((read = in.read(buf)) != -1) {
+                        response.getOutputStream().write(buf, 0, read);
+                    }
+                } else {
+                    response.setContentLength(BODY.length);
+                    response.getOutputStream().write(BODY);
+                }
+            }
+        });
+        webServer.start();
+
+        upstreamProxy = DefaultHttpProxyServer.bootstrap()
+                .withPort(UPSTREAM_PROXY_PORT)
+                .withAcceptCompressedLinks(true)
+                .start();
+        relay = new LossyRelay(TransportProtocol.TCP, RELAY_PORT,
+                UPSTREAM_PROXY_PORT, 0, 0).start();
+        waitForListener(UPSTREAM_PROXY_PORT);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try {
+            if (downstreamProxy != null) {
+                downstreamProxy.stop();
+            }
+            relay.stop();
+            upstreamProxy.stop();
+        } finally {
+            webServer.stop();
+        }
+    }
+
+    @Test
+    public void testDeflate() throws Exception {
+        assertCompressed(LinkCompression.DEFLATE);
+    }
+
+    @Test
+    public void testSnappy() throws Exception {
+        assertCompressed(LinkCompression.SNAPPY);
+    }
+
+    @Test
+    public void testUncompressed() throws Exception {
+        startDownstreamProxy(LinkCompression.NONE);
+        assertTrue("Body should have arrived intact",
+                Arrays.equals(BODY, get()));
+        assertTrue("Uncompressed link should have carried the whole body",
+                relay.getRelayedBytes() > BODY.length);
+    }
+
+    @Test
+    public void testPost() throws Exception {
+        startDownstreamProxy(LinkCompression.DEFLATE);
+        HttpClient httpClient = TestUtils
+                .createProxiedHttpClient(DOWNSTREAM_PROXY_PORT);
+        try {
+            HttpPost post = new HttpPost("http://127.0.0.1:"
+                    + WEB_SERVER_PORT + "/echo");
+            post.setEntity(new ByteArrayEntity(BODY));
+            HttpResponse response = httpClient.execute(post);
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            assertTrue("Request body should have been echoed",
+                    Arrays.equals(BODY,
+                            EntityUtils.toByteArray(response.getEntity())));
+        } finally {
+            httpClient.getConnectionManager().shutdown();
+        }
+        assertTrue("Body should have been compressed both ways, but "
+                + relay.getRelayedBytes() + " bytes were relayed",
+                relay.getRelayedBytes() < BODY.length / 2);
+    }
+
+    private void assertCompressed(LinkCompression compression)
+            throws Exception {
+        startDownstreamProxy(compression);
+        for (int i = 0; i < 3; i++) {
+            assertTrue("Body should have arrived intact",
+                    Arrays.equals(BODY, get()));
+        }
+        assertTrue("Bodies should have been compressed, but "
+                + relay.getRelayedBytes() + " bytes were relayed",
+                relay.getRelayedBytes() < BODY.length);
+    }
+
+    private void startDownstreamProxy(final LinkCompression compression)
+            throws Exception {
+        downstreamProxy = DefaultHttpProxyServer.bootstrap()
+                .withPort(DOWNSTREAM_PROXY_PORT)
+                .withChainProxyManager(new ChainedProxyManagerAdapter() {
+                    @Override
+                    public String getHostAndPort(HttpRequest httpRequest) {
+                        return "127.0.0.1:" + RELAY_PORT;
+                    }
+
+                    @Override
+                    public LinkCompression getLinkCompression(
+                            HttpRequest httpRequest) {
+                        return compression;
+                    }
+                })
+                .start();
+        waitForListener(DOWNSTREAM_PROXY_PORT);
+    }
+
+    private byte[] get() throws Exception {
+        HttpClient httpClient = TestUtils
+                .createProxiedHttpClient(DOWNSTREAM_PROXY_PORT);
+        try {
+            HttpResponse response = httpClient.execute(new HttpGet(
+                    "http://127.0.0.1:" + WEB_SERVER_PORT + "/"));
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            return EntityUtils.toByteArray(response.getEntity());
+        } finally {
+            httpClient.getConnectionManager().shutdown();
+        }
+    }
+
+    private static byte[] repetitiveBody(int length) {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; body.length() < length; i++) {
+            body.append("<tr><td class=\"row\">Row number ").append(i)
+                    .append("</td></tr>\n");
+        }
+        return body.substring(0, length).getBytes();
+    }
+
+    /**
+     * The proxies bind asynchronously, this waits for one to start listening.
+     */
+    private void waitForListener(int port) throws Exception {
+        for (int i = 0; i < 50; i++) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress("127.0.0.1", port));
+                return;
+            } catch (IOException ioe) {
+                Thread.sleep(100);
+            } finally {
+                socket.close();
+            }
+        }
+    }
+}
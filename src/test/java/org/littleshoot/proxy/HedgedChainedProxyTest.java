@@ -0,0 +1,217 @@
+package org.littleshoot.proxy;
+
+import static org.junit.Assert.*;
+import io.netty.handler.codec.http.HttpRequest;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.server.Server;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+
+/**
+ * Tests racing a direct connection against a slow connection to a chained
+ * proxy. The slow chained proxy accepts connections but never says anything,
+ * so the TLS handshake with it doesn't get anywhere.
+ */
+public class HedgedChainedProxyTest {
+    private static final int WEB_SERVER_PORT = 8987;
+    private static final int SILENT_PROXY_PORT = 8988;
+    private static final int UPSTREAM_PROXY_PORT = 8989;
+    private static final int PROXY_PORT = 8990;
+    private static final int CLOSED_PORT = 8991;
+
+    private static final long HEDGE_DELAY = 200;
+
+    private Server webServer;
+    private ServerSocket silentProxy;
+    private final Queue<Socket> silentConnections = new ConcurrentLinkedQueue<Socket>();
+    private HttpProxyServer upstreamProxy;
+    private HttpProxyServer proxy;
+
+    @Before
+    public void setUp() throws Exception {
+        webServer = TestUtils.startWebServer(WEB_SERVER_PORT);
+
+        silentProxy = new ServerSocket();
+        silentProxy.setReuseAddress(true);
+        silentProxy.bind(new InetSocketAddress("127.0.0.1", SILENT_PROXY_PORT));
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        silentConnections.add(silentProxy.accept());
+                    }
+                } catch (IOException ioe) {
+                    // Stopped
+                }
+            }
+        }, "HedgedChainedProxyTest-silent");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try {
+            if (proxy != null) {
+                proxy.stop();
+            }
+            if (upstreamProxy != null) {
+                upstreamProxy.stop();
+            }
+            silentProxy.close();
+            for (Socket socket : silentConnections) {
+                socket.close();
+            }
+        } finally {
+            webServer.stop();
+        }
+    }
+
+    @Test
+    public void testHedgesSlowChainedProxy() throws Exception {
+        startProxy(SILENT_PROXY_PORT, true, HEDGE_DELAY);
+        HttpClient httpClient = TestUtils.createProxiedHttpClient(PROXY_PORT);
+        try {
+            for (int i = 0; i < 2; i++) {
+                long start = System.currentTimeMillis();
+                assertEquals(200, get(httpClient, WEB_SERVER_PORT));
+                long elapsed = System.currentTimeMillis() - start;
+                assertTrue("Request should have gone direct after the delay, but took "
+                        + elapsed + " ms", elapsed < 5000);
+            }
+        } finally {
+            httpClient.getConnectionManager().shutdown();
+        }
+        assertFalse("Chained proxy should have been tried",
+                silentConnections.isEmpty());
+    }
+
+    @Test
+    public void testChainedProxyWinsWhenFast() throws Exception {
+        final AtomicInteger chainedRequests = new AtomicInteger(0);
+        upstreamProxy = DefaultHttpProxyServer.bootstrap()
+                .withPort(UPSTREAM_PROXY_PORT)
+                .start();
+        upstreamProxy.addActivityTracker(new ActivityTrackerAdapter() {
+            @Override
+            public void requestReceivedFromClient(FlowContext flowContext,
+                    HttpRequest httpRequest) {
+                chainedRequests.incrementAndGet();
+            }
+        });
+        startProxy(UPSTREAM_PROXY_PORT, false, 5000);
+        HttpClient httpClient = TestUtils.createProxiedHttpClient(PROXY_PORT);
+        try {
+            assertEquals(200, get(httpClient, WEB_SERVER_PORT));
+        } finally {
+            httpClient.getConnectionManager().shutdown();
+        }
+        assertEquals("Request should have gone through the chained proxy", 1,
+                chainedRequests.get());
+    }
+
+    @Test
+    public void testGoesDirectRightAwayWhenChainedProxyIsDown()
+            throws Exception {
+        startProxy(CLOSED_PORT, false, 30000);
+        HttpClient httpClient = TestUtils.createProxiedHttpClient(PROXY_PORT);
+        try {
+            long start = System.currentTimeMillis();
+            assertEquals(200, get(httpClient, WEB_SERVER_PORT));
+            long elapsed = System.currentTimeMillis() - start;
+            assertTrue("Request shouldn't have waited for the hedge delay, but took "
+                    + elapsed + " ms", elapsed < 5000);
+        } finally {
+            httpClient.getConnectionManager().shutdown();
+        }
+    }
+
+    @Test
+    public void testBadGatewayWhenBothFail() throws Exception {
+        startProxy(CLOSED_PORT, false, HEDGE_DELAY);
+        HttpClient httpClient = TestUtils.createProxiedHttpClient(PROXY_PORT);
+        try {
+            assertEquals(502, get(httpClient, CLOSED_PORT));
+        } finally {
+            httpClient.getConnectionManager().shutdown();
+        }
+    }
+
+    private void startProxy(final int chainedProxyPort,
+            final boolean encrypted, final long hedgeDelay) throws Exception {
+        final SSLContextSource sslContextSource = new SelfSignedSSLContextSource();
+        proxy = DefaultHttpProxyServer.bootstrap()
+                .withPort(PROXY_PORT)
+                .withChainProxyManager(new ChainedProxyManagerAdapter() {
+                    @Override
+                    public String getHostAndPort(HttpRequest httpRequest) {
+                        return "127.0.0.1:" + chainedProxyPort;
+                    }
+
+                    @Override
+                    public boolean requiresEncryption(HttpRequest httpRequest) {
+                        return encrypted;
+                    }
+
+                    @Override
+                    public SSLContext getSSLContext() {
+                        return sslContextSource.getSSLContext();
+                    }
+
+                    @Override
+                    public boolean allowFallbackToUnchainedConnection(
+                            HttpRequest httpRequest) {
+                        return true;
+                    }
+
+                    @Override
+                    public long getFallbackHedgeDelayInMillis(
+                            HttpRequest httpRequest) {
+                        return hedgeDelay;
+                    }
+                })
+                .start();
+        waitForListener(PROXY_PORT);
+    }
+
+    private int get(HttpClient httpClient, int port) throws Exception {
+        HttpResponse response = httpClient.execute(new HttpGet(
+                "http://127.0.0.1:" + port + "/"));
+        EntityUtils.consume(response.getEntity());
+        return response.getStatusLine().getStatusCode();
+    }
+
+    /**
+     * The proxies bind asynchronously, this waits for one to start listening.
+     */
+    private void waitForListener(int port) throws Exception {
+        for (int i = 0; i < 50; i++) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress("127.0.0.1", port));
+                return;
+            } catch (IOException ioe) {
+                Thread.sleep(100);
+            } finally {
+                socket.close();
+            }
+        }
+        fail("Nothing listening on " + port);
+    }
+}
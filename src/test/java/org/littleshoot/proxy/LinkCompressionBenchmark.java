@@ -0,0 +1,224 @@
+package org.littleshoot.proxy;
+
+import io.netty.handler.codec.http.HttpRequest;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.params.ConnRoutePNames;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.ResourceHandler;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+
+import com.sun.management.OperatingSystemMXBean;
+
+/**
+ * <p>
+ * Compares the ways of compressing the link to a chained proxy (see
+ * {@link LinkCompression}), by loading every file of the performance site
+ * through a chain of two proxies a few times with each. For each one, we
+ * report how many bytes crossed the link between the proxies (counted by a
+ * {@link LossyRelay} that neither delays nor drops anything), how long it took
+ * and how much CPU time the whole process used.
+ * </p>
+ * 
+ * <p>
+ * Everything runs in this one process, so the CPU time includes the client
+ * and the web server. Only the difference between the runs is down to the
+ * compression.
+ * </p>
+ * 
+ * <p>
+ * Usage: LinkCompressionBenchmark [runs]
+ * </p>
+ */
+public class LinkCompressionBenchmark {
+    private static final int WEB_SERVER_PORT = 8973;
+    private static final int UPSTREAM_PROXY_PORT = 8974;
+    private static final int RELAY_PORT = 8975;
+    /**
+     * Each kind of compression gets its own downstream proxy, at this port
+     * plus its ordinal.
+     */
+    private static final int DOWNSTREAM_PROXY_PORT = 8976;
+    private static final File SITE = new File("./performance/site/");
+    private static final int CONNECTIONS = 6;
+
+    public static void main(String[] args) throws Exception {
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+
+        List<String> paths = new ArrayList<String>();
+        listFiles(SITE, "", paths);
+        Server webServer = new Server(WEB_SERVER_PORT);
+        ResourceHandler resourceHandler = new ResourceHandler();
+        resourceHandler.setResourceBase(SITE.getPath());
+        webServer.setHandler(resourceHandler);
+        webServer.start();
+        HttpProxyServer upstreamProxy = DefaultHttpProxyServer.bootstrap()
+                .withPort(UPSTREAM_PROXY_PORT)
+                .withAcceptCompressedLinks(true)
+                .start();
+        LossyRelay relay = new LossyRelay(TransportProtocol.TCP, RELAY_PORT,
+                UPSTREAM_PROXY_PORT, 0, 0).start();
+        List<HttpProxyServer> downstreamProxies = new ArrayList<HttpProxyServer>();
+        try {
+            waitForListener(UPSTREAM_PROXY_PORT);
+            for (LinkCompression compression : LinkCompression.values()) {
+                downstreamProxies.add(startDownstreamProxy(compression));
+            }
+            // Warm up
+            for (LinkCompression compression : LinkCompression.values()) {
+                run(compression, paths, 1, relay);
+            }
+
+            System.out.println(String.format(
+                    "%1$s files of the performance site, %2$s times over:",
+                    paths.size(), runs));
+            long uncompressed = 0;
+            for (LinkCompression compression : LinkCompression.values()) {
+                Result result = run(compression, paths, runs, relay);
+                if (compression == LinkCompression.NONE) {
+                    uncompressed = result.bytes;
+                }
+                System.out.println(String.format(
+                        "%1$-8s %2$10s bytes (%3$5.1f%%) in %4$6sms, %5$6sms CPU",
+                        compression, result.bytes,
+                        100.0 * result.bytes / uncompressed, result.millis,
+                        result.cpuMillis));
+            }
+        } finally {
+            for (HttpProxyServer downstreamProxy : downstreamProxies) {
+                downstreamProxy.stop();
+            }
+            relay.stop();
+            upstreamProxy.stop();
+            webServer.stop();
+        }
+    }
+
+    private static HttpProxyServer startDownstreamProxy(
+            final LinkCompression compression) throws Exception {
+        int port = DOWNSTREAM_PROXY_PORT + compression.ordinal();
+        HttpProxyServer downstreamProxy = DefaultHttpProxyServer.bootstrap()
+                .withPort(port)
+                .withChainProxyManager(new ChainedProxyManagerAdapter() {
+                    @Override
+                    public String getHostAndPort(HttpRequest httpRequest) {
+                        return "127.0.0.1:" + RELAY_PORT;
+                    }
+
+                    @Override
+                    public LinkCompression getLinkCompression(
+                            HttpRequest httpRequest) {
+                        return compression;
+                    }
+                })
+                .start();
+        waitForListener(port);
+        return downstreamProxy;
+    }
+
+    private static Result run(LinkCompression compression,
+            final List<String> paths, int runs, LossyRelay relay)
+            throws Exception {
+        PoolingClientConnectionManager connectionManager = new PoolingClientConnectionManager();
+        connectionManager.setDefaultMaxPerRoute(CONNECTIONS);
+        final DefaultHttpClient httpClient = new DefaultHttpClient(
+                connectionManager);
+        httpClient.getParams().setParameter(ConnRoutePNames.DEFAULT_PROXY,
+                new HttpHost("127.0.0.1", DOWNSTREAM_PROXY_PORT
+                        + compression.ordinal(), "http"));
+        ExecutorService executor = Executors.newFixedThreadPool(CONNECTIONS);
+        try {
+            OperatingSystemMXBean os = (OperatingSystemMXBean) ManagementFactory
+                    .getOperatingSystemMXBean();
+            long bytesStart = relay.getRelayedBytes();
+            long cpuStart = os.getProcessCpuTime();
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < runs; i++) {
+                List<Future<Integer>> statuses = new ArrayList<Future<Integer>>();
+                for (final String path : paths) {
+                    statuses.add(executor.submit(new Callable<Integer>() {
+                        @Override
+                        public Integer call() throws Exception {
+                            HttpResponse response = httpClient
+                                    .execute(new HttpGet("http://127.0.0.1:"
+                                            + WEB_SERVER_PORT + path));
+                            EntityUtils.consume(response.getEntity());
+                            return response.getStatusLine().getStatusCode();
+                        }
+                    }));
+                }
+                for (int j = 0; j < statuses.size(); j++) {
+                    int status = statuses.get(j).get();
+                    if (status != 200) {
+                        throw new IllegalStateException(paths.get(j)
+                                + " failed with " + status);
+                    }
+                }
+            }
+            Result result = new Result();
+            result.millis = System.currentTimeMillis() - start;
+            result.cpuMillis = (os.getProcessCpuTime() - cpuStart) / 1000000;
+            result.bytes = relay.getRelayedBytes() - bytesStart;
+            return result;
+        } finally {
+            executor.shutdown();
+            connectionManager.shutdown();
+        }
+    }
+
+    private static void listFiles(File directory, String prefix,
+            List<String> paths) throws IOException {
+        for (File file : directory.listFiles()) {
+            if (!file.getName().matches("\\p{ASCII}+")) {
+                // Depends on the platform's encoding whether Jetty finds these
+                continue;
+            }
+            String path = prefix + "/"
+                    + URLEncoder.encode(file.getName(), "UTF-8")
+                            .replace("+", "%20");
+            if (file.isDirectory()) {
+                listFiles(file, path, paths);
+            } else {
+                paths.add(path);
+            }
+        }
+    }
+
+    private static class Result {
+        private long bytes;
+        private long millis;
+        private long cpuMillis;
+    }
+
+    private static void waitForListener(int port) throws Exception {
+        for (int i = 0; i < 50; i++) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress("127.0.0.1", port));
+                return;
+            } catch (IOException ioe) {
+                Thread.sleep(100);
+            } finally {
+                socket.close();
+            }
+        }
+    }
+}
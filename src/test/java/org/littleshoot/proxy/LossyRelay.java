@@ -0,0 +1,317 @@
+package org.littleshoot.proxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Relays connections from a local port to another one, delaying everything
+ * by a fixed latency each way, to simulate a long link between two proxies.
+ * </p>
+ * 
+ * <p>
+ * For {@link TransportProtocol#UDT}, we relay the UDP datagrams that UDT runs
+ * on and drop the given fraction of them at random, each way. For
+ * {@link TransportProtocol#TCP}, we relay the byte stream and can only add
+ * latency: the kernel has already recovered from any loss by the time we see
+ * the bytes, so simulating loss on TCP takes something like netem.
+ * </p>
+ */
+public class LossyRelay {
+    private static final int MAX_DATAGRAM_SIZE = 65536;
+    private static final int UDP_BUFFER_SIZE = 8 * 1024 * 1024;
+
+    private final TransportProtocol transportProtocol;
+    private final int port;
+    private final int targetPort;
+    private final long latencyInMillis;
+    private final double lossRate;
+    private final Random random = new Random();
+    private final AtomicLong relayed = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+    private final AtomicLong relayedBytes = new AtomicLong(0);
+    private final Queue<Object> sockets = new ConcurrentLinkedQueue<Object>();
+    private volatile boolean stopped = false;
+
+    /**
+     * @param transportProtocol
+     *            the transport of the connections to relay
+     * @param port
+     *            the port to listen on
+     * @param targetPort
+     *            the local port to relay to
+     * @param latencyInMillis
+     *            how long to hold on to everything, each way
+     * @param lossRate
+     *            the fraction of UDP datagrams to drop, each way
+     */
+    public LossyRelay(TransportProtocol transportProtocol, int port,
+            int targetPort, long latencyInMillis, double lossRate) {
+        this.transportProtocol = transportProtocol;
+        this.port = port;
+        this.targetPort = targetPort;
+        this.latencyInMillis = latencyInMillis;
+        this.lossRate = lossRate;
+    }
+
+    public LossyRelay start() throws IOException {
+        switch (transportProtocol) {
+        case TCP:
+            final ServerSocket serverSocket = new ServerSocket();
+            serverSocket.setReuseAddress(true);
+            serverSocket.bind(new InetSocketAddress("127.0.0.1", port));
+            sockets.add(serverSocket);
+            startThread("accept", new Runnable() {
+                public void run() {
+                    acceptTcp(serverSocket);
+                }
+            });
+            break;
+        case UDT:
+            final DatagramSocket front = newDatagramSocket(port);
+            startThread("front", new Runnable() {
+                public void run() {
+                    relayFromClients(front);
+                }
+            });
+            break;
+        default:
+            throw new UnknownTransportProtocolError(transportProtocol);
+        }
+        return this;
+    }
+
+    public void stop() {
+        stopped = true;
+        for (Object socket : sockets) {
+            try {
+                if (socket instanceof ServerSocket) {
+                    ((ServerSocket) socket).close();
+                } else if (socket instanceof Socket) {
+                    ((Socket) socket).close();
+                } else {
+                    ((DatagramSocket) socket).close();
+                }
+            } catch (IOException ioe) {
+                // Already closed
+            }
+        }
+    }
+
+    /**
+     * @return the number of datagrams that we've passed on
+     */
+    public long getRelayed() {
+        return relayed.get();
+    }
+
+    /**
+     * @return the number of bytes that we've passed on, both ways, not
+     *         counting the UDP and IP headers
+     */
+    public long getRelayedBytes() {
+        return relayedBytes.get();
+    }
+
+    /**
+     * @return the number of datagrams that we've dropped
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private void acceptTcp(ServerSocket serverSocket) {
+        while (!stopped) {
+            try {
+                Socket client = serverSocket.accept();
+                Socket server = new Socket("127.0.0.1", targetPort);
+                client.setTcpNoDelay(true);
+                server.setTcpNoDelay(true);
+                sockets.add(client);
+                sockets.add(server);
+                pump(client, server);
+                pump(server, client);
+            } catch (IOException ioe) {
+                // Stopped
+            }
+        }
+    }
+
+    /**
+     * Copies one direction of a TCP connection, after the latency.
+     */
+    private void pump(final Socket from, final Socket to) throws IOException {
+        final InputStream in = from.getInputStream();
+        final OutputStream out = to.getOutputStream();
+        final BlockingQueue<Delayed> queue = new LinkedBlockingQueue<Delayed>();
+        startThread("tcp-read", new Runnable() {
+            public void run() {
+                byte[] buf = new byte[65536];
+                int read;
+                try {
+                    while ((read = in.read(buf)) != -1) {
+                        queue.add(new Delayed(Arrays.copyOf(buf, read), null));
+                    }
+                } catch (IOException ioe) {
+                    // Closed
+                }
+                queue.add(new Delayed(null, null));
+            }
+        });
+        startThread("tcp-write", new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        Delayed next = queue.take();
+                        if (next.data == null) {
+                            to.shutdownOutput();
+                            return;
+                        }
+                        next.await();
+                        out.write(next.data);
+                        relayedBytes.addAndGet(next.data.length);
+                    }
+                } catch (Exception e) {
+                    // Closed
+                }
+            }
+        });
+    }
+
+    /**
+     * Relays datagrams from the UDT clients at our port, each of which gets
+     * its own socket from which to talk to the target, so that we can tell
+     * where to send the target's replies.
+     */
+    private void relayFromClients(DatagramSocket front) {
+        Map<SocketAddress, BlockingQueue<Delayed>> toTarget = new ConcurrentHashMap<SocketAddress, BlockingQueue<Delayed>>();
+        BlockingQueue<Delayed> toClients = new LinkedBlockingQueue<Delayed>();
+        startWriter(front, toClients);
+        SocketAddress target = new InetSocketAddress("127.0.0.1", targetPort);
+        byte[] buf = new byte[MAX_DATAGRAM_SIZE];
+        while (!stopped) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                front.receive(packet);
+                final SocketAddress client = packet.getSocketAddress();
+                BlockingQueue<Delayed> queue = toTarget.get(client);
+                if (queue == null) {
+                    final DatagramSocket back = newDatagramSocket(0);
+                    queue = new LinkedBlockingQueue<Delayed>();
+                    toTarget.put(client, queue);
+                    startWriter(back, queue);
+                    startReader(back, toClients, client);
+                }
+                offer(queue, packet, target);
+            } catch (IOException ioe) {
+                // Stopped
+            }
+        }
+    }
+
+    private void startReader(final DatagramSocket socket,
+            final BlockingQueue<Delayed> queue, final SocketAddress to) {
+        startThread("udp-read", new Runnable() {
+            public void run() {
+                byte[] buf = new byte[MAX_DATAGRAM_SIZE];
+                while (!stopped) {
+                    try {
+                        DatagramPacket packet = new DatagramPacket(buf,
+                                buf.length);
+                        socket.receive(packet);
+                        offer(queue, packet, to);
+                    } catch (IOException ioe) {
+                        // Stopped
+                    }
+                }
+            }
+        });
+    }
+
+    private void startWriter(final DatagramSocket socket,
+            final BlockingQueue<Delayed> queue) {
+        startThread("udp-write", new Runnable() {
+            public void run() {
+                while (!stopped) {
+                    try {
+                        Delayed next = queue.take();
+                        next.await();
+                        socket.send(new DatagramPacket(next.data,
+                                next.data.length, next.to));
+                    } catch (Exception e) {
+                        // Stopped, or the datagram didn't make it, which
+                        // is as good as dropping it
+                    }
+                }
+            }
+        });
+    }
+
+    private void offer(BlockingQueue<Delayed> queue, DatagramPacket packet,
+            SocketAddress to) {
+        if (random.nextDouble() < lossRate) {
+            dropped.incrementAndGet();
+            return;
+        }
+        relayed.incrementAndGet();
+        relayedBytes.addAndGet(packet.getLength());
+        queue.add(new Delayed(Arrays.copyOfRange(packet.getData(),
+                packet.getOffset(), packet.getOffset() + packet.getLength()),
+                to));
+    }
+
+    private DatagramSocket newDatagramSocket(int port) throws IOException {
+        DatagramSocket socket = new DatagramSocket(null);
+        socket.setReuseAddress(true);
+        socket.setReceiveBufferSize(UDP_BUFFER_SIZE);
+        socket.setSendBufferSize(UDP_BUFFER_SIZE);
+        socket.bind(new InetSocketAddress("127.0.0.1", port));
+        sockets.add(socket);
+        return socket;
+    }
+
+    private void startThread(String name, Runnable runnable) {
+        Thread thread = new Thread(runnable, "LossyRelay-" + name + "-"
+                + port);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Something to pass on once the latency has passed. Since the latency is
+     * the same for everything, things come due in the order they arrive.
+     */
+    private class Delayed {
+        private final byte[] data;
+        private final SocketAddress to;
+        private final long due = System.currentTimeMillis() + latencyInMillis;
+
+        private Delayed(byte[] data, SocketAddress to) {
+            this.data = data;
+            this.to = to;
+        }
+
+        private void await() throws InterruptedException {
+            long wait = due - System.currentTimeMillis();
+            if (wait > 0) {
+                Thread.sleep(wait);
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package org.littleshoot.proxy;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.KeyStore;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpHost;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.params.ConnRoutePNames;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.server.Server;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+
+/**
+ * Tests that the proxy won't intercept a CONNECT tunnel to a server whose
+ * certificate is trusted but for a different host.
+ */
+public class MitmServerCertificateTest {
+    private static final int PROXY_PORT = 8983;
+    private static final int WEB_SERVER_PORT = 8984;
+    private static final int WEB_SERVER_SSL_PORT = 8985;
+
+    private SelfSignedSSLContextSource certificateAuthority;
+    private HttpProxyServer proxyServer;
+    private Server webServer;
+
+    @BeforeClass
+    public static void trustWebServerCertificate() {
+        // The web server's certificate is for "littleproxy", and the proxy
+        // trusts it through the JVM's default SSLContext. Each test class
+        // runs in its own JVM, so this doesn't affect other tests.
+        new SelfSignedSSLContextSource();
+        System.setProperty("javax.net.ssl.trustStore",
+                "littleproxy_keystore.jks");
+        System.setProperty("javax.net.ssl.trustStorePassword",
+                "Be Your Own Lantern");
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        certificateAuthority = new SelfSignedSSLContextSource(
+                "littleproxy_mitm_keystore.jks");
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(PROXY_PORT)
+                .withManInTheMiddle(certificateAuthority.getPrivateKey(),
+                        certificateAuthority.getCertificate())
+                .start();
+        webServer = TestUtils.startWebServer(WEB_SERVER_PORT,
+                WEB_SERVER_SSL_PORT);
+        waitForProxy();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try {
+            webServer.stop();
+        } finally {
+            proxyServer.stop();
+        }
+    }
+
+    @Test
+    public void testServerCertificateForWrongHostIsRejected()
+            throws Exception {
+        DefaultHttpClient http = new DefaultHttpClient();
+        try {
+            // Trust whatever the proxy issues for localhost
+            KeyStore trustStore = KeyStore.getInstance("JKS");
+            trustStore.load(null, null);
+            trustStore.setCertificateEntry("ca",
+                    certificateAuthority.getCertificate());
+            http.getConnectionManager()
+                    .getSchemeRegistry()
+                    .register(
+                            new Scheme("https", 443, new SSLSocketFactory(
+                                    trustStore)));
+            http.getParams().setParameter(ConnRoutePNames.DEFAULT_PROXY,
+                    new HttpHost("127.0.0.1", PROXY_PORT, "http"));
+
+            org.apache.http.HttpResponse response;
+            try {
+                response = http.execute(new HttpGet("https://localhost:"
+                        + WEB_SERVER_SSL_PORT + "/testing"));
+            } catch (IOException ioe) {
+                // The proxy refused the tunnel or dropped the connection
+                return;
+            }
+            String body = EntityUtils.toString(response.getEntity());
+            assertFalse("Client should not have received the server's response",
+                    body.startsWith("Received"));
+            assertFalse(response.getStatusLine().getStatusCode() == 200);
+        } finally {
+            http.getConnectionManager().shutdown();
+        }
+    }
+
+    private void waitForProxy() throws Exception {
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1",
+                PROXY_PORT);
+        for (int i = 0; i < 50; i++) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(address);
+                return;
+            } catch (IOException ioe) {
+                Thread.sleep(100);
+            } finally {
+                IOUtils.closeQuietly(socket);
+            }
+        }
+    }
+}
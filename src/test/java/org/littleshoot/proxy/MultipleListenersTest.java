@@ -0,0 +1,247 @@
+package org.littleshoot.proxy;
+
+import static org.junit.Assert.*;
+import io.netty.handler.codec.http.HttpRequest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+
+/**
+ * Tests a single proxy that listens on several ports, with different
+ * encryption and protocols, all sharing one cache.
+ */
+public class MultipleListenersTest {
+    private static final int WEB_SERVER_PORT = 8955;
+    private static final int PROXY_PORT = 8956;
+    private static final int PROXY_ENCRYPTED_PORT = 8957;
+    private static final int PROXY_SOCKS_PORT = 8958;
+
+    private final AtomicInteger requestsToServer = new AtomicInteger(0);
+    private final Set<Integer> clientPorts = new CopyOnWriteArraySet<Integer>();
+    private Server webServer;
+    private DefaultHttpProxyServer proxyServer;
+    private SSLContext sslContext;
+
+    @Before
+    public void setUp() throws Exception {
+        webServer = new Server(WEB_SERVER_PORT);
+        webServer.setHandler(new AbstractHandler() {
+            public void handle(String target, Request baseRequest,
+                    HttpServletRequest request, HttpServletResponse response)
+                    throws IOException, ServletException {
+                int requestNumber = requestsToServer.incrementAndGet();
+                response.setStatus(HttpServletResponse.SC_OK);
+                response.setHeader("Cache-Control", "max-age=3600");
+                baseRequest.setHandled(true);
+                response.getWriter().write(
+                        "Response number " + requestNumber + "\n");
+            }
+        });
+        webServer.start();
+
+        final SSLContextSource sslContextSource = new SelfSignedSSLContextSource(
+                "chain_proxy_keystore_1.jks");
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(PROXY_PORT)
+                .withListener(PROXY_ENCRYPTED_PORT, TransportProtocol.TCP,
+                        sslContextSource, ClientProtocol.HTTP)
+                .withListener(PROXY_SOCKS_PORT, TransportProtocol.TCP, null,
+                        ClientProtocol.SOCKS)
+                .withMaxCacheSizeInBytes(1024 * 1024)
+                .start();
+        proxyServer.addActivityTracker(new ActivityTrackerAdapter() {
+            @Override
+            public void requestReceivedFromClient(FlowContext flowContext,
+                    HttpRequest httpRequest) {
+                clientPorts.add(flowContext.getClientAddress().getPort());
+            }
+        });
+
+        sslContext = sslContextSource.getSSLContext();
+
+        waitForListener(PROXY_PORT);
+        waitForListener(PROXY_ENCRYPTED_PORT);
+        waitForListener(PROXY_SOCKS_PORT);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try {
+            proxyServer.stop();
+        } finally {
+            webServer.stop();
+        }
+    }
+
+    @Test
+    public void testSslHandshakesAreCounted() throws Exception {
+        assertEquals("Response number 1", getEncrypted("/counted"));
+        SslHandshakeStats stats = proxyServer.getSslHandshakeStats();
+        // Waiting for the listener dropped a connection before its
+        // handshake, which counts as a failed one
+        assertEquals(1, stats.getHandshakes());
+        assertTrue(stats.getMaxHandshakeMillis() > 0);
+        assertEquals(0, stats.getQueueDepth());
+    }
+
+    @Test
+    public void testSslSessionResumptionIsCountedPerListener()
+            throws Exception {
+        assertEquals("Response number 1", getEncrypted("/resumed"));
+        assertEquals("Response number 1", getEncrypted("/resumed"));
+        assertEquals("The second connection should have resumed the session",
+                0.5, proxyServer
+                        .getInboundSslSessionResumptionRate(PROXY_ENCRYPTED_PORT),
+                0.001);
+        assertEquals(0.0,
+                proxyServer.getInboundSslSessionResumptionRate(PROXY_PORT),
+                0.001);
+        try {
+            proxyServer.getInboundSslSessionResumptionRate(WEB_SERVER_PORT);
+            fail("Should not have a rate for a port that we don't listen on");
+        } catch (IllegalArgumentException iae) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testListenersShareCache() throws Exception {
+        assertEquals("Response number 1", get(PROXY_PORT, "/shared"));
+        assertEquals("Encrypted listener should have served from the cache",
+                "Response number 1", getEncrypted("/shared"));
+        assertEquals(1, requestsToServer.get());
+
+        assertEquals("Response number 2", getEncrypted("/other"));
+        assertEquals("Plain listener should have served from the cache",
+                "Response number 2", get(PROXY_PORT, "/other"));
+        assertEquals(2, requestsToServer.get());
+    }
+
+    @Test
+    public void testSocksListener() throws Exception {
+        Socket socket = new Socket("127.0.0.1", PROXY_SOCKS_PORT);
+        try {
+            socket.setSoTimeout(10000);
+            OutputStream out = socket.getOutputStream();
+            // No authentication, then CONNECT to 127.0.0.1:WEB_SERVER_PORT
+            out.write(new byte[] { 0x05, 0x01, 0x00 });
+            assertArrayEquals(new byte[] { 0x05, 0x00 }, readFully(socket, 2));
+            out.write(new byte[] { 0x05, 0x01, 0x00, 0x01, 127, 0, 0, 1,
+                    (byte) (WEB_SERVER_PORT >> 8),
+                    (byte) (WEB_SERVER_PORT & 0xFF) });
+            byte[] reply = readFully(socket, 10);
+            assertEquals("CONNECT should have succeeded", 0x00, reply[1]);
+
+            out.write(("GET /socks HTTP/1.1\r\nHost: 127.0.0.1:"
+                    + WEB_SERVER_PORT + "\r\nConnection: close\r\n\r\n")
+                    .getBytes("US-ASCII"));
+            assertEquals("Response number 1", readBody(socket));
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testActivityIsTrackedAcrossListeners() throws Exception {
+        get(PROXY_PORT, "/tracked");
+        getEncrypted("/tracked");
+        assertEquals(
+                "Requests from both listeners should have been tracked",
+                2, clientPorts.size());
+    }
+
+    private String get(int proxyPort, String path) throws Exception {
+        org.apache.http.HttpResponse response = TestUtils
+                .createProxiedHttpClient(proxyPort).execute(
+                        new HttpGet("http://127.0.0.1:" + WEB_SERVER_PORT
+                                + path));
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        return EntityUtils.toString(response.getEntity()).trim();
+    }
+
+    /**
+     * Sends the request to the encrypted listener ourselves, since it expects
+     * TLS from the first byte.
+     */
+    private String getEncrypted(String path) throws Exception {
+        Socket socket = sslContext.getSocketFactory().createSocket(
+                "127.0.0.1", PROXY_ENCRYPTED_PORT);
+        try {
+            socket.setSoTimeout(10000);
+            socket.getOutputStream().write(
+                    ("GET http://127.0.0.1:" + WEB_SERVER_PORT + path
+                            + " HTTP/1.1\r\nHost: 127.0.0.1:"
+                            + WEB_SERVER_PORT
+                            + "\r\nConnection: close\r\n\r\n")
+                            .getBytes("US-ASCII"));
+            return readBody(socket);
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Reads a response up to the end of its body, without waiting for the
+     * connection to close.
+     */
+    private String readBody(Socket socket) throws Exception {
+        InputStream in = socket.getInputStream();
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        String responseString = "";
+        int read;
+        while (!responseString.matches("(?s).*Response number \\d+\n")
+                && (read = in.read()) != -1) {
+            response.write(read);
+            responseString = response.toString("US-ASCII");
+        }
+        assertTrue(responseString, responseString.startsWith("HTTP/1.1 200"));
+        return responseString.substring(
+                responseString.indexOf("Response number")).trim();
+    }
+
+    private byte[] readFully(Socket socket, int length) throws Exception {
+        byte[] bytes = new byte[length];
+        new DataInputStream(socket.getInputStream()).readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * The proxy binds asynchronously, this waits for it to start listening.
+     */
+    private void waitForListener(int port) throws Exception {
+        for (int i = 0; i < 50; i++) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress("127.0.0.1", port));
+                return;
+            } catch (IOException ioe) {
+                Thread.sleep(100);
+            } finally {
+                socket.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package org.littleshoot.proxy;
+
+import static org.junit.Assert.*;
+import io.netty.handler.codec.http.HttpRequest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+
+/**
+ * Tests chaining to another LittleProxy whose SPDY listener multiplexes our
+ * requests over a few shared, encrypted connections.
+ */
+public class MultiplexedChainedProxyTest {
+    private static final int WEB_SERVER_PORT = 8965;
+    private static final int UPSTREAM_PROXY_PORT = 8966;
+    private static final int UPSTREAM_PROXY_SPDY_PORT = 8967;
+    private static final int DOWNSTREAM_PROXY_PORT = 8968;
+    private static final int CONNECTIONS = 2;
+    private static final int CLIENTS = 20;
+
+    private final AtomicInteger requestsToServer = new AtomicInteger(0);
+    private final Set<InetSocketAddress> upstreamClients = new CopyOnWriteArraySet<InetSocketAddress>();
+    private Server webServer;
+    private HttpProxyServer upstreamProxy;
+    private HttpProxyServer downstreamProxy;
+
+    @Before
+    public void setUp() throws Exception {
+        webServer = new Server(WEB_SERVER_PORT);
+        webServer.setHandler(new AbstractHandler() {
+            public void handle(String target, Request baseRequest,
+                    HttpServletRequest request, HttpServletResponse response)
+                    throws IOException, ServletException {
+                requestsToServer.incrementAndGet();
+                response.setStatus(HttpServletResponse.SC_OK);
+                baseRequest.setHandled(true);
+                if ("POST".equals(request.getMethod())) {
+                    InputStream in = request.getInputStream();
+                    byte[] buf = new byte[8192];
+                    int read;
+                    while ((read = in.read(buf)) != -1) {
+                        response.getOutputStream().write(buf, 0, read);
+                    }
+                } else {
+                    response.getWriter().write("Hello " + target);
+                }
+            }
+        });
+        webServer.start();
+
+        final SelfSignedSSLContextSource sslContextSource = new SelfSignedSSLContextSource(
+                "chain_proxy_keystore_1.jks");
+        final SSLContext clientSslContext = newClientSSLContext(sslContextSource);
+        upstreamProxy = DefaultHttpProxyServer.bootstrap()
+                .withPort(UPSTREAM_PROXY_PORT)
+                .withListener(UPSTREAM_PROXY_SPDY_PORT, TransportProtocol.TCP,
+                        sslContextSource, ClientProtocol.SPDY)
+                .start();
+        upstreamProxy.addActivityTracker(new ActivityTrackerAdapter() {
+            @Override
+            public void requestReceivedFromClient(FlowContext flowContext,
+                    HttpRequest httpRequest) {
+                upstreamClients.add(flowContext.getClientAddress());
+            }
+        });
+
+        downstreamProxy = DefaultHttpProxyServer.bootstrap()
+                .withPort(DOWNSTREAM_PROXY_PORT)
+                .withSpdyConnectionsPerOrigin(CONNECTIONS)
+                .withChainProxyManager(new ChainedProxyManagerAdapter() {
+                    @Override
+                    public String getHostAndPort(HttpRequest httpRequest) {
+                        return "127.0.0.1:" + UPSTREAM_PROXY_PORT;
+                    }
+
+                    @Override
+                    public String getMultiplexedHostAndPort(
+                            HttpRequest httpRequest) {
+                        return "127.0.0.1:" + UPSTREAM_PROXY_SPDY_PORT;
+                    }
+
+                    @Override
+                    public boolean requiresEncryption(HttpRequest httpRequest) {
+                        return true;
+                    }
+
+                    @Override
+                    public SSLContext getSSLContext() {
+                        return clientSslContext;
+                    }
+                })
+                .start();
+
+        waitForListener(UPSTREAM_PROXY_SPDY_PORT);
+        waitForListener(DOWNSTREAM_PROXY_PORT);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try {
+            downstreamProxy.stop();
+            upstreamProxy.stop();
+        } finally {
+            webServer.stop();
+        }
+    }
+
+    @Test
+    public void testConcurrentClientsShareConnections() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(CLIENTS);
+        try {
+            List<Future<String>> bodies = new ArrayList<Future<String>>();
+            for (int i = 0; i < CLIENTS; i++) {
+                final String path = "/hello/" + i;
+                bodies.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return new String(get(path), "UTF-8");
+                    }
+                }));
+            }
+            for (int i = 0; i < CLIENTS; i++) {
+                assertEquals("Hello /hello/" + i, bodies.get(i).get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(CLIENTS, requestsToServer.get());
+        assertTrue("Requests should have shared at most " + CONNECTIONS
+                + " connections, not " + upstreamClients.size(),
+                upstreamClients.size() <= CONNECTIONS);
+    }
+
+    @Test
+    public void testPost() throws Exception {
+        byte[] body = new byte[300 * 1024];
+        Arrays.fill(body, (byte) 'x');
+        HttpClient httpClient = TestUtils
+                .createProxiedHttpClient(DOWNSTREAM_PROXY_PORT);
+        try {
+            HttpPost post = new HttpPost("http://127.0.0.1:"
+                    + WEB_SERVER_PORT + "/echo");
+            post.setEntity(new ByteArrayEntity(body));
+            HttpResponse response = httpClient.execute(post);
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            assertTrue("Request body should have been echoed",
+                    Arrays.equals(body,
+                            EntityUtils.toByteArray(response.getEntity())));
+        } finally {
+            httpClient.getConnectionManager().shutdown();
+        }
+        assertEquals(1, upstreamClients.size());
+    }
+
+    private byte[] get(String path) throws Exception {
+        HttpClient httpClient = TestUtils
+                .createProxiedHttpClient(DOWNSTREAM_PROXY_PORT);
+        try {
+            HttpResponse response = httpClient.execute(new HttpGet(
+                    "http://127.0.0.1:" + WEB_SERVER_PORT + path));
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            return EntityUtils.toByteArray(response.getEntity());
+        } finally {
+            httpClient.getConnectionManager().shutdown();
+        }
+    }
+
+    /**
+     * An {@link SSLContext} that trusts the upstream proxy's certificate. It
+     * sticks to TLSv1.2, since the {@link io.netty.handler.ssl.SslHandler} in
+     * our version of Netty can't finish a TLSv1.3 handshake as the client.
+     */
+    private SSLContext newClientSSLContext(
+            SelfSignedSSLContextSource sslContextSource) throws Exception {
+        KeyStore trustStore = KeyStore.getInstance("JKS");
+        trustStore.load(null, null);
+        trustStore.setCertificateEntry("upstream",
+                sslContextSource.getCertificate());
+        TrustManagerFactory tmf = TrustManagerFactory
+                .getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(trustStore);
+        SSLContext sslContext = SSLContext.getInstance("TLSv1.2");
+        sslContext.init(null, tmf.getTrustManagers(), null);
+        return sslContext;
+    }
+
+    /**
+     * The proxies bind asynchronously, this waits for one to start listening.
+     */
+    private void waitForListener(int port) throws Exception {
+        for (int i = 0; i < 50; i++) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress("127.0.0.1", port));
+                return;
+            } catch (IOException ioe) {
+                Thread.sleep(100);
+            } finally {
+                socket.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package org.littleshoot.proxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.params.ConnRoutePNames;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.eclipse.jetty.server.handler.ResourceHandler;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+
+/**
+ * <p>
+ * Measures how long it takes to load the Wikipedia Germany page from the
+ * performance site, along with all of its images, scripts and stylesheets,
+ * through a caching proxy with and without prefetching.
+ * </p>
+ * 
+ * <p>
+ * Prefetching pays off when the proxy sits much closer to the web server than
+ * the browser does, so both distances are simulated: the web server delays
+ * every response by the server latency, and the client delays every request
+ * by the client latency. Like a browser, the client loads the subresources
+ * over a handful of parallel connections once it has the page. Each trial
+ * starts with an empty cache.
+ * </p>
+ * 
+ * <p>
+ * Usage: PrefetchBenchmark [clientLatencyInMillis] [serverLatencyInMillis]
+ * [trials]
+ * </p>
+ */
+public class PrefetchBenchmark {
+    private static final int WEB_SERVER_PORT = 8940;
+    private static final int PROXY_PORT = 8941;
+    private static final String PAGE = "/wikipedia/germany.html";
+    private static final int BROWSER_CONNECTIONS = 6;
+    private static final AtomicInteger REQUESTS_TO_SERVER = new AtomicInteger();
+
+    private static final Pattern SUBRESOURCE = Pattern.compile(
+            "<(?:img|script)[^>]*\\ssrc=\"([^\"]+)\"|"
+                    + "<link[^>]*rel=\"stylesheet\"[^>]*href=\"([^\"]+)\"",
+            Pattern.CASE_INSENSITIVE);
+
+    public static void main(String[] args) throws Exception {
+        long clientLatency = args.length > 0 ? Long.parseLong(args[0]) : 50;
+        final long serverLatency = args.length > 1 ? Long.parseLong(args[1])
+                : 50;
+        int trials = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        Server webServer = new Server(WEB_SERVER_PORT);
+        ResourceHandler resourceHandler = new ResourceHandler();
+        resourceHandler.setResourceBase("./performance/site/");
+        resourceHandler.setCacheControl("max-age=3600");
+        HandlerWrapper delay = new HandlerWrapper() {
+            @Override
+            public void handle(String target, Request baseRequest,
+                    HttpServletRequest request, HttpServletResponse response)
+                    throws IOException, ServletException {
+                try {
+                    Thread.sleep(serverLatency);
+                } catch (InterruptedException ie) {
+                    throw new ServletException(ie);
+                }
+                REQUESTS_TO_SERVER.incrementAndGet();
+                super.handle(target, baseRequest, request, response);
+            }
+        };
+        delay.setHandler(resourceHandler);
+        webServer.setHandler(delay);
+        webServer.start();
+
+        try {
+            // Warm up
+            loadPage(false, clientLatency);
+            loadPage(true, clientLatency);
+
+            long withoutPrefetch = 0;
+            long withPrefetch = 0;
+            int requestsWithoutPrefetch = 0;
+            int requestsWithPrefetch = 0;
+            for (int i = 0; i < trials; i++) {
+                REQUESTS_TO_SERVER.set(0);
+                withoutPrefetch += loadPage(false, clientLatency);
+                requestsWithoutPrefetch += REQUESTS_TO_SERVER.getAndSet(0);
+                withPrefetch += loadPage(true, clientLatency);
+                requestsWithPrefetch += REQUESTS_TO_SERVER.get();
+            }
+            System.out.println(String.format(
+                    "Page load time with %1$sms client latency and %2$sms server latency, averaged over %3$s trials:",
+                    clientLatency, serverLatency, trials));
+            System.out.println(String.format(
+                    "  Without prefetching: %1$sms (%2$s requests to server)",
+                    withoutPrefetch / trials, requestsWithoutPrefetch / trials));
+            System.out.println(String.format(
+                    "  With prefetching:    %1$sms (%2$s requests to server)",
+                    withPrefetch / trials, requestsWithPrefetch / trials));
+        } finally {
+            webServer.stop();
+        }
+    }
+
+    private static long loadPage(boolean prefetch,
+            final long clientLatency) throws Exception {
+        HttpProxyServer proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(PROXY_PORT)
+                .withMaxCacheSizeInBytes(64 * 1024 * 1024)
+                .withPrefetchConcurrency(prefetch ? BROWSER_CONNECTIONS : 0)
+                .withPrefetchBudgetInBytes(16 * 1024 * 1024)
+                .start();
+        waitForProxy();
+
+        PoolingClientConnectionManager connectionManager = new PoolingClientConnectionManager();
+        connectionManager.setDefaultMaxPerRoute(BROWSER_CONNECTIONS);
+        final DefaultHttpClient httpClient = new DefaultHttpClient(
+                connectionManager);
+        httpClient.getParams().setParameter(ConnRoutePNames.DEFAULT_PROXY,
+                new HttpHost("127.0.0.1", PROXY_PORT, "http"));
+        ExecutorService browser = Executors
+                .newFixedThreadPool(BROWSER_CONNECTIONS);
+        try {
+            long start = System.currentTimeMillis();
+            String html = get(httpClient, PAGE, clientLatency);
+            List<Future<String>> subresources = new ArrayList<Future<String>>();
+            for (final String path : subresourcesOf(html)) {
+                subresources.add(browser.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return get(httpClient, path, clientLatency);
+                    }
+                }));
+            }
+            for (Future<String> subresource : subresources) {
+                subresource.get();
+            }
+            return System.currentTimeMillis() - start;
+        } finally {
+            browser.shutdown();
+            connectionManager.shutdown();
+            proxyServer.stop();
+        }
+    }
+
+    private static Set<String> subresourcesOf(String html) {
+        Set<String> paths = new LinkedHashSet<String>();
+        Matcher matcher = SUBRESOURCE.matcher(html);
+        while (matcher.find()) {
+            String link = matcher.group(1) != null ? matcher.group(1)
+                    : matcher.group(2);
+            if (link.contains("://") || link.startsWith("//")) {
+                continue;
+            }
+            paths.add(URI.create(PAGE).resolve(link.replace("&amp;", "&"))
+                    .toString());
+        }
+        return paths;
+    }
+
+    private static String get(DefaultHttpClient httpClient, String path,
+            long clientLatency) throws Exception {
+        Thread.sleep(clientLatency);
+        HttpResponse response = httpClient.execute(new HttpGet(
+                "http://127.0.0.1:" + WEB_SERVER_PORT + path));
+        return EntityUtils.toString(response.getEntity());
+    }
+
+    private static void waitForProxy() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress("127.0.0.1", PROXY_PORT));
+                return;
+            } catch (IOException ioe) {
+                Thread.sleep(100);
+            } finally {
+                socket.close();
+            }
+        }
+    }
+}
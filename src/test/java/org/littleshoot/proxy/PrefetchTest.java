@@ -0,0 +1,134 @@
+package org.littleshoot.proxy;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+
+/**
+ * Tests prefetching the subresources of HTML pages into the cache.
+ */
+public class PrefetchTest {
+    private static final int WEB_SERVER_PORT = 8938;
+    private static final int PROXY_PORT = 8939;
+
+    private static final String PAGE = "<html><head>"
+            + "<link rel=\"stylesheet\" href=\"/style.css\">"
+            + "<script src=\"script.js\"></script></head><body>"
+            + "<img src=\"/image.png\">"
+            + "<img src=\"http://127.0.0.1:1/elsewhere.png\">"
+            + "<a href=\"/other.html\">Other page</a>"
+            + "</body></html>";
+
+    private final List<String> pathsRequested = new CopyOnWriteArrayList<String>();
+    private Server webServer;
+    private HttpProxyServer proxyServer;
+
+    @Before
+    public void setUp() throws Exception {
+        webServer = new Server(WEB_SERVER_PORT);
+        webServer.setHandler(new AbstractHandler() {
+            public void handle(String target, Request baseRequest,
+                    HttpServletRequest request, HttpServletResponse response)
+                    throws IOException, ServletException {
+                pathsRequested.add(target);
+                baseRequest.setHandled(true);
+                response.setStatus(HttpServletResponse.SC_OK);
+                response.setHeader("Cache-Control", "max-age=3600");
+                if (target.endsWith(".html")) {
+                    response.setContentType("text/html");
+                    // Send the page in pieces, like a page being generated
+                    for (int i = 0; i < PAGE.length(); i += 10) {
+                        response.getWriter().write(
+                                PAGE.substring(i,
+                                        Math.min(PAGE.length(), i + 10)));
+                        response.flushBuffer();
+                    }
+                } else {
+                    response.setContentType("application/octet-stream");
+                    response.getWriter().write("Contents of " + target);
+                }
+            }
+        });
+        webServer.start();
+
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(PROXY_PORT)
+                .withMaxCacheSizeInBytes(1024 * 1024)
+                .withPrefetchConcurrency(2)
+                .start();
+        // The proxy binds asynchronously, wait for it to start listening
+        for (int i = 0; i < 50; i++) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress("127.0.0.1", PROXY_PORT));
+                break;
+            } catch (IOException ioe) {
+                Thread.sleep(100);
+            } finally {
+                socket.close();
+            }
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try {
+            webServer.stop();
+        } finally {
+            proxyServer.stop();
+        }
+    }
+
+    @Test
+    public void testSubresourcesArePrefetched() throws Exception {
+        assertEquals(PAGE, get("/page.html"));
+
+        // Wait for the prefetches to land
+        for (int i = 0; i < 50 && pathsRequested.size() < 4; i++) {
+            Thread.sleep(100);
+        }
+        Thread.sleep(200);
+        assertEquals("Expected the page and its 3 same-origin subresources",
+                4, pathsRequested.size());
+        assertTrue(pathsRequested.contains("/style.css"));
+        assertTrue(pathsRequested.contains("/script.js"));
+        assertTrue(pathsRequested.contains("/image.png"));
+
+        assertEquals("Contents of /image.png", get("/image.png"));
+        assertEquals("Contents of /style.css", get("/style.css"));
+        assertEquals("Subresources should have come from the cache", 4,
+                pathsRequested.size());
+    }
+
+    private String get(String path) throws Exception {
+        HttpClient httpClient = TestUtils.createProxiedHttpClient(PROXY_PORT);
+        try {
+            HttpResponse response = httpClient.execute(new HttpGet(
+                    "http://127.0.0.1:" + WEB_SERVER_PORT + path));
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            return EntityUtils.toString(response.getEntity());
+        } finally {
+            httpClient.getConnectionManager().shutdown();
+        }
+    }
+}
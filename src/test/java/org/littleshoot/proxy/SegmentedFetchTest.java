@@ -0,0 +1,173 @@
+package org.littleshoot.proxy;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+
+/**
+ * Tests fetching large responses in parallel segments.
+ */
+public class SegmentedFetchTest {
+    private static final int WEB_SERVER_PORT = 8936;
+    private static final int PROXY_PORT = 8937;
+    private static final int SEGMENT_THRESHOLD = 64 * 1024;
+    private static final byte[] BODY = new byte[1024 * 1024 + 123];
+
+    static {
+        for (int i = 0; i < BODY.length; i++) {
+            BODY[i] = (byte) (i * 31 + i / 7);
+        }
+    }
+
+    private final List<String> rangesRequested = new CopyOnWriteArrayList<String>();
+    private final List<Integer> requestPorts = new CopyOnWriteArrayList<Integer>();
+    private Server webServer;
+    private HttpProxyServer proxyServer;
+
+    @Before
+    public void setUp() throws Exception {
+        webServer = new Server(WEB_SERVER_PORT);
+        webServer.setHandler(new AbstractHandler() {
+            public void handle(String target, Request baseRequest,
+                    HttpServletRequest request, HttpServletResponse response)
+                    throws IOException, ServletException {
+                baseRequest.setHandled(true);
+                String range = request.getHeader("Range");
+                rangesRequested.add(String.valueOf(range));
+                requestPorts.add(request.getRemotePort());
+                boolean leading = range == null || range.startsWith("bytes=0-");
+                if (target.startsWith("/changing") && !leading) {
+                    response.setHeader("ETag", "\"v2\"");
+                } else if (!target.startsWith("/novalidator")) {
+                    response.setHeader("ETag", "\"v1\"");
+                }
+                int start = 0;
+                int end = BODY.length - 1;
+                if (range != null && !target.startsWith("/noranges")) {
+                    String[] bounds = range.substring("bytes=".length())
+                            .split("-", -1);
+                    start = Integer.parseInt(bounds[0]);
+                    if (bounds[1].length() > 0) {
+                        end = Math.min(end, Integer.parseInt(bounds[1]));
+                    }
+                    response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                    response.setHeader("Content-Range", "bytes " + start + "-"
+                            + end + "/" + BODY.length);
+                } else {
+                    response.setStatus(HttpServletResponse.SC_OK);
+                }
+                response.setContentLength(end - start + 1);
+                response.getOutputStream().write(BODY, start,
+                        end - start + 1);
+            }
+        });
+        webServer.start();
+
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(PROXY_PORT)
+                .withSegmentedFetchThresholdInBytes(SEGMENT_THRESHOLD)
+                .withSegmentedFetchParallelism(4)
+                .start();
+        // The proxy binds asynchronously, wait for it to start listening
+        for (int i = 0; i < 50; i++) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress("127.0.0.1", PROXY_PORT));
+                break;
+            } catch (IOException ioe) {
+                Thread.sleep(100);
+            } finally {
+                socket.close();
+            }
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try {
+            webServer.stop();
+        } finally {
+            proxyServer.stop();
+        }
+    }
+
+    @Test
+    public void testLargeResponseIsFetchedInSegments() throws Exception {
+        assertTrue("Body should have arrived intact",
+                Arrays.equals(BODY, get("/large")));
+        assertEquals("Expected leading segment and 3 others", 4,
+                rangesRequested.size());
+        assertEquals("bytes=0-" + (SEGMENT_THRESHOLD - 1),
+                rangesRequested.get(0));
+
+        // Should work the same on a reused connection
+        rangesRequested.clear();
+        assertTrue(Arrays.equals(BODY, get("/large")));
+        assertEquals(4, rangesRequested.size());
+    }
+
+    @Test
+    public void testRestOfBodyWithoutValidatorIsFetchedInOneRange()
+            throws Exception {
+        assertTrue("Body should have arrived intact",
+                Arrays.equals(BODY, get("/novalidator")));
+        assertEquals(
+                Arrays.asList("bytes=0-" + (SEGMENT_THRESHOLD - 1), "bytes="
+                        + SEGMENT_THRESHOLD + "-" + (BODY.length - 1)),
+                rangesRequested);
+        assertEquals("Rest of the body should have come on the same connection",
+                requestPorts.get(0), requestPorts.get(1));
+    }
+
+    @Test
+    public void testSegmentOfChangedResourceIsNotSpliced() throws Exception {
+        try {
+            byte[] body = get("/changing");
+            fail("Should not have received a complete body, got "
+                    + body.length + " bytes");
+        } catch (IOException ioe) {
+            // Expected, the proxy has to cut off the response
+        }
+    }
+
+    @Test
+    public void testServerWithoutRangeSupport() throws Exception {
+        assertTrue("Body should have been passed through",
+                Arrays.equals(BODY, get("/noranges")));
+        assertEquals(1, rangesRequested.size());
+    }
+
+    private byte[] get(String path) throws Exception {
+        HttpClient httpClient = TestUtils.createProxiedHttpClient(PROXY_PORT);
+        try {
+            HttpResponse response = httpClient.execute(new HttpGet(
+                    "http://127.0.0.1:" + WEB_SERVER_PORT + path));
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            assertNull(response.getFirstHeader("Content-Range"));
+            return EntityUtils.toByteArray(response.getEntity());
+        } finally {
+            httpClient.getConnectionManager().shutdown();
+        }
+    }
+}
@@ -5,7 +5,9 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.KeyStore;
+import java.security.PrivateKey;
 import java.security.Security;
+import java.security.cert.X509Certificate;
 import java.util.Arrays;
 
 import javax.net.ssl.KeyManagerFactory;
@@ -47,16 +49,57 @@ public class SelfSignedSSLContextSource implements SSLContextSource {
         return sslContext;
     }
 
+    /**
+     * The private key, for tests that use it as a certificate authority (see
+     * {@link #initializeKeyStore()}).
+     * 
+     * @return
+     */
+    public PrivateKey getPrivateKey() {
+        try {
+            return (PrivateKey) loadKeyStore().getKey(ALIAS,
+                    PASSWORD.toCharArray());
+        } catch (final Exception e) {
+            throw new Error("Failed to load the private key", e);
+        }
+    }
+
+    /**
+     * The self-signed certificate.
+     * 
+     * @return
+     */
+    public X509Certificate getCertificate() {
+        try {
+            return (X509Certificate) loadKeyStore().getCertificate(ALIAS);
+        } catch (final Exception e) {
+            throw new Error("Failed to load the certificate", e);
+        }
+    }
+
+    private KeyStore loadKeyStore() throws Exception {
+        final KeyStore ks = KeyStore.getInstance("JKS");
+        final InputStream is = new FileInputStream(keyStoreFile);
+        try {
+            ks.load(is, PASSWORD.toCharArray());
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+        return ks;
+    }
+
     private void initializeKeyStore() {
         if (keyStoreFile.isFile()) {
             LOG.info("Not deleting keystore");
             return;
         }
 
+        // The certificate is marked as a CA, so that tests can also use the
+        // key store as a certificate authority
         nativeCall("keytool", "-genkey", "-alias", ALIAS, "-keysize",
                 "4096", "-validity", "36500", "-keyalg", "RSA", "-dname",
-                "CN=littleproxy", "-keypass", PASSWORD, "-storepass",
-                PASSWORD, "-keystore", keyStoreFile.getName());
+                "CN=littleproxy", "-ext", "bc:c", "-keypass", PASSWORD,
+                "-storepass", PASSWORD, "-keystore", keyStoreFile.getName());
 
         nativeCall("keytool", "-exportcert", "-alias", ALIAS, "-keystore",
                 keyStoreFile.getName(), "-storepass", PASSWORD, "-file",
@@ -0,0 +1,383 @@
+package org.littleshoot.proxy;
+
+import static org.junit.Assert.*;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.eclipse.jetty.server.Server;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+
+/**
+ * Tests clients that talk SOCKS5 to the proxy. We speak SOCKS by hand here,
+ * so that we can see exactly what the proxy answers.
+ */
+public class SocksProxyTest {
+    private static final int WEB_SERVER_PORT = 8951;
+    private static final int PROXY_PORT = 8952;
+    private static final int PROXY_SOCKS_PORT = 8953;
+    private static final int DOWNSTREAM_PROXY_PORT = 8954;
+
+    private static final int CONNECT = 0x01;
+    private static final int BIND = 0x02;
+
+    private Server webServer;
+    private HttpProxyServer proxyServer;
+    private HttpProxyServer downstreamProxy;
+    private final Queue<HttpRequest> requestsReceived = new ConcurrentLinkedQueue<HttpRequest>();
+    private final Queue<HttpRequest> requestsReceivedDownstream = new ConcurrentLinkedQueue<HttpRequest>();
+    private int replyAddressType;
+
+    @Before
+    public void setUp() throws Exception {
+        webServer = TestUtils.startWebServer(WEB_SERVER_PORT);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try {
+            if (proxyServer != null) {
+                proxyServer.stop();
+            }
+            if (downstreamProxy != null) {
+                downstreamProxy.stop();
+            }
+        } finally {
+            webServer.stop();
+        }
+    }
+
+    @Test
+    public void testConnect() throws Exception {
+        startProxy(DefaultHttpProxyServer.bootstrap());
+        Socket socket = connect();
+        try {
+            assertEquals(0x00, greet(socket, 0x00));
+            assertEquals(0x00,
+                    request(socket, CONNECT, "127.0.0.1", WEB_SERVER_PORT));
+            assertEquals(0x01, replyAddressType);
+            assertEquals("Received 0 bytes", get(socket, "/"));
+        } finally {
+            socket.close();
+        }
+
+        assertEquals(1, requestsReceived.size());
+        HttpRequest request = requestsReceived.peek();
+        assertEquals(HttpMethod.CONNECT, request.getMethod());
+        assertEquals("127.0.0.1:" + WEB_SERVER_PORT, request.getUri());
+    }
+
+    @Test
+    public void testConnectByName() throws Exception {
+        startProxy(DefaultHttpProxyServer.bootstrap());
+        Socket socket = connect();
+        try {
+            assertEquals(0x00, greet(socket, 0x00));
+            assertEquals(0x00,
+                    request(socket, CONNECT, "localhost", WEB_SERVER_PORT));
+            assertEquals("Received 0 bytes", get(socket, "/"));
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testConnectToIpv6Address() throws Exception {
+        startProxy(DefaultHttpProxyServer.bootstrap());
+        Socket socket = connect();
+        try {
+            assertEquals(0x00, greet(socket, 0x00));
+            assertEquals(0x00,
+                    request(socket, CONNECT, "::1", WEB_SERVER_PORT));
+            assertEquals("Reply should be for the address family we bound",
+                    0x04, replyAddressType);
+            assertEquals("Received 0 bytes", get(socket, "/"));
+        } finally {
+            socket.close();
+        }
+
+        HttpRequest request = requestsReceived.peek();
+        assertEquals("[0:0:0:0:0:0:0:1]:" + WEB_SERVER_PORT,
+                request.getUri());
+    }
+
+    @Test
+    public void testChained() throws Exception {
+        downstreamProxy = DefaultHttpProxyServer.bootstrap()
+                .withPort(DOWNSTREAM_PROXY_PORT)
+                .start();
+        downstreamProxy.addActivityTracker(new ActivityTrackerAdapter() {
+            @Override
+            public void requestReceivedFromClient(FlowContext flowContext,
+                    HttpRequest httpRequest) {
+                requestsReceivedDownstream.add(httpRequest);
+            }
+        });
+        waitForListener(DOWNSTREAM_PROXY_PORT);
+        startProxy(DefaultHttpProxyServer.bootstrap()
+                .withChainProxyManager(new ChainedProxyManagerAdapter() {
+                    @Override
+                    public String getHostAndPort(HttpRequest httpRequest) {
+                        return "127.0.0.1:" + DOWNSTREAM_PROXY_PORT;
+                    }
+                }));
+
+        Socket socket = connect();
+        try {
+            assertEquals(0x00, greet(socket, 0x00));
+            assertEquals(0x00,
+                    request(socket, CONNECT, "127.0.0.1", WEB_SERVER_PORT));
+            assertEquals("Received 0 bytes", get(socket, "/"));
+        } finally {
+            socket.close();
+        }
+
+        assertEquals(
+                "The tunnel should have gone through the downstream proxy",
+                1, requestsReceivedDownstream.size());
+        assertEquals(HttpMethod.CONNECT, requestsReceivedDownstream.peek()
+                .getMethod());
+    }
+
+    @Test
+    public void testAuthentication() throws Exception {
+        startProxy(DefaultHttpProxyServer.bootstrap()
+                .withProxyAuthenticator(new ProxyAuthenticator() {
+                    @Override
+                    public boolean authenticate(String userName,
+                            String password) {
+                        return "user1".equals(userName)
+                                && "user2".equals(password);
+                    }
+                }));
+
+        Socket socket = connect();
+        try {
+            assertEquals("Clients that can't log in should be turned away",
+                    0xFF, greet(socket, 0x00));
+            assertClosed(socket);
+        } finally {
+            socket.close();
+        }
+
+        socket = connect();
+        try {
+            assertEquals(0x02, greet(socket, 0x00, 0x02));
+            assertTrue("Login should have failed",
+                    logIn(socket, "user1", "wrong") != 0x00);
+            assertClosed(socket);
+        } finally {
+            socket.close();
+        }
+
+        socket = connect();
+        try {
+            assertEquals(0x02, greet(socket, 0x00, 0x02));
+            assertEquals(0x00, logIn(socket, "user1", "user2"));
+            assertEquals(0x00,
+                    request(socket, CONNECT, "127.0.0.1", WEB_SERVER_PORT));
+            assertEquals("Received 0 bytes", get(socket, "/"));
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testUnsupportedCommand() throws Exception {
+        startProxy(DefaultHttpProxyServer.bootstrap());
+        Socket socket = connect();
+        try {
+            assertEquals(0x00, greet(socket, 0x00));
+            assertEquals("Command not supported", 0x07,
+                    request(socket, BIND, "127.0.0.1", WEB_SERVER_PORT));
+            assertClosed(socket);
+        } finally {
+            socket.close();
+        }
+        assertTrue(requestsReceived.isEmpty());
+    }
+
+    @Test
+    public void testUnreachable() throws Exception {
+        startProxy(DefaultHttpProxyServer.bootstrap());
+        Socket socket = connect();
+        try {
+            assertEquals(0x00, greet(socket, 0x00));
+            // Nothing listens on the downstream proxy's port here
+            assertEquals("Host unreachable", 0x04,
+                    request(socket, CONNECT, "127.0.0.1",
+                            DOWNSTREAM_PROXY_PORT));
+            assertClosed(socket);
+        } finally {
+            socket.close();
+        }
+    }
+
+    private void startProxy(
+            DefaultHttpProxyServer.DefaultHttpProxyServerBootstrap bootstrap)
+            throws Exception {
+        proxyServer = bootstrap.withPort(PROXY_PORT)
+                .withSocksPort(PROXY_SOCKS_PORT)
+                .start();
+        proxyServer.addActivityTracker(new ActivityTrackerAdapter() {
+            @Override
+            public void requestReceivedFromClient(FlowContext flowContext,
+                    HttpRequest httpRequest) {
+                requestsReceived.add(httpRequest);
+            }
+        });
+        waitForListener(PROXY_SOCKS_PORT);
+    }
+
+    /**
+     * The proxy binds asynchronously, this waits for it to start listening.
+     */
+    private void waitForListener(int port) throws Exception {
+        for (int i = 0; i < 50; i++) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress("127.0.0.1", port));
+                return;
+            } catch (IOException ioe) {
+                Thread.sleep(100);
+            } finally {
+                socket.close();
+            }
+        }
+    }
+
+    private Socket connect() throws Exception {
+        Socket socket = new Socket("127.0.0.1", PROXY_SOCKS_PORT);
+        socket.setSoTimeout(10000);
+        return socket;
+    }
+
+    /**
+     * Offers the given authentication methods.
+     * 
+     * @return the method that the proxy picked
+     */
+    private int greet(Socket socket, int... methods) throws Exception {
+        OutputStream out = socket.getOutputStream();
+        out.write(0x05);
+        out.write(methods.length);
+        for (int method : methods) {
+            out.write(method);
+        }
+        out.flush();
+        byte[] reply = readFully(socket, 2);
+        assertEquals(0x05, reply[0]);
+        return reply[1] & 0xFF;
+    }
+
+    /**
+     * @return the status of the login
+     */
+    private int logIn(Socket socket, String username, String password)
+            throws Exception {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        request.write(0x01);
+        request.write(username.length());
+        request.write(username.getBytes("US-ASCII"));
+        request.write(password.length());
+        request.write(password.getBytes("US-ASCII"));
+        socket.getOutputStream().write(request.toByteArray());
+        byte[] reply = readFully(socket, 2);
+        assertEquals(0x01, reply[0]);
+        return reply[1];
+    }
+
+    /**
+     * Sends the given command for the given host, which is sent as an IPv4 or
+     * IPv6 address if it looks like one and as a domain name otherwise.
+     * 
+     * @return the reply's status
+     */
+    private int request(Socket socket, int command, String host, int port)
+            throws Exception {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        request.write(new byte[] { 0x05, (byte) command, 0x00 });
+        if (host.matches("[0-9.]+")) {
+            request.write(0x01);
+            for (String octet : host.split("\\.")) {
+                request.write(Integer.parseInt(octet));
+            }
+        } else if (host.contains(":")) {
+            request.write(0x04);
+            request.write(InetAddress.getByName(host).getAddress());
+        } else {
+            request.write(0x03);
+            request.write(host.length());
+            request.write(host.getBytes("US-ASCII"));
+        }
+        request.write(port >> 8);
+        request.write(port & 0xFF);
+        socket.getOutputStream().write(request.toByteArray());
+
+        byte[] reply = readFully(socket, 4);
+        assertEquals(0x05, reply[0]);
+        replyAddressType = reply[3];
+        // The bound address and port, which we don't care about
+        if (replyAddressType == 0x04) {
+            readFully(socket, 18);
+        } else {
+            assertEquals("Replies are for an IPv4 or IPv6 address", 0x01,
+                    replyAddressType);
+            readFully(socket, 6);
+        }
+        return reply[1];
+    }
+
+    /**
+     * Makes an HTTP request over the tunnel.
+     * 
+     * @return the response's body
+     */
+    private String get(Socket socket, String path) throws Exception {
+        OutputStream out = socket.getOutputStream();
+        out.write(("GET " + path + " HTTP/1.1\r\nHost: 127.0.0.1:"
+                + WEB_SERVER_PORT + "\r\nConnection: close\r\n\r\n")
+                .getBytes("US-ASCII"));
+        out.flush();
+        InputStream in = socket.getInputStream();
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int read;
+        while ((read = in.read(buf)) != -1) {
+            response.write(buf, 0, read);
+        }
+        String responseString = response.toString("US-ASCII");
+        assertTrue(responseString, responseString.startsWith("HTTP/1.1 200"));
+        return responseString.substring(
+                responseString.indexOf("\r\n\r\n") + 4).trim();
+    }
+
+    private byte[] readFully(Socket socket, int length) throws Exception {
+        byte[] bytes = new byte[length];
+        new DataInputStream(socket.getInputStream()).readFully(bytes);
+        return bytes;
+    }
+
+    private void assertClosed(Socket socket) throws Exception {
+        try {
+            assertEquals("Connection should have been closed", -1, socket
+                    .getInputStream().read());
+        } catch (EOFException eofe) {
+            // Closed
+        }
+    }
+}
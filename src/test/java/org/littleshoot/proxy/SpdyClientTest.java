@@ -0,0 +1,207 @@
+package org.littleshoot.proxy;
+
+import static org.junit.Assert.*;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.spdy.SpdyFrameCodec;
+import io.netty.handler.codec.spdy.SpdyHttpDecoder;
+import io.netty.handler.codec.spdy.SpdyHttpEncoder;
+import io.netty.handler.codec.spdy.SpdyHttpHeaders;
+import io.netty.handler.codec.spdy.SpdySessionHandler;
+import io.netty.util.CharsetUtil;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+
+/**
+ * Tests clients that talk SPDY to the proxy, sending many requests at once
+ * over a single connection.
+ */
+public class SpdyClientTest {
+    private static final int WEB_SERVER_PORT = 8946;
+    private static final int PROXY_PORT = 8947;
+    private static final int PROXY_SPDY_PORT = 8948;
+    private static final long SERVER_LATENCY = 500;
+
+    private SpdyServer webServer;
+    private HttpProxyServer proxyServer;
+    private EventLoopGroup clientGroup;
+    private Channel client;
+    private final Map<Integer, BlockingQueue<FullHttpResponse>> responses = new ConcurrentHashMap<Integer, BlockingQueue<FullHttpResponse>>();
+    private int nextStreamId = 1;
+
+    @Before
+    public void setUp() throws Exception {
+        // The web server speaks plain HTTP/1.1
+        webServer = new SpdyServer(WEB_SERVER_PORT, SERVER_LATENCY, false)
+                .start();
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(PROXY_PORT)
+                .withSpdyPort(PROXY_SPDY_PORT)
+                .start();
+        // The proxy binds asynchronously, wait for it to start listening
+        for (int i = 0; i < 50; i++) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress("127.0.0.1",
+                        PROXY_SPDY_PORT));
+                break;
+            } catch (IOException ioe) {
+                Thread.sleep(100);
+            } finally {
+                socket.close();
+            }
+        }
+
+        clientGroup = new NioEventLoopGroup(1);
+        client = new Bootstrap().group(clientGroup)
+                .channel(NioSocketChannel.class)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) throws Exception {
+                        ChannelPipeline pipeline = ch.pipeline();
+                        pipeline.addLast(new SpdyFrameCodec(3));
+                        pipeline.addLast(new SpdySessionHandler(3, false));
+                        pipeline.addLast(new SpdyHttpEncoder(3));
+                        pipeline.addLast(new SpdyHttpDecoder(3,
+                                4 * SpdyServer.LARGE_BODY.length));
+                        pipeline.addLast(new SimpleChannelInboundHandler<FullHttpResponse>() {
+                            @Override
+                            protected void channelRead0(
+                                    ChannelHandlerContext ctx,
+                                    FullHttpResponse response)
+                                    throws Exception {
+                                response.retain();
+                                responses.get(
+                                        SpdyHttpHeaders.getStreamId(response))
+                                        .add(response);
+                            }
+                        });
+                    }
+                }).connect("127.0.0.1", PROXY_SPDY_PORT).sync().channel();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try {
+            client.close().sync();
+            clientGroup.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+            proxyServer.stop();
+        } finally {
+            webServer.stop();
+        }
+    }
+
+    @Test
+    public void testConcurrentStreams() throws Exception {
+        int streams = 10;
+        long start = System.currentTimeMillis();
+        List<Integer> streamIds = new ArrayList<Integer>();
+        for (int i = 0; i < streams; i++) {
+            streamIds.add(send(HttpMethod.GET, "/hello/" + i, null));
+        }
+        for (int i = 0; i < streams; i++) {
+            FullHttpResponse response = receive(streamIds.get(i));
+            assertEquals(200, response.getStatus().code());
+            assertEquals("Hello /hello/" + i, response.content().toString(
+                    CharsetUtil.UTF_8));
+            assertNotNull("Response should have come through the proxy",
+                    response.headers().get(HttpHeaders.Names.VIA));
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("Streams should have been handled in parallel, took "
+                + elapsed + "ms", elapsed < streams * SERVER_LATENCY / 2);
+        assertEquals(streams, webServer.getRequests());
+
+        // The connections to the web server get reused by later streams
+        int connections = webServer.getConnections();
+        streamIds.clear();
+        for (int i = 0; i < streams; i++) {
+            streamIds.add(send(HttpMethod.GET, "/again/" + i, null));
+        }
+        for (int streamId : streamIds) {
+            assertEquals(200, receive(streamId).getStatus().code());
+        }
+        assertEquals(connections, webServer.getConnections());
+    }
+
+    @Test
+    public void testLargeResponse() throws Exception {
+        // Much more than the client's window for the stream
+        FullHttpResponse response = receive(send(HttpMethod.GET, "/large",
+                null));
+        assertEquals(200, response.getStatus().code());
+        byte[] body = new byte[response.content().readableBytes()];
+        response.content().readBytes(body);
+        assertTrue("Body should have arrived intact",
+                Arrays.equals(SpdyServer.LARGE_BODY, body));
+    }
+
+    @Test
+    public void testPost() throws Exception {
+        // Much more than our window for the stream
+        byte[] body = Arrays.copyOf(SpdyServer.LARGE_BODY, 300 * 1024);
+        FullHttpResponse response = receive(send(HttpMethod.POST, "/echo",
+                Unpooled.wrappedBuffer(body)));
+        assertEquals(200, response.getStatus().code());
+        byte[] echoed = new byte[response.content().readableBytes()];
+        response.content().readBytes(echoed);
+        assertTrue("Request body should have been echoed",
+                Arrays.equals(body, echoed));
+    }
+
+    private int send(HttpMethod method, String path, ByteBuf body)
+            throws Exception {
+        final int streamId = nextStreamId;
+        nextStreamId += 2;
+        responses.put(streamId, new LinkedBlockingQueue<FullHttpResponse>());
+        FullHttpRequest request = new DefaultFullHttpRequest(
+                HttpVersion.HTTP_1_1, method, "http://127.0.0.1:"
+                        + WEB_SERVER_PORT + path,
+                body != null ? body : Unpooled.EMPTY_BUFFER);
+        HttpHeaders.setHost(request, "127.0.0.1:" + WEB_SERVER_PORT);
+        if (body != null) {
+            HttpHeaders.setContentLength(request, body.readableBytes());
+        }
+        SpdyHttpHeaders.setStreamId(request, streamId);
+        SpdyHttpHeaders.setScheme(request, "http");
+        client.writeAndFlush(request).sync();
+        return streamId;
+    }
+
+    private FullHttpResponse receive(int streamId) throws Exception {
+        FullHttpResponse response = responses.get(streamId).poll(10,
+                TimeUnit.SECONDS);
+        assertNotNull("No response on stream " + streamId, response);
+        return response;
+    }
+}
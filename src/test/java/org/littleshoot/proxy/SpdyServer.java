@@ -0,0 +1,153 @@
+package org.littleshoot.proxy;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.spdy.SpdyFrameCodec;
+import io.netty.handler.codec.spdy.SpdyHttpDecoder;
+import io.netty.handler.codec.spdy.SpdyHttpEncoder;
+import io.netty.handler.codec.spdy.SpdyHttpHeaders;
+import io.netty.handler.codec.spdy.SpdySessionHandler;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * A bare-bones SPDY/3 web server (over plain TCP) for tests and benchmarks.
+ * </p>
+ * 
+ * <p>
+ * A POST is answered with its own body. A GET for /large is answered with
+ * {@link #LARGE_BODY}, anything else with "Hello " followed by the path. Every
+ * response is delayed by the given latency.
+ * </p>
+ * 
+ * <p>
+ * For comparison, it can also serve the same responses over plain HTTP/1.1.
+ * </p>
+ */
+public class SpdyServer {
+    public static final byte[] LARGE_BODY = new byte[1024 * 1024 + 17];
+
+    static {
+        for (int i = 0; i < LARGE_BODY.length; i++) {
+            LARGE_BODY[i] = (byte) (i * 13 + i / 5);
+        }
+    }
+
+    private final int port;
+    private final long latencyInMillis;
+    private final boolean spdy;
+    private final AtomicInteger connections = new AtomicInteger(0);
+    private final AtomicInteger requests = new AtomicInteger(0);
+    private EventLoopGroup group;
+
+    public SpdyServer(int port, long latencyInMillis) {
+        this(port, latencyInMillis, true);
+    }
+
+    public SpdyServer(int port, long latencyInMillis, boolean spdy) {
+        this.port = port;
+        this.latencyInMillis = latencyInMillis;
+        this.spdy = spdy;
+    }
+
+    public SpdyServer start() throws Exception {
+        group = new NioEventLoopGroup();
+        new ServerBootstrap().group(group)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) throws Exception {
+                        connections.incrementAndGet();
+                        ChannelPipeline pipeline = ch.pipeline();
+                        if (spdy) {
+                            pipeline.addLast(new SpdyFrameCodec(3));
+                            pipeline.addLast(new SpdySessionHandler(3, true));
+                            pipeline.addLast(new SpdyHttpEncoder(3));
+                            pipeline.addLast(new SpdyHttpDecoder(3,
+                                    2 * LARGE_BODY.length));
+                        } else {
+                            pipeline.addLast(new HttpServerCodec());
+                            pipeline.addLast(new HttpObjectAggregator(
+                                    2 * LARGE_BODY.length));
+                        }
+                        pipeline.addLast(new Responder());
+                    }
+                }).bind(port).sync();
+        return this;
+    }
+
+    public void stop() {
+        group.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+    }
+
+    /**
+     * The number of connections that have been made to us.
+     * 
+     * @return
+     */
+    public int getConnections() {
+        return connections.get();
+    }
+
+    /**
+     * The number of requests that we've received.
+     * 
+     * @return
+     */
+    public int getRequests() {
+        return requests.get();
+    }
+
+    private class Responder extends
+            SimpleChannelInboundHandler<FullHttpRequest> {
+        @Override
+        protected void channelRead0(final ChannelHandlerContext ctx,
+                FullHttpRequest request) throws Exception {
+            requests.incrementAndGet();
+            ByteBuf body;
+            if (HttpMethod.POST.equals(request.getMethod())) {
+                body = Unpooled.copiedBuffer(request.content());
+            } else if (request.getUri().startsWith("/large")) {
+                body = Unpooled.wrappedBuffer(LARGE_BODY);
+            } else {
+                body = Unpooled.copiedBuffer("Hello " + request.getUri(),
+                        Charset.forName("UTF-8"));
+            }
+            final FullHttpResponse response = new DefaultFullHttpResponse(
+                    HttpVersion.HTTP_1_1, HttpResponseStatus.OK, body);
+            HttpHeaders.setContentLength(response, body.readableBytes());
+            response.headers().set("X-Host", HttpHeaders.getHost(request));
+            if (spdy) {
+                SpdyHttpHeaders.setStreamId(response,
+                        SpdyHttpHeaders.getStreamId(request));
+            }
+            ctx.executor().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    ctx.writeAndFlush(response);
+                }
+            }, latencyInMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+}
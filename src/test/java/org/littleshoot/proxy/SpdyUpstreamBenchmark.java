@@ -0,0 +1,131 @@
+package org.littleshoot.proxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+
+/**
+ * <p>
+ * Compares sending requests from many clients to a server over HTTP/1.1, where
+ * every request in flight takes up a connection, with sending them as streams
+ * over a few shared SPDY connections. Reports the number of connections that
+ * the server saw and the latency of the requests.
+ * </p>
+ * 
+ * <p>
+ * Usage: SpdyUpstreamBenchmark [clients] [requestsPerClient]
+ * [serverLatencyInMillis]
+ * </p>
+ */
+public class SpdyUpstreamBenchmark {
+    private static final int SERVER_PORT = 8944;
+    private static final int PROXY_PORT = 8945;
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int requestsPerClient = args.length > 1 ? Integer.parseInt(args[1])
+                : 20;
+        long serverLatency = args.length > 2 ? Long.parseLong(args[2]) : 20;
+
+        System.out.println(String.format(
+                "%1$s clients making %2$s requests each, %3$sms server latency:",
+                clients, requestsPerClient, serverLatency));
+        run("HTTP/1.1", false, clients, requestsPerClient, serverLatency);
+        run("SPDY    ", true, clients, requestsPerClient, serverLatency);
+    }
+
+    private static void run(String label, boolean spdy, int clients,
+            final int requestsPerClient, long serverLatency) throws Exception {
+        SpdyServer server = new SpdyServer(SERVER_PORT, serverLatency, spdy)
+                .start();
+        DefaultHttpProxyServer.DefaultHttpProxyServerBootstrap bootstrap = DefaultHttpProxyServer
+                .bootstrap().withPort(PROXY_PORT);
+        if (spdy) {
+            bootstrap.withSpdyOrigins("127.0.0.1:" + SERVER_PORT);
+        }
+        HttpProxyServer proxyServer = bootstrap.start();
+        waitForProxy();
+
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        try {
+            List<Future<long[]>> results = new ArrayList<Future<long[]>>();
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < clients; i++) {
+                results.add(executor.submit(new Callable<long[]>() {
+                    @Override
+                    public long[] call() throws Exception {
+                        return fetch(requestsPerClient);
+                    }
+                }));
+            }
+            long[] latencies = new long[clients * requestsPerClient];
+            int i = 0;
+            for (Future<long[]> result : results) {
+                for (long latency : result.get()) {
+                    latencies[i++] = latency;
+                }
+            }
+            long elapsed = System.currentTimeMillis() - start;
+            Arrays.sort(latencies);
+            System.out.println(String.format(
+                    "  %1$s: %2$s server connections, median %3$sms, 99th percentile %4$sms, %5$sms in total",
+                    label, server.getConnections(),
+                    latencies[latencies.length / 2],
+                    latencies[latencies.length * 99 / 100], elapsed));
+        } finally {
+            executor.shutdown();
+            proxyServer.stop();
+            server.stop();
+        }
+    }
+
+    /**
+     * Makes the given number of requests one after the other on a new client
+     * connection.
+     * 
+     * @return the latency of each request
+     */
+    private static long[] fetch(int requests) throws Exception {
+        HttpClient httpClient = TestUtils.createProxiedHttpClient(PROXY_PORT);
+        try {
+            long[] latencies = new long[requests];
+            for (int i = 0; i < requests; i++) {
+                long start = System.currentTimeMillis();
+                HttpResponse response = httpClient.execute(new HttpGet(
+                        "http://127.0.0.1:" + SERVER_PORT + "/item/" + i));
+                EntityUtils.consume(response.getEntity());
+                latencies[i] = System.currentTimeMillis() - start;
+            }
+            return latencies;
+        } finally {
+            httpClient.getConnectionManager().shutdown();
+        }
+    }
+
+    private static void waitForProxy() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress("127.0.0.1", PROXY_PORT));
+                return;
+            } catch (IOException ioe) {
+                Thread.sleep(100);
+            } finally {
+                socket.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package org.littleshoot.proxy;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+
+/**
+ * Tests sending requests to a SPDY server as streams over a few shared
+ * connections.
+ */
+public class SpdyUpstreamTest {
+    private static final int SPDY_SERVER_PORT = 8942;
+    private static final int PROXY_PORT = 8943;
+    private static final int CLIENTS = 20;
+
+    private SpdyServer spdyServer;
+    private HttpProxyServer proxyServer;
+
+    @Before
+    public void setUp() throws Exception {
+        spdyServer = new SpdyServer(SPDY_SERVER_PORT, 100).start();
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(PROXY_PORT)
+                .withSpdyOrigins("127.0.0.1:" + SPDY_SERVER_PORT)
+                .withSpdyConnectionsPerOrigin(2)
+                .start();
+        // The proxy binds asynchronously, wait for it to start listening
+        for (int i = 0; i < 50; i++) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress("127.0.0.1", PROXY_PORT));
+                break;
+            } catch (IOException ioe) {
+                Thread.sleep(100);
+            } finally {
+                socket.close();
+            }
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try {
+            proxyServer.stop();
+        } finally {
+            spdyServer.stop();
+        }
+    }
+
+    @Test
+    public void testConcurrentClientsShareConnection() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(CLIENTS);
+        try {
+            List<Future<String>> bodies = new ArrayList<Future<String>>();
+            for (int i = 0; i < CLIENTS; i++) {
+                final String path = "/hello/" + i;
+                bodies.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return new String(get(path), "UTF-8");
+                    }
+                }));
+            }
+            for (int i = 0; i < CLIENTS; i++) {
+                assertEquals("Hello /hello/" + i, bodies.get(i).get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(CLIENTS, spdyServer.getRequests());
+        assertEquals("All requests should have gone over one connection", 1,
+                spdyServer.getConnections());
+    }
+
+    @Test
+    public void testSequentialRequestsOnOneClientConnection()
+            throws Exception {
+        HttpClient httpClient = TestUtils.createProxiedHttpClient(PROXY_PORT);
+        try {
+            for (int i = 0; i < 3; i++) {
+                HttpResponse response = httpClient.execute(new HttpGet(
+                        "http://127.0.0.1:" + SPDY_SERVER_PORT + "/seq/" + i));
+                assertEquals(200, response.getStatusLine().getStatusCode());
+                assertEquals("127.0.0.1:" + SPDY_SERVER_PORT, response
+                        .getFirstHeader("X-Host").getValue());
+                assertEquals("Hello /seq/" + i,
+                        EntityUtils.toString(response.getEntity()));
+            }
+        } finally {
+            httpClient.getConnectionManager().shutdown();
+        }
+        assertEquals(1, spdyServer.getConnections());
+    }
+
+    @Test
+    public void testLargeResponse() throws Exception {
+        // Much more than the window we give the server, so this only gets
+        // through if we keep updating it
+        assertTrue("Body should have arrived intact",
+                Arrays.equals(SpdyServer.LARGE_BODY, get("/large")));
+    }
+
+    @Test
+    public void testPost() throws Exception {
+        byte[] body = Arrays.copyOf(SpdyServer.LARGE_BODY, 300 * 1024);
+        HttpClient httpClient = TestUtils.createProxiedHttpClient(PROXY_PORT);
+        try {
+            HttpPost post = new HttpPost("http://127.0.0.1:"
+                    + SPDY_SERVER_PORT + "/echo");
+            post.setEntity(new ByteArrayEntity(body));
+            HttpResponse response = httpClient.execute(post);
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            assertTrue("Request body should have been echoed",
+                    Arrays.equals(body,
+                            EntityUtils.toByteArray(response.getEntity())));
+        } finally {
+            httpClient.getConnectionManager().shutdown();
+        }
+    }
+
+    @Test
+    public void testResponsesAreTracked() throws Exception {
+        final AtomicInteger responsesSent = new AtomicInteger(0);
+        proxyServer.addActivityTracker(new ActivityTrackerAdapter() {
+            @Override
+            public void responseSentToClient(FlowContext flowContext,
+                    io.netty.handler.codec.http.HttpResponse httpResponse) {
+                responsesSent.incrementAndGet();
+            }
+        });
+        get("/tracked");
+        assertEquals(1, responsesSent.get());
+    }
+
+    private byte[] get(String path) throws Exception {
+        HttpClient httpClient = TestUtils.createProxiedHttpClient(PROXY_PORT);
+        try {
+            HttpResponse response = httpClient.execute(new HttpGet(
+                    "http://127.0.0.1:" + SPDY_SERVER_PORT + path));
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            return EntityUtils.toByteArray(response.getEntity());
+        } finally {
+            httpClient.getConnectionManager().shutdown();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package org.littleshoot.proxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+
+/**
+ * <p>
+ * Measures how many SSL connections per second a proxy can accept when its
+ * {@link SSLContextSource} builds a new {@link SSLContext} every time that it's
+ * asked for one, as many real implementations do.
+ * </p>
+ * 
+ * <p>
+ * The proxy only asks its {@link SSLContextSource} once. To show what happens
+ * on certificate rotation, the benchmark is run a second time while the
+ * proxy's {@link SSLContext}s are reloaded in the background every 100ms.
+ * </p>
+ * 
+ * <p>
+ * Usage: SslAcceptBenchmark [clients] [seconds]
+ * </p>
+ */
+public class SslAcceptBenchmark {
+    private static final int PROXY_PORT = 8946;
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        final AtomicInteger contextsBuilt = new AtomicInteger(0);
+        SSLContextSource rebuildingSource = new SSLContextSource() {
+            @Override
+            public SSLContext getSSLContext() {
+                contextsBuilt.incrementAndGet();
+                return new SelfSignedSSLContextSource().getSSLContext();
+            }
+        };
+        final DefaultHttpProxyServer proxyServer = DefaultHttpProxyServer
+                .bootstrap()
+                .withPort(PROXY_PORT)
+                .withSslContextSource(rebuildingSource)
+                .start();
+        try {
+            waitForProxy();
+            SSLSocketFactory socketFactory = new SelfSignedSSLContextSource()
+                    .getSSLContext().getSocketFactory();
+
+            // Warm up
+            accept(socketFactory, clients, 1);
+            double steady = accept(socketFactory, clients, seconds);
+            int builtWhileSteady = contextsBuilt.get();
+
+            final AtomicBoolean reloading = new AtomicBoolean(true);
+            Thread reloader = new Thread() {
+                public void run() {
+                    while (reloading.get()) {
+                        proxyServer.reloadSSLContexts();
+                        try {
+                            Thread.sleep(100);
+                        } catch (InterruptedException ie) {
+                            return;
+                        }
+                    }
+                }
+            };
+            reloader.start();
+            double whileReloading;
+            try {
+                whileReloading = accept(socketFactory, clients, seconds);
+            } finally {
+                reloading.set(false);
+                reloader.join();
+            }
+
+            System.out.println(String.format(
+                    "SSL connections accepted with %1$s clients:", clients));
+            System.out.println(String.format(
+                    "  Steady:          %1$.1f per second (%2$s SSLContexts built)",
+                    steady, builtWhileSteady));
+            System.out.println(String.format(
+                    "  While reloading: %1$.1f per second (%2$s SSLContexts built)",
+                    whileReloading, contextsBuilt.get() - builtWhileSteady));
+        } finally {
+            proxyServer.stop();
+        }
+    }
+
+    private static void waitForProxy() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress("127.0.0.1", PROXY_PORT));
+                break;
+            } catch (IOException ioe) {
+                Thread.sleep(100);
+            } finally {
+                socket.close();
+            }
+        }
+    }
+
+    /**
+     * Connects and handshakes repeatedly from several threads at once.
+     * 
+     * @return the number of connections per second
+     */
+    private static double accept(final SSLSocketFactory socketFactory,
+            int clients, int seconds) throws Exception {
+        final long deadline = System.nanoTime() + seconds * 1000000000L;
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        try {
+            List<Future<Long>> results = new ArrayList<Future<Long>>();
+            for (int i = 0; i < clients; i++) {
+                results.add(executor.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        long connections = 0;
+                        while (System.nanoTime() < deadline) {
+                            SSLSocket socket = (SSLSocket) socketFactory
+                                    .createSocket("127.0.0.1", PROXY_PORT);
+                            try {
+                                socket.startHandshake();
+                                connections += 1;
+                            } finally {
+                                socket.close();
+                            }
+                        }
+                        return connections;
+                    }
+                }));
+            }
+            long connections = 0;
+            for (Future<Long> result : results) {
+                connections += result.get();
+            }
+            return connections / (double) seconds;
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package org.littleshoot.proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+
+/**
+ * <p>
+ * Measures how fast a proxy that clients connect to over SSL can do full
+ * handshakes, and how much data it can push through encrypted connections.
+ * </p>
+ * 
+ * <p>
+ * Handshakes are measured with several clients repeatedly connecting and
+ * handshaking, without resuming sessions. Throughput is measured with several
+ * clients repeatedly downloading a large object through the proxy on
+ * keep-alive connections.
+ * </p>
+ * 
+ * <p>
+ * Usage: SslBenchmark [clients] [seconds] [objectSizeInMegabytes]
+ * </p>
+ */
+public class SslBenchmark {
+    private static final int WEB_SERVER_PORT = 8944;
+    private static final int PROXY_PORT = 8945;
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int objectSize = (args.length > 2 ? Integer.parseInt(args[2]) : 8)
+                * 1024 * 1024;
+
+        final byte[] body = new byte[objectSize];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) i;
+        }
+        Server webServer = new Server(WEB_SERVER_PORT);
+        webServer.setHandler(new AbstractHandler() {
+            public void handle(String target, Request baseRequest,
+                    HttpServletRequest request, HttpServletResponse response)
+                    throws IOException, ServletException {
+                response.setStatus(HttpServletResponse.SC_OK);
+                response.setContentLength(body.length);
+                response.getOutputStream().write(body);
+                baseRequest.setHandled(true);
+            }
+        });
+        webServer.start();
+
+        SelfSignedSSLContextSource sslContextSource = new SelfSignedSSLContextSource();
+        HttpProxyServer proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(PROXY_PORT)
+                .withSslContextSource(sslContextSource)
+                .start();
+        try {
+            waitForProxy();
+            SSLSocketFactory socketFactory = sslContextSource.getSSLContext()
+                    .getSocketFactory();
+
+            // Warm up
+            handshakes(socketFactory, clients, 1);
+            double handshakesPerSecond = handshakes(socketFactory, clients,
+                    seconds);
+            download(socketFactory, clients, 1);
+            double megabytesPerSecond = download(socketFactory, clients,
+                    seconds);
+
+            System.out.println(String.format(
+                    "SSL with %1$s clients:", clients));
+            System.out.println(String.format(
+                    "  Full handshakes: %1$.1f per second",
+                    handshakesPerSecond));
+            System.out.println(String.format(
+                    "  Throughput:      %1$.1f MB/s (%2$sMB object)",
+                    megabytesPerSecond, objectSize / 1024 / 1024));
+        } finally {
+            proxyServer.stop();
+            webServer.stop();
+        }
+    }
+
+    private static void waitForProxy() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress("127.0.0.1", PROXY_PORT));
+                break;
+            } catch (IOException ioe) {
+                Thread.sleep(100);
+            } finally {
+                socket.close();
+            }
+        }
+    }
+
+    /**
+     * Connects and handshakes repeatedly from several threads at once.
+     * 
+     * @return the number of handshakes per second
+     */
+    private static double handshakes(final SSLSocketFactory socketFactory,
+            int clients, int seconds) throws Exception {
+        final long deadline = System.nanoTime() + seconds * 1000000000L;
+        return runClients(clients, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                long handshakes = 0;
+                while (System.nanoTime() < deadline) {
+                    SSLSocket socket = (SSLSocket) socketFactory.createSocket(
+                            "127.0.0.1", PROXY_PORT);
+                    try {
+                        socket.startHandshake();
+                        // Make sure that the next handshake is a full one
+                        socket.getSession().invalidate();
+                        handshakes += 1;
+                    } finally {
+                        socket.close();
+                    }
+                }
+                return handshakes;
+            }
+        }) / (double) seconds;
+    }
+
+    /**
+     * Downloads the object repeatedly from several threads at once, each over
+     * its own connection.
+     * 
+     * @return the throughput in megabytes per second
+     */
+    private static double download(final SSLSocketFactory socketFactory,
+            int clients, int seconds) throws Exception {
+        final long deadline = System.nanoTime() + seconds * 1000000000L;
+        long start = System.nanoTime();
+        long bytes = runClients(clients, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                long bytes = 0;
+                byte[] buffer = new byte[64 * 1024];
+                Socket socket = socketFactory.createSocket("127.0.0.1",
+                        PROXY_PORT);
+                try {
+                    OutputStream out = socket.getOutputStream();
+                    InputStream in = socket.getInputStream();
+                    while (System.nanoTime() < deadline) {
+                        out.write(("GET http://127.0.0.1:" + WEB_SERVER_PORT
+                                + "/large HTTP/1.1\r\nHost: 127.0.0.1:"
+                                + WEB_SERVER_PORT + "\r\n\r\n")
+                                .getBytes("US-ASCII"));
+                        out.flush();
+                        long remaining = readContentLength(in);
+                        while (remaining > 0) {
+                            int read = in.read(buffer, 0,
+                                    (int) Math.min(buffer.length, remaining));
+                            if (read < 0) {
+                                throw new EOFException();
+                            }
+                            remaining -= read;
+                            bytes += read;
+                        }
+                    }
+                } finally {
+                    socket.close();
+                }
+                return bytes;
+            }
+        });
+        double elapsed = (System.nanoTime() - start) / 1000000000.0;
+        return bytes / 1024.0 / 1024.0 / elapsed;
+    }
+
+    /**
+     * Reads the head of a response and returns its Content-Length.
+     */
+    private static long readContentLength(InputStream in) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int matched = 0;
+        while (matched < 4) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            head.write(b);
+            matched = b == "\r\n\r\n".charAt(matched) ? matched + 1
+                    : (b == '\r' ? 1 : 0);
+        }
+        for (String line : head.toString("US-ASCII").split("\r\n")) {
+            if (line.toLowerCase().startsWith("content-length:")) {
+                return Long.parseLong(line.substring(15).trim());
+            }
+        }
+        throw new IOException("Response has no Content-Length");
+    }
+
+    private static long runClients(int clients, Callable<Long> client)
+            throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        try {
+            List<Future<Long>> results = new ArrayList<Future<Long>>();
+            for (int i = 0; i < clients; i++) {
+                results.add(executor.submit(client));
+            }
+            long total = 0;
+            for (Future<Long> result : results) {
+                total += result.get();
+            }
+            return total;
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package org.littleshoot.proxy;
+
+import io.netty.handler.codec.http.HttpRequest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+
+/**
+ * <p>
+ * Compares the throughput of a chained proxy over TCP with that over UDT, on
+ * a simulated long link between the two proxies (see {@link LossyRelay}).
+ * Each transport downloads the same response a few times, and we report the
+ * best run. The UDT buffer size and flight window apply to both proxies, to
+ * see how tuning them pays off.
+ * </p>
+ * 
+ * <p>
+ * Note that the relay can only drop datagrams under UDT, TCP just gets the
+ * latency.
+ * </p>
+ * 
+ * <p>
+ * Usage: UdtBenchmark [responseSizeInMB] [latencyInMillis] [lossPercent]
+ * [udtBufferSizeInBytes] [udtFlightWindowSizeInPackets]
+ * </p>
+ */
+public class UdtBenchmark {
+    private static final int WEB_SERVER_PORT = 8960;
+    private static final int UPSTREAM_PROXY_PORT = 8961;
+    private static final int UPSTREAM_PROXY_UDT_PORT = 8962;
+    private static final int RELAY_PORT = 8963;
+    private static final int DOWNSTREAM_PROXY_PORT = 8964;
+    private static final int RUNS = 3;
+
+    public static void main(String[] args) throws Exception {
+        int responseSizeInMB = args.length > 0 ? Integer.parseInt(args[0])
+                : 20;
+        long latency = args.length > 1 ? Long.parseLong(args[1]) : 25;
+        double lossPercent = args.length > 2 ? Double.parseDouble(args[2])
+                : 1;
+        int udtBufferSize = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+        int udtFlightWindowSize = args.length > 4 ? Integer
+                .parseInt(args[4]) : 0;
+
+        System.out.println(String.format(
+                "%1$s MB through a link with %2$sms latency each way and %3$s%% loss:",
+                responseSizeInMB, latency, lossPercent));
+        Server webServer = startWebServer(responseSizeInMB * 1024L * 1024L);
+        HttpProxyServer upstreamProxy = DefaultHttpProxyServer.bootstrap()
+                .withPort(UPSTREAM_PROXY_PORT)
+                .withListener(UPSTREAM_PROXY_UDT_PORT, TransportProtocol.UDT,
+                        null, ClientProtocol.HTTP)
+                .withUdtBufferSizesInBytes(udtBufferSize, udtBufferSize)
+                .withUdtFlightWindowSizeInPackets(udtFlightWindowSize)
+                .start();
+        try {
+            waitForListener(UPSTREAM_PROXY_PORT);
+            run(TransportProtocol.TCP, UPSTREAM_PROXY_PORT, latency, 0,
+                    udtBufferSize, udtFlightWindowSize);
+            run(TransportProtocol.UDT, UPSTREAM_PROXY_UDT_PORT, latency,
+                    lossPercent / 100, udtBufferSize, udtFlightWindowSize);
+        } finally {
+            upstreamProxy.stop();
+            webServer.stop();
+        }
+    }
+
+    private static void run(final TransportProtocol transportProtocol,
+            int upstreamPort, long latency, double lossRate,
+            int udtBufferSize, int udtFlightWindowSize) throws Exception {
+        LossyRelay relay = new LossyRelay(transportProtocol, RELAY_PORT,
+                upstreamPort, latency, lossRate).start();
+        HttpProxyServer downstreamProxy = DefaultHttpProxyServer.bootstrap()
+                .withPort(DOWNSTREAM_PROXY_PORT)
+                .withChainProxyManager(new ChainedProxyManagerAdapter() {
+                    @Override
+                    public String getHostAndPort(HttpRequest httpRequest) {
+                        return "127.0.0.1:" + RELAY_PORT;
+                    }
+
+                    @Override
+                    public TransportProtocol getTransportProtocol() {
+                        return transportProtocol;
+                    }
+                })
+                .withUdtBufferSizesInBytes(udtBufferSize, udtBufferSize)
+                .withUdtFlightWindowSizeInPackets(udtFlightWindowSize)
+                .start();
+        try {
+            waitForListener(DOWNSTREAM_PROXY_PORT);
+            HttpClient client = TestUtils
+                    .createProxiedHttpClient(DOWNSTREAM_PROXY_PORT);
+            long best = Long.MAX_VALUE;
+            long bytes = 0;
+            for (int i = 0; i < RUNS; i++) {
+                long start = System.currentTimeMillis();
+                bytes = download(client);
+                best = Math.min(best, System.currentTimeMillis() - start);
+            }
+            System.out.println(String.format(
+                    "%1$s: %2$sms (%3$s KB/s), %4$s datagrams dropped",
+                    transportProtocol, best, bytes / Math.max(1, best),
+                    relay.getDropped()));
+        } finally {
+            downstreamProxy.stop();
+            relay.stop();
+        }
+    }
+
+    private static long download(HttpClient client) throws Exception {
+        HttpResponse response = client.execute(new HttpGet("http://127.0.0.1:"
+                + WEB_SERVER_PORT + "/"));
+        InputStream in = response.getEntity().getContent();
+        byte[] buf = new byte[65536];
+        long bytes = 0;
+        int read;
+        while ((read = in.read(buf)) != -1) {
+            bytes += read;
+        }
+        in.close();
+        return bytes;
+    }
+
+    private static Server startWebServer(final long responseSize)
+            throws Exception {
+        Server webServer = new Server(WEB_SERVER_PORT);
+        webServer.setHandler(new AbstractHandler() {
+            public void handle(String target, Request baseRequest,
+                    HttpServletRequest request, HttpServletResponse response)
+                    throws IOException, ServletException {
+                response.setStatus(HttpServletResponse.SC_OK);
+                response.setContentLength((int) responseSize);
+                baseRequest.setHandled(true);
+                OutputStream out = response.getOutputStream();
+                byte[] buf = new byte[65536];
+                for (long written = 0; written < responseSize; written += buf.length) {
+                    out.write(buf, 0,
+                            (int) Math.min(buf.length, responseSize - written));
+                }
+            }
+        });
+        webServer.start();
+        return webServer;
+    }
+
+    private static void waitForListener(int port) throws Exception {
+        for (int i = 0; i < 50; i++) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress("127.0.0.1", port));
+                return;
+            } catch (IOException ioe) {
+                Thread.sleep(100);
+            } finally {
+                socket.close();
+            }
+        }
+    }
+}
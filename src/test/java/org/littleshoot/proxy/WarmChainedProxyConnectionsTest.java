@@ -0,0 +1,292 @@
+package org.littleshoot.proxy;
+
+import static org.junit.Assert.*;
+import io.netty.handler.codec.http.HttpRequest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jetty.server.Server;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+
+/**
+ * Tests opening connections to a chained proxy ahead of time for CONNECTs.
+ * The chained proxy is a minimal one that only handles CONNECTs and keeps
+ * track of when it accepted the connection that each one came in on.
+ */
+public class WarmChainedProxyConnectionsTest {
+    private static final int WEB_SERVER_PORT = 8992;
+    private static final int CHAINED_PROXY_PORT = 8993;
+    private static final int PROXY_PORT = 8994;
+
+    private Server webServer;
+    private TunnelingProxy chainedProxy;
+    private HttpProxyServer proxy;
+
+    @Before
+    public void setUp() throws Exception {
+        webServer = TestUtils.startWebServer(WEB_SERVER_PORT);
+        chainedProxy = new TunnelingProxy(CHAINED_PROXY_PORT);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try {
+            if (proxy != null) {
+                proxy.stop();
+            }
+            chainedProxy.stop();
+        } finally {
+            webServer.stop();
+        }
+    }
+
+    @Test
+    public void testConnectGoesOverConnectionOpenedAheadOfTime()
+            throws Exception {
+        startProxy(4);
+        tunnel();
+        waitForAcceptedConnections(2);
+        long secondConnectSentAt = System.currentTimeMillis();
+        tunnel();
+        assertTrue(
+                "Second CONNECT should have gone over a connection that was already open",
+                chainedProxy.connectionAcceptedAt(1) < secondConnectSentAt);
+    }
+
+    @Test
+    public void testEveryConnectOpensAConnectionWithoutWarmConnections()
+            throws Exception {
+        startProxy(0);
+        tunnel();
+        Thread.sleep(200);
+        long secondConnectSentAt = System.currentTimeMillis();
+        tunnel();
+        assertTrue("Second CONNECT should have opened its own connection",
+                chainedProxy.connectionAcceptedAt(1) >= secondConnectSentAt);
+        assertEquals("Only the CONNECTs should have opened connections", 2,
+                chainedProxy.getAcceptedConnections());
+    }
+
+    @Test
+    public void testConnectionClosedByChainedProxyIsNotUsed()
+            throws Exception {
+        startProxy(4);
+        tunnel();
+        waitForAcceptedConnections(2);
+        chainedProxy.closeIdleConnections();
+        Thread.sleep(200);
+        tunnel();
+    }
+
+    private void startProxy(int warmConnections) throws Exception {
+        proxy = DefaultHttpProxyServer.bootstrap()
+                .withPort(PROXY_PORT)
+                .withChainProxyManager(new ChainedProxyManagerAdapter() {
+                    @Override
+                    public String getHostAndPort(HttpRequest httpRequest) {
+                        return "127.0.0.1:" + CHAINED_PROXY_PORT;
+                    }
+                })
+                .withChainedProxyWarmConnections(warmConnections)
+                .start();
+        waitForListener(PROXY_PORT);
+    }
+
+    /**
+     * Opens a tunnel to the web server through the proxy and makes a request
+     * through it.
+     */
+    private void tunnel() throws Exception {
+        Socket socket = new Socket("127.0.0.1", PROXY_PORT);
+        try {
+            socket.setSoTimeout(10000);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            String target = "127.0.0.1:" + WEB_SERVER_PORT;
+            out.write(("CONNECT " + target + " HTTP/1.1\r\nHost: " + target + "\r\n\r\n")
+                    .getBytes("UTF-8"));
+            out.flush();
+            String connectResponse = readHead(in);
+            assertTrue("CONNECT should have succeeded: " + connectResponse,
+                    connectResponse.startsWith("HTTP/1.1 200"));
+            out.write(("GET / HTTP/1.1\r\nHost: " + target + "\r\nConnection: close\r\n\r\n")
+                    .getBytes("UTF-8"));
+            out.flush();
+            String response = IOUtils.toString(in, "UTF-8");
+            assertTrue("Request through the tunnel should have succeeded: "
+                    + response, response.startsWith("HTTP/1.1 200"));
+        } finally {
+            socket.close();
+        }
+    }
+
+    private void waitForAcceptedConnections(int count) throws Exception {
+        for (int i = 0; i < 50; i++) {
+            if (chainedProxy.getAcceptedConnections() >= count) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+        fail("Chained proxy only accepted "
+                + chainedProxy.getAcceptedConnections() + " connections");
+    }
+
+    /**
+     * The proxies bind asynchronously, this waits for one to start listening.
+     */
+    private void waitForListener(int port) throws Exception {
+        for (int i = 0; i < 50; i++) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress("127.0.0.1", port));
+                return;
+            } catch (IOException ioe) {
+                Thread.sleep(100);
+            } finally {
+                socket.close();
+            }
+        }
+        fail("Nothing listening on " + port);
+    }
+
+    private static String readHead(InputStream in) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int matched = 0;
+        while (matched < 4) {
+            int b = in.read();
+            if (b == -1) {
+                break;
+            }
+            head.write(b);
+            matched = (b == '\r' || b == '\n') ? matched + 1 : 0;
+        }
+        return head.toString("UTF-8");
+    }
+
+    /**
+     * A proxy that only handles CONNECTs, with a thread per connection.
+     */
+    private static class TunnelingProxy {
+        private final ServerSocket serverSocket;
+        private final List<Socket> idleConnections = Collections
+                .synchronizedList(new ArrayList<Socket>());
+        private final List<Long> acceptedAt = Collections
+                .synchronizedList(new ArrayList<Long>());
+        private final List<Long> connectionAcceptedAtByConnect = Collections
+                .synchronizedList(new ArrayList<Long>());
+        private final List<Socket> sockets = Collections
+                .synchronizedList(new ArrayList<Socket>());
+
+        private TunnelingProxy(int port) throws IOException {
+            serverSocket = new ServerSocket();
+            serverSocket.setReuseAddress(true);
+            serverSocket.bind(new InetSocketAddress("127.0.0.1", port));
+            start(new Runnable() {
+                public void run() {
+                    try {
+                        while (true) {
+                            final Socket socket = serverSocket.accept();
+                            final long accepted = System.currentTimeMillis();
+                            acceptedAt.add(accepted);
+                            sockets.add(socket);
+                            idleConnections.add(socket);
+                            start(new Runnable() {
+                                public void run() {
+                                    serve(socket, accepted);
+                                }
+                            });
+                        }
+                    } catch (IOException ioe) {
+                        // Stopped
+                    }
+                }
+            });
+        }
+
+        private int getAcceptedConnections() {
+            return acceptedAt.size();
+        }
+
+        /**
+         * When the connection that the given CONNECT came in on was accepted.
+         */
+        private long connectionAcceptedAt(int connect) {
+            return connectionAcceptedAtByConnect.get(connect);
+        }
+
+        private void closeIdleConnections() throws IOException {
+            synchronized (idleConnections) {
+                for (Socket socket : idleConnections) {
+                    socket.close();
+                }
+                idleConnections.clear();
+            }
+        }
+
+        private void stop() throws IOException {
+            serverSocket.close();
+            synchronized (sockets) {
+                for (Socket socket : sockets) {
+                    socket.close();
+                }
+            }
+        }
+
+        private void serve(Socket socket, long accepted) {
+            try {
+                String head = readHead(socket.getInputStream());
+                idleConnections.remove(socket);
+                if (!head.startsWith("CONNECT ")) {
+                    socket.close();
+                    return;
+                }
+                connectionAcceptedAtByConnect.add(accepted);
+                String hostAndPort = head.split(" ")[1];
+                String[] parts = hostAndPort.split(":");
+                Socket server = new Socket(parts[0],
+                        Integer.parseInt(parts[1]));
+                sockets.add(server);
+                socket.getOutputStream().write(
+                        "HTTP/1.1 200 Connection established\r\n\r\n"
+                                .getBytes("UTF-8"));
+                pump(server, socket);
+                pump(socket, server);
+            } catch (IOException ioe) {
+                // Closed
+            }
+        }
+
+        private void pump(final Socket from, final Socket to) {
+            start(new Runnable() {
+                public void run() {
+                    try {
+                        IOUtils.copy(from.getInputStream(),
+                                to.getOutputStream());
+                        to.shutdownOutput();
+                    } catch (IOException ioe) {
+                        // Closed
+                    }
+                }
+            });
+        }
+
+        private static void start(Runnable runnable) {
+            Thread thread = new Thread(runnable, "TunnelingProxy");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package org.littleshoot.proxy;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketServerHandshaker;
+import io.netty.handler.codec.http.websocketx.WebSocketServerHandshakerFactory;
+import io.netty.util.CharsetUtil;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * A bare-bones WebSocket echo server for tests and benchmarks.
+ * </p>
+ * 
+ * <p>
+ * Requests for /echo are upgraded to WebSocket, and every data frame is then
+ * sent straight back. Anything else is answered with "Hello " followed by the
+ * path, whether or not it asks to upgrade.
+ * </p>
+ */
+public class WebSocketEchoServer {
+    public static final int MAX_FRAME_SIZE = 1024 * 1024;
+
+    private final int port;
+    private final AtomicInteger connections = new AtomicInteger(0);
+    private EventLoopGroup group;
+
+    public WebSocketEchoServer(int port) {
+        this.port = port;
+    }
+
+    public WebSocketEchoServer start() throws Exception {
+        group = new NioEventLoopGroup();
+        new ServerBootstrap().group(group)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) throws Exception {
+                        connections.incrementAndGet();
+                        ch.pipeline().addLast(new HttpServerCodec());
+                        ch.pipeline().addLast(
+                                new HttpObjectAggregator(65536));
+                        ch.pipeline().addLast(new Echoer());
+                    }
+                }).bind(port).sync();
+        return this;
+    }
+
+    public void stop() {
+        group.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+    }
+
+    /**
+     * The number of connections that have been made to us.
+     * 
+     * @return
+     */
+    public int getConnections() {
+        return connections.get();
+    }
+
+    private class Echoer extends SimpleChannelInboundHandler<Object> {
+        private WebSocketServerHandshaker handshaker;
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, Object msg)
+                throws Exception {
+            if (msg instanceof FullHttpRequest) {
+                FullHttpRequest request = (FullHttpRequest) msg;
+                if (request.getUri().startsWith("/echo")) {
+                    handshaker = new WebSocketServerHandshakerFactory("ws://"
+                            + HttpHeaders.getHost(request) + "/echo", null,
+                            false, MAX_FRAME_SIZE).newHandshaker(request);
+                    if (handshaker == null) {
+                        WebSocketServerHandshakerFactory
+                                .sendUnsupportedWebSocketVersionResponse(ctx
+                                        .channel());
+                    } else {
+                        handshaker.handshake(ctx.channel(), request);
+                    }
+                } else {
+                    ByteBuf body = Unpooled.copiedBuffer(
+                            "Hello " + request.getUri(), CharsetUtil.UTF_8);
+                    FullHttpResponse response = new DefaultFullHttpResponse(
+                            HttpVersion.HTTP_1_1, HttpResponseStatus.OK, body);
+                    HttpHeaders.setContentLength(response,
+                            body.readableBytes());
+                    ctx.writeAndFlush(response);
+                }
+            } else if (msg instanceof CloseWebSocketFrame) {
+                handshaker.close(ctx.channel(),
+                        ((CloseWebSocketFrame) msg).retain());
+            } else if (msg instanceof PingWebSocketFrame) {
+                ctx.writeAndFlush(new PongWebSocketFrame(
+                        ((PingWebSocketFrame) msg).content().retain()));
+            } else if (msg instanceof WebSocketFrame) {
+                ctx.writeAndFlush(((WebSocketFrame) msg).retain());
+            }
+        }
+    }
+}
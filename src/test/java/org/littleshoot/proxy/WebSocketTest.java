@@ -0,0 +1,282 @@
+package org.littleshoot.proxy;
+
+import static org.junit.Assert.*;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocket13FrameDecoder;
+import io.netty.handler.codec.http.websocketx.WebSocket13FrameEncoder;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+
+/**
+ * Tests WebSocket connections that are upgraded from plain HTTP requests
+ * through the proxy, rather than tunneled with CONNECT.
+ */
+public class WebSocketTest {
+    private static final int WEB_SERVER_PORT = 8949;
+    private static final int PROXY_PORT = 8950;
+    private static final String WEB_SERVER_HOST_AND_PORT = "127.0.0.1:"
+            + WEB_SERVER_PORT;
+
+    private WebSocketEchoServer webServer;
+    private HttpProxyServer proxyServer;
+    private EventLoopGroup clientGroup;
+    private Channel client;
+    private final BlockingQueue<Object> received = new LinkedBlockingQueue<Object>();
+
+    @Before
+    public void setUp() throws Exception {
+        webServer = new WebSocketEchoServer(WEB_SERVER_PORT).start();
+        clientGroup = new NioEventLoopGroup(1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try {
+            if (client != null) {
+                client.close().sync();
+            }
+            clientGroup.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+            if (proxyServer != null) {
+                proxyServer.stop();
+            }
+        } finally {
+            webServer.stop();
+        }
+    }
+
+    @Test
+    public void testEcho() throws Exception {
+        startProxy(300);
+        connect();
+        FullHttpResponse response = upgrade("/echo");
+        assertEquals(HttpResponseStatus.SWITCHING_PROTOCOLS,
+                response.getStatus());
+        assertEquals("websocket",
+                response.headers().get(HttpHeaders.Names.UPGRADE));
+
+        for (int i = 0; i < 10; i++) {
+            client.writeAndFlush(new TextWebSocketFrame("Message " + i));
+        }
+        for (int i = 0; i < 10; i++) {
+            TextWebSocketFrame frame = (TextWebSocketFrame) receive();
+            assertEquals("Message " + i, frame.text());
+        }
+    }
+
+    @Test
+    public void testThroughput() throws Exception {
+        startProxy(300);
+        connect();
+        assertEquals(HttpResponseStatus.SWITCHING_PROTOCOLS, upgrade("/echo")
+                .getStatus());
+
+        // Keep a window of frames in flight, and check every echo as it
+        // arrives
+        final byte[] payload = new byte[64 * 1024];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (i * 7 + i / 3);
+        }
+        final int frames = 512;
+        final Semaphore window = new Semaphore(16);
+        final CountDownLatch done = new CountDownLatch(frames);
+        final AtomicLong corrupt = new AtomicLong(0);
+        client.pipeline().addLast(
+                new SimpleChannelInboundHandler<BinaryWebSocketFrame>() {
+                    @Override
+                    protected void channelRead0(ChannelHandlerContext ctx,
+                            BinaryWebSocketFrame frame) throws Exception {
+                        if (!Unpooled.wrappedBuffer(payload).equals(
+                                frame.content())) {
+                            corrupt.incrementAndGet();
+                        }
+                        window.release();
+                        done.countDown();
+                    }
+                });
+        client.pipeline().remove(Collector.class);
+
+        long start = System.currentTimeMillis();
+        ByteBuf buf = Unpooled.wrappedBuffer(payload);
+        for (int i = 0; i < frames; i++) {
+            assertTrue("Echoes stopped coming",
+                    window.tryAcquire(10, TimeUnit.SECONDS));
+            client.writeAndFlush(new BinaryWebSocketFrame(buf.duplicate()
+                    .retain()));
+        }
+        assertTrue("Not all echoes came back", done.await(30, TimeUnit.SECONDS));
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        assertEquals("Echoes should have arrived intact", 0, corrupt.get());
+        System.out.println(String.format(
+                "Echoed %1$s MB each way through the proxy in %2$sms (%3$s MB/s)",
+                frames * payload.length / (1024 * 1024), elapsed,
+                frames * payload.length / 1024 / elapsed));
+    }
+
+    @Test
+    public void testIdleTimeout() throws Exception {
+        startProxy(1);
+        connect();
+        assertEquals(HttpResponseStatus.SWITCHING_PROTOCOLS, upgrade("/echo")
+                .getStatus());
+
+        // Traffic keeps the connection open well past the timeout
+        for (int i = 0; i < 5; i++) {
+            client.writeAndFlush(new TextWebSocketFrame("Ping " + i));
+            assertEquals("Ping " + i, ((TextWebSocketFrame) receive()).text());
+            Thread.sleep(500);
+        }
+        assertTrue("Active connection should have stayed open",
+                client.isActive());
+
+        // But once it's quiet, it's closed
+        assertTrue("Idle connection should have been closed", client
+                .closeFuture().await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testDeclinedUpgrade() throws Exception {
+        startProxy(300);
+        connect();
+        FullHttpResponse response = upgrade("/plain");
+        assertEquals(HttpResponseStatus.OK, response.getStatus());
+        assertEquals("Hello /plain",
+                response.content().toString(CharsetUtil.UTF_8));
+
+        // The client connection is still good for HTTP
+        client.writeAndFlush(request("/after"));
+        response = (FullHttpResponse) receive();
+        assertEquals("Hello /after",
+                response.content().toString(CharsetUtil.UTF_8));
+    }
+
+    private void startProxy(int upgradedConnectionIdleTimeout)
+            throws Exception {
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(PROXY_PORT)
+                .withUpgradedConnectionIdleTimeout(
+                        upgradedConnectionIdleTimeout)
+                .start();
+        // The proxy binds asynchronously, wait for it to start listening
+        for (int i = 0; i < 50; i++) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress("127.0.0.1", PROXY_PORT));
+                break;
+            } catch (IOException ioe) {
+                Thread.sleep(100);
+            } finally {
+                socket.close();
+            }
+        }
+    }
+
+    private void connect() throws Exception {
+        client = new Bootstrap().group(clientGroup)
+                .channel(NioSocketChannel.class)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) throws Exception {
+                        ChannelPipeline pipeline = ch.pipeline();
+                        pipeline.addLast("http", new HttpClientCodec());
+                        pipeline.addLast("aggregator",
+                                new HttpObjectAggregator(65536));
+                        pipeline.addLast(new Collector());
+                    }
+                }).connect("127.0.0.1", PROXY_PORT).sync().channel();
+    }
+
+    /**
+     * Asks the server to upgrade the given path to a WebSocket.
+     * 
+     * @param path
+     * @return the server's response
+     */
+    private FullHttpResponse upgrade(String path) throws Exception {
+        FullHttpRequest request = request(path);
+        request.headers().set(HttpHeaders.Names.UPGRADE, "websocket");
+        request.headers().set(HttpHeaders.Names.CONNECTION,
+                HttpHeaders.Values.UPGRADE);
+        request.headers().set(HttpHeaders.Names.SEC_WEBSOCKET_KEY,
+                "dGhlIHNhbXBsZSBub25jZQ==");
+        request.headers().set(HttpHeaders.Names.SEC_WEBSOCKET_VERSION, "13");
+        client.writeAndFlush(request);
+        return (FullHttpResponse) receive();
+    }
+
+    private FullHttpRequest request(String path) {
+        FullHttpRequest request = new DefaultFullHttpRequest(
+                HttpVersion.HTTP_1_1, HttpMethod.GET, "http://"
+                        + WEB_SERVER_HOST_AND_PORT + path);
+        HttpHeaders.setHost(request, WEB_SERVER_HOST_AND_PORT);
+        return request;
+    }
+
+    private Object receive() throws Exception {
+        Object msg = received.poll(10, TimeUnit.SECONDS);
+        assertNotNull("Nothing received", msg);
+        return msg;
+    }
+
+    /**
+     * Collects whatever we receive, and switches to WebSocket frames once the
+     * server agrees to.
+     */
+    private class Collector extends SimpleChannelInboundHandler<Object> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, Object msg)
+                throws Exception {
+            if (msg instanceof FullHttpResponse
+                    && HttpResponseStatus.SWITCHING_PROTOCOLS
+                            .equals(((FullHttpResponse) msg).getStatus())) {
+                ChannelPipeline pipeline = ctx.pipeline();
+                pipeline.remove("aggregator");
+                pipeline.addBefore("http", "wsEncoder",
+                        new WebSocket13FrameEncoder(true));
+                pipeline.addBefore("http", "wsDecoder",
+                        new WebSocket13FrameDecoder(false, false,
+                                WebSocketEchoServer.MAX_FRAME_SIZE));
+                pipeline.remove("http");
+            }
+            if (msg instanceof WebSocketFrame || msg instanceof FullHttpResponse) {
+                received.add(ReferenceCountUtil.retain(msg));
+            }
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package org.littleshoot.proxy.impl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * <p>
+ * Replays access logs against the {@link CacheEvictionPolicy}s that the
+ * {@link ResponseCache} could use, and reports the hit ratios that each one
+ * achieves.
+ * </p>
+ * 
+ * <p>
+ * Usage:
+ * </p>
+ * 
+ * <pre>
+ * CacheSimulator &lt;cache size in bytes&gt; [access log ...]
+ * </pre>
+ * 
+ * <p>
+ * Access logs may be in Common/Combined Log Format (as written by Apache, nginx
+ * and most proxies), in Squid's native format, or simply one URL per line
+ * optionally followed by a size in bytes. If no logs are given, a synthetic
+ * trace with a Zipf-distributed working set interrupted by scans is used
+ * instead.
+ * </p>
+ */
+public class CacheSimulator {
+    /**
+     * Size assumed for accesses whose size isn't in the log.
+     */
+    private static final long DEFAULT_SIZE = 16 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        long cacheSize = args.length > 0 ? Long.parseLong(args[0])
+                : 64 * 1024 * 1024;
+        List<Access> trace = new ArrayList<Access>();
+        if (args.length > 1) {
+            for (int i = 1; i < args.length; i++) {
+                readLog(new File(args[i]), trace);
+            }
+        } else {
+            System.out.println("No access logs given, using synthetic trace");
+            trace = syntheticTrace();
+        }
+        System.out.println(String.format(
+                "Replaying %1$d accesses against a %2$d byte cache",
+                trace.size(), cacheSize));
+        System.out.println(String.format("%1$-10s %2$10s %3$15s", "Policy",
+                "Hit ratio", "Byte hit ratio"));
+
+        int expectedEntries = (int) Math.min(Integer.MAX_VALUE, cacheSize
+                / averageSize(trace));
+        report("LRU", new LruEvictionPolicy(cacheSize), cacheSize, trace);
+        report("TinyLFU", new TinyLfuEvictionPolicy(cacheSize,
+                expectedEntries), cacheSize, trace);
+    }
+
+    private static void report(String name, CacheEvictionPolicy policy,
+            long cacheSize, List<Access> trace) {
+        // Same limit as the ResponseCache applies
+        long maxObjectSize = cacheSize / 8;
+        Set<String> residents = new HashSet<String>();
+        long hits = 0;
+        long hitBytes = 0;
+        long totalBytes = 0;
+        for (Access access : trace) {
+            totalBytes += access.size;
+            if (residents.contains(access.key)) {
+                hits += 1;
+                hitBytes += access.size;
+                policy.recordHit(access.key);
+            } else {
+                policy.recordMiss(access.key);
+                if (access.size <= maxObjectSize) {
+                    residents.add(access.key);
+                    residents.removeAll(policy.add(access.key, access.size));
+                }
+            }
+        }
+        System.out.println(String.format("%1$-10s %2$9.2f%% %3$14.2f%%",
+                name, 100.0 * hits / trace.size(), 100.0 * hitBytes
+                        / totalBytes));
+    }
+
+    private static void readLog(File file, List<Access> trace)
+            throws IOException {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Access access = parse(line.trim());
+                if (access != null) {
+                    trace.add(access);
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Parses a single line of an access log.
+     * 
+     * @param line
+     * @return the access, or null if the line isn't a GET
+     */
+    static Access parse(String line) {
+        if (line.length() == 0 || line.startsWith("#")) {
+            return null;
+        }
+        int requestStart = line.indexOf('"');
+        if (requestStart >= 0) {
+            // Common/Combined Log Format:
+            // host ident user [date] "GET /url HTTP/1.1" status bytes ...
+            int requestEnd = line.indexOf('"', requestStart + 1);
+            if (requestEnd < 0) {
+                return null;
+            }
+            String[] request = line.substring(requestStart + 1, requestEnd)
+                    .split(" ");
+            String[] rest = line.substring(requestEnd + 1).trim().split(" ");
+            if (request.length < 2 || !"GET".equals(request[0])) {
+                return null;
+            }
+            return new Access(request[1], rest.length > 1 ? size(rest[1])
+                    : DEFAULT_SIZE);
+        }
+        String[] fields = line.split("\\s+");
+        if (fields.length >= 7 && fields[3].contains("/")) {
+            // Squid native format:
+            // time elapsed client code/status bytes method url ...
+            if (!"GET".equals(fields[5])) {
+                return null;
+            }
+            return new Access(fields[6], size(fields[4]));
+        }
+        // Simple format: url [bytes]
+        return new Access(fields[0], fields.length > 1 ? size(fields[1])
+                : DEFAULT_SIZE);
+    }
+
+    private static long size(String field) {
+        try {
+            return Math.max(1, Long.parseLong(field));
+        } catch (NumberFormatException nfe) {
+            return DEFAULT_SIZE;
+        }
+    }
+
+    private static long averageSize(List<Access> trace) {
+        long total = 0;
+        for (Access access : trace) {
+            total += access.size;
+        }
+        return trace.isEmpty() ? DEFAULT_SIZE : Math.max(1, total
+                / trace.size());
+    }
+
+    /**
+     * Builds a trace where most requests follow a Zipf distribution over a
+     * fixed set of objects, punctuated by scans over objects that are only
+     * ever requested once (think large downloads and crawlers).
+     */
+    private static List<Access> syntheticTrace() {
+        Random random = new Random(1);
+        int numberOfObjects = 100000;
+        double skew = 0.9;
+        double[] cumulative = new double[numberOfObjects];
+        double total = 0;
+        for (int i = 0; i < numberOfObjects; i++) {
+            total += 1 / Math.pow(i + 1, skew);
+            cumulative[i] = total;
+        }
+        Map<Integer, Long> sizes = new HashMap<Integer, Long>();
+
+        List<Access> trace = new ArrayList<Access>();
+        int scanNumber = 0;
+        for (int i = 0; i < 1000000; i++) {
+            if (i % 100000 == 50000) {
+                for (int j = 0; j < 20000; j++) {
+                    trace.add(new Access("/scan/" + scanNumber + "/" + j,
+                            DEFAULT_SIZE));
+                }
+                scanNumber += 1;
+            }
+            double target = random.nextDouble() * total;
+            int low = 0;
+            int high = numberOfObjects - 1;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (cumulative[mid] < target) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            Long size = sizes.get(low);
+            if (size == null) {
+                // Mostly small objects with the occasional big one
+                size = (long) (1024 * Math.exp(random.nextGaussian() * 1.5 + 2));
+                sizes.put(low, size);
+            }
+            trace.add(new Access("/object/" + low, size));
+        }
+        return trace;
+    }
+
+    static class Access {
+        private final String key;
+        private final long size;
+
+        Access(String key, long size) {
+            this.key = key;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package org.littleshoot.proxy.impl;
+
+import static org.junit.Assert.*;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for writing and loading {@link CacheSnapshot}s.
+ */
+public class CacheSnapshotTest {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("CacheSnapshotTest", "");
+        directory.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Test
+    public void testResponsesSurviveRoundTrip() throws Exception {
+        CacheSnapshot.write(directory, Arrays.asList(
+                response("localhost:80/a", "first body", "text/plain"),
+                response("localhost:80/b", "second body", "text/html")));
+        List<CachedResponse> loaded = CacheSnapshot.load(directory);
+        assertEquals(2, loaded.size());
+        assertResponse(loaded.get(0), "localhost:80/a", "first body");
+        assertResponse(loaded.get(1), "localhost:80/b", "second body");
+        assertEquals("text/html",
+                loaded.get(1).getHeaders().get(HttpHeaders.Names.CONTENT_TYPE));
+    }
+
+    @Test
+    public void testEntryThatCantBeWrittenIsLeftOut() throws Exception {
+        // writeUTF() refuses strings that encode to more than 64KB
+        char[] huge = new char[70 * 1024];
+        Arrays.fill(huge, 'x');
+        CacheSnapshot.write(directory, Arrays.asList(
+                response("localhost:80/a", "first body", "text/plain"),
+                response("localhost:80/huge", "huge body", new String(huge)),
+                response("localhost:80/b", "second body", "text/html")));
+        List<CachedResponse> loaded = CacheSnapshot.load(directory);
+        assertEquals("Entries around the one that failed should load", 2,
+                loaded.size());
+        assertResponse(loaded.get(0), "localhost:80/a", "first body");
+        assertResponse(loaded.get(1), "localhost:80/b", "second body");
+    }
+
+    private static CachedResponse response(String key, String body,
+            String contentType) {
+        HttpHeaders headers = new DefaultHttpHeaders();
+        headers.set(HttpHeaders.Names.CONTENT_TYPE, contentType);
+        long now = System.currentTimeMillis();
+        return new CachedResponse(key, HttpVersion.HTTP_1_1,
+                HttpResponseStatus.OK, headers, new HashMap<String, String>(),
+                now, 0, now + 60 * 1000, Unpooled.copiedBuffer(body, ASCII));
+    }
+
+    private static void assertResponse(CachedResponse response, String key,
+            String body) {
+        assertEquals(key, response.getKey());
+        assertTrue(response.isInSnapshot());
+        assertEquals(body, response.content().toString(ASCII));
+    }
+}
@@ -0,0 +1,96 @@
+package org.littleshoot.proxy.impl;
+
+import static org.junit.Assert.*;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.CertPathValidator;
+import java.security.cert.CertificateFactory;
+import java.security.cert.PKIXParameters;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.littleshoot.proxy.SelfSignedSSLContextSource;
+
+public class CertificateGeneratorTest {
+    private final SelfSignedSSLContextSource ca = new SelfSignedSSLContextSource(
+            "littleproxy_mitm_keystore.jks");
+    private final CertificateGenerator generator = new CertificateGenerator(
+            ca.getPrivateKey(), ca.getCertificate());
+
+    @Test
+    public void testCertificateForHostName() throws Exception {
+        X509Certificate certificate = generator.generate("www.example.com",
+                newKeyPair().getPublic());
+        assertEquals("CN=www.example.com", certificate
+                .getSubjectX500Principal().getName());
+        assertEquals(ca.getCertificate().getSubjectX500Principal(),
+                certificate.getIssuerX500Principal());
+        assertSubjectAltName(certificate, 2, "www.example.com");
+        certificate.checkValidity();
+        assertChainsToCa(certificate);
+    }
+
+    @Test
+    public void testCertificateForIpAddress() throws Exception {
+        X509Certificate certificate = generator.generate("127.0.0.1",
+                newKeyPair().getPublic());
+        assertSubjectAltName(certificate, 7, "127.0.0.1");
+        assertChainsToCa(certificate);
+    }
+
+    @Test
+    public void testCertificateForIpv6Address() throws Exception {
+        X509Certificate certificate = generator.generate("::1",
+                newKeyPair().getPublic());
+        assertSubjectAltName(certificate, 7, "0:0:0:0:0:0:0:1");
+        assertChainsToCa(certificate);
+    }
+
+    @Test
+    public void testRejectsInvalidHost() throws Exception {
+        for (String host : new String[] { "a,b.example.com",
+                "cn=example.com+o=x", "" }) {
+            try {
+                generator.generate(host, newKeyPair().getPublic());
+                fail("Should not have issued a certificate for " + host);
+            } catch (GeneralSecurityException gse) {
+                // expected
+            }
+        }
+    }
+
+    private void assertSubjectAltName(X509Certificate certificate, int type,
+            String name) throws Exception {
+        Collection<List<?>> names = certificate.getSubjectAlternativeNames();
+        assertNotNull("Certificate should have a subjectAltName", names);
+        assertEquals(1, names.size());
+        List<?> only = names.iterator().next();
+        assertEquals(type, only.get(0));
+        assertEquals(name, only.get(1));
+    }
+
+    private void assertChainsToCa(X509Certificate certificate)
+            throws Exception {
+        certificate.verify(ca.getCertificate().getPublicKey());
+        PKIXParameters params = new PKIXParameters(
+                Collections.singleton(new TrustAnchor(ca.getCertificate(),
+                        null)));
+        params.setRevocationEnabled(false);
+        CertPathValidator.getInstance("PKIX").validate(
+                CertificateFactory.getInstance("X.509").generateCertPath(
+                        Arrays.asList(certificate)), params);
+    }
+
+    private static KeyPair newKeyPair() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        return generator.generateKeyPair();
+    }
+}
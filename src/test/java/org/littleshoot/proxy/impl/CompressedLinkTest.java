@@ -0,0 +1,132 @@
+package org.littleshoot.proxy.impl;
+
+import static org.junit.Assert.*;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+import org.littleshoot.proxy.LinkCompression;
+
+/**
+ * Tests for {@link CompressedLink}, passing what one end writes straight to
+ * the other end in memory.
+ */
+public class CompressedLinkTest {
+    @Test
+    public void testDeflate() throws Exception {
+        assertRoundTrip(LinkCompression.DEFLATE);
+    }
+
+    @Test
+    public void testSnappy() throws Exception {
+        assertRoundTrip(LinkCompression.SNAPPY);
+    }
+
+    @Test
+    public void testUncompressedPassesThrough() throws Exception {
+        EmbeddedChannel chained = newChainedEnd();
+        byte[] request = "GET / HTTP/1.1\r\n\r\n".getBytes("US-ASCII");
+        chained.writeInbound(Unpooled.wrappedBuffer(request));
+        assertArrayEquals(request, readAll(chained, true));
+        assertFalse(CompressedLink.isCompressed(chained.pipeline()));
+    }
+
+    /**
+     * A little deflated data inflates to a lot, which has to come out in
+     * bounded chunks, and not all in one go.
+     */
+    @Test
+    public void testInflatesInBoundedPasses() throws Exception {
+        EmbeddedChannel chaining = newChainingEnd(LinkCompression.DEFLATE);
+        EmbeddedChannel chained = newChainedEnd();
+
+        byte[] data = new byte[16 * 1024 * 1024];
+        chaining.writeOutbound(Unpooled.wrappedBuffer(data));
+        byte[] compressed = readAll(chaining, false);
+        assertTrue(compressed.length < 100 * 1024);
+        // Unlike writeInbound(), this doesn't run the tasks that inflating
+        // leaves for later
+        chained.pipeline().fireChannelRead(Unpooled.wrappedBuffer(compressed));
+
+        int firstPass = 0;
+        Object msg;
+        while ((msg = chained.readInbound()) != null) {
+            ByteBuf chunk = (ByteBuf) msg;
+            assertTrue("Chunk too big", chunk.readableBytes() <= 8192);
+            firstPass += chunk.readableBytes();
+            chunk.release();
+        }
+        assertTrue("Should have inflated some", firstPass > 0);
+        assertTrue("Should have left the rest for later",
+                firstPass < data.length);
+        assertEquals(data.length - firstPass, readAll(chained, true).length);
+    }
+
+    /**
+     * Sends a few writes both ways, one of them too big to fit in a single
+     * buffer of compressed output. Data that doesn't compress comes out
+     * bigger than it went in, and all of it has to come out of every write,
+     * otherwise the end of a response is held up until the next one.
+     */
+    private void assertRoundTrip(LinkCompression compression)
+            throws Exception {
+        EmbeddedChannel chaining = newChainingEnd(compression);
+        EmbeddedChannel chained = newChainedEnd();
+
+        Random random = new Random();
+        for (int length : new int[] { 100, 64 * 1024, 10 }) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            chaining.writeOutbound(Unpooled.wrappedBuffer(data));
+            chained.writeInbound(Unpooled.wrappedBuffer(readAll(chaining,
+                    false)));
+            assertTrue("Request should have arrived intact",
+                    Arrays.equals(data, readAll(chained, true)));
+
+            chained.writeOutbound(Unpooled.wrappedBuffer(data));
+            chaining.writeInbound(Unpooled.wrappedBuffer(readAll(chained,
+                    false)));
+            assertTrue("Response should have arrived intact",
+                    Arrays.equals(data, readAll(chaining, true)));
+        }
+        assertTrue(CompressedLink.isCompressed(chained.pipeline()));
+    }
+
+    private static EmbeddedChannel newChainingEnd(LinkCompression compression) {
+        EmbeddedChannel channel = new EmbeddedChannel(
+                new ChannelInboundHandlerAdapter());
+        CompressedLink.addTo(channel.pipeline(), compression);
+        return channel;
+    }
+
+    private static EmbeddedChannel newChainedEnd() {
+        EmbeddedChannel channel = new EmbeddedChannel(
+                new ChannelInboundHandlerAdapter());
+        CompressedLink.addDetectorTo(channel.pipeline());
+        return channel;
+    }
+
+    private static byte[] readAll(EmbeddedChannel channel, boolean inbound) {
+        ByteBuf all = Unpooled.buffer();
+        while (true) {
+            // Inflating might have been left to tasks on the event loop
+            channel.runPendingTasks();
+            Object msg = inbound ? channel.readInbound() : channel
+                    .readOutbound();
+            if (msg == null) {
+                break;
+            }
+            ByteBuf buf = (ByteBuf) msg;
+            all.writeBytes(buf);
+            buf.release();
+        }
+        byte[] bytes = new byte[all.readableBytes()];
+        all.readBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,203 @@
+package org.littleshoot.proxy.impl;
+
+import static org.junit.Assert.*;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.Future;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests racing connections to several addresses with {@link ConnectionRace},
+ * against local listeners.
+ */
+public class ConnectionRaceTest {
+    private EventLoopGroup group;
+    private Bootstrap bootstrap;
+    private final List<ServerSocket> listeners = new ArrayList<ServerSocket>();
+    private final List<Socket> sockets = new ArrayList<Socket>();
+    private final List<Channel> channels = new ArrayList<Channel>();
+
+    @Before
+    public void setUp() {
+        group = new NioEventLoopGroup(1);
+        bootstrap = new Bootstrap().group(group)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 40 * 1000)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) throws Exception {
+                    }
+                });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (Channel channel : channels) {
+            channel.close();
+        }
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        for (ServerSocket listener : listeners) {
+            listener.close();
+        }
+        group.shutdownGracefully(0, 0, TimeUnit.SECONDS).await();
+    }
+
+    @Test
+    public void testInterleavesAddressFamilies() throws Exception {
+        InetSocketAddress v6a = address("2001:db8::1");
+        InetSocketAddress v6b = address("2001:db8::2");
+        InetSocketAddress v6c = address("2001:db8::3");
+        InetSocketAddress v4a = address("192.0.2.1");
+        InetSocketAddress v4b = address("192.0.2.2");
+        assertEquals(Arrays.asList(v6a, v4a, v6b, v4b, v6c),
+                ConnectionRace.interleave(Arrays.asList(v6a, v6b, v6c, v4a,
+                        v4b)));
+        assertEquals(Arrays.asList(v4a, v6a, v4b, v6b, v6c),
+                ConnectionRace.interleave(Arrays.asList(v4a, v6a, v6b, v4b,
+                        v6c)));
+    }
+
+    @Test
+    public void testFirstAddressWinsIfItAnswersInTime() throws Exception {
+        ServerSocket first = listen();
+        ServerSocket second = listen();
+        Channel winner = race(1000, addressOf(first), addressOf(second));
+        assertEquals(first.getLocalPort(),
+                ((InetSocketAddress) winner.remoteAddress()).getPort());
+        second.setSoTimeout(1500);
+        try {
+            second.accept().close();
+            fail("Should not have connected to the second address");
+        } catch (SocketTimeoutException ste) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testBlackholedAddressOnlyCostsTheAttemptDelay()
+            throws Exception {
+        ServerSocket live = listen();
+        long start = System.currentTimeMillis();
+        Channel winner = race(250, blackhole(), addressOf(live));
+        assertEquals(live.getLocalPort(),
+                ((InetSocketAddress) winner.remoteAddress()).getPort());
+        assertTrue("Should not have waited for the connect timeout",
+                System.currentTimeMillis() - start < 5000);
+    }
+
+    @Test
+    public void testUnroutableAddressDoesNotHoldUpConnecting()
+            throws Exception {
+        ServerSocket live = listen();
+        long start = System.currentTimeMillis();
+        // Some sandboxed networks answer for any address, so we can only
+        // count on not waiting for the connect timeout
+        Channel winner = race(250, address("10.255.255.1"), addressOf(live));
+        assertTrue(winner.isActive());
+        assertTrue("Should not have waited for the connect timeout",
+                System.currentTimeMillis() - start < 5000);
+    }
+
+    @Test
+    public void testFailedAttemptStartsTheNextOneRightAway()
+            throws Exception {
+        ServerSocket live = listen();
+        long start = System.currentTimeMillis();
+        Channel winner = race(10000, refused(), addressOf(live));
+        assertEquals(live.getLocalPort(),
+                ((InetSocketAddress) winner.remoteAddress()).getPort());
+        assertTrue("Should not have waited for the attempt delay",
+                System.currentTimeMillis() - start < 5000);
+    }
+
+    @Test
+    public void testFailsOnceEveryAttemptHasFailed() throws Exception {
+        Future<Channel> future = new ConnectionRace(bootstrap, Arrays.asList(
+                refused(), refused()), 10000).start();
+        assertTrue("Race should have finished",
+                future.await(5, TimeUnit.SECONDS));
+        assertFalse(future.isSuccess());
+        assertNotNull(future.cause());
+    }
+
+    private Channel race(long attemptDelayInMillis,
+            InetSocketAddress... addresses) throws Exception {
+        Future<Channel> future = new ConnectionRace(bootstrap,
+                Arrays.asList(addresses), attemptDelayInMillis).start();
+        assertTrue("Race should have finished",
+                future.await(10, TimeUnit.SECONDS));
+        assertTrue("Race should have succeeded: " + future.cause(),
+                future.isSuccess());
+        channels.add(future.getNow());
+        return future.getNow();
+    }
+
+    private ServerSocket listen() throws IOException {
+        ServerSocket listener = new ServerSocket(0, 50,
+                InetAddress.getByName("127.0.0.1"));
+        listeners.add(listener);
+        return listener;
+    }
+
+    /**
+     * A listener that never accepts, with its backlog full, which drops new
+     * connection attempts on the floor like an unreachable address would.
+     */
+    private InetSocketAddress blackhole() throws IOException {
+        ServerSocket listener = new ServerSocket(0, 1,
+                InetAddress.getByName("127.0.0.1"));
+        listeners.add(listener);
+        InetSocketAddress address = addressOf(listener);
+        for (int i = 0; i < 10; i++) {
+            Socket socket = new Socket();
+            sockets.add(socket);
+            try {
+                socket.connect(address, 500);
+            } catch (SocketTimeoutException ste) {
+                return address;
+            }
+        }
+        fail("Unable to fill up the backlog of " + address);
+        return null;
+    }
+
+    /**
+     * An address that nothing listens on.
+     */
+    private InetSocketAddress refused() throws IOException {
+        ServerSocket listener = new ServerSocket(0, 50,
+                InetAddress.getByName("127.0.0.1"));
+        InetSocketAddress address = addressOf(listener);
+        listener.close();
+        return address;
+    }
+
+    private static InetSocketAddress addressOf(ServerSocket listener) {
+        return new InetSocketAddress("127.0.0.1", listener.getLocalPort());
+    }
+
+    private static InetSocketAddress address(String ip) throws IOException {
+        return new InetSocketAddress(InetAddress.getByName(ip), 80);
+    }
+}
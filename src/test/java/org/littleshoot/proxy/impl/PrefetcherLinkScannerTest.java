@@ -0,0 +1,55 @@
+package org.littleshoot.proxy.impl;
+
+import static org.junit.Assert.*;
+import io.netty.buffer.Unpooled;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for the {@link Prefetcher.LinkScanner}.
+ */
+public class PrefetcherLinkScannerTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String PAGE = "<html><head>"
+            + "<link rel=\"stylesheet\" href=\"/style.css\">"
+            + "<link rel='alternate' href='/feed.xml'>"
+            + "<script type=\"text/javascript\" src='app.js'></script>"
+            + "</head><body>"
+            + "<a href=\"/other.html\">Other</a>"
+            + "<IMG ALT = \"x > y\" SRC=/images/logo.png>"
+            + "<img src=\"\">"
+            + "<p>Not a <b>link</b></p>"
+            + "</body></html>";
+
+    @Test
+    public void testFindsSubresources() throws Exception {
+        assertEquals(Arrays.asList("/style.css", "app.js", "/images/logo.png"),
+                scan(PAGE, PAGE.length()));
+    }
+
+    @Test
+    public void testTagsSplitAcrossChunks() throws Exception {
+        List<String> expected = scan(PAGE, PAGE.length());
+        for (int chunkSize = 1; chunkSize < 40; chunkSize++) {
+            assertEquals("Chunk size " + chunkSize, expected,
+                    scan(PAGE, chunkSize));
+        }
+    }
+
+    private static List<String> scan(String html, int chunkSize) {
+        Prefetcher.LinkScanner scanner = new Prefetcher.LinkScanner();
+        List<String> links = new ArrayList<String>();
+        for (int i = 0; i < html.length(); i += chunkSize) {
+            String chunk = html.substring(i,
+                    Math.min(html.length(), i + chunkSize));
+            links.addAll(scanner.scan(Unpooled.copiedBuffer(chunk, UTF8)));
+        }
+        return links;
+    }
+}
@@ -1,8 +1,17 @@
 package org.littleshoot.proxy.impl;
 
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+
+import java.util.Properties;
+
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.littleshoot.proxy.impl.ProxyUtils.*;
 
 /**
@@ -17,6 +26,8 @@ public class ProxyUtilsTest {
         assertEquals("www.test.com", parseHost("https://www.test.com:80/test"));
         assertEquals("www.test.com", parseHost("www.test.com:80/test"));
         assertEquals("www.test.com", parseHost("www.test.com"));
+        assertEquals("::1", parseHost("[::1]:443"));
+        assertEquals("::1", parseHost("https://[::1]/test"));
     }
 
     @Test
@@ -27,4 +38,28 @@ public class ProxyUtilsTest {
         assertEquals("www.test.com", parseHostAndPort("http://www.test.com"));
         assertEquals("www.test.com", parseHostAndPort("www.test.com"));
     }
+
+    @Test
+    public void testIsUpgrade() throws Exception {
+        HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1,
+                HttpMethod.GET, "http://www.test.com/chat");
+        assertFalse(isUpgrade(request));
+        request.headers().set("Upgrade", "websocket");
+        assertFalse("Upgrade has to be named in Connection", isUpgrade(request));
+        request.headers().set("Connection", "keep-alive, Upgrade");
+        assertTrue(isUpgrade(request));
+        request.headers().remove("Upgrade");
+        assertFalse(isUpgrade(request));
+    }
+
+    @Test
+    public void testExtractLong() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("max_cache_size_in_bytes", "8589934592");
+        props.setProperty("bogus", "lots");
+        assertEquals(8L * 1024 * 1024 * 1024,
+                extractLong(props, "max_cache_size_in_bytes"));
+        assertEquals(-1, extractLong(props, "bogus"));
+        assertEquals(-1, extractLong(props, "missing"));
+    }
 }
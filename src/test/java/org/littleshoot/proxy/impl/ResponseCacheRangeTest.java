@@ -0,0 +1,208 @@
+package org.littleshoot.proxy.impl;
+
+import static org.junit.Assert.*;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+/**
+ * Tests for the byte range support in {@link ResponseCache}.
+ */
+public class ResponseCacheRangeTest {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final String BODY = "0123456789abcdefghij";
+    private static final String KEY = "localhost:80/file";
+
+    @Test
+    public void testParseRanges() throws Exception {
+        ByteRange range = ByteRange.fromRangeHeader("bytes=5-9").resolve(20);
+        assertEquals(5, range.getStart());
+        assertEquals(9, range.getEnd());
+        assertEquals(5, range.getLength());
+
+        range = ByteRange.fromRangeHeader("bytes=15-").resolve(20);
+        assertEquals("bytes 15-19/20", range.toContentRangeHeader());
+
+        range = ByteRange.fromRangeHeader("bytes=-4").resolve(20);
+        assertEquals("bytes 16-19/20", range.toContentRangeHeader());
+
+        assertNull(ByteRange.fromRangeHeader("bytes=0-1,5-6"));
+        assertNull(ByteRange.fromRangeHeader("bytes=9-5"));
+        assertNull(ByteRange.fromRangeHeader("lines=0-5"));
+        assertNull(ByteRange.fromRangeHeader("bytes=25-").resolve(20));
+
+        range = ByteRange.fromContentRangeHeader("bytes 0-4/20");
+        assertEquals(20, range.getTotalLength());
+        assertNull(ByteRange.fromContentRangeHeader("bytes 0-4/*"));
+    }
+
+    @Test
+    public void testSegmentsAreMerged() throws Exception {
+        PartialResponse partialResponse = new PartialResponse(KEY,
+                HttpVersion.HTTP_1_1, new DefaultHttpHeaders(),
+                new HashMap<String, String>(), 0, 0, Long.MAX_VALUE, 20,
+                "\"v1\"");
+        partialResponse.addSegment(0, bytes(0, 5));
+        partialResponse.addSegment(10, bytes(10, 15));
+        assertEquals(10, partialResponse.getWeight());
+        assertEquals("bytes 5-9/20",
+                partialResponse.missingSpan(ByteRange.of(0, 14, 20))
+                        .toContentRangeHeader());
+        assertEquals("bytes 5-19/20",
+                partialResponse.missingSpan(ByteRange.of(3, 19, 20))
+                        .toContentRangeHeader());
+        assertNull(partialResponse.missingSpan(ByteRange.of(11, 13, 20)));
+
+        // Overlaps both existing segments
+        partialResponse.addSegment(3, bytes(3, 12));
+        assertEquals(15, partialResponse.getWeight());
+        assertEquals(BODY.substring(0, 15), string(partialResponse.read(0, 14)));
+        assertFalse(partialResponse.isComplete());
+
+        partialResponse.addSegment(15, bytes(15, 20));
+        assertTrue(partialResponse.isComplete());
+    }
+
+    @Test
+    public void testRangeServedFromCompleteResponse() throws Exception {
+        ResponseCache cache = new ResponseCache(1024 * 1024, null);
+        capture(cache, request(null), HttpResponseStatus.OK, null, 0, 20);
+
+        FullHttpResponse response = cache.responseFor(KEY,
+                request("bytes=-5"));
+        assertEquals(HttpResponseStatus.PARTIAL_CONTENT, response.getStatus());
+        assertEquals("bytes 15-19/20",
+                response.headers().get(HttpHeaders.Names.CONTENT_RANGE));
+        assertEquals("fghij", string(response.content()));
+
+        response = cache.responseFor(KEY, request(null));
+        assertEquals(HttpResponseStatus.OK, response.getStatus());
+        assertEquals(BODY, string(response.content()));
+    }
+
+    @Test
+    public void testPartialResponsesAreSplicedAndPromoted() throws Exception {
+        ResponseCache cache = new ResponseCache(1024 * 1024, null);
+        capture(cache, request("bytes=0-4"), HttpResponseStatus.PARTIAL_CONTENT,
+                "\"v1\"", 0, 5);
+        capture(cache, request("bytes=10-"),
+                HttpResponseStatus.PARTIAL_CONTENT, "\"v1\"", 10, 20);
+
+        // Held ranges come straight from the cache
+        FullHttpResponse response = cache.responseFor(KEY,
+                request("bytes=12-15"));
+        assertEquals("cdef", string(response.content()));
+        assertNull("Full response isn't held yet",
+                cache.responseFor(KEY, request(null)));
+
+        // Ranges with a gap only fetch the gap
+        HttpRequest request = request("bytes=2-12");
+        assertNull(cache.responseFor(KEY, request));
+        RangeSplice splice = cache.spliceFor(KEY, request);
+        assertNotNull(splice);
+        assertEquals("bytes=5-9",
+                request.headers().get(HttpHeaders.Names.RANGE));
+        assertEquals("\"v1\"",
+                request.headers().get(HttpHeaders.Names.IF_RANGE));
+        assertEquals("234", string(splice.getPrefix()));
+        assertEquals("abc", string(splice.getSuffix()));
+
+        HttpResponse fromServer = response(HttpResponseStatus.PARTIAL_CONTENT,
+                "\"v1\"", 5, 10);
+        assertTrue(splice.applyTo(fromServer));
+        assertEquals("bytes 2-12/20",
+                fromServer.headers().get(HttpHeaders.Names.CONTENT_RANGE));
+        assertEquals("11",
+                fromServer.headers().get(HttpHeaders.Names.CONTENT_LENGTH));
+
+        // Filling the gap completes the response
+        capture(cache, request, HttpResponseStatus.PARTIAL_CONTENT, "\"v1\"",
+                5, 10);
+        response = cache.responseFor(KEY, request(null));
+        assertEquals(HttpResponseStatus.OK, response.getStatus());
+        assertEquals(BODY, string(response.content()));
+        assertEquals(20, cache.getSizeInBytes());
+    }
+
+    @Test
+    public void testSegmentsOfDifferentVersionsAreNotCombined()
+            throws Exception {
+        ResponseCache cache = new ResponseCache(1024 * 1024, null);
+        capture(cache, request("bytes=0-9"), HttpResponseStatus.PARTIAL_CONTENT,
+                "\"v1\"", 0, 10);
+        capture(cache, request("bytes=10-19"),
+                HttpResponseStatus.PARTIAL_CONTENT, "\"v2\"", 10, 20);
+        assertNull("Old version should have been discarded",
+                cache.responseFor(KEY, request("bytes=0-4")));
+        assertNotNull(cache.responseFor(KEY, request("bytes=15-19")));
+        assertEquals(10, cache.getSizeInBytes());
+    }
+
+    @Test
+    public void testSplicingRejectsUnexpectedResponse() throws Exception {
+        RangeSplice splice = new RangeSplice(ByteRange.of(0, 9, 20),
+                ByteRange.of(5, 9, 20), bytes(0, 5), Unpooled.EMPTY_BUFFER);
+        assertFalse(splice.applyTo(response(HttpResponseStatus.OK, "\"v2\"",
+                0, 20)));
+        assertFalse(splice.applyTo(response(
+                HttpResponseStatus.PARTIAL_CONTENT, "\"v1\"", 4, 10)));
+    }
+
+    private void capture(ResponseCache cache, HttpRequest request,
+            HttpResponseStatus status, String etag, int start, int end) {
+        ResponseCache.Capture capture = cache.newCapture(KEY, request);
+        assertTrue(capture.start(response(status, etag, start, end)));
+        assertTrue(capture.append(new DefaultLastHttpContent(bytes(start, end))));
+        capture.finish();
+    }
+
+    private static HttpRequest request(String range) {
+        HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1,
+                HttpMethod.GET, "/file");
+        if (range != null) {
+            request.headers().set(HttpHeaders.Names.RANGE, range);
+        }
+        return request;
+    }
+
+    private static HttpResponse response(HttpResponseStatus status,
+            String etag, int start, int end) {
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1,
+                status);
+        response.headers().set(HttpHeaders.Names.CACHE_CONTROL,
+                "max-age=3600");
+        response.headers().set(HttpHeaders.Names.CONTENT_LENGTH, end - start);
+        if (etag != null) {
+            response.headers().set(HttpHeaders.Names.ETAG, etag);
+        }
+        if (HttpResponseStatus.PARTIAL_CONTENT.equals(status)) {
+            response.headers().set(HttpHeaders.Names.CONTENT_RANGE,
+                    ByteRange.of(start, end - 1, BODY.length())
+                            .toContentRangeHeader());
+        }
+        return response;
+    }
+
+    private static ByteBuf bytes(int start, int end) {
+        return Unpooled.copiedBuffer(BODY.substring(start, end), ASCII);
+    }
+
+    private static String string(ByteBuf buf) {
+        return buf.toString(ASCII);
+    }
+}
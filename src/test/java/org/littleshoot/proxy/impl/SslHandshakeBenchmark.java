@@ -0,0 +1,256 @@
+package org.littleshoot.proxy.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.littleshoot.proxy.SelfSignedSSLContextSource;
+import org.littleshoot.proxy.SslHandshakeStats;
+
+/**
+ * <p>
+ * Opens lots of SSL connections to a proxy at once and measures how long the
+ * handshakes take, and how badly they hold up requests on a connection that's
+ * already established.
+ * </p>
+ * 
+ * <p>
+ * Run it once with 0 handshake threads (delegated tasks run on the event loop)
+ * and once with a few, and compare the request latencies. The connections are
+ * kept open until every handshake is done, so that they really are
+ * concurrent.
+ * </p>
+ * 
+ * <p>
+ * Usage: SslHandshakeBenchmark [handshakeThreads] [connections]
+ * [clientThreads]
+ * </p>
+ */
+public class SslHandshakeBenchmark {
+    private static final int WEB_SERVER_PORT = 8947;
+    private static final int PROXY_PORT = 8948;
+
+    public static void main(String[] args) throws Exception {
+        int handshakeThreads = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+        final int connections = args.length > 1 ? Integer.parseInt(args[1])
+                : 5000;
+        int clientThreads = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+        Server webServer = new Server(WEB_SERVER_PORT);
+        webServer.setHandler(new AbstractHandler() {
+            public void handle(String target, Request baseRequest,
+                    HttpServletRequest request, HttpServletResponse response)
+                    throws IOException, ServletException {
+                response.setStatus(HttpServletResponse.SC_OK);
+                response.setContentLength(2);
+                response.getOutputStream().write("OK".getBytes("US-ASCII"));
+                baseRequest.setHandled(true);
+            }
+        });
+        webServer.start();
+
+        SelfSignedSSLContextSource sslContextSource = new SelfSignedSSLContextSource();
+        DefaultHttpProxyServer proxyServer = DefaultHttpProxyServer
+                .bootstrap()
+                .withPort(PROXY_PORT)
+                .withSslContextSource(sslContextSource)
+                .withSslHandshakeThreads(handshakeThreads)
+                .start();
+        final List<Socket> sockets = new ArrayList<Socket>();
+        try {
+            waitForProxy();
+            final SSLSocketFactory socketFactory = sslContextSource
+                    .getSSLContext().getSocketFactory();
+
+            // Keep one connection busy with small requests the whole time
+            final AtomicBoolean running = new AtomicBoolean(true);
+            final Latencies latencies = new Latencies();
+            Thread prober = new Thread() {
+                public void run() {
+                    try {
+                        probe(socketFactory, running, latencies);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            prober.start();
+
+            final AtomicInteger started = new AtomicInteger(0);
+            final AtomicInteger failed = new AtomicInteger(0);
+            int maxQueueDepth = 0;
+            long start = System.nanoTime();
+            ExecutorService clients = Executors
+                    .newFixedThreadPool(clientThreads);
+            List<Future<List<Socket>>> results = new ArrayList<Future<List<Socket>>>();
+            for (int i = 0; i < clientThreads; i++) {
+                results.add(clients.submit(new Callable<List<Socket>>() {
+                    @Override
+                    public List<Socket> call() throws Exception {
+                        List<Socket> opened = new ArrayList<Socket>();
+                        while (started.incrementAndGet() <= connections) {
+                            SSLSocket socket = (SSLSocket) socketFactory
+                                    .createSocket("127.0.0.1", PROXY_PORT);
+                            opened.add(socket);
+                            try {
+                                socket.startHandshake();
+                                socket.getSession().invalidate();
+                            } catch (IOException ioe) {
+                                failed.incrementAndGet();
+                            }
+                        }
+                        return opened;
+                    }
+                }));
+            }
+            clients.shutdown();
+            while (!clients.isTerminated()) {
+                maxQueueDepth = Math.max(maxQueueDepth, proxyServer
+                        .getSslHandshakeStats().getQueueDepth());
+                Thread.sleep(10);
+            }
+            double seconds = (System.nanoTime() - start) / 1000000000.0;
+            for (Future<List<Socket>> result : results) {
+                sockets.addAll(result.get());
+            }
+            running.set(false);
+            prober.join();
+
+            SslHandshakeStats stats = proxyServer.getSslHandshakeStats();
+            System.out.println(String.format(
+                    "%1$s SSL connections with %2$s handshake threads:",
+                    connections, handshakeThreads));
+            System.out.println(String.format(
+                    "  Handshakes:      %1$.1f per second, %2$s failed",
+                    (connections - failed.get()) / seconds, failed.get()));
+            System.out.println(String.format(
+                    "  Handshake time:  %1$.1fms average, %2$.1fms max",
+                    stats.getAverageHandshakeMillis(),
+                    stats.getMaxHandshakeMillis()));
+            System.out.println(String.format(
+                    "  Delegated tasks: %1$.1fms average, queue depth %2$s max",
+                    stats.getAverageTaskMillis(), maxQueueDepth));
+            System.out.println(String.format(
+                    "  Request latency: %1$.1fms average, %2$.1fms max (%3$s requests)",
+                    latencies.average(), latencies.max(), latencies.count));
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+            proxyServer.stop();
+            webServer.stop();
+        }
+    }
+
+    private static void waitForProxy() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress("127.0.0.1", PROXY_PORT));
+                break;
+            } catch (IOException ioe) {
+                Thread.sleep(100);
+            } finally {
+                socket.close();
+            }
+        }
+    }
+
+    /**
+     * Sends small requests one after the other on a single keep-alive
+     * connection, recording how long each one takes.
+     */
+    private static void probe(SSLSocketFactory socketFactory,
+            AtomicBoolean running, Latencies latencies) throws Exception {
+        Socket socket = socketFactory.createSocket("127.0.0.1", PROXY_PORT);
+        try {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            while (running.get()) {
+                long start = System.nanoTime();
+                out.write(("GET http://127.0.0.1:" + WEB_SERVER_PORT
+                        + "/small HTTP/1.1\r\nHost: 127.0.0.1:"
+                        + WEB_SERVER_PORT + "\r\n\r\n").getBytes("US-ASCII"));
+                out.flush();
+                long remaining = readContentLength(in);
+                while (remaining > 0) {
+                    if (in.read() < 0) {
+                        throw new EOFException();
+                    }
+                    remaining -= 1;
+                }
+                latencies.add(System.nanoTime() - start);
+                Thread.sleep(10);
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Reads the head of a response and returns its Content-Length.
+     */
+    private static long readContentLength(InputStream in) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int matched = 0;
+        while (matched < 4) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            head.write(b);
+            matched = b == "\r\n\r\n".charAt(matched) ? matched + 1
+                    : (b == '\r' ? 1 : 0);
+        }
+        for (String line : head.toString("US-ASCII").split("\r\n")) {
+            if (line.toLowerCase().startsWith("content-length:")) {
+                return Long.parseLong(line.substring(15).trim());
+            }
+        }
+        throw new IOException("Response has no Content-Length");
+    }
+
+    /**
+     * Only used by the prober thread until it's been joined.
+     */
+    private static class Latencies {
+        private int count = 0;
+        private long totalNanos = 0;
+        private long maxNanos = 0;
+
+        void add(long nanos) {
+            count += 1;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        double average() {
+            return count == 0 ? 0 : totalNanos / 1000000.0 / count;
+        }
+
+        double max() {
+            return maxNanos / 1000000.0;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package org.littleshoot.proxy.impl;
+
+import static org.junit.Assert.*;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalEventLoopGroup;
+import io.netty.channel.local.LocalServerChannel;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.Future;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import org.junit.Test;
+import org.littleshoot.proxy.SelfSignedSSLContextSource;
+
+/**
+ * Tests for {@link SslHandshakeExecutor}, handshaking over local channels.
+ */
+public class SslHandshakeExecutorTest {
+    private final SSLContext sslContext = new SelfSignedSSLContextSource()
+            .getSSLContext();
+
+    @Test
+    public void testHandshakeOffEventLoop() throws Exception {
+        SslHandshakeExecutor executor = new SslHandshakeExecutor("Test", 2);
+        try {
+            handshakeAndEcho(executor);
+            assertTrue("Delegated tasks should have been run",
+                    executor.getAverageTaskMillis() > 0);
+            assertEquals(0, executor.getTasksInFlight());
+            assertEquals(0, executor.getQueueDepth());
+        } finally {
+            executor.stop();
+        }
+    }
+
+    private void handshakeAndEcho(final SslHandshakeExecutor executor)
+            throws Exception {
+        LocalAddress address = new LocalAddress("SslHandshakeExecutorTest");
+        EventLoopGroup group = new LocalEventLoopGroup();
+        try {
+            new ServerBootstrap()
+                    .group(group)
+                    .channel(LocalServerChannel.class)
+                    .childHandler(new ChannelInitializer<LocalChannel>() {
+                        @Override
+                        protected void initChannel(LocalChannel ch)
+                                throws Exception {
+                            SSLEngine engine = sslContext.createSSLEngine();
+                            engine.setUseClientMode(false);
+                            executor.encrypt(ch.pipeline(), engine);
+                            ch.pipeline().addLast(
+                                    new ChannelInboundHandlerAdapter() {
+                                        @Override
+                                        public void channelRead(
+                                                ChannelHandlerContext ctx,
+                                                Object msg) {
+                                            ctx.writeAndFlush(msg);
+                                        }
+                                    });
+                        }
+                    }).bind(address).sync();
+
+            final BlockingQueue<String> received = new ArrayBlockingQueue<String>(
+                    10);
+            Channel client = new Bootstrap()
+                    .group(group)
+                    .channel(LocalChannel.class)
+                    .handler(new ChannelInitializer<LocalChannel>() {
+                        @Override
+                        protected void initChannel(LocalChannel ch)
+                                throws Exception {
+                            ch.pipeline().addLast(
+                                    new ChannelInboundHandlerAdapter() {
+                                        @Override
+                                        public void channelRead(
+                                                ChannelHandlerContext ctx,
+                                                Object msg) {
+                                            ByteBuf buf = (ByteBuf) msg;
+                                            received.add(buf
+                                                    .toString(CharsetUtil.US_ASCII));
+                                            buf.release();
+                                        }
+                                    });
+                        }
+                    }).connect(address).sync().channel();
+
+            SSLEngine engine = sslContext.createSSLEngine();
+            engine.setUseClientMode(true);
+            Future<Channel> handshake = executor.encrypt(client.pipeline(),
+                    engine);
+            assertTrue("Handshake should have succeeded",
+                    handshake.await(10000) && handshake.isSuccess());
+            assertNull("The gate should be gone after the handshake", client
+                    .pipeline().get("sslHandshakeGate"));
+
+            client.writeAndFlush(Unpooled.copiedBuffer("Hello",
+                    CharsetUtil.US_ASCII));
+            assertEquals("Hello", received.poll(10, TimeUnit.SECONDS));
+            client.close().sync();
+            assertEquals(2, executor.getHandshakes());
+        } finally {
+            group.shutdownGracefully().sync();
+        }
+    }
+}
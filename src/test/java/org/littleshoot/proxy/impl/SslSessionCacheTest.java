@@ -0,0 +1,125 @@
+package org.littleshoot.proxy.impl;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLSession;
+
+import org.junit.Test;
+import org.littleshoot.proxy.SelfSignedSSLContextSource;
+
+/**
+ * Tests for {@link SslSessionCache}, using SSLEngines that handshake with
+ * each other in memory.
+ */
+public class SslSessionCacheTest {
+    private static final SslEngineFactory ENGINE_FACTORY = new SslEngineFactory();
+
+    private final SSLContext sslContext = new SelfSignedSSLContextSource()
+            .getSSLContext();
+
+    @Test
+    public void testSessionsAreResumedPerPeer() throws Exception {
+        SslSessionCache cache = new SslSessionCache(ENGINE_FACTORY, 100, 60);
+        handshake(cache, "example.com", 443);
+        Thread.sleep(10);
+        handshake(cache, "example.com", 443);
+        assertEquals(1, cache.getFullHandshakes());
+        assertEquals(1, cache.getResumedHandshakes());
+
+        handshake(cache, "example.com", 8443);
+        assertEquals("A different peer shouldn't resume the session", 2,
+                cache.getFullHandshakes());
+        assertEquals(1.0 / 3, cache.getResumptionRate(), 0.001);
+    }
+
+    @Test
+    public void testInboundSessionsAreResumed() throws Exception {
+        SslSessionCache cache = new SslSessionCache(ENGINE_FACTORY, 100, 60);
+        for (int i = 0; i < 3; i++) {
+            long startedAt = System.currentTimeMillis();
+            SSLEngine client = sslContext.createSSLEngine("example.com", 443);
+            client.setUseClientMode(true);
+            SSLEngine server = cache.newServerEngine(sslContext);
+            handshake(client, server);
+            cache.handshakeCompleted(server.getSession(), startedAt);
+            Thread.sleep(10);
+        }
+        assertEquals(1, cache.getFullHandshakes());
+        assertEquals(2, cache.getResumedHandshakes());
+        assertEquals(100, sslContext.getServerSessionContext()
+                .getSessionCacheSize());
+        assertEquals(60, sslContext.getServerSessionContext()
+                .getSessionTimeout());
+    }
+
+    @Test
+    public void testLimitsAreApplied() throws Exception {
+        SslSessionCache cache = new SslSessionCache(ENGINE_FACTORY, 10, 30);
+        cache.newClientEngine(sslContext, "example.com", 443);
+        assertEquals(10, sslContext.getClientSessionContext()
+                .getSessionCacheSize());
+        assertEquals(30, sslContext.getClientSessionContext()
+                .getSessionTimeout());
+    }
+
+    private void handshake(SslSessionCache cache, String host, int port)
+            throws Exception {
+        long startedAt = System.currentTimeMillis();
+        SSLEngine client = cache.newClientEngine(sslContext, host, port);
+        SSLEngine server = sslContext.createSSLEngine();
+        server.setUseClientMode(false);
+        handshake(client, server);
+        cache.handshakeCompleted(client.getSession(), startedAt);
+    }
+
+    private void handshake(SSLEngine client, SSLEngine server)
+            throws Exception {
+        SSLSession session = client.getSession();
+        ByteBuffer empty = ByteBuffer.allocate(0);
+        ByteBuffer clientToServer = ByteBuffer.allocate(session
+                .getPacketBufferSize() * 4);
+        ByteBuffer serverToClient = ByteBuffer.allocate(session
+                .getPacketBufferSize() * 4);
+        ByteBuffer clientIn = ByteBuffer.allocate(session
+                .getApplicationBufferSize() * 2);
+        ByteBuffer serverIn = ByteBuffer.allocate(session
+                .getApplicationBufferSize() * 2);
+
+        client.beginHandshake();
+        server.beginHandshake();
+        for (int i = 0; i < 100 && !(isDone(client) && isDone(server)); i++) {
+            client.wrap(empty, clientToServer);
+            runTasks(client);
+            server.wrap(empty, serverToClient);
+            runTasks(server);
+
+            clientToServer.flip();
+            server.unwrap(clientToServer, serverIn);
+            clientToServer.compact();
+            runTasks(server);
+
+            serverToClient.flip();
+            client.unwrap(serverToClient, clientIn);
+            serverToClient.compact();
+            runTasks(client);
+        }
+        assertTrue("Handshake should have completed", isDone(client)
+                && isDone(server));
+    }
+
+    private static boolean isDone(SSLEngine engine) {
+        return engine.getHandshakeStatus() == HandshakeStatus.NOT_HANDSHAKING;
+    }
+
+    private static void runTasks(SSLEngine engine) {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+}
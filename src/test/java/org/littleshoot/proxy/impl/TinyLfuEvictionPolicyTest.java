@@ -0,0 +1,88 @@
+package org.littleshoot.proxy.impl;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link TinyLfuEvictionPolicy} and its {@link FrequencySketch}.
+ */
+public class TinyLfuEvictionPolicyTest {
+
+    @Test
+    public void testSketchCountsAndAges() throws Exception {
+        FrequencySketch sketch = new FrequencySketch(64);
+        for (int i = 0; i < 5; i++) {
+            sketch.increment("popular");
+        }
+        sketch.increment("rare");
+        assertEquals(5, sketch.frequency("popular"));
+        assertEquals(1, sketch.frequency("rare"));
+        assertEquals(0, sketch.frequency("unseen"));
+
+        // Enough other increments to trigger aging
+        for (int i = 0; i < 64 * 10; i++) {
+            sketch.increment("filler-" + i);
+        }
+        assertTrue("Frequency should have been halved",
+                sketch.frequency("popular") <= 3);
+    }
+
+    @Test
+    public void testPopularEntriesSurviveScan() throws Exception {
+        int numberOfPopularEntries = 50;
+        CacheEvictionPolicy tinyLfu = new TinyLfuEvictionPolicy(100, 100);
+        CacheEvictionPolicy lru = new LruEvictionPolicy(100);
+
+        Set<String> tinyLfuResidents = new HashSet<String>();
+        Set<String> lruResidents = new HashSet<String>();
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < numberOfPopularEntries; i++) {
+                access(tinyLfu, tinyLfuResidents, "popular-" + i);
+                access(lru, lruResidents, "popular-" + i);
+            }
+        }
+        for (int i = 0; i < 1000; i++) {
+            access(tinyLfu, tinyLfuResidents, "scan-" + i);
+            access(lru, lruResidents, "scan-" + i);
+        }
+
+        assertEquals("Popular entries should still be cached",
+                numberOfPopularEntries, countPopular(tinyLfuResidents));
+        assertEquals("LRU should have lost popular entries to the scan", 0,
+                countPopular(lruResidents));
+        assertTrue(tinyLfu.getWeight() <= 100);
+    }
+
+    @Test
+    public void testOversizedEntryIsNotAdmitted() throws Exception {
+        CacheEvictionPolicy tinyLfu = new TinyLfuEvictionPolicy(100, 100);
+        tinyLfu.recordMiss("huge");
+        assertTrue(tinyLfu.add("huge", 1000).contains("huge"));
+        assertEquals(0, tinyLfu.getWeight());
+    }
+
+    private void access(CacheEvictionPolicy policy, Set<String> residents,
+            String key) {
+        if (residents.contains(key)) {
+            policy.recordHit(key);
+        } else {
+            policy.recordMiss(key);
+            residents.add(key);
+            residents.removeAll(policy.add(key, 1));
+        }
+    }
+
+    private int countPopular(Set<String> residents) {
+        int count = 0;
+        for (String key : residents) {
+            if (key.startsWith("popular-")) {
+                count += 1;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,35 @@
+package org.littleshoot.proxy.impl;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Tests for how many connections {@link WarmConnectionPool} keeps ready.
+ */
+public class WarmConnectionPoolTest {
+    @Test
+    public void testOneConnectionUntilWeKnowTheSetupTime() {
+        assertEquals(1, WarmConnectionPool.targetSize(50, -1, 8));
+    }
+
+    @Test
+    public void testOneSpareConnectionWhenConnectsAreRare() {
+        assertEquals(1, WarmConnectionPool.targetSize(0, 300, 8));
+        assertEquals(2, WarmConnectionPool.targetSize(0.1, 300, 8));
+    }
+
+    @Test
+    public void testCoversConnectsArrivingWhileOpeningAConnection() {
+        // 20 CONNECTs per second and 250 ms to open a connection means 5
+        // arrive while we open one
+        assertEquals(6, WarmConnectionPool.targetSize(20, 250, 8));
+        assertEquals(3, WarmConnectionPool.targetSize(20, 100, 8));
+    }
+
+    @Test
+    public void testNeverMoreThanTheMaximum() {
+        assertEquals(4, WarmConnectionPool.targetSize(20, 250, 4));
+        assertEquals(0, WarmConnectionPool.targetSize(20, -1, 0));
+    }
+}